@@ -0,0 +1,409 @@
+package com.lightspeedsystems.mdm;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.lightspeedsystems.mdm.util.LSLogger;
+
+/**
+ * Cache of downloaded app installer (.apk) files, so that reinstalling an app, retrying a failed
+ * install, or retrying a self-update does not download the same file again.
+ *
+ * Files are keyed by the SHA-256 digest of their content, so a file is only used for an install
+ * when the install command (or update check) gives the digest of the file it wants. Files are only
+ * added when the digest was given, since the install commands do not otherwise say which version of
+ * a package they want, and a file that cannot be found again would only use space. Each entry
+ * also has the package name and version code read from the file. The entries are persisted in the
+ * lscachedapks table; the files are kept in an "apkcache" directory under the download directory.
+ *
+ * The cache is bounded: the total size is kept within the APKCACHE_MAXMB setting, and within the
+ * free space on the filesystem less a reserve (APKCACHE_RESERVEPCT of the filesystem's capacity),
+ * removing the least recently used files first. A file returned by find or add is in use until its
+ * install is done and release is called; files in use are not removed.
+ */
+public class ApkCache {
+	private final static String TAG = "ApkCache";
+
+	public final static String CACHE_DIR_NAME = "apkcache";
+	public final static int DEFAULT_MAXMB = 512;
+	public final static int DEFAULT_RESERVEPCT = 10;
+
+	private static ApkCache cacheInstance;
+
+	private Context context;
+	private HashMap<String,CachedApk> entries;   // cached files, by SHA-256 digest
+	private HashMap<String,Integer> inUse;       // count of pending installs using a file, by file path
+	private boolean bLoaded;
+
+	/**
+	 * Values for a cached file.
+	 */
+	public static class CachedApk {
+		public String sha256;
+		public String pkgName;
+		public int    versionCode;
+		public String filePath;
+		public long   size;
+		public long   lastUsed;  // time the file was added or last used
+	}
+
+	/**
+	 * Gets the cache instance (as a singleton, creating it as needed).
+	 * @param context application context; if null, the application context is used.
+	 * @return the ApkCache.
+	 */
+	public static ApkCache getInstance(Context context) {
+		if (cacheInstance == null) {
+			synchronized (ApkCache.class) {
+				if (cacheInstance == null) {
+					if (context == null)
+						context = Utils.getApplicationContext();
+					cacheInstance = new ApkCache(context);
+				}
+			}
+		}
+		return cacheInstance;
+	}
+
+	private ApkCache(Context context) {
+		this.context = context;
+		entries = new HashMap<String,CachedApk>(16);
+		inUse = new HashMap<String,Integer>(4);
+	}
+
+	/**
+	 * Finds a cached file by its content digest, marking it as used. The file is kept in the cache
+	 * until release is called for it, once it has been installed.
+	 * @param sha256 SHA-256 digest of the file, as a hex string; can be null.
+	 * @return the path to the cached file, or null if not cached.
+	 */
+	public String find(String sha256) {
+		if (sha256 == null || sha256.length() == 0)
+			return null;
+		String key = sha256.trim().toLowerCase();
+		CachedApk entry;
+		boolean bFound = false;
+		synchronized (this) {
+			loadIfNeeded();
+			entry = entries.get(key);
+			if (entry != null) {
+				File file = new File(entry.filePath);
+				if (file.exists() && file.length() == entry.size) {
+					entry.lastUsed = System.currentTimeMillis();
+					pin(entry.filePath);
+					bFound = true;
+				} else {
+					// the file was removed (such as by the system clearing the cache partition), or changed.
+					LSLogger.debug(TAG, "Cached file missing or changed: " + entry.filePath);
+					entries.remove(key);
+					file.delete();
+				}
+			}
+		}
+		if (entry != null) {
+			ApkCacheDB db = new ApkCacheDB(context);
+			if (bFound)
+				db.save(entry);
+			else
+				db.delete(key);
+			db.close();
+		}
+		return (bFound ? entry.filePath : null);
+	}
+
+	/**
+	 * Adds a downloaded file to the cache, moving it into the cache directory, then removes the
+	 * least recently used files as needed to keep within the cache limits. The file is kept in the
+	 * cache until release is called for it, once it has been installed.
+	 * @param downloadPath path of the downloaded file.
+	 * @param pkgName name of the app's package.
+	 * @param sha256 digest of the file, which it has been verified against; if null, the file is not cached.
+	 * @return the path of the file in the cache, or null if the file was not cached (it is left where it is).
+	 */
+	public String add(String downloadPath, String pkgName, String sha256) {
+		if (sha256 == null || sha256.trim().length() == 0)
+			return null;  // the file could not be found again.
+		Settings settings = Settings.getInstance(context);
+		long maxBytes = settings.getSettingInt(Settings.APKCACHE_MAXMB, DEFAULT_MAXMB) * 1024L * 1024L;
+		if (maxBytes <= 0)
+			return null;  // caching is disabled.
+
+		File file = new File(downloadPath);
+		try {
+			sha256 = sha256.trim().toLowerCase();
+
+			File dir = new File(file.getParentFile(), CACHE_DIR_NAME);
+			if (!dir.exists() && !dir.mkdirs()) {
+				LSLogger.warn(TAG, "Unable to create cache directory " + dir.getPath());
+				return null;
+			}
+			File cachedFile = new File(dir, sha256 + ".apk");
+			if (cachedFile.exists())
+				cachedFile.delete();
+			if (!file.renameTo(cachedFile)) {
+				LSLogger.warn(TAG, "Unable to move " + file.getPath() + " to the cache.");
+				return null;
+			}
+			// let the package installer read the file:
+			cachedFile.setReadable(true, false);
+
+			CachedApk entry = new CachedApk();
+			entry.sha256 = sha256;
+			entry.pkgName = pkgName;
+			entry.filePath = cachedFile.getPath();
+			entry.size = cachedFile.length();
+			entry.lastUsed = System.currentTimeMillis();
+			PackageInfo pkgInfo = context.getPackageManager().getPackageArchiveInfo(entry.filePath, 0);
+			if (pkgInfo != null) {
+				entry.pkgName = pkgInfo.packageName;
+				entry.versionCode = pkgInfo.versionCode;
+			}
+			synchronized (this) {
+				loadIfNeeded();
+				entries.put(sha256, entry);
+				pin(entry.filePath);
+			}
+			ApkCacheDB db = new ApkCacheDB(context);
+			db.save(entry);
+			db.close();
+			LSLogger.debug(TAG, "Cached " + entry.pkgName + " version " + entry.versionCode + " (" + entry.size + " bytes) as " + sha256);
+
+			trim(settings, maxBytes, entry.filePath);
+			return entry.filePath;
+		} catch (Exception ex) {
+			LSLogger.exception(TAG, "Error adding file to cache: ", ex);
+		}
+		return null;
+	}
+
+	/**
+	 * Releases a file returned by find or add, once its install is done (or was not done), so that
+	 * it can be removed from the cache as needed.
+	 * @param path path of the installer file; if not a file in use from the cache, nothing is done.
+	 */
+	public synchronized void release(String path) {
+		Integer count = (path == null ? null : inUse.get(path));
+		if (count != null) {
+			if (count.intValue() > 1)
+				inUse.put(path, Integer.valueOf(count.intValue() - 1));
+			else
+				inUse.remove(path);
+		}
+	}
+
+	// marks a file as in use by one more pending install.
+	private void pin(String path) {
+		Integer count = inUse.get(path);
+		inUse.put(path, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+	}
+
+	/**
+	 * Returns true if the given path is a cached file, which is to be kept after it is installed.
+	 */
+	public synchronized boolean isCachedFile(String path) {
+		if (path == null)
+			return false;
+		loadIfNeeded();
+		Iterator<CachedApk> iter = entries.values().iterator();
+		while (iter.hasNext()) {
+			if (path.equals(iter.next().filePath))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the cached files for a package other than the given one, such as older versions of
+	 * this app once a newer update is available. Files in use by a pending install are kept.
+	 * @param pkgName name of the package.
+	 * @param keepSha256 digest of the file to keep; can be null to remove all of the package's files.
+	 * @return number of files removed.
+	 */
+	public int removeOtherVersions(String pkgName, String keepSha256) {
+		if (keepSha256 != null)
+			keepSha256 = keepSha256.trim().toLowerCase();
+		ArrayList<CachedApk> removed = new ArrayList<CachedApk>();
+		synchronized (this) {
+			loadIfNeeded();
+			Iterator<CachedApk> iter = entries.values().iterator();
+			while (iter.hasNext()) {
+				CachedApk entry = iter.next();
+				if (pkgName.equals(entry.pkgName) && !entry.sha256.equals(keepSha256) &&
+						!inUse.containsKey(entry.filePath)) {
+					iter.remove();
+					removed.add(entry);
+				}
+			}
+		}
+		deleteEntries(removed);
+		return removed.size();
+	}
+
+	// removes the least recently used files until the cache is within its limits. Files in use by a
+	//  pending install (including the one just added) are kept, even if the cache is then over its limits.
+	private void trim(Settings settings, long maxBytes, String addedPath) {
+		int reservePct = settings.getSettingInt(Settings.APKCACHE_RESERVEPCT, DEFAULT_RESERVEPCT);
+		long[] space = Device.getFilesystemSpace(new File(addedPath).getParent());
+		ArrayList<CachedApk> removed = new ArrayList<CachedApk>();
+		synchronized (this) {
+			long total = 0;
+			Iterator<CachedApk> iter = entries.values().iterator();
+			while (iter.hasNext())
+				total += iter.next().size;
+			// the cache can use what is free now, plus what it already uses, less the reserve:
+			long budget = Math.min(maxBytes, space[1] + total - (space[0] * reservePct / 100));
+			while (total > budget) {
+				CachedApk oldest = null;
+				iter = entries.values().iterator();
+				while (iter.hasNext()) {
+					CachedApk entry = iter.next();
+					if (!inUse.containsKey(entry.filePath) && (oldest == null || entry.lastUsed < oldest.lastUsed))
+						oldest = entry;
+				}
+				if (oldest == null)
+					break;
+				entries.remove(oldest.sha256);
+				removed.add(oldest);
+				total -= oldest.size;
+			}
+		}
+		if (!removed.isEmpty())
+			LSLogger.debug(TAG, "Removing " + removed.size() + " files from the cache to keep within its limits.");
+		deleteEntries(removed);
+	}
+
+	// deletes the files and rows for the given entries.
+	private void deleteEntries(ArrayList<CachedApk> removed) {
+		if (removed.isEmpty())
+			return;
+		ApkCacheDB db = new ApkCacheDB(context);
+		for (int i=0; i<removed.size(); i++) {
+			CachedApk entry = removed.get(i);
+			new File(entry.filePath).delete();
+			db.delete(entry.sha256);
+		}
+		db.close();
+	}
+
+	// loads the cached entries from the database the first time they are needed.
+	private void loadIfNeeded() {
+		if (!bLoaded) {
+			bLoaded = true;
+			ApkCacheDB db = new ApkCacheDB(context);
+			db.readAll(entries);
+			db.close();
+			LSLogger.debug(TAG, "Loaded " + entries.size() + " cached installer entries.");
+		}
+	}
+
+	/**
+	 * Static method to get the SQL used to create the cached installers table.
+	 * @return the SQL string used to create the table.
+	 */
+	public static String getCachedApksSqlCreateTable() {
+		return ApkCacheDB.getSqlCreateTable();
+	}
+
+
+	// --------------------------------------------------------------------------
+	// --- Inner-class for handling cache persistence in a sqlite database      --
+	// --------------------------------------------------------------------------
+	/**
+	 * A SQLite database is used to store the cache entries in the lscachedapks table, one row per file.
+	 */
+	private static class ApkCacheDB extends DBStorage {
+		private final static String CACHE_DB_TABLENAME = "lscachedapks";
+		private final static String COLUMN_SHA256   = "sha256";
+		private final static String COLUMN_PKGNAME  = "pkgname";
+		private final static String COLUMN_VERSION  = "versioncode";
+		private final static String COLUMN_FILEPATH = "filepath";
+		private final static String COLUMN_SIZE     = "size";
+		private final static String COLUMN_LASTUSED = "lastused";
+
+		private final static String CACHE_DB_CREATE_SQL =
+				"CREATE TABLE " + CACHE_DB_TABLENAME + " (" +
+						COLUMN_SHA256   + " TEXT PRIMARY KEY, " +
+						COLUMN_PKGNAME  + " TEXT, " +
+						COLUMN_VERSION  + " INTEGER, " +
+						COLUMN_FILEPATH + " TEXT, " +
+						COLUMN_SIZE     + " LONG, " +
+						COLUMN_LASTUSED + " LONG);";
+
+		private final static String CACHE_DB_QUERY_GETALL =
+				"select " + COLUMN_SHA256 + "," + COLUMN_PKGNAME + "," + COLUMN_VERSION + "," +
+				COLUMN_FILEPATH + "," + COLUMN_SIZE + "," + COLUMN_LASTUSED + " from " + CACHE_DB_TABLENAME + ";";
+
+		public ApkCacheDB(Context context) {
+			super(context);
+		}
+
+		public String getSqlTableName() {
+			return CACHE_DB_TABLENAME;
+		}
+
+		public static String getSqlCreateTable() {
+			return CACHE_DB_CREATE_SQL;
+		}
+
+		protected int readAll(HashMap<String,CachedApk> map) {
+			int count = 0;
+			Cursor cursor = null;
+			try {
+				SQLiteDatabase db = openForReading();
+				cursor = db.rawQuery(CACHE_DB_QUERY_GETALL, null);
+				if (cursor != null && cursor.moveToFirst()) {
+					do {
+						CachedApk entry = new CachedApk();
+						entry.sha256      = cursor.getString(0);
+						entry.pkgName     = cursor.getString(1);
+						entry.versionCode = cursor.getInt(2);
+						entry.filePath    = cursor.getString(3);
+						entry.size        = cursor.getLong(4);
+						entry.lastUsed    = cursor.getLong(5);
+						map.put(entry.sha256, entry);
+						count++;
+					} while (cursor.moveToNext());
+				}
+			} catch (Exception ex) {
+				LSLogger.exception(TAG, "Error reading cached installers.", ex);
+			} finally {
+				if (cursor != null && !cursor.isClosed())
+					cursor.close();
+			}
+			return count;
+		}
+
+		protected void save(CachedApk entry) {
+			try {
+				ContentValues mapping = new ContentValues(6);
+				mapping.put(COLUMN_SHA256,   entry.sha256);
+				mapping.put(COLUMN_PKGNAME,  entry.pkgName);
+				mapping.put(COLUMN_VERSION,  Integer.valueOf(entry.versionCode));
+				mapping.put(COLUMN_FILEPATH, entry.filePath);
+				mapping.put(COLUMN_SIZE,     Long.valueOf(entry.size));
+				mapping.put(COLUMN_LASTUSED, Long.valueOf(entry.lastUsed));
+				SQLiteDatabase db = openForWriting();
+				db.insertWithOnConflict(CACHE_DB_TABLENAME, null, mapping, SQLiteDatabase.CONFLICT_REPLACE);
+			} catch (Exception ex) {
+				LSLogger.exception(TAG, "Error saving cached installer.", ex);
+			}
+		}
+
+		protected void delete(String sha256) {
+			try {
+				SQLiteDatabase db = openForWriting();
+				db.delete(CACHE_DB_TABLENAME, COLUMN_SHA256 + "=?", new String[] { sha256 });
+			} catch (Exception ex) {
+				LSLogger.exception(TAG, "Error deleting cached installer.", ex);
+			}
+		}
+	}
+}
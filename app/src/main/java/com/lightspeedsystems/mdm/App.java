@@ -1,6 +1,5 @@
 package com.lightspeedsystems.mdm;
 
-import java.io.File;
 
 import com.lightspeedsystems.mdm.util.LSLogger;
 
@@ -26,6 +25,7 @@ public class App {
 	public final static String VALUE_PACKAGEFILEPATH = "PackageFilePath";
 	public final static String VALUE_PACKAGESTOREURL = "PackageStoreUrl";
 	public final static String VALUE_PACKAGESVRURL   = "PackageServerUrl";
+	public final static String VALUE_PACKAGESHA256   = "PackageSha256";
 	public final static String VALUE_MDMAPPTYPE  	 = "MdmAppType";
 //	public final static String INTENT_EXTRA_APPDATA  = Constants.PACKAGE_NAME+".App";
 	
@@ -49,6 +49,8 @@ public class App {
 	public final static int INSTALLSTATE_installpending 	= 0x10;
 	/** Install downloading of the installer file is occurring. */
 	public final static int INSTALLSTATE_installdownloading = 0x20;
+	/** The installer file has been downloaded; the install is waiting to start. */
+	public final static int INSTALLSTATE_installdownloaded  = 0x40;
 	/** Install process has started. May be waiting for user confirmation. */
 	public final static int INSTALLSTATE_installing 		= 0x01;
 	/** Installation completed successfully. The app is now installed. */
@@ -63,6 +65,8 @@ public class App {
 	public final static int INSTALLSTATE_updatepending 		= 0x1000;
 	/** Update downloading of a new installer file is occurring. */
 	public final static int INSTALLSTATE_updatedownloading 	= 0x2000;
+	/** The new installer file has been downloaded; the update is waiting to start. */
+	public final static int INSTALLSTATE_updatedownloaded 	= 0x4000;
 	/** Update process has started. May be waiting for user confirmation. */
 	public final static int INSTALLSTATE_updating 			= 0x0100;
 	/** Update completed successfully. The app is now installed. */
@@ -95,6 +99,7 @@ public class App {
 	private String pkgfilename;		// name (name-only,no-path) of local package file for the app installation package
 	private long   sizeOfPkg;		// number of bytes in the .apk package file
 	private long   dataSize;		// number of data bytes used by the app
+	private long   sizeTime;		// time the size values were computed; 0 if not known
 	private Drawable appIcon;		// app's icon
 	private Drawable appLogo;		// app's logo
 	
@@ -121,6 +126,7 @@ public class App {
 	private String installSource; // based on the installType, is tied to one of these other 'source' locations of the install file.
 	private String pkgfilepath;		// path to local package file for the app installation package
 	private String pkgsvrurl;		// url to package file on download server; includes the file name
+	private String pkgsha256;		// expected SHA-256 digest (hex) of the package file on the server, if known
 	private String storeurl;		// path to remote store-based url to get the app from
 	
 	private boolean bIsMdmApp;     // true when updating ourself.
@@ -156,12 +162,10 @@ public class App {
 	public App(PackageInfo packageInfo, Context context, boolean getFilesizeData) {
 		ApplicationInfo appInfo = loadPackageInfo(packageInfo, context);
 		// get file size information:
-		if (getFilesizeData) {
+		if (getFilesizeData && appInfo != null) {
 			try {
-				File pkgFile = new File(appInfo.publicSourceDir);
-				if (pkgFile != null) 
-					sizeOfPkg = pkgFile.length();
-				dataSize = Utils.getDirectoryTreeSize(appInfo.dataDir);
+				// the data size comes from the size cache, since measuring it is slow.
+				AppSizeCache.getInstance(context).applySizes(this, packageInfo);
 			} catch (Exception ex) {
 				LSLogger.exception(TAG, ex);
 			}
@@ -224,6 +228,7 @@ public class App {
 			pkgfilename = bundle.getString(VALUE_PACKAGEFILENAME);
 			pkgfilepath = bundle.getString(VALUE_PACKAGEFILEPATH);
 			pkgsvrurl   = bundle.getString(VALUE_PACKAGESVRURL);
+			pkgsha256   = bundle.getString(VALUE_PACKAGESHA256);
 			storeurl    = bundle.getString(VALUE_PACKAGESTOREURL);
 			setMdmAppType(bundle.getInt(VALUE_MDMAPPTYPE));
 		}
@@ -243,6 +248,7 @@ public class App {
 		if (pkgfilename != null) bundle.putString(VALUE_PACKAGEFILENAME, pkgfilename);
 		if (pkgfilepath != null) bundle.putString(VALUE_PACKAGEFILEPATH, pkgfilepath);
 		if (pkgsvrurl != null)   bundle.putString(VALUE_PACKAGESVRURL, pkgsvrurl);
+		if (pkgsha256 != null)   bundle.putString(VALUE_PACKAGESHA256, pkgsha256);
 		if (storeurl != null)    bundle.putString(VALUE_PACKAGESTOREURL, storeurl);
 		return bundle;
 	}
@@ -329,6 +335,17 @@ public class App {
 		dataSize = newsize;
 	}
 
+	/**
+	 * Gets the time the size values were computed, or 0 if not known.
+	 */
+	public long getSizeTime() {
+		return sizeTime;
+	}
+
+	public void setSizeTime(long time) {
+		sizeTime = time;
+	}
+
 	public Drawable getAppIcon() {
 		return appIcon;
 	}
@@ -411,6 +428,24 @@ public class App {
 		//LSLogger.debug(TAG, "setPackageServerUrl="+url);
 	}
 	
+	/**
+	 * Gets the expected SHA-256 digest of the remote package file, used to verify the downloaded file.
+	 * @return digest as a hex string, or null if not known.
+	 */
+	public String getPackageSha256() {
+		return pkgsha256;
+	}
+
+	/**
+	 * Sets the expected SHA-256 digest of the remote package file.
+	 * @param sha256 digest as a hex string, or null if not known.
+	 */
+	public void setPackageSha256(String sha256) {
+		if (sha256 != null && sha256.length()==0)
+			sha256 = null;
+		pkgsha256 = sha256;
+	}
+
 	/**
 	 * Gets the URL of the package file that is to be installed. The URL exists externally in some store.
 	 * @return URL of the package file
@@ -610,6 +645,7 @@ public class App {
 	public void setSourceValues(App app) {
 		installType = app.getInstallType();
 		setSource(app.getSource());
+		pkgsha256 = app.getPackageSha256();
 	}
 	
 	/**
@@ -723,6 +759,7 @@ public class App {
 	public synchronized boolean isStateInstalling() {
 		return ((installState & INSTALLSTATE_installpending)!=0 || 
 				(installState & INSTALLSTATE_installdownloading)!=0 || 
+				(installState & INSTALLSTATE_installdownloaded)!=0 || 
 				(installState & INSTALLSTATE_installing)!=0);
 	}
 	
@@ -733,6 +770,7 @@ public class App {
 	public synchronized boolean isStateUpdating() {
 		return ((installState & INSTALLSTATE_updatepending)!=0 ||
 				(installState & INSTALLSTATE_updatedownloading)!=0 || 
+				(installState & INSTALLSTATE_updatedownloaded)!=0 || 
 				(installState & INSTALLSTATE_updating)!=0);
 	}
 	
@@ -791,6 +829,9 @@ public class App {
 		} else if ((installState & INSTALLSTATE_installdownloading) != 0) { // then we're installing
 				installState -= INSTALLSTATE_installdownloading;
 				installState |=	INSTALLSTATE_installing;
+		} else if ((installState & INSTALLSTATE_installdownloaded) != 0) { // then we're installing
+			installState -= INSTALLSTATE_installdownloaded;
+			installState |=	INSTALLSTATE_installing;
 		} else if ((installState & INSTALLSTATE_updatepending) != 0) {  // we're updating
 			installState -= INSTALLSTATE_updatepending;
 			installState |=	INSTALLSTATE_updating;
@@ -798,6 +839,9 @@ public class App {
 		} else if ((installState & INSTALLSTATE_updatedownloading) != 0) {  // we're updating
 			installState -= INSTALLSTATE_updatedownloading;
 			installState |=	INSTALLSTATE_updating;
+		} else if ((installState & INSTALLSTATE_updatedownloaded) != 0) {  // we're updating
+			installState -= INSTALLSTATE_updatedownloaded;
+			installState |=	INSTALLSTATE_updating;
 		}
 		timeActionStarted = System.currentTimeMillis();
 		displayState = null;
@@ -823,6 +867,22 @@ public class App {
 		displayTime = null;
 	}
 
+	/**
+	 * Sets the state for when the install or update's file has been downloaded, and the install
+	 * is waiting for its turn to start.
+	 */
+	public synchronized void setInstallDownloadedState() {
+		if ((installState & INSTALLSTATE_installdownloading) != 0) { // then we're installing
+			installState -= INSTALLSTATE_installdownloading;
+			installState |=	INSTALLSTATE_installdownloaded;
+		} else if ((installState & INSTALLSTATE_updatedownloading) != 0) {  // we're updating
+			installState -= INSTALLSTATE_updatedownloading;
+			installState |=	INSTALLSTATE_updatedownloaded;
+		}
+		displayState = null;
+		displayTime = null;
+	}
+
 	/**
 	 * Sets the install or update completion state and values. 
 	 * @param completionState an INSTALLSTATE_ value to set the completion state to.
@@ -837,12 +897,18 @@ public class App {
 		} else if ((installState & INSTALLSTATE_installdownloading) != 0) { // downloading installer
 				installState -= INSTALLSTATE_installdownloading;
 				installState |=	completionState;
+		} else if ((installState & INSTALLSTATE_installdownloaded) != 0) { // downloaded, not yet installing
+			installState -= INSTALLSTATE_installdownloaded;
+			installState |=	completionState;
 		} else if ((installState & INSTALLSTATE_updating) != 0) {  // we're updating
 			installState -= INSTALLSTATE_updating;
 			installState |=	completionState;
 		} else if ((installState & INSTALLSTATE_updatedownloading) != 0) {  // downloading an update
 			installState -= INSTALLSTATE_updatedownloading;
 			installState |=	completionState;
+		} else if ((installState & INSTALLSTATE_updatedownloaded) != 0) {  // downloaded, not yet updating
+			installState -= INSTALLSTATE_updatedownloaded;
+			installState |=	completionState;
 		} else
 			installState |=	completionState;
 		installReason = reason;  
@@ -864,6 +930,9 @@ public class App {
 		} else if ((installState & INSTALLSTATE_updatedownloading) != 0) {  // we're updating
 			installState -= INSTALLSTATE_updatedownloading;
 			installState |=	completionState;	
+		} else if ((installState & INSTALLSTATE_updatedownloaded) != 0) {  // we're updating
+			installState -= INSTALLSTATE_updatedownloaded;
+			installState |=	completionState;	
 		} else
 			installState |=	completionState;
 		installReason = reason;  
@@ -998,6 +1067,12 @@ public class App {
 			} else if ((state & App.INSTALLSTATE_installdownloading)!=0) {			
 				displayState = res.getString(R.string.status_installdownloading);
 				displayTime = Utils.formatLocalizedDateUTC(installTime);
+			} else if ((state & App.INSTALLSTATE_updatedownloaded)!=0) {
+				displayState = res.getString(R.string.status_updatedownloaded);
+				displayTime = Utils.formatLocalizedDateUTC(updateTime);
+			} else if ((state & App.INSTALLSTATE_installdownloaded)!=0) {			
+				displayState = res.getString(R.string.status_installdownloaded);
+				displayTime = Utils.formatLocalizedDateUTC(installTime);
 				
 			// show any pending status next:
 			} else if ((state & App.INSTALLSTATE_uninstallpending)!=0) {
@@ -0,0 +1,102 @@
+package com.lightspeedsystems.mdm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Vector;
+
+/**
+ * Collection of App instances with an index by package name.
+ *
+ * This is a Vector, so it can be used anywhere the apps list was used before, and keeps the apps
+ * in the order they were added. In addition, it keeps a map from the normalized (lower-case)
+ * package name to the apps with that name, so that finding an app by its package name does not
+ * need to search the whole list. Apps added with add() are indexed as they are added; any other
+ * change to the list causes the index to be rebuilt on the next lookup.
+ */
+public class AppCatalog extends Vector<App> {
+	private static final long serialVersionUID = 1L;
+
+	// package name -> apps with that name (normally just one; a managed app can have more than
+	//  one instance while it is being uninstalled and reinstalled).
+	private HashMap<String,ArrayList<App>> index;
+	private int indexModCount = -1; // modCount the index was built for; -1 when it needs to be rebuilt.
+
+	public AppCatalog(int capacity) {
+		super(capacity);
+		index = new HashMap<String,ArrayList<App>>(Math.max(capacity, 16));
+	}
+
+	/**
+	 * Gets the normalized package name used as the index key.
+	 * @param packageName package name; can be null.
+	 * @return lower-case package name, or null if the name is null.
+	 */
+	public static String getPackageKey(String packageName) {
+		return (packageName == null ? null : packageName.toLowerCase(Locale.US));
+	}
+
+	@Override
+	public synchronized boolean add(App app) {
+		boolean bIndexed = (indexModCount == modCount);
+		boolean bResult = super.add(app);
+		if (bIndexed) {
+			addToIndex(app);
+			indexModCount = modCount;
+		}
+		return bResult;
+	}
+
+	@Override
+	public synchronized App set(int location, App app) {
+		indexModCount = -1;
+		return super.set(location, app);
+	}
+
+	@Override
+	public synchronized void setElementAt(App app, int location) {
+		indexModCount = -1;
+		super.setElementAt(app, location);
+	}
+
+	/**
+	 * Finds an app by its package name (not case-sensitive).
+	 * @param packageName name of the package to look for.
+	 * @param excludeState if not 0, excludes any instances with any of the install state flags given.
+	 * @return the first matching app instance, or null if not found.
+	 */
+	public synchronized App findByPackageName(String packageName, int excludeState) {
+		if (packageName == null)
+			return null;
+		if (indexModCount != modCount)
+			rebuildIndex();
+		ArrayList<App> list = index.get(getPackageKey(packageName));
+		if (list != null) {
+			for (int i=0; i<list.size(); i++) {
+				App app = list.get(i);
+				if (excludeState == 0 || (excludeState & app.getInstallState()) == 0)
+					return app;
+			}
+		}
+		return null;
+	}
+
+	private void rebuildIndex() {
+		index.clear();
+		for (int i=0; i<elementCount; i++)
+			addToIndex((App)elementData[i]);
+		indexModCount = modCount;
+	}
+
+	private void addToIndex(App app) {
+		String key = (app == null ? null : getPackageKey(app.getPackageName()));
+		if (key != null) {
+			ArrayList<App> list = index.get(key);
+			if (list == null) {
+				list = new ArrayList<App>(1);
+				index.put(key, list);
+			}
+			list.add(app);
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package com.lightspeedsystems.mdm;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Process;
+
+import com.lightspeedsystems.mdm.util.LSLogger;
+
+/**
+ * Cache of the storage sizes of installed apps.
+ *
+ * Getting an app's data size means walking its whole data directory tree, which takes a long time
+ * when done for every installed app on every apps sync. Instead, the sizes are kept here per
+ * package, together with the package's versionCode and lastUpdateTime, and are persisted in the
+ * lsappsizes table so they survive restarts. Getting an app's sizes returns the cached values
+ * right away; if the package has been updated since its sizes were computed, or the sizes are
+ * older than the maximum age, the package is queued to be measured again by a low-priority
+ * background thread, and the new values are used the next time the sizes are requested.
+ *
+ * Each set of values has the time they were computed, so the sizes can be reported with how
+ * current they are.
+ */
+public class AppSizeCache {
+	private final static String TAG = "AppSizeCache";
+
+	/** Maximum time cached data sizes are used before they are measured again. */
+	public final static long MAX_SIZE_AGE_MS = 24 * 60 * 60 * 1000; // 1 day
+
+	private static AppSizeCache cacheInstance;
+
+	private Context context;
+	private HashMap<String,AppSizes> sizes;      // cached sizes, by package name
+	private LinkedHashMap<String,PackageInfo> pending; // packages waiting to be measured, by package name
+	private Thread scanThread;                   // background thread measuring the pending packages
+	private boolean bLoaded;
+
+	/**
+	 * Cached size values for a package.
+	 */
+	public static class AppSizes {
+		public int  versionCode;
+		public long lastUpdateTime;
+		public long pkgSize;
+		public long dataSize;
+		public long computedTime; // time the sizes were computed; 0 if never
+
+		/** Returns true if these values were computed for the given version of the package. */
+		protected boolean matches(PackageInfo pkg) {
+			return (pkg.versionCode == versionCode && pkg.lastUpdateTime == lastUpdateTime);
+		}
+	}
+
+	/**
+	 * Gets the cache instance (as a singleton, creating it as needed).
+	 * @param context application context; if null, the application context is used.
+	 * @return the AppSizeCache.
+	 */
+	public static AppSizeCache getInstance(Context context) {
+		if (cacheInstance == null) {
+			synchronized (AppSizeCache.class) {
+				if (cacheInstance == null) {
+					if (context == null)
+						context = Utils.getApplicationContext();
+					cacheInstance = new AppSizeCache(context);
+				}
+			}
+		}
+		return cacheInstance;
+	}
+
+	private AppSizeCache(Context context) {
+		this.context = context;
+		sizes = new HashMap<String,AppSizes>(64);
+		pending = new LinkedHashMap<String,PackageInfo>();
+	}
+
+	/**
+	 * Sets an app's package size, data size, and size time from the cache. The package size is
+	 * read from the package file (which is quick); the data size is the cached value, if there is
+	 * one. If the cached values are missing or out of date, the package is queued to be measured.
+	 * @param app app instance to set the values into.
+	 * @param pkg package information for the app.
+	 */
+	public void applySizes(App app, PackageInfo pkg) {
+		ApplicationInfo appInfo = pkg.applicationInfo;
+		if (appInfo == null)
+			return;
+		long pkgSize = 0;
+		if (appInfo.publicSourceDir != null)
+			pkgSize = new File(appInfo.publicSourceDir).length();
+		app.setSizeOfPkg(pkgSize);
+
+		synchronized (this) {
+			loadIfNeeded();
+			AppSizes entry = sizes.get(pkg.packageName);
+			if (entry != null) {
+				app.setDataSize(entry.dataSize);
+				app.setSizeTime(entry.computedTime);
+			}
+			if (entry == null || !entry.matches(pkg) || entry.pkgSize != pkgSize ||
+				System.currentTimeMillis() - entry.computedTime > MAX_SIZE_AGE_MS) {
+				if (appInfo.dataDir != null)
+					pending.put(pkg.packageName, pkg);
+			}
+		}
+	}
+
+	/**
+	 * Starts measuring any packages queued by applySizes, in a background thread.
+	 */
+	public synchronized void startBackgroundScan() {
+		if (pending.isEmpty() || (scanThread != null && scanThread.isAlive()))
+			return;
+		scanThread = new Thread() {
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				int count = 0;
+				long startTime = System.currentTimeMillis();
+				while (measureNext())
+					count++;
+				LSLogger.debug(TAG, "Measured " + count + " app sizes in " +
+						(System.currentTimeMillis() - startTime) + " ms.");
+			}
+		};
+		scanThread.start();
+	}
+
+	/**
+	 * Removes a package's cached sizes, such as when it was uninstalled.
+	 * @param packageName name of the package.
+	 */
+	public void remove(String packageName) {
+		synchronized (this) {
+			loadIfNeeded();
+			pending.remove(packageName);
+			if (sizes.remove(packageName) == null)
+				return;
+		}
+		AppSizesDB db = new AppSizesDB(context);
+		db.delete(packageName);
+		db.close();
+	}
+
+	// measures the next pending package and saves its sizes; returns false if none are pending.
+	private boolean measureNext() {
+		String pkgName;
+		PackageInfo pkg;
+		synchronized (this) {
+			Iterator<String> iter = pending.keySet().iterator();
+			if (!iter.hasNext())
+				return false;
+			pkgName = iter.next();
+			pkg = pending.remove(pkgName);
+		}
+
+		AppSizes entry = new AppSizes();
+		entry.versionCode = pkg.versionCode;
+		entry.lastUpdateTime = pkg.lastUpdateTime;
+		if (pkg.applicationInfo != null && pkg.applicationInfo.publicSourceDir != null)
+			entry.pkgSize = new File(pkg.applicationInfo.publicSourceDir).length();
+		entry.dataSize = Utils.getDirectoryTreeSize(pkg.applicationInfo.dataDir);
+		entry.computedTime = System.currentTimeMillis();
+
+		synchronized (this) {
+			sizes.put(pkgName, entry);
+		}
+		AppSizesDB db = new AppSizesDB(context);
+		db.save(pkgName, entry);
+		db.close();
+		return true;
+	}
+
+	// loads the cached sizes from the database the first time they are needed.
+	private void loadIfNeeded() {
+		if (!bLoaded) {
+			bLoaded = true;
+			AppSizesDB db = new AppSizesDB(context);
+			db.readAll(sizes);
+			db.close();
+			LSLogger.debug(TAG, "Loaded " + sizes.size() + " cached app sizes.");
+		}
+	}
+
+	/**
+	 * Static method to get the SQL used to create the app sizes table.
+	 * @return the SQL string used to create the table.
+	 */
+	public static String getAppSizesSqlCreateTable() {
+		return AppSizesDB.getSqlCreateTable();
+	}
+
+
+	// --------------------------------------------------------------------------
+	// --- Inner-class for handling app size persistence in a sqlite database  --
+	// --------------------------------------------------------------------------
+	/**
+	 * A SQLite database is used to store the app sizes in the lsappsizes table, one row per package.
+	 */
+	private static class AppSizesDB extends DBStorage {
+		private final static String SIZES_DB_TABLENAME = "lsappsizes";
+		private final static String COLUMN_PKGNAME    = "pkgname";
+		private final static String COLUMN_VERSION    = "versioncode";
+		private final static String COLUMN_UPDATETIME = "lastupdate";
+		private final static String COLUMN_PKGSIZE    = "pkgsize";
+		private final static String COLUMN_DATASIZE   = "datasize";
+		private final static String COLUMN_COMPUTED   = "computed";
+
+		private final static String SIZES_DB_CREATE_SQL =
+				"CREATE TABLE " + SIZES_DB_TABLENAME + " (" +
+						COLUMN_PKGNAME    + " TEXT PRIMARY KEY, " +
+						COLUMN_VERSION    + " INTEGER, " +
+						COLUMN_UPDATETIME + " LONG, " +
+						COLUMN_PKGSIZE    + " LONG, " +
+						COLUMN_DATASIZE   + " LONG, " +
+						COLUMN_COMPUTED   + " LONG);";
+
+		private final static String SIZES_DB_QUERY_GETALL =
+				"select " + COLUMN_PKGNAME + "," + COLUMN_VERSION + "," + COLUMN_UPDATETIME + "," +
+				COLUMN_PKGSIZE + "," + COLUMN_DATASIZE + "," + COLUMN_COMPUTED + " from " + SIZES_DB_TABLENAME + ";";
+
+		public AppSizesDB(Context context) {
+			super(context);
+		}
+
+		public String getSqlTableName() {
+			return SIZES_DB_TABLENAME;
+		}
+
+		public static String getSqlCreateTable() {
+			return SIZES_DB_CREATE_SQL;
+		}
+
+		protected int readAll(HashMap<String,AppSizes> map) {
+			int count = 0;
+			Cursor cursor = null;
+			try {
+				SQLiteDatabase db = openForReading();
+				cursor = db.rawQuery(SIZES_DB_QUERY_GETALL, null);
+				if (cursor != null && cursor.moveToFirst()) {
+					do {
+						AppSizes entry = new AppSizes();
+						entry.versionCode    = cursor.getInt(1);
+						entry.lastUpdateTime = cursor.getLong(2);
+						entry.pkgSize        = cursor.getLong(3);
+						entry.dataSize       = cursor.getLong(4);
+						entry.computedTime   = cursor.getLong(5);
+						map.put(cursor.getString(0), entry);
+						count++;
+					} while (cursor.moveToNext());
+				}
+			} catch (Exception ex) {
+				LSLogger.exception(TAG, "Error reading app sizes.", ex);
+			} finally {
+				if (cursor != null && !cursor.isClosed())
+					cursor.close();
+			}
+			return count;
+		}
+
+		protected void save(String pkgName, AppSizes entry) {
+			try {
+				ContentValues mapping = new ContentValues(6);
+				mapping.put(COLUMN_PKGNAME,    pkgName);
+				mapping.put(COLUMN_VERSION,    Integer.valueOf(entry.versionCode));
+				mapping.put(COLUMN_UPDATETIME, Long.valueOf(entry.lastUpdateTime));
+				mapping.put(COLUMN_PKGSIZE,    Long.valueOf(entry.pkgSize));
+				mapping.put(COLUMN_DATASIZE,   Long.valueOf(entry.dataSize));
+				mapping.put(COLUMN_COMPUTED,   Long.valueOf(entry.computedTime));
+				SQLiteDatabase db = openForWriting();
+				db.insertWithOnConflict(SIZES_DB_TABLENAME, null, mapping, SQLiteDatabase.CONFLICT_REPLACE);
+			} catch (Exception ex) {
+				LSLogger.exception(TAG, "Error saving app size.", ex);
+			}
+		}
+
+		protected void delete(String pkgName) {
+			try {
+				SQLiteDatabase db = openForWriting();
+				db.delete(SIZES_DB_TABLENAME, COLUMN_PKGNAME + "=?", new String[] { pkgName });
+			} catch (Exception ex) {
+				LSLogger.exception(TAG, "Error deleting app size.", ex);
+			}
+		}
+	}
+}
@@ -6,6 +6,10 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.json.JSONException;
 import org.json.JSONObject;
 import android.app.Activity;
@@ -19,6 +23,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
+import android.os.SystemClock;
 
 import androidx.core.content.FileProvider;
 
@@ -30,9 +35,23 @@ import androidx.core.content.FileProvider;
 public class Apps {
 	private static String TAG = "Apps";
 	
-	protected Vector<App> apps;
+	protected AppCatalog apps;
 	protected Context context;
 	protected AppsDataChangeListener dataObserver; // observer for watching for data changes; note that we should use a list of these.
+	private boolean bScanCancelled; // true if the last installed apps scan was cancelled
+	
+	/** Default number of threads used to read installed app details. */
+	public final static int DEFAULT_SCAN_WORKERS = 4;
+	private static int scanWorkers = DEFAULT_SCAN_WORKERS;
+	private static volatile int scanGeneration; // incremented to cancel scans in progress
+	
+	// installed apps scan statistics:
+	private static long statScanCount;
+	private static long statScansCancelled;
+	private static long statLastScanMs;
+	private static long statTotalScanMs;
+	private static int  statLastScanPackages;
+	private static int  statLastScanWorkers;
 
 	/**
 	 * Constructor. Apps will be loaded or added in the current thread. 
@@ -40,7 +59,7 @@ public class Apps {
 	 */
 	public Apps(Context context) {
 		this.context = context;
-		apps = new Vector<App>(10);
+		apps = new AppCatalog(10);
 	}
 	
 	/**
@@ -149,6 +168,8 @@ public class Apps {
 	 */
 	protected App findAppByPackageName(Vector<App> list, String packageName, int excludeState) {
 		App app = null;
+		if (list instanceof AppCatalog) // indexed lookup
+			return ((AppCatalog)list).findByPackageName(packageName, excludeState);
 		String name;
 		// search given list for the given app record.	
 		if (list != null && list.size()>0) {
@@ -171,30 +192,154 @@ public class Apps {
 	
 	
 	/**
-	 * Reads all applications from the system.
+	 * Initializes static configurable app scanning values from settings.
+	 * Currently consists of: number of worker threads used to read installed app details.
+	 * @param settings instance of Settings to obtain values from.
+	 */
+	public static void initFromSettings(Settings settings) {
+		if (settings != null) {
+			int workers = settings.getSettingInt(Settings.APPSCANWORKERS, scanWorkers);
+			if (workers > 0)
+				scanWorkers = workers;
+		}
+	}
+	
+	/**
+	 * Cancels any scans of installed apps that are in progress, such as when the controller is ending.
+	 * Apps instances whose scan was cancelled return true from isScanCancelled.
+	 */
+	public static void cancelScans() {
+		scanGeneration++;
+	}
+	
+	/**
+	 * Returns true if the last getAllInstalledApps call was cancelled, interrupted, or failed before
+	 * it finished, meaning the list of apps is incomplete.
+	 */
+	public boolean isScanCancelled() {
+		return bScanCancelled;
+	}
+	
+	/**
+	 * Reads all applications from the system. The details of the packages are read in parallel,
+	 * using up to the configured number of worker threads; the apps are added in package order.
 	 * @return list of App instances, each instance representing an app.
 	 */
 	public List<App> getAllInstalledApps() {
+		long startTime = SystemClock.elapsedRealtime();
+		int packageCount = 0;
+		int workers = 0;
+		bScanCancelled = false;
 		try {
 			List<PackageInfo> packages = context.getPackageManager().getInstalledPackages(0);
 			if (packages != null && !packages.isEmpty()) {
 				LSLogger.debug(TAG, "Loaded " + packages.size() + " app packages.");
-				// get each package and create an app instance from it.
-				Iterator<PackageInfo> iter = packages.iterator();
-				while (iter.hasNext()) {
-					PackageInfo pkg = (PackageInfo)iter.next();
-					if (pkg.versionName != null) 
-						addApp(new App(pkg, context, true));
+				packageCount = packages.size();
+				workers = Math.max(1, Math.min(scanWorkers, packageCount));
+				// get each package and create an app instance from it, then add them in order.
+				App[] results = scanPackages(packages, workers);
+				for (int i=0; i<results.length; i++) {
+					if (results[i] != null)
+						addApp(results[i]);
 				}
+				// measure any apps whose sizes are not yet known or are out of date:
+				if (!bScanCancelled)
+					AppSizeCache.getInstance(context).startBackgroundScan();
 			} else {
 				LSLogger.debug(TAG, "No app packages found.");
 			}
 		} catch (Exception ex) {
 			LSLogger.exception(TAG, "GetAllInstalledApps error: ", ex);
+			bScanCancelled = true;  // the list of apps is incomplete.
 		}
+		recordScanStats(SystemClock.elapsedRealtime() - startTime, packageCount, workers, bScanCancelled);
 		//notifyObservers();
 		return apps;
 	}
+	
+	// creates App instances for the packages, using the given number of worker threads.
+	// Stops early (leaving null entries) if cancelScans is called.
+	private App[] scanPackages(final List<PackageInfo> packages, int workers) {
+		final int count = packages.size();
+		final App[] results = new App[count];
+		final int generation = scanGeneration;
+		
+		if (workers <= 1) {
+			for (int i=0; i<count && generation == scanGeneration; i++)
+				results[i] = createInstalledApp(packages.get(i));
+		} else {
+			final AtomicInteger nextIndex = new AtomicInteger();
+			ExecutorService executor = Executors.newFixedThreadPool(workers);
+			for (int w=0; w<workers; w++) {
+				executor.execute(new Runnable() {
+					public void run() {
+						int i;
+						while (generation == scanGeneration && (i = nextIndex.getAndIncrement()) < count)
+							results[i] = createInstalledApp(packages.get(i));
+					}
+				});
+			}
+			executor.shutdown();
+			try {
+				while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+					if (generation != scanGeneration)
+						executor.shutdownNow();
+				}
+			} catch (InterruptedException iex) {
+				executor.shutdownNow();
+				bScanCancelled = true;
+				LSLogger.info(TAG, "Installed apps scan was interrupted.");
+				Thread.currentThread().interrupt();
+				return results;
+			}
+		}
+		bScanCancelled = (generation != scanGeneration);
+		if (bScanCancelled)
+			LSLogger.info(TAG, "Installed apps scan was cancelled.");
+		return results;
+	}
+	
+	// creates an App instance for an installed package; returns null if the package is skipped or has an error.
+	private App createInstalledApp(PackageInfo pkg) {
+		App app = null;
+		try {
+			if (pkg.versionName != null) 
+				app = new App(pkg, context, true);
+		} catch (Exception ex) {
+			LSLogger.exception(TAG, "Error reading app package " + pkg.packageName + ":", ex);
+		}
+		return app;
+	}
+	
+	private static synchronized void recordScanStats(long durationMs, int packageCount, int workers, boolean bCancelled) {
+		statScanCount++;
+		statLastScanMs = durationMs;
+		statLastScanPackages = packageCount;
+		statLastScanWorkers = workers;
+		statTotalScanMs += durationMs;
+		if (bCancelled)
+			statScansCancelled++;
+		LSLogger.debug(TAG, "Installed apps scan: " + getScanStatisticsSummary());
+	}
+	
+	/** Gets the time the last installed apps scan took, in milliseconds. */
+	public static synchronized long getLastScanDuration() {
+		return statLastScanMs;
+	}
+	
+	/** Gets the average time of the installed apps scans, in milliseconds. */
+	public static synchronized long getAverageScanDuration() {
+		return (statScanCount == 0 ? 0 : statTotalScanMs / statScanCount);
+	}
+	
+	/**
+	 * Gets a summary of the installed apps scan statistics, for logging and diagnostics.
+	 */
+	public static synchronized String getScanStatisticsSummary() {
+		return "scans=" + statScanCount + " cancelled=" + statScansCancelled + " last=" + statLastScanMs +
+				"ms (" + statLastScanPackages + " packages, " + statLastScanWorkers + " workers) avg=" +
+				getAverageScanDuration() + "ms";
+	}
 
 	/**
 	 * Gets the list of managed applications.
@@ -499,6 +644,20 @@ public class Apps {
 	 * @param results operational results object. Used to indicate success or error and for error details.
 	 */
 	public void downloadAndInstallApp(App app, CommandResult results) {
+		if (downloadApp(app, results))
+			installDownloadedApp(app, results);
+	}
+
+	/**
+	 * Downloads the installer file for an app, from the app's server url to the device's
+	 * download directory, setting the app's package file path to the downloaded file. 
+	 * The app's state is set to downloading, and, if the download succeeds, to downloaded.
+	 * @param app app to be installed. This instance contains the URL to the file on some server.
+	 * @param results operational results object. Used to indicate error and for error details.
+	 * @return true if the file was downloaded, false if error.
+	 */
+	public boolean downloadApp(App app, CommandResult results) {
+		boolean bDownloaded = false;
 		try {
 			// update the state to indicate the file is being downloaded:
 			app.setInstallDownloadingState();
@@ -537,6 +696,17 @@ public class Apps {
 				downloadFileUristr = Utils.endStringWith(downloadFileUristr, "/") + packageFileName;
 				// -save the modified file name back into the app instance for later reference:
 				app.setPackageFilePath(downloadFileUristr);
+
+				// use the cached installer file, if we have the one wanted:
+				ApkCache apkCache = ApkCache.getInstance(context);
+				String cachedPath = apkCache.find(app.getPackageSha256());
+				if (cachedPath != null) {
+					LSLogger.debug(TAG, "-using cached file "+cachedPath);
+					app.setPackageFilePath(cachedPath);
+					app.setInstallDownloadedState();
+					saveApp(app);
+					return true;
+				}
 		
 				// Get the location of the file on the server:
 				String serverUrl = app.getPackageServerUrl();
@@ -558,16 +728,22 @@ public class Apps {
 					serverUrl=serverUrl.replace("[","%5B");
 					serverUrl=serverUrl.replace("]","%5D");
 					// Download the file:
+					// (a partial download from an earlier attempt is continued, and the file is verified
+					//  against the server's digest, if it gave one. Downloads run in the background, several
+					//  at a time, so their progress is not reported; it would only fill the log.)
 					HttpComm httpComm = new HttpComm();
-					HttpCommResponse resp = httpComm.downloadFile(serverUrl, downloadFileUristr);
+					HttpCommResponse resp = httpComm.downloadFile(serverUrl, downloadFileUristr,
+							app.getPackageSha256(), null);
 					if (resp.isOK()) {
 						LSLogger.debug(TAG, "-downloaded file "+downloadFileUristr);
-						// Upon successful file download, now invoke the installation process:
-						// first, update the state noe that downloading is complete.
-						app.setInstallProcessingStartedState();
+						// keep the file in the cache, so it is not downloaded again for a reinstall or retry:
+						cachedPath = apkCache.add(downloadFileUristr, app.getPackageName(), app.getPackageSha256());
+						if (cachedPath != null)
+							app.setPackageFilePath(cachedPath);
+						// update the state now that downloading is complete:
+						app.setInstallDownloadedState();
 						saveApp(app);
-						// and now, kick off the installation of the file:
-						results.setSuccess( Apps.installPackageFile(app, results) );
+						bDownloaded = true;
 					} else {
 						// download failed; error info should be in the response data:
 						if (resp.hasException())
@@ -582,7 +758,25 @@ public class Apps {
 			results.setException(ex);
 			app.setReason( LSLogger.exception(TAG, "AppInstall-DownloadFile error: ", ex) );
 		}
+		return bDownloaded;
+	}
 
+	/**
+	 * Installs an app from its downloaded installer file (see downloadApp).
+	 * @param app app to be installed, with the package file path of the downloaded file.
+	 * @param results operational results object. Used to indicate success or error and for error details.
+	 */
+	public void installDownloadedApp(App app, CommandResult results) {
+		try {
+			// update the state now that the install is starting:
+			app.setInstallProcessingStartedState();
+			saveApp(app);
+			// and now, kick off the installation of the file:
+			results.setSuccess( Apps.installPackageFile(app, results) );
+		} catch (Exception ex) {
+			results.setException(ex);
+			app.setReason( LSLogger.exception(TAG, "AppInstall-InstallFile error: ", ex) );
+		}
 	}
 	
 	/**
@@ -739,6 +933,9 @@ public class Apps {
 					// Server-based file reference:
 					app.setInstallType(App.INSTALLTYPE_REMOTEFILE);
 					app.setPackageServerUrl( json.getString(Constants.CMD_fileurltag) );
+					// digest of the file, for verifying the download:
+					if (json.has(Constants.CMD_filesha256tag))
+						app.setPackageSha256( json.getString(Constants.CMD_filesha256tag) );
 					
 					if (json.has(Constants.CMD_filenametag)) {
 						app.setPackageFileName( json.getString(Constants.CMD_filenametag) );
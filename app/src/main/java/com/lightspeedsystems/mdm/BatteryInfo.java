@@ -77,6 +77,13 @@ public class BatteryInfo {
 			return batteryReceiver.level;
 		return 0;
 	}
+
+	/**
+	 * Returns true if the device is plugged in to a power source.
+	 */
+	public boolean isCharging() {
+		return (batteryReceiver.plugged > 0);
+	}
 	
 	/**
 	 * Gets the battery voltage
@@ -161,6 +168,7 @@ public class BatteryInfo {
 	        public int level = -1;
 	        int voltage = -1;
 	        int temp = -1;
+	        int plugged = 0;       // BatteryManager.BATTERY_PLUGGED_ value; 0 if on battery
 	        int state_icon_id = 0; // resource icon id
 	        
 	        @Override
@@ -171,6 +179,7 @@ public class BatteryInfo {
 		            scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
 		            temp = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, -1);
 		            voltage = intent.getIntExtra(BatteryManager.EXTRA_VOLTAGE, -1);
+		            plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
 		            if (scale > 0 && scale != batteryLevelMax)
 		            	batteryLevelMax = scale;
 		            Iterator<BatteryUpdateListener> iter = listeners.iterator();
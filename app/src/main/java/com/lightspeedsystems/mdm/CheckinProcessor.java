@@ -1,92 +1,228 @@
 package com.lightspeedsystems.mdm;
 
+import java.util.Random;
+
+import org.json.JSONObject;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
 import com.lightspeedsystems.mdm.Controller;
 import com.lightspeedsystems.mdm.util.LSLogger;
 
 /**
  * Handles periodic device check-in processing after a device has been registered.
- * This creates a thread that waits until it it time to check in.
+ *
+ * Check-ins are scheduled with the AlarmManager (an inexact alarm, so the system can batch it
+ * with other wakeups) instead of a thread sleeping until it is time, and:
+ * - the interval is spread by a random jitter (CHECKIN_JITTER_PCT of the interval), so devices
+ *   enrolled or restarted together do not all check in at the same moment;
+ * - a failed check-in is retried with exponential backoff, from CHECKIN_RETRY_MINMINS up to
+ *   CHECKIN_RETRY_MAXMINS, or after the server's Retry-After time;
+ * - a check-in is put off while there is no network, and the interval is doubled while the
+ *   battery is low and not charging;
+ * - the server can set the interval by returning checkin_interval (minutes) in a check-in response.
  */
-public class CheckinProcessor extends Thread implements ThreadCompletionCallback {
+public class CheckinProcessor implements ThreadCompletionCallback {
 	private final static String TAG = "CheckinProcessor";
-	
+
+	private final static String ACTION_CHECKIN = "com.lightspeedsystems.mdm.CHECKIN_ALARM";
+
+	public final static int DEFAULT_INTERVAL_MINS = 720;  // 720 minutes = 60 minutes x 12 hours
+	public final static int DEFAULT_JITTER_PCT = 10;
+	public final static int DEFAULT_RETRY_MINMINS = 5;
+	public final static int DEFAULT_RETRY_MAXMINS = 240;
+	public final static int DEFAULT_LOWBATTERY_PCT = 15;
+	private final static int MIN_INTERVAL_MINS = 15;      // smallest interval a server hint can set
+
 	private Controller controller;
 	private Settings   settings;
+	private Context    context;
 	private boolean    ending;
-	
+	private int        failures;    // consecutive failed check-ins
+	private boolean    bCheckinPending;
+	private PendingIntent alarmIntent;
+	private AlarmReceiver alarmReceiver;
+	private Random     random = new Random();
+
 	/** Constructor. */
 	public CheckinProcessor(Controller ctrl) {
 		controller = ctrl;
-		if (controller != null)
+		if (controller != null) {
 			settings = controller.getSettingsInstance();
+			context = Controller.getContext();
+		}
 	}
-	
-	/** 
-	 * Ends the Checkin thread.
+
+	/**
+	 * Starts the scheduler: schedules the next check-in. If a check-in time was saved and is still
+	 * ahead (such as after a restart), it is kept; otherwise the first check-in is at a random
+	 * point within the interval, so devices that start together spread out.
 	 */
-	public void terminate() {
+	public synchronized void start() {
+		LSLogger.info(TAG, "Starting Checkin Scheduler...");
+		alarmReceiver = new AlarmReceiver();
+		context.registerReceiver(alarmReceiver, new IntentFilter(ACTION_CHECKIN));
+		Intent intent = new Intent(ACTION_CHECKIN);
+		intent.setPackage(context.getPackageName());
+		alarmIntent = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+		long now = System.currentTimeMillis();
+		long intervalMs = getIntervalMinutes() * 60000L;
+		long next = settings.getNextSyncTime();
+		if (next <= now || next > now + intervalMs)
+			next = now + (long)(random.nextDouble() * intervalMs);
+		scheduleAt(next);
+	}
+
+	/**
+	 * Ends the Checkin scheduler.
+	 */
+	public synchronized void terminate() {
+		ending = true;
 		try {
-			if (!ending)
-				this.interrupt();
+			if (alarmIntent != null) {
+				AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+				alarms.cancel(alarmIntent);
+			}
+			if (alarmReceiver != null) {
+				context.unregisterReceiver(alarmReceiver);
+				alarmReceiver = null;
+			}
 		} catch (Exception ex) {
-			LSLogger.exception(TAG, "interrupt error: ", ex);
+			LSLogger.exception(TAG, "terminate error: ", ex);
 		}
-		ending = true;
+		LSLogger.info(TAG, "Checkin Scheduler is ending.");
 	}
-	
+
 	/**
 	 * Request a checkin to the server.
 	 */
-	public void checkinNow() {
-		//Long currentTime = System.currentTimeMillis();
-		//settings.setLastSyncTime(currentTime);
-		controller.requestServerSync(false, this);
+	public synchronized void checkinNow() {
+		if (!bCheckinPending) {
+			bCheckinPending = true;
+			controller.requestServerSync(false, this);
+		}
 	}
-	
+
 	/**
 	 * Callback for when a server checkin completes; gets called from controller.
-	 * @param obj Object reference for passing data.
+	 * Schedules the next check-in.
+	 * @param obj the HttpCommResponse of the check-in; null if it was not sent.
 	 */
-	public void onThreadComplete(Object obj) {
-		// do nothing; this is provided here for future possible needs.
+	public synchronized void onThreadComplete(Object obj) {
+		bCheckinPending = false;
+		if (ending)
+			return;
+		HttpCommResponse resp = (obj instanceof HttpCommResponse ? (HttpCommResponse)obj : null);
+		long now = System.currentTimeMillis();
+		if (resp != null && resp.isOK()) {
+			failures = 0;
+			applyServerHint(resp);
+			scheduleAt(now + getNextIntervalMs());
+		} else {
+			failures++;
+			long delay = getRetryDelayMs();
+			if (resp != null && resp.getRetryAfterSeconds() > 0)
+				delay = Math.max(delay, resp.getRetryAfterSeconds() * 1000L);
+			LSLogger.debug(TAG, "Check-in failed (" + failures + " in a row); retrying in " + (delay / 60000) + " minutes.");
+			scheduleAt(now + delay);
+		}
+	}
+
+	// called when the check-in alarm goes off: checks in, or puts it off if it cannot be done now.
+	private synchronized void onAlarm() {
+		if (ending)
+			return;
+		if (!WifiUtils.networkIsConnected(context)) {
+			// no network: try again later, backing off, rather than sending a check-in that will fail.
+			long delay = getRetryDelayMs();
+			LSLogger.debug(TAG, "No network for check-in; waiting " + (delay / 60000) + " minutes.");
+			failures++;
+			scheduleAt(System.currentTimeMillis() + delay);
+			return;
+		}
+		checkinNow();
+	}
+
+	// gets the interval until the next regular check-in, with jitter, and longer while the battery is low.
+	private long getNextIntervalMs() {
+		long intervalMs = getIntervalMinutes() * 60000L;
+		BatteryInfo battery = controller.getBatteryInfoProvider();
+		if (battery != null && !battery.isCharging() && battery.getScale() > 0) {
+			int pct = battery.getLevel() * 100 / battery.getScale();
+			if (pct > 0 && pct < settings.getSettingInt(Settings.CHECKIN_LOWBATTERYPCT, DEFAULT_LOWBATTERY_PCT)) {
+				LSLogger.debug(TAG, "Battery low (" + pct + "%); doubling the check-in interval.");
+				intervalMs *= 2;
+			}
+		}
+		return addJitter(intervalMs);
 	}
-	
+
+	// gets the delay before retrying after the current number of failures, doubling each time.
+	private long getRetryDelayMs() {
+		long delay = settings.getSettingInt(Settings.CHECKIN_RETRYMINMINS, DEFAULT_RETRY_MINMINS) * 60000L;
+		long maxDelay = settings.getSettingInt(Settings.CHECKIN_RETRYMAXMINS, DEFAULT_RETRY_MAXMINS) * 60000L;
+		for (int i=1; i<failures && delay < maxDelay; i++)
+			delay *= 2;
+		return addJitter(Math.min(delay, maxDelay));
+	}
+
+	// adds a random amount, up to the jitter percentage of the time either way.
+	private long addJitter(long ms) {
+		int pct = settings.getSettingInt(Settings.CHECKIN_JITTERPCT, DEFAULT_JITTER_PCT);
+		if (pct <= 0)
+			return ms;
+		long range = ms * Math.min(pct, 50) / 100;
+		return ms - range + (long)(random.nextDouble() * 2 * range);
+	}
+
+	private int getIntervalMinutes() {
+		Settings.SyncSettings sync = settings.getSyncSettings();
+		return (int) Math.max(sync.getNextSyncIntervalMinutes(), MIN_INTERVAL_MINS);
+	}
+
+	// saves the check-in interval the server asked for in its response, if any.
+	private void applyServerHint(HttpCommResponse resp) {
+		String result = resp.getResultStr();
+		if (result.length() == 0 || result.charAt(0) != '{')
+			return;
+		try {
+			int mins = new JSONObject(result).optInt(Constants.PARAM_CHECKIN_INTERVAL, 0);
+			if (mins > 0 && mins != getIntervalMinutes()) {
+				mins = Math.max(mins, MIN_INTERVAL_MINS);
+				LSLogger.debug(TAG, "Server set the check-in interval to " + mins + " minutes.");
+				settings.setSetting(Settings.CHECKIN_INTERVALMINS, mins);
+			}
+		} catch (Exception ex) {
+			LSLogger.exception(TAG, "applyServerHint error: ", ex);
+		}
+	}
+
+	// sets the alarm for the next check-in.
+	private void scheduleAt(long time) {
+		try {
+			AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+			// inexact (from KitKat on), so the system can batch the wakeup with others:
+			alarms.set(AlarmManager.RTC_WAKEUP, time, alarmIntent);
+			settings.setNextSyncTime(time);
+			LSLogger.debug(TAG, "Next check-in in " + ((time - System.currentTimeMillis()) / 60000) + " minutes.");
+		} catch (Exception ex) {
+			LSLogger.exception(TAG, "scheduleAt error: ", ex);
+		}
+	}
+
 	/**
-	 * Thread runner.
+	 * Receives the check-in alarm.
 	 */
-	public void run() {
-		long nextCheckinTime = 0; 
-		
-		LSLogger.info(TAG, "Starting Checkin Scheduler...");
-		
-	    do {
-
-	        // get the checkin sleep interval. we get it as minutes, then convert to millisecs.
-	    	// (do it in this loop, so we get any changes and the latest sync time).
-	    	Settings.SyncSettings sync = settings.getSyncSettings();
-	    	
-	    	long waitmins = sync.getNextSyncIntervalMinutes();
-	    	
-	    	if (waitmins > 0) {
-	    		nextCheckinTime = waitmins * 60000; // convert to milliseconds.
-		    	try {
-		    		LSLogger.debug(TAG, "Checkin Scheduler waiting for " + waitmins+" minutes...");
-		    		if (settings != null)
-		    			settings.setNextSyncTime(System.currentTimeMillis() + nextCheckinTime);
-		    		sleep(nextCheckinTime);
-		    		checkinNow();
-		    	} catch (InterruptedException iex) {
-		    		LSLogger.debug(TAG, "Checkin Scheduler wait interrupted.");
-		    	} catch (Exception ex) {
-		    		LSLogger.exception(TAG, "Run-wait exception: ", ex);
-		    	}
-	    	} else {
-	    		LSLogger.debug(TAG, "Checkin Scheduler ending due to no wait. (waitmins="+waitmins+")");
-	    		ending = true;
-	    	}
-	    } while (!ending);
-		
-		LSLogger.info(TAG, "Checkin Scheduler is ending.");
+	private class AlarmReceiver extends BroadcastReceiver {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			onAlarm();
+		}
 	}
-
 }
@@ -0,0 +1,170 @@
+package com.lightspeedsystems.mdm;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.json.JSONObject;
+
+import com.lightspeedsystems.mdm.util.LSLogger;
+
+/**
+ * Remembers the device values the server last accepted at check-in, so that a check-in only sends
+ * the values that changed since then.
+ *
+ * Each value sent is kept as a fingerprint: its string form, or for values that change a little on
+ * every check-in (battery level, storage capacity), the value rounded to a step, so that small
+ * changes do not count as changes. The fingerprints are saved in settings when the server accepts
+ * the check-in. The identifying values (device type and udid) are always sent.
+ *
+ * All values are sent (a full resync) when the saved state is missing (such as after unenrolling),
+ * when it was saved for a different server, organization, device, or app version, and at least
+ * every CHECKIN_FULLSYNC_HOURS.
+ *
+ * All the values are still read for every check-in, to find which ones changed; only what is sent
+ * is reduced.
+ */
+public class CheckinState {
+	private final static String TAG = "CheckinState";
+
+	public final static int DEFAULT_FULLSYNC_HOURS = 7 * 24;
+
+	// values always sent, to identify the device:
+	private final static String[] IDENTITY_PARAMS = {
+		Constants.PARAM_DEVICE_TYPE, Constants.PARAM_DEVICE_UDID };
+
+	// values compared after rounding, by name, with the rounding step:
+	private final static HashMap<String,Float> ROUNDED_PARAMS = new HashMap<String,Float>();
+	static {
+		ROUNDED_PARAMS.put(Constants.PARAM_BATTERY_LEVEL, Float.valueOf(0.05f));         // 5%
+		ROUNDED_PARAMS.put(Constants.PARAM_DEVICE_CAPACITY, Float.valueOf(0.1f));        // 100MB (values are in GB)
+		ROUNDED_PARAMS.put(Constants.PARAM_DEVICE_AVAILABLE_CAPACITY, Float.valueOf(0.1f));
+	}
+
+	private Settings settings;
+	private JSONObject sentState;   // fingerprints of the values in the check-in being sent
+	private boolean bSentFull;      // true if the check-in being sent has all the values
+
+	public CheckinState(Settings settings) {
+		this.settings = settings;
+	}
+
+	/**
+	 * Returns true if the next check-in needs to send all the values.
+	 */
+	public boolean isFullResyncDue() {
+		if (!getStateKey().equals(settings.getSetting(Settings.CHECKIN_STATEKEY)))
+			return true;
+		if (settings.getSetting(Settings.CHECKIN_STATE) == null)
+			return true;
+		long hours = settings.getSettingInt(Settings.CHECKIN_FULLSYNC_HOURS, DEFAULT_FULLSYNC_HOURS);
+		long lastFull = settings.getSettingLong(Settings.CHECKIN_LASTFULLTIME, 0);
+		long now = System.currentTimeMillis();
+		return (hours > 0 && (lastFull + hours * 60 * 60 * 1000 < now || lastFull > now));
+	}
+
+	/**
+	 * Removes the values that have not changed since the last check-in accepted by the server,
+	 * keeping the identifying values. The values are remembered, to be saved by acknowledge() if
+	 * the server accepts the check-in.
+	 * @param jparams check-in values; these are not changed.
+	 * @param bFull true to send all the values.
+	 * @return the values to send: jparams if sending all, or a new object with the changed values.
+	 */
+	public JSONObject getChangedParams(JSONObject jparams, boolean bFull) {
+		JSONObject jstate = new JSONObject();
+		JSONObject jchanged = new JSONObject();
+		JSONObject jlast = null;
+		if (!bFull)
+			jlast = loadState();
+		try {
+			for (int i=0; i<IDENTITY_PARAMS.length; i++) {
+				if (jparams.has(IDENTITY_PARAMS[i]))
+					jchanged.put(IDENTITY_PARAMS[i], jparams.get(IDENTITY_PARAMS[i]));
+			}
+			Iterator<?> names = jparams.keys();
+			while (names.hasNext()) {
+				String name = (String) names.next();
+				Object value = jparams.get(name);
+				String fingerprint = getFingerprint(name, value);
+				jstate.put(name, fingerprint);
+				if (jlast == null || !fingerprint.equals(jlast.optString(name, null)))
+					jchanged.put(name, value);
+			}
+		} catch (Exception ex) {
+			LSLogger.exception(TAG, "getChangedParams error:", ex);
+			jlast = null;  // send everything
+		}
+		sentState = jstate;
+		bSentFull = (jlast == null);
+		if (bSentFull)
+			return jparams;
+		LSLogger.debug(TAG, "Sending " + jchanged.length() + " of " + jparams.length() + " check-in values.");
+		return jchanged;
+	}
+
+	/**
+	 * Saves the values last given to getChangedParams as the server's state. Call this when the
+	 * server accepts the check-in.
+	 */
+	public void acknowledge() {
+		JSONObject jstate = sentState;
+		if (jstate == null)
+			return;
+		sentState = null;
+		try {
+			// keep fingerprints of values not in this check-in, such as values only sent on a full sync.
+			JSONObject jlast = (bSentFull ? null : loadState());
+			if (jlast != null) {
+				Iterator<?> names = jstate.keys();
+				while (names.hasNext()) {
+					String name = (String) names.next();
+					jlast.put(name, jstate.get(name));
+				}
+				jstate = jlast;
+			}
+			settings.setSetting(Settings.CHECKIN_STATE, jstate.toString());
+			settings.setSetting(Settings.CHECKIN_STATEKEY, getStateKey());
+			if (bSentFull)
+				settings.setSetting(Settings.CHECKIN_LASTFULLTIME, System.currentTimeMillis());
+		} catch (Exception ex) {
+			LSLogger.exception(TAG, "acknowledge error:", ex);
+		}
+	}
+
+	/**
+	 * Forgets the saved state, so that the next check-in sends all the values.
+	 */
+	public void reset() {
+		sentState = null;
+		settings.removeSetting(Settings.CHECKIN_STATE);
+	}
+
+	// reads the saved fingerprints; returns null if there are none or they cannot be read.
+	private JSONObject loadState() {
+		String state = settings.getSetting(Settings.CHECKIN_STATE);
+		if (state != null) {
+			try {
+				return new JSONObject(state);
+			} catch (Exception ex) {
+				LSLogger.exception(TAG, "loadState error:", ex);
+			}
+		}
+		return null;
+	}
+
+	// gets the key the saved state belongs to; the state is not used if any of these change.
+	private String getStateKey() {
+		return settings.getServerUrl() + "|" + settings.getOrganizationID() + "|" + settings.getDeviceUdid() + "|" +
+				Constants.APPLICATION_VERSION_STR;
+	}
+
+	// gets the fingerprint of a value, for finding if it changed.
+	private static String getFingerprint(String name, Object value) {
+		if (value == null || value == JSONObject.NULL)
+			return "";
+		Float step = ROUNDED_PARAMS.get(name);
+		if (step != null && value instanceof Number)
+			return Long.toString(Math.round(((Number)value).doubleValue() / step.floatValue()));
+		return value.toString();
+	}
+}
@@ -0,0 +1,169 @@
+package com.lightspeedsystems.mdm;
+
+import com.lightspeedsystems.mdm.util.LSLogger;
+
+/**
+ * Keeps a long-poll request open to the server for commands while the app is in the foreground or
+ * the device is charging, so that commands arrive with their data as soon as the server has them,
+ * instead of by a GCM wakeup followed by a commands query.
+ *
+ * Each request is the usual commands query, with a wait parameter asking the server to hold it
+ * until a command is available (or until the wait is up, answering with no commands). It goes
+ * through the pooled connections, and the commands are processed as they are read, as for a query.
+ * A request is not made while a commands query is being processed; a query asked for while a
+ * request is open is made by the channel when the request ends, so the query task does not wait.
+ *
+ * The channel is optional (CMDCHANNEL_ENABLED); GCM wakeups and the commands query are still how
+ * commands are received when it is not running. It is not used:
+ * - while the app is in the background and the device is not charging, or there is no network;
+ * - after a failed request, until a retry delay that doubles with each failure;
+ * - when the server answers without holding the requests, meaning it does not support the wait;
+ *   this is checked again after UNSUPPORTED_RETRY_MS.
+ */
+public class CommandChannel implements Runnable {
+	private final static String TAG = "CommandChannel";
+
+	public final static int DEFAULT_WAIT_SECS = 60;
+	private final static long IDLE_CHECK_MS = 60 * 1000;            // time between checks while the channel is not used
+	private final static long RETRY_MIN_MS = 5 * 1000;
+	private final static long RETRY_MAX_MS = 10 * 60 * 1000;
+	private final static long UNSUPPORTED_RETRY_MS = 60 * 60 * 1000;
+	private final static int  MAX_QUICK_RESPONSES = 3;  // empty answers in a row, not held by the server, before it is taken as unsupported
+
+	private Controller controller;
+	private Settings   settings;
+	private Thread     thread;
+	private volatile boolean ending;
+	private volatile boolean bListening;  // true while a request the server is known to hold is open
+	private boolean    bServerHolds;      // true once the server has held a request
+	private int        failures;          // consecutive failed requests
+	private int        quickResponses;    // consecutive empty answers the server did not hold
+
+	/** Constructor. */
+	public CommandChannel(Controller ctrl) {
+		controller = ctrl;
+		settings = controller.getSettingsInstance();
+	}
+
+	/** Starts the channel's thread. */
+	public synchronized void start() {
+		if (thread == null) {
+			LSLogger.info(TAG, "Starting command channel...");
+			thread = new Thread(this, TAG);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Ends the channel. A request that is open is left to end on its own; its commands, if any,
+	 * are still processed.
+	 */
+	public synchronized void terminate() {
+		ending = true;
+		notifyAll();
+		LSLogger.info(TAG, "Command channel is ending.");
+	}
+
+	/**
+	 * Wakes the channel to check again whether it can be used, such as when the app comes to the
+	 * foreground or the device is plugged in.
+	 */
+	public synchronized void stateChanged() {
+		notifyAll();
+	}
+
+	/**
+	 * Returns true if a request the server holds is open, so that a command for the device will
+	 * be sent on it, without needing a separate query.
+	 */
+	public boolean isListening() {
+		return bListening;
+	}
+
+	public void run() {
+		while (!ending) {
+			long delay = IDLE_CHECK_MS;
+			try {
+				if (canRun())
+					delay = poll();
+			} catch (Exception ex) {
+				LSLogger.exception(TAG, "Command channel error: ", ex);
+				failures++;
+				delay = getRetryDelay();
+			}
+			if (delay > 0 && !ending)
+				waitFor(delay);
+		}
+	}
+
+	// returns true if the channel is enabled and can be used now.
+	private boolean canRun() {
+		if (!settings.getSettingBoolean(Settings.CMDCHANNEL_ENABLED, false) || !controller.isMdmReady())
+			return false;
+		if (!controller.isInForeground()) {
+			BatteryInfo battery = controller.getBatteryInfoProvider();
+			if (battery == null || !battery.isCharging())
+				return false;
+		}
+		return WifiUtils.networkIsConnected(Controller.getContext());
+	}
+
+	// makes one long-poll request, processing any commands it gets.
+	//  Returns the time to wait before the next request, or 0 to make it now.
+	private long poll() {
+		int waitSecs = settings.getSettingInt(Settings.CMDCHANNEL_WAITSECS, DEFAULT_WAIT_SECS);
+		HttpCommResponse response = new HttpCommResponse();
+		long startTime = System.currentTimeMillis();
+		bListening = bServerHolds;
+		try {
+			CommandProcessor.processServerCommands(controller, waitSecs, response);
+		} finally {
+			bListening = false;
+		}
+		long elapsed = System.currentTimeMillis() - startTime;
+
+		if (!response.isOK() && !response.isNotModified()) {
+			failures++;
+			long delay = getRetryDelay();
+			if (response.getRetryAfterSeconds() > 0)
+				delay = Math.max(delay, response.getRetryAfterSeconds() * 1000L);
+			LSLogger.debug(TAG, "Command channel request failed (" + failures + " in a row); retrying in " + (delay / 1000) + " seconds.");
+			return delay;
+		}
+		failures = 0;
+
+		CommandStreamReader reader = (CommandStreamReader) response.getStreamHandler();
+		boolean bHadCommands = (reader != null && reader.getCommandCount() > 0);
+		if (elapsed >= waitSecs * 1000L / 2) {
+			bServerHolds = true;
+			quickResponses = 0;
+		} else if (!bHadCommands) {
+			// answered at once with nothing: the server may not support waiting.
+			if (++quickResponses >= MAX_QUICK_RESPONSES) {
+				LSLogger.info(TAG, "Server does not hold command requests; using GCM and queries for commands.");
+				bServerHolds = false;
+				quickResponses = 0;
+				return UNSUPPORTED_RETRY_MS;
+			}
+			return RETRY_MIN_MS;
+		}
+		return 0;
+	}
+
+	// gets the delay before retrying after the current number of failures, doubling each time.
+	private long getRetryDelay() {
+		long delay = RETRY_MIN_MS;
+		for (int i=1; i<failures && delay < RETRY_MAX_MS; i++)
+			delay *= 2;
+		return Math.min(delay, RETRY_MAX_MS);
+	}
+
+	private synchronized void waitFor(long delayMs) {
+		try {
+			if (!ending)
+				wait(delayMs);
+		} catch (InterruptedException iex) {
+		}
+	}
+}
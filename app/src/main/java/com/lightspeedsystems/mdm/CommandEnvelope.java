@@ -0,0 +1,154 @@
+package com.lightspeedsystems.mdm;
+
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Iterator;
+
+import org.json.JSONObject;
+
+import android.util.Base64;
+
+import com.lightspeedsystems.mdm.util.LSLogger;
+
+/**
+ * Opens signed command envelopes, which carry a small command in a GCM message so that it can be
+ * run without first getting it from the server.
+ *
+ * The GCM data is a json object with:
+ * - env: the command json, base64-encoded; it has the usual cmd and command_id values, the device
+ *   udid it is for, the time it was issued (iat), and optionally when it expires (exp), in
+ *   seconds since 1970;
+ * - sig: the base64-encoded signature of the decoded command bytes, made with the server's private
+ *   key (SHA256withRSA or SHA256withECDSA); the public key is in the CMDENVELOPE_PUBKEY setting.
+ *
+ * A command is only run if the signature is good, it is for this device, it is one of the commands
+ * allowed in an envelope, it has not expired (or is not older than CMDENVELOPE_MAXAGE_SECS), and
+ * its command_id has not been seen before. The ids seen are saved in settings until the commands
+ * they belong to expire, so that a message cannot be replayed.
+ */
+public class CommandEnvelope {
+	private final static String TAG = "CommandEnvelope";
+
+	public final static int DEFAULT_MAXAGE_SECS = 300;
+	private final static long MAX_CLOCKSKEW_MS = 60 * 1000;  // allowed difference between server and device times
+	private final static int  MAX_SEEN_IDS = 256;
+
+	// commands that can be sent in an envelope; others need to be queried from the server.
+	private final static String[] ALLOWED_COMMANDS = {
+		Constants.CMD_LOCKNOW, Constants.CMD_CHECKIN, Constants.CMD_SETCONFIG, Constants.CMD_CLEARPASSWORD };
+
+	/**
+	 * Returns true if the json is a command envelope.
+	 */
+	public static boolean isEnvelope(JSONObject jdata) {
+		return (jdata.has(Constants.CMD_envelopetag) && jdata.has(Constants.CMD_signaturetag));
+	}
+
+	/**
+	 * Verifies and opens a command envelope.
+	 * @param settings settings instance, with the server's public key and the command ids seen.
+	 * @param jdata the envelope.
+	 * @return the command, or null if the envelope is not valid or the command is not allowed.
+	 */
+	public static JSONObject open(Settings settings, JSONObject jdata) {
+		try {
+			byte[] payload = Base64.decode(jdata.getString(Constants.CMD_envelopetag), Base64.DEFAULT);
+			byte[] signature = Base64.decode(jdata.getString(Constants.CMD_signaturetag), Base64.DEFAULT);
+			if (!verify(settings, payload, signature)) {
+				LSLogger.error(TAG, "Command envelope rejected: bad signature.");
+				return null;
+			}
+			JSONObject jcmd = new JSONObject(new String(payload, "UTF-8"));
+			String cmd = jcmd.optString(Constants.CMD_cmdtag, null);
+			String commandID = jcmd.optString(Constants.CMD_commandtag, null);
+			if (cmd == null || commandID == null || !isAllowed(cmd)) {
+				LSLogger.error(TAG, "Command envelope rejected: command '" + cmd + "' is not allowed.");
+				return null;
+			}
+			if (!jcmd.optString(Constants.PARAM_DEVICE_UDID, "").equals(settings.getDeviceUdid())) {
+				LSLogger.error(TAG, "Command envelope rejected: not for this device.");
+				return null;
+			}
+			long now = System.currentTimeMillis();
+			long issued = jcmd.optLong(Constants.CMD_issuedtag, 0) * 1000;
+			long expires = jcmd.optLong(Constants.CMD_expirestag, 0) * 1000;
+			long maxAge = settings.getSettingInt(Settings.CMDENVELOPE_MAXAGESECS, DEFAULT_MAXAGE_SECS) * 1000L;
+			if (expires == 0 || expires > issued + maxAge)
+				expires = issued + maxAge;
+			if (issued == 0 || issued > now + MAX_CLOCKSKEW_MS || expires + MAX_CLOCKSKEW_MS < now) {
+				LSLogger.error(TAG, "Command envelope rejected: command " + commandID + " has expired.");
+				return null;
+			}
+			if (!markSeen(settings, commandID, expires + MAX_CLOCKSKEW_MS)) {
+				LSLogger.error(TAG, "Command envelope rejected: command " + commandID + " was already received.");
+				return null;
+			}
+			return jcmd;
+		} catch (Exception ex) {
+			LSLogger.exception(TAG, "Command envelope error: ", ex);
+		}
+		return null;
+	}
+
+	// checks the signature of the payload with the server's public key.
+	private static boolean verify(Settings settings, byte[] payload, byte[] signature) throws Exception {
+		String keyStr = settings.getSetting(Settings.CMDENVELOPE_PUBKEY);
+		if (keyStr == null || keyStr.length() == 0) {
+			LSLogger.warn(TAG, "No key is set for command envelopes.");
+			return false;
+		}
+		X509EncodedKeySpec keySpec = new X509EncodedKeySpec(Base64.decode(keyStr, Base64.DEFAULT));
+		PublicKey key;
+		try {
+			key = KeyFactory.getInstance("EC").generatePublic(keySpec);
+		} catch (Exception ex) {
+			key = KeyFactory.getInstance("RSA").generatePublic(keySpec);
+		}
+		Signature verifier = Signature.getInstance(
+				key.getAlgorithm().equals("EC") ? "SHA256withECDSA" : "SHA256withRSA");
+		verifier.initVerify(key);
+		verifier.update(payload);
+		return verifier.verify(signature);
+	}
+
+	private static boolean isAllowed(String cmd) {
+		for (int i=0; i<ALLOWED_COMMANDS.length; i++) {
+			if (ALLOWED_COMMANDS[i].equalsIgnoreCase(cmd))
+				return true;
+		}
+		return false;
+	}
+
+	// saves a command id as seen, until the given time; returns false if it was already seen.
+	//  Ids of expired commands are removed, since those commands would be rejected anyway.
+	private static synchronized boolean markSeen(Settings settings, String commandID, long keepUntil) throws Exception {
+		String seen = settings.getSetting(Settings.CMDENVELOPE_SEENIDS);
+		JSONObject jseen = (seen == null ? new JSONObject() : new JSONObject(seen));
+		if (jseen.has(commandID))
+			return false;
+		long now = System.currentTimeMillis();
+		long oldestTime = 0;
+		String oldestID = null;
+		JSONObject jkeep = new JSONObject();
+		Iterator<?> ids = jseen.keys();
+		while (ids.hasNext()) {
+			String id = (String) ids.next();
+			long time = jseen.optLong(id, 0);
+			if (time >= now) {
+				jkeep.put(id, time);
+				if (oldestID == null || time < oldestTime) {
+					oldestID = id;
+					oldestTime = time;
+				}
+			}
+		}
+		if (jkeep.length() >= MAX_SEEN_IDS && oldestID != null)
+			jkeep.remove(oldestID);
+		jkeep.put(commandID, keepUntil);
+		settings.setSetting(Settings.CMDENVELOPE_SEENIDS, jkeep.toString());
+		settings.flush();  // saved before the command runs, so it cannot be run again after a restart
+		return true;
+	}
+}
@@ -2,6 +2,7 @@ package com.lightspeedsystems.mdm;
 
 import com.lightspeedsystems.mdm.util.LSLogger;
 import java.util.List;
+import java.util.Locale;
 import java.util.Vector;
 import android.content.Intent;
 
@@ -15,6 +16,16 @@ import org.json.JSONException;
 public class CommandProcessor {
 
 	private final static String TAG = "CommandProcessor";
+	// the command channel and the commands query task read server commands on different threads; they
+	//  take turns, so that the same commands are not read and run by both:
+	private final static Object serverCommandsLock = new Object(); // guards the values below
+	private static boolean bReadingCommands;   // true while commands are being read
+	private static boolean bLongPollReading;   // true while the command channel's long-poll is open
+	private static boolean bQueryRequested;    // a query was asked for during the long-poll; made after it
+
+	// commands that can be sent in a GCM message without a signed envelope: they only have the device
+	//  contact the server, which then sends any commands to run.
+	private final static String[] UNSIGNED_GCM_COMMANDS = { Constants.CMD_WAKEUP, Constants.CMD_CHECKIN };
 	
 	/**
 	 * Processes a received GCM Intent. Typically, this is the result of a received message or 
@@ -33,15 +44,19 @@ public class CommandProcessor {
 			LSLogger.info(TAG, "Received intent data="+data);
 			try {
 				JSONObject jdata = new JSONObject(data);
-				if (jdata.has(Constants.CMD_cmdtag)) {
-					// Note: this directly-calls command processing; some commands are really best-suited
-					// for processing later and separately, while some should be immediate.
-					// (For example, a command to download an install an app should not be processed here, 
-					//  because the amount of time needed to handle the command can be lengthy; those type of
-					//  commands are usually queued up on the server and are obtained during wake-up processing.)
-					// Generally though, commands received through GCM will only be 'wake-up' and maybe
-					// any urgent-immediate commands, so this should be OK.
-					processMDMCommand(jdata.getString(Constants.CMD_cmdtag), jdata, null);
+				if (CommandEnvelope.isEnvelope(jdata)) {
+					// a signed command sent with the message, run without getting it from the server:
+					processEnvelopeCommand(jdata);
+
+				} else if (jdata.has(Constants.CMD_cmdtag)) {
+					// Note: this directly-calls command processing. Only commands that have the device
+					//  contact the server (wake-up and check-in) are run from an unsigned message, since
+					//  anyone able to send a GCM message could send them; other commands need a signed envelope.
+					String cmd = jdata.getString(Constants.CMD_cmdtag);
+					if (isUnsignedGcmCommand(cmd))
+						processMDMCommand(cmd, jdata, null);
+					else
+						LSLogger.error(TAG, "GCM command '" + cmd + "' rejected: it must be sent in a signed envelope.");
 					
 				} else {
 					LSLogger.error(TAG, "Unknown GCM message: "+data);
@@ -54,6 +69,36 @@ public class CommandProcessor {
 		}
 	}
 	
+	private static boolean isUnsignedGcmCommand(String cmd) {
+		for (int i=0; i<UNSIGNED_GCM_COMMANDS.length; i++) {
+			if (UNSIGNED_GCM_COMMANDS[i].equalsIgnoreCase(cmd))
+				return true;
+		}
+		return false;
+	}
+
+	// runs the command in a signed envelope, if it is valid, and queues its result to be sent to the server.
+	private static void processEnvelopeCommand(JSONObject jdata) {
+		Controller controller = Controller.getInstance();
+		if (controller == null) {
+			LSLogger.warn(TAG, "Controller is not ready; signed command ignored.");
+			return;
+		}
+		JSONObject jcmd = CommandEnvelope.open(controller.getSettingsInstance(), jdata);
+		if (jcmd != null) {
+			LSLogger.info(TAG, "Received signed command " + jcmd.optString(Constants.CMD_commandtag));
+			CommandResult cmdResult = processMDMCommand(jcmd.optString(Constants.CMD_cmdtag), jcmd, null);
+			JSONArray jsonResults = new JSONArray();
+			addCommandResult(jsonResults, jcmd, cmdResult);
+			if (jsonResults.length() > 0) {
+				// sent with other results in the flush window, by sendServerCommandResults:
+				CommandResultOutbox outbox = CommandResultOutbox.getInstance(null);
+				outbox.add(jsonResults);
+				outbox.scheduleFlush();
+			}
+		}
+	}
+
 	/* Process a MDM command initiated by the MDM server. 
 	 * @param deferredCmds if not null is used to store commands that need to be deferred to later; if this is null, 
 	 * processes the command right away.  This is intended for commands such as wipe, where the wipe needs to be done
@@ -67,6 +112,7 @@ public class CommandProcessor {
 		  if (cmd != null) {
 			results = new CommandResult();
 			LSLogger.debug(TAG, "Processing command " + cmd);
+			long startTime = Metrics.now();
 			
 			if (cmd.equalsIgnoreCase(Constants.CMD_WAKEUP)) {
 				//start the processing to read/process commands to be read in from the server
@@ -200,6 +246,7 @@ public class CommandProcessor {
 						results.setErrorMessage(jcfg.getString(Constants.CMD_errortag));
 					} else {
 						Controller.getInstance().getSettingsInstance().setValues(jcfg, results);
+						Controller.getInstance().requestDataCompaction(); // apply any retention changes
 						Event.log(Event.EVENTTYPE_config, Event.EVENTACTION_update, 
 								R.string.event_configset, R.string.config);
 					}
@@ -216,6 +263,7 @@ public class CommandProcessor {
 				results.setErrorMessage("Unknown command received: " + cmd);
 			}
 			
+			Metrics.getInstance().recordSince(Metrics.CMD_PREFIX + cmd.toLowerCase(Locale.US), startTime);
 			LSLogger.debug(TAG, "Processed command '" + cmd + "' - results: " + results.toString());
 		  }
 		} catch (Exception ex) {
@@ -354,7 +402,8 @@ public class CommandProcessor {
 	}
 	
 	/**
-	 * Sends the results data to the results server.
+	 * Sends the results data to the results server. Command results are normally queued in the
+	 * CommandResultOutbox, which calls this to send them in batches.
 	 * @param settings Application Settings instance.
 	 * @param results array of Activity result values to send to the results servers.
 	 * @return true if the data was sent, false if an error occurred or data not sent.
@@ -394,6 +443,42 @@ public class CommandProcessor {
 		return bResult;
 	}
 	
+	/*
+	 * Processes each command as it is read from the server's command query response, adding
+	 * its results to the results to be sent back to the server.
+	 */
+	private static class ServerCommandDispatcher implements CommandStreamReader.CommandHandler {
+		private List<MdmDeferredCommand> deferredCommands;
+		private JSONArray jsonResults;
+		boolean bDone; // set when processing is to stop, due to an abort or an unrecognized command.
+		
+		ServerCommandDispatcher(List<MdmDeferredCommand> deferredCommands, JSONArray jsonResults) {
+			this.deferredCommands = deferredCommands;
+			this.jsonResults = jsonResults;
+		}
+		
+		public boolean onCommand(JSONObject jdata, int index) {
+			if (LSLogger.isLoggingEnabled())
+				LSLogger.debug(TAG, "Extracted jsonobject("+(index+1)+"): "+ 
+							Utils.filterProtectedContent(jdata.toString()));
+			try {
+				if (jdata.has(Constants.CMD_cmdtag)) {
+					CommandResult cmdresult = processMDMCommand(jdata.getString(Constants.CMD_cmdtag), jdata, deferredCommands);
+					addCommandResult(jsonResults, jdata, cmdresult);
+					if (cmdresult.isAbort())
+						bDone = true;
+				} else {
+					LSLogger.error(TAG, "Unknown server response: "+ jdata.toString());
+					bDone = true;
+				}
+			} catch (Exception ex) {
+				LSLogger.exception(TAG, "Server command error: ", ex);
+				bDone = true; // we're getting unexpected errors, so stop processing.
+			}
+			return !bDone;
+		}
+	}
+	
 	// processes the commands from a server. 
 	// This runs from within the given Controller's thread.
 	// returns false if all things are complete, true if things didnt finish.
@@ -407,6 +492,65 @@ public class CommandProcessor {
 	 * process any pending actions
 	 */
 	public static boolean processServerCommands(Controller controller) {
+		return processServerCommands(controller, 0, null);
+	}
+
+	/**
+	 * Processes the commands from the server, with the first query made as a long-poll: the server
+	 * can hold it open for up to the given time, answering as soon as a command is available (or
+	 * with an empty list when the time is up). The commands are processed as they are read, and
+	 * the rest are then queried as usual.
+	 * @param controller the controller instance.
+	 * @param waitSecs seconds the server can hold the first query; 0 to not wait.
+	 * @param firstResponse optional instance for the results of the first query; can be null.
+	 * @return false if all things are complete, true if things didnt finish.
+	 */
+	static boolean processServerCommands(Controller controller, int waitSecs, HttpCommResponse firstResponse) {
+		boolean bLongPoll = (waitSecs > 0);
+		synchronized (serverCommandsLock) {
+			while (bReadingCommands) {
+				if (!bLongPoll && bLongPollReading) {
+					// rather than waiting for the long-poll (which can take a minute), have it query again when done.
+					bQueryRequested = true;
+					LSLogger.debug(TAG, "Server commands are being read by the command channel; it will query again.");
+					return false;
+				}
+				try {
+					serverCommandsLock.wait();
+				} catch (InterruptedException iex) {
+					Thread.currentThread().interrupt();
+					return true;
+				}
+			}
+			bReadingCommands = true;
+			bLongPollReading = bLongPoll;
+		}
+		try {
+			boolean bResult = readServerCommands(controller, waitSecs, firstResponse);
+			while (bLongPoll && takeQueryRequest())
+				bResult = readServerCommands(controller, 0, null);
+			return bResult;
+		} finally {
+			synchronized (serverCommandsLock) {
+				bReadingCommands = false;
+				bLongPollReading = false;
+				serverCommandsLock.notifyAll();
+			}
+		}
+	}
+
+	// after a long-poll, gets and clears whether a query was asked for during it. From then on, other
+	//  queries wait for the commands being read, instead of asking for another query.
+	private static boolean takeQueryRequest() {
+		synchronized (serverCommandsLock) {
+			boolean bRequested = bQueryRequested;
+			bQueryRequested = false;
+			bLongPollReading = false;
+			return bRequested;
+		}
+	}
+
+	private static boolean readServerCommands(Controller controller, int waitSecs, HttpCommResponse firstResponse) {
 		LSLogger.debug(TAG, "Begin reading server commands...");
 		
 		boolean done = false;
@@ -418,6 +562,7 @@ public class CommandProcessor {
 		String serverUrl = ServerUrlProvider.getCommandsQueryUrl(settings);		
 		
 		ServerComm serverComm = new ServerComm();
+		CommandResultOutbox outbox = CommandResultOutbox.getInstance(null);
 		
 		CommandResult cmdresult = null; // previous command's processing result; is used to pass results to server
 		
@@ -433,6 +578,9 @@ public class CommandProcessor {
 				// Create params; add device udid to every call.
 				JSONObject jparams = new JSONObject();
 				jparams.put(Constants.PARAM_DEVICE_UDID, deviceUDID);
+				boolean bLongPoll = (waitSecs > 0);
+				if (bLongPoll)
+					jparams.put(Constants.PARAM_WAIT, waitSecs);
 				/*** -- add previous results to the request --
 				if (cmdresult != null && (prevCommandID != null || prevActivityID != null)) {
 					// build previous-command's results as params to the command:
@@ -453,75 +601,40 @@ public class CommandProcessor {
 				}
 				**/
 				
-				cmdresult = null;
-				HttpCommResponse response = serverComm.getFromServer(serverUrl, jparams);
+				// get the commands; each command is processed as soon as it is read from the response.
+				ServerCommandDispatcher dispatcher = new ServerCommandDispatcher(deferredCommands, jsonResults);
+				CommandStreamReader cmdReader = new CommandStreamReader(dispatcher);
+				HttpCommResponse response = (firstResponse != null ? firstResponse : new HttpCommResponse());
+				response.setStreamHandler(cmdReader);
+				if (bLongPoll)  // allow for the server's wait, plus the usual time for the data:
+					response.setReadTimeoutSecs(waitSecs + HttpCommResponse.DEFAULT_GET_READTIMEOUT_MS / 1000);
+				firstResponse = null;
+				waitSecs = 0;      // the rest of the commands are queried without waiting.
+				// validators are only saved from an empty command list, so Not Modified means no commands.
+				//  A long-poll is not conditional, since the server would answer it at once instead of holding it.
+				if (!bLongPoll)
+					settings.setConditional(Settings.HTTPVALIDATORS_commands, serverUrl, response);
+				serverComm.getFromServer(serverUrl, jparams, response);
 				
-				// process the response:
-				if (response.isOK()) {
-					done = false;
-					try {
-						if (LSLogger.isLoggingEnabled())
-							LSLogger.debug(TAG, "Result from server: " + 
-									Utils.filterProtectedContent(response.getResultStr()));
-						String resultstr = response.getResultStr();
-						JSONArray jarray = null;
-						JSONObject jdata = null;
-						if (resultstr.startsWith("[")) {
-							jarray = new JSONArray( resultstr );
-							//LSLogger.debug(TAG, "Created jsonArray " + jarray.toString());
-							if (jarray.length() > 0) {
-								jdata = jarray.getJSONObject(0);
-								//LSLogger.debug(TAG, "Extracted jsonobject " + jdata.toString());
-							} 
-						} else if (resultstr.startsWith("{")) {
-							jdata = new JSONObject( resultstr );
-							//LSLogger.debug(TAG, "Created jsonobject " + jdata.toString());
-						} else { // else response is not recognized:
-							LSLogger.error(TAG, "Invalid command query response format: " + resultstr);
-						}
-						
-						if ((jdata != null && jdata.length()==0) || 
-						    (jarray!=null && jarray.length()==0)) {
-							//LSLogger.debug(TAG, "No more commands to process.");
-							done = true;
-							
-						} else {  
-							 
-							 // process the commands if we have any:
-							int indx = 0;
-							while (jdata != null && !done) {
-								if (LSLogger.isLoggingEnabled())
-									LSLogger.debug(TAG, "Extracted jsonobject("+(indx+1)+"): "+ 
-												Utils.filterProtectedContent(jdata.toString()));
-								// extract current command and process it:
-								if (jdata.has(Constants.CMD_cmdtag)) {
-								    cmdresult = processMDMCommand(jdata.getString(Constants.CMD_cmdtag), jdata, deferredCommands);
-									addCommandResult(jsonResults, jdata, cmdresult);
-									if (cmdresult.isAbort())
-										done = true;
-									
-								} else {
-									LSLogger.error(TAG, "Unknown server response: "+ (jdata==null?"null":jdata.toString()) );
-									done = true;
-								}	
-							
-								// get next value from array, if we have one: 
-								indx++;
-								if (jarray != null && indx < jarray.length())
-									jdata = jarray.getJSONObject(indx);
-								else
-									jdata = null;
-							} // end-while 
-						
-						}
-						
-						
-					} catch (JSONException jex) {
-						LSLogger.exception(TAG, "JSON Exception processing server command: ", jex);
+				// check the results of the response:
+				if (response.isNotModified()) {
+					LSLogger.debug(TAG, "No commands (not modified).");
+					done = true;
+				} else if (response.isOK()) {
+					if (response.hasException()) {
+						LSLogger.exception(TAG, "Error reading server commands: ", response.getException());
 						done = true; // we're getting improper results from server; abort processing.
-					} catch (Exception ex) {
-						LSLogger.exception(TAG, "Server command error: ", ex);
-						done = true; // we're getting unexpected errors, so stop the outer loop
+					} else if (cmdReader.isFormatError()) {
+						LSLogger.error(TAG, "Invalid command query response format.");
+						done = true;
+					} else if (cmdReader.getCommandCount() == 0) {
+						//LSLogger.debug(TAG, "No more commands to process.");
+						if (!bLongPoll)
+							settings.saveValidators(Settings.HTTPVALIDATORS_commands, serverUrl, response);
+						done = true;
+					} else {
+						settings.removeValidators(Settings.HTTPVALIDATORS_commands);
+						done = dispatcher.bDone;
 					}
 					
 				} else { // else response from http request was an error or exception and is not ok:
@@ -533,9 +646,13 @@ public class CommandProcessor {
 				done = true;
 			}
 			
-			// if we have any results, send those to the server:
+			// if we have any results, queue them to be sent to the server. They are sent before querying
+			//  again, since the server sends commands again until it has their results; the results of
+			//  the last query are sent with the deferred commands' results, below.
 			if (jsonResults != null && jsonResults.length() > 0) {
-				sendServerCommandResults(settings, jsonResults);
+				outbox.add(jsonResults);
+				if (!done)
+					outbox.flush();
 			}
 			
 		} while (!done);
@@ -547,6 +664,12 @@ public class CommandProcessor {
 			LSLogger.debug(TAG, "Processing deferred server commands...");
 			JSONArray jsonResults = new JSONArray();
 			for (int i=0; i<deferredCommands.size(); i++) {
+				// send the results so far first; a deferred command can be a wipe, after which nothing is sent.
+				if (jsonResults.length() > 0) {
+					outbox.add(jsonResults);
+					jsonResults = new JSONArray();
+				}
+				outbox.flush();
 				MdmDeferredCommand cmd = deferredCommands.get(i);
 				CommandResult cmdResult = processMDMCommand(cmd.cmd, cmd.json, null);
 				addCommandResult(jsonResults, cmd.json, cmdResult);
@@ -555,13 +678,16 @@ public class CommandProcessor {
 			}			
 			LSLogger.debug(TAG, "Completed deferred server commands.");
 			
-			// if we have any results, send those to the server:
+			// if we have any results, queue those to be sent to the server:
 			if (jsonResults.length() > 0) {
-				sendServerCommandResults(settings, jsonResults);
+				outbox.add(jsonResults);
 			}
 			
 		}
 		
+		// send all the results from this check-in, including any left from previous failed attempts:
+		outbox.flush();
+		
 		return false; // false=all finished, true=more items to process
 		
 	}
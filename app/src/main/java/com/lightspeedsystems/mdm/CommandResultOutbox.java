@@ -0,0 +1,381 @@
+package com.lightspeedsystems.mdm;
+
+import java.util.Vector;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.lightspeedsystems.mdm.util.LSLogger;
+
+/**
+ * Persistent outbox of command results waiting to be sent to the results server.
+ *
+ * Command results are written to the lscmdresults table as they are produced, instead of being
+ * posted right away, so that they survive the process being stopped and are not lost when the
+ * post fails. Results for the same command or activity are coalesced into one entry (a later
+ * result, such as success after pending, replaces the earlier one). Queued results are then sent
+ * in batches, one post per batch: when a scheduled flush's window has elapsed, or when a flush is
+ * forced (before each commands query, and at the end of a server command check-in). A failed post
+ * leaves the results in the outbox and is retried with an increasing delay.
+ */
+public class CommandResultOutbox {
+	private final static String TAG = "CommandResultOutbox";
+
+	/** Maximum number of results sent in one post. */
+	public final static int  MAX_BATCH_SIZE = 50;
+	/** Time results are held to be batched with other results before being sent. */
+	public final static long FLUSH_WINDOW_MS = 30 * 1000;  // 30 seconds
+	/** Initial and maximum retry delays after a failed post. */
+	public final static long RETRY_MIN_MS = 30 * 1000;     // 30 seconds
+	public final static long RETRY_MAX_MS = 60 * 60 * 1000;// 1 hour
+
+	private static CommandResultOutbox outboxInstance;
+
+	private Context context;
+	private Object flushLock = new Object(); // serializes the sending of results
+	private int  failureCount;     // number of consecutive failed posts
+	private long nextRetryTime;    // time before which a non-forced flush will not retry after a failure
+	private Thread flushThread;    // thread waiting to do a scheduled flush, if any
+
+	/**
+	 * Gets the outbox instance (as a singleton, creating it as needed).
+	 * @param context application context; if null, the application context is used.
+	 * @return the CommandResultOutbox.
+	 */
+	public static CommandResultOutbox getInstance(Context context) {
+		if (outboxInstance == null) {
+			synchronized (CommandResultOutbox.class) {
+				if (outboxInstance == null) {
+					if (context == null)
+						context = Utils.getApplicationContext();
+					outboxInstance = new CommandResultOutbox(context);
+				}
+			}
+		}
+		return outboxInstance;
+	}
+
+	private CommandResultOutbox(Context context) {
+		this.context = context;
+	}
+
+	/**
+	 * Adds command results to the outbox. Results are not sent until the outbox is flushed.
+	 * @param results array of result entries, as built by CommandProcessor.addCommandResult.
+	 * @return number of results added.
+	 */
+	public int add(JSONArray results) {
+		int count = 0;
+		Settings settings = Settings.getInstance(context);
+		if (results != null && results.length() > 0 && settings.isSendCmdResultsToServer()) {
+			OutboxDB db = new OutboxDB(context);
+			try {
+				for (int i=0; i<results.length(); i++) {
+					JSONObject jentry = results.optJSONObject(i);
+					if (jentry != null && db.addOrReplace(getResultKey(jentry), jentry.toString()) >= 0)
+						count++;
+				}
+			} catch (Exception ex) {
+				LSLogger.exception(TAG, "Add results error:", ex);
+			} finally {
+				db.close();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the number of results waiting to be sent.
+	 */
+	public int getPendingCount() {
+		OutboxDB db = new OutboxDB(context);
+		int count = db.getCount();
+		db.close();
+		return count;
+	}
+
+	/**
+	 * Sends all waiting results to the server, in batches, stopping at the first failed post.
+	 * @return true if all waiting results were sent, false if an error occurred and results remain.
+	 */
+	public boolean flush() {
+		boolean bResult = true;
+		synchronized (flushLock) {
+			Settings settings = Settings.getInstance(context);
+			if (!settings.isSendCmdResultsToServer())
+				return true; // results are not being sent; leave them in the outbox.
+			OutboxDB db = new OutboxDB(context);
+			try {
+				Vector<Long> ids = new Vector<Long>(MAX_BATCH_SIZE);
+				JSONArray batch = new JSONArray();
+				while (bResult) {
+					int count = db.readBatch(ids, batch, MAX_BATCH_SIZE);
+					if (count == 0)
+						break;
+					if (count < 0) {  // the results could not be read; retry later.
+						setFailed();
+						LSLogger.warn(TAG, "Results not read; retry in " + (getRetryDelay(failureCount)/1000) + " seconds.");
+						bResult = false;
+					} else if (CommandProcessor.sendServerCommandResults(settings, batch)) {
+						db.delete(ids);
+						failureCount = 0;
+						nextRetryTime = 0;
+					} else {
+						db.incrementAttempts(ids);
+						setFailed();
+						LSLogger.warn(TAG, "Results not sent; " + db.getCount() + " results waiting. Retry in " +
+								(getRetryDelay(failureCount)/1000) + " seconds.");
+						bResult = false;
+					}
+					ids.clear();
+					batch = new JSONArray();
+				}
+			} catch (Exception ex) {
+				LSLogger.exception(TAG, "Flush error:", ex);
+				setFailed();
+				bResult = false;
+			} finally {
+				db.close();
+			}
+		}
+		if (!bResult)
+			scheduleFlush(nextRetryTime - System.currentTimeMillis());
+		return bResult;
+	}
+
+	/**
+	 * Schedules a flush after the flush window, so that other results produced in the meantime
+	 * are sent with it. Does nothing if a flush is already scheduled.
+	 */
+	public void scheduleFlush() {
+		scheduleFlush(Math.max(FLUSH_WINDOW_MS, nextRetryTime - System.currentTimeMillis()));
+	}
+
+	private synchronized void scheduleFlush(final long delayMs) {
+		if (flushThread != null && flushThread.isAlive())
+			return;
+		flushThread = new Thread() {
+			public void run() {
+				try {
+					if (delayMs > 0)
+						sleep(delayMs);
+				} catch (InterruptedException iex) {
+				}
+				synchronized (CommandResultOutbox.this) {
+					flushThread = null;
+				}
+				flush();
+			}
+		};
+		flushThread.setDaemon(true);
+		flushThread.start();
+	}
+
+	// counts a failed flush, setting the time of the next retry.
+	private void setFailed() {
+		failureCount++;
+		nextRetryTime = System.currentTimeMillis() + getRetryDelay(failureCount);
+	}
+
+	// gets the delay before the next retry after the given number of consecutive failures.
+	private static long getRetryDelay(int failures) {
+		long delay = RETRY_MIN_MS;
+		for (int i=1; i<failures && delay < RETRY_MAX_MS; i++)
+			delay *= 2;
+		return Math.min(delay, RETRY_MAX_MS);
+	}
+
+	// gets the coalescing key for a result entry: its activity or command identifier.
+	private static String getResultKey(JSONObject jentry) {
+		String key = jentry.optString(Constants.CMD_activitytag, null);
+		if (key != null)
+			return Constants.CMD_activitytag + ":" + key;
+		key = jentry.optString(Constants.CMD_commandtag, null);
+		if (key != null)
+			return Constants.CMD_commandtag + ":" + key;
+		return null;
+	}
+
+	/**
+	 * Static method to get the SQL used to create the command results outbox table.
+	 * @return the SQL string used to create the table.
+	 */
+	public static String getOutboxSqlCreateTable() {
+		return OutboxDB.getSqlCreateTable();
+	}
+
+
+	// -----------------------------------------------------------------------
+	// --- Inner-class for handling outbox persistence in a sqlite database  --
+	// -----------------------------------------------------------------------
+	/**
+	 * A SQLite database is used to store waiting results in the lscmdresults table.
+	 *
+	 * Each row includes:
+	 * id - row id, used for sending results in the order they were added.
+	 * restime - time the result was added or last replaced.
+	 * reskey - activity or command identifier of the result, used to coalesce results.
+	 * result - json result entry to send.
+	 * attempts - number of failed attempts to send the result.
+	 */
+	private static class OutboxDB extends DBStorage {
+		private final static String OUTBOX_DB_TABLENAME = "lscmdresults";
+		private final static String COLUMN_ID       = "id";
+		private final static String COLUMN_TIME     = "restime";
+		private final static String COLUMN_KEY      = "reskey";
+		private final static String COLUMN_RESULT   = "result";
+		private final static String COLUMN_ATTEMPTS = "attempts";
+
+		// SQL command used to create the table:
+		private final static String OUTBOX_DB_CREATE_SQL =
+				"CREATE TABLE " + OUTBOX_DB_TABLENAME + " (" +
+						COLUMN_ID       + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+						COLUMN_TIME     + " LONG, " +
+						COLUMN_KEY      + " TEXT, " +
+						COLUMN_RESULT   + " TEXT, " +
+						COLUMN_ATTEMPTS + " INTEGER);";
+
+		private final static String OUTBOX_DB_QUERY_BATCH =
+				"select " + COLUMN_ID + "," + COLUMN_RESULT + " from " + OUTBOX_DB_TABLENAME +
+				" order by " + COLUMN_ID + " asc limit ?;";
+		private final static String OUTBOX_DB_QUERY_COUNT =
+				"select count(*) from " + OUTBOX_DB_TABLENAME + ";";
+
+		public OutboxDB(Context context) {
+			super(context);
+		}
+
+		public String getSqlTableName() {
+			return OUTBOX_DB_TABLENAME;
+		}
+
+		public static String getSqlCreateTable() {
+			return OUTBOX_DB_CREATE_SQL;
+		}
+
+		/**
+		 * Adds a result, replacing any waiting result with the same key. The replacement gets a new
+		 * row id, so that a batch being sent with the earlier result does not remove it when done.
+		 * @return the row ID of the result, or -1 if error.
+		 */
+		protected long addOrReplace(String key, String result) {
+			ContentValues mapping = new ContentValues(4);
+			mapping.put(COLUMN_TIME,     Long.valueOf(System.currentTimeMillis()));
+			mapping.put(COLUMN_KEY,      key);
+			mapping.put(COLUMN_RESULT,   result);
+			mapping.put(COLUMN_ATTEMPTS, Integer.valueOf(0));
+			long id = -1;
+			long startTime = Metrics.now();
+			try {
+				SQLiteDatabase db = openForWriting();
+				if (db == null)
+					return -1;
+				// replaced in one transaction, so the earlier result is kept if the new one is not added.
+				db.beginTransaction();
+				try {
+					if (key != null)
+						db.delete(OUTBOX_DB_TABLENAME, COLUMN_KEY + "=?", new String[] { key });
+					id = db.insert(OUTBOX_DB_TABLENAME, null, mapping);
+					if (id >= 0)
+						db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
+				}
+			} catch (Exception ex) {
+				LSLogger.exception(TAG, "Error adding result.", ex);
+				id = -1;
+			}
+			Metrics.getInstance().recordSince(Metrics.DB_WRITE, startTime);
+			return id;
+		}
+
+		/**
+		 * Reads the oldest waiting results, up to the max count.
+		 * @return number of results read, or -1 if error.
+		 */
+		protected int readBatch(Vector<Long> ids, JSONArray results, int maxCount) {
+			int count = -1;
+			Cursor cursor = null;
+			try {
+				SQLiteDatabase db = openForReading();
+				cursor = db.rawQuery(OUTBOX_DB_QUERY_BATCH, new String[] { Integer.toString(maxCount) });
+				count = 0;
+				if (cursor != null && cursor.moveToFirst()) {
+					do {
+						try {
+							results.put(new JSONObject(cursor.getString(1)));
+						} catch (Exception ex) {
+							LSLogger.exception(TAG, "Invalid result entry; discarding it.", ex);
+						}
+						ids.add(Long.valueOf(cursor.getLong(0)));
+						count++;
+					} while (cursor.moveToNext());
+				}
+			} catch (Exception ex) {
+				LSLogger.exception(TAG, "Error reading results.", ex);
+			} finally {
+				if (cursor != null && !cursor.isClosed())
+					cursor.close();
+			}
+			return count;
+		}
+
+		/** Gets the number of waiting results. */
+		protected int getCount() {
+			Cursor cursor = null;
+			int count = 0;
+			try {
+				SQLiteDatabase db = openForReading();
+				cursor = db.rawQuery(OUTBOX_DB_QUERY_COUNT, null);
+				if (cursor != null && cursor.moveToFirst())
+					count = cursor.getInt(0);
+			} catch (Exception ex) {
+				LSLogger.exception(TAG, "Error reading results count.", ex);
+			} finally {
+				if (cursor != null && !cursor.isClosed())
+					cursor.close();
+			}
+			return count;
+		}
+
+		/** Removes sent results. */
+		protected void delete(Vector<Long> ids) {
+			if (ids.size() > 0) {
+				try {
+					SQLiteDatabase db = openForWriting();
+					db.delete(OUTBOX_DB_TABLENAME, COLUMN_ID + " in (" + buildIdList(ids) + ")", null);
+				} catch (Exception ex) {
+					LSLogger.exception(TAG, "Error deleting sent results.", ex);
+				}
+			}
+		}
+
+		/** Counts a failed attempt to send the results. */
+		protected void incrementAttempts(Vector<Long> ids) {
+			if (ids.size() > 0) {
+				try {
+					SQLiteDatabase db = openForWriting();
+					db.execSQL("update " + OUTBOX_DB_TABLENAME + " set " + COLUMN_ATTEMPTS + "=" + COLUMN_ATTEMPTS +
+							"+1 where " + COLUMN_ID + " in (" + buildIdList(ids) + ");");
+				} catch (Exception ex) {
+					LSLogger.exception(TAG, "Error updating results.", ex);
+				}
+			}
+		}
+
+		private static String buildIdList(Vector<Long> ids) {
+			StringBuilder sb = new StringBuilder(ids.size() * 8);
+			for (int i=0; i<ids.size(); i++) {
+				if (i > 0)
+					sb.append(',');
+				sb.append(ids.get(i).longValue());
+			}
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package com.lightspeedsystems.mdm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.lightspeedsystems.mdm.util.JsonUtil;
+
+/**
+ * Reads MDM commands from a server response stream one command at a time.
+ *
+ * The command query response is either a JSON array of command objects, or a single command
+ * object. Rather than reading the whole response into a string and then parsing it all into a
+ * JSONArray, this parses each command object as it arrives on the stream and hands it to the
+ * CommandHandler right away, so only the current command is held in memory and the first command
+ * can be processed before the rest of the response has been downloaded.
+ */
+public class CommandStreamReader implements HttpCommResponse.ResponseStreamHandler {
+
+	/**
+	 * Callback for handling each command as it is read.
+	 */
+	public interface CommandHandler {
+		/**
+		 * Called for each command object read from the stream.
+		 * @param jcmd the command.
+		 * @param index 0-based position of the command in the response.
+		 * @return true to continue reading commands, false to stop reading.
+		 */
+		public boolean onCommand(JSONObject jcmd, int index);
+	}
+
+	private CommandHandler handler;
+	private int commandCount;    // number of commands handed to the handler
+	private boolean bStopped;    // true if the handler asked to stop reading
+	private boolean bFormatError;// true if the response was not a command object or array of them
+
+	public CommandStreamReader(CommandHandler handler) {
+		this.handler = handler;
+	}
+
+	/** Gets the number of commands read and handled. */
+	public int getCommandCount() {
+		return commandCount;
+	}
+
+	/** Returns true if the handler stopped the reading before the end of the response. */
+	public boolean isStopped() {
+		return bStopped;
+	}
+
+	/** Returns true if the response was not in a recognized command format. */
+	public boolean isFormatError() {
+		return bFormatError;
+	}
+
+	/**
+	 * Reads the commands from the stream, calling the handler for each one.
+	 * @param stream response stream to read from.
+	 * @param response the response the stream belongs to.
+	 * @throws IOException if the stream could not be read or contains malformed json.
+	 */
+	public void handleResponseStream(InputStream stream, HttpCommResponse response) throws IOException {
+		JsonReader reader = new JsonReader(new InputStreamReader(stream, "UTF-8"));
+		reader.setLenient(true);
+		try {
+			JsonToken token = reader.peek();
+			if (token == JsonToken.BEGIN_ARRAY) {
+				reader.beginArray();
+				while (!bStopped && reader.hasNext()) {
+					if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+						dispatch(readCommand(reader));
+					} else {
+						bFormatError = true;
+						bStopped = true;
+					}
+				}
+			} else if (token == JsonToken.BEGIN_OBJECT) {
+				JSONObject jcmd = readCommand(reader);
+				if (jcmd.length() > 0)
+					dispatch(jcmd);
+			} else {
+				bFormatError = true;
+			}
+		} catch (JSONException jex) {
+			throw new IOException("Invalid command data: " + jex.getMessage());
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void dispatch(JSONObject jcmd) {
+		int index = commandCount++;
+		if (handler != null && !handler.onCommand(jcmd, index))
+			bStopped = true;
+	}
+
+	// reads a command object, timing it for the json parse metric.
+	private static JSONObject readCommand(JsonReader reader) throws IOException, JSONException {
+		long startTime = Metrics.now();
+		JSONObject jcmd = JsonUtil.readObject(reader);
+		Metrics.getInstance().recordSince(Metrics.JSON_PARSE, startTime);
+		return jcmd;
+	}
+}
@@ -67,10 +67,15 @@ public class Constants {
     public final static String CMD_fileurltag  = "fileurl";
     public final static String CMD_filelocaltag= "filelocal";
     public final static String CMD_filenametag = "filename";
+    public final static String CMD_filesha256tag = "sha256";
     public final static String CMD_successvalue= "ok";
     public final static String CMD_pendingvalue= "pending";
     public final static String CMD_failedvalue = "failed";
     public final static String CMD_value  	   = "value";
+    public final static String CMD_envelopetag = "env";  // signed command envelope: base64 command json
+    public final static String CMD_signaturetag= "sig";  // signed command envelope: base64 signature
+    public final static String CMD_issuedtag   = "iat";  // time a command was issued, in seconds since 1970
+    public final static String CMD_expirestag  = "exp";  // time a command expires, in seconds since 1970
     public final static String CMD_value_true  = "true";
     public final static String CMD_value_false = "false";
    
@@ -124,6 +129,7 @@ public class Constants {
 	public final static String PARAM_DEVICEAPP_SHORTVER	= "short_version";
 	public final static String PARAM_DEVICEAPP_PKGSIZE	= "bundle_size";
 	public final static String PARAM_DEVICEAPP_DATASIZE	= "dynamic_size";
+	public final static String PARAM_DEVICEAPP_SIZETIME	= "size_updated_at";
 	public final static String PARAM_DEVICEAPP_MANAGED 	= "managed";
 	
 	public final static String PARAM_ORGID 			= "org_id";	
@@ -141,6 +147,9 @@ public class Constants {
 	public final static String PARAM_DEVICE_MODEMFWVER = "modem_firmware_version";
 
     public final static String PARAM_REPORT_RESULTS  = "report_only";
+    public final static String PARAM_CHECKIN_INTERVAL = "checkin_interval"; // in a check-in response: minutes to the next check-in
+    public final static String PARAM_METRICS = "metrics"; // in a check-in: snapshot of the device's timing metrics
+    public final static String PARAM_WAIT = "wait"; // in a commands query: seconds the server can hold the request until a command is available
 
     public final static String PARAM_APPVERSION = "current_version"; 
 
@@ -1,7 +1,7 @@
 package com.lightspeedsystems.mdm;
 
 import java.io.File;
-import java.util.Vector;
+import java.util.ArrayList;
 
 //import com.google.android.gcm.GCMRegistrar;
 import com.google.firebase.iid.FirebaseInstanceId;
@@ -93,7 +93,11 @@ public class Controller extends Thread { //implements ServiceConnection {
 	private UserAuthority userAuth;
 	private DeviceAdminProvider deviceAdminProvider;
 	private BatteryInfo batteryInfoProvider;
+	private CheckinState checkinState;   // values last accepted by the server, for sending only changes
 	private CheckinProcessor checkinProcessor;
+	private CommandChannel commandChannel;  // long-poll for commands, when enabled
+	private volatile boolean bForeground;   // true while the main activity is showing
+	private DataCompactor dataCompactor;
 	private Updater appUpdater;
 	///	private AppBlocker appBlocker;
 	private ProgressCallbackInterface msgDisplayCallback;
@@ -106,10 +110,22 @@ public class Controller extends Thread { //implements ServiceConnection {
 	private boolean bGcmControllerRegistered; // true when the controller is registered to receive gcm
 
 
-	private Vector<ControllerCommand> queuedCommands;
-	private Vector<ControllerCommand> deferredCommands;
-	//private Vector<ControllerCommand> backgroundCommands;
-	private BackgroundQueueHandler backgroundQueueHandler;
+	private TaskScheduler scheduler; // runs the queued ControllerCommands
+	private final Object loopSignal = new Object(); // used to wake the main loop
+	private boolean bLoopSignaled;
+
+	// number of app installer files downloaded at the same time:
+	private final static int APP_DOWNLOADS = 3;
+	// number of threads running ControllerCommands: one each for the server and apps groups, plus the downloads:
+	private final static int SCHEDULER_WORKERS = 2 + APP_DOWNLOADS;
+	// serial groups for the ControllerCommands; commands in a group run one at a time:
+	private final static String GROUP_server = "server"; // commands that communicate with the server
+	private final static String GROUP_apps   = "apps";   // managed app installs and uninstalls
+	private final static String GROUP_downloads = "downloads"; // app installer downloads; up to APP_DOWNLOADS at once
+	// longest time a worker waits for a synchronous command to complete, in case its completion callback is lost:
+	private final static long COMMAND_WAIT_TIMEOUT_MS = 30 * 60 * 1000;
+	// time a partial server sync can wait to be sent before it is dropped:
+	private final static long SERVERSYNC_DEADLINE_MS = 60 * 60 * 1000;
 
 	// status of things that need to be completed during initialization 
 	private boolean initializedGCM;
@@ -274,6 +290,15 @@ public class Controller extends Thread { //implements ServiceConnection {
 		return apps;
 	}
 
+	/**
+	 * Requests the stored logs and events be compacted now, such as after their retention
+	 * settings were changed.
+	 */
+	public void requestDataCompaction() {
+		if (dataCompactor != null)
+			dataCompactor.compactNow();
+	}
+
 	/**
 	 * Gets the user authoritative instance.
 	 * @return UserAuthority for the current user and session.
@@ -286,6 +311,21 @@ public class Controller extends Thread { //implements ServiceConnection {
 		return batteryInfoProvider;
 	}
 
+	/**
+	 * Sets whether the app's main activity is showing; called by the activity when it is resumed
+	 * and paused.
+	 */
+	public void setForeground(boolean bIsForeground) {
+		bForeground = bIsForeground;
+		if (commandChannel != null)
+			commandChannel.stateChanged();
+	}
+
+	/** Returns true if the app's main activity is showing. */
+	public boolean isInForeground() {
+		return bForeground;
+	}
+
 	public DeviceAdminProvider getDeviceAdmin() {
 		return deviceAdminProvider;
 	}
@@ -315,12 +355,15 @@ public class Controller extends Thread { //implements ServiceConnection {
 			// Initialize needed instances and values:
 			deviceAdminProvider = new DeviceAdminProvider(context);
 			HttpComm.initFromSettings(settings);
+			Apps.initFromSettings(settings);
 			userAuth = new UserAuthority(context);
 			device = new Device(context, settings);
+			checkinState = new CheckinState(settings);
 			events = new Events(context);
 			appUpdater = new Updater(this);
-			queuedCommands = new Vector<ControllerCommand>();
-			deferredCommands = new Vector<ControllerCommand>();
+			scheduler = new TaskScheduler(SCHEDULER_WORKERS);
+			scheduler.setGroupLimit(GROUP_downloads, APP_DOWNLOADS);
+			scheduler.start();
 ///	        appBlocker = new AppBlocker(context);
 ///	        appBlocker.initialize();
 
@@ -334,6 +377,15 @@ public class Controller extends Thread { //implements ServiceConnection {
 			// Get installation/configuration status:
 			initInstallStatus();
 
+			// keep the stored logs and events within their retention limits:
+			dataCompactor = new DataCompactor(context, settings);
+			dataCompactor.start();
+
+			// send any command results left from before the app was last stopped:
+			CommandResultOutbox outbox = CommandResultOutbox.getInstance(context);
+			if (outbox.getPendingCount() > 0)
+				outbox.scheduleFlush();
+
 			// if we are restarting and gcm is already set up, let's start up receivers:
 //			if (isGcmReady())
 				initializeGcmReceivers();
@@ -387,10 +439,22 @@ public class Controller extends Thread { //implements ServiceConnection {
 
 			ending = true;
 			LSLogger.info(TAG, "Terminating Controller...");
+			Apps.cancelScans();
+			if (scheduler != null)
+				scheduler.terminate();
+			interruptMainLoop();
 			if (checkinProcessor != null) {
 				checkinProcessor.terminate();
 				checkinProcessor = null;
 			}
+			if (commandChannel != null) {
+				commandChannel.terminate();
+				commandChannel = null;
+			}
+			if (dataCompactor != null) {
+				dataCompactor.terminate();
+				dataCompactor = null;
+			}
 ///	        if (appBlocker != null)
 ///	        	appBlocker.terminate();
 
@@ -401,6 +465,8 @@ public class Controller extends Thread { //implements ServiceConnection {
 				}
 			}
 			//stopGcmService();
+			if (settings != null)
+				settings.flush();  // write any settings changes still pending
 			// ...leave logger running...so it captures shutdowns.
 
 			//   LSLogger.terminate();
@@ -415,16 +481,43 @@ public class Controller extends Thread { //implements ServiceConnection {
 
 	// internal method to interrupt waiting that may be going on here.
 	private void interruptMainLoop() {
+		synchronized (loopSignal) {
+			bLoopSignaled = true;
+			loopSignal.notifyAll();
+		}
+	}
+
+	// waits until the main loop is signaled to run, or the time has passed.
+	private void waitForSignal(long waitTime) {
 		try {
-			this.interrupt();
+			synchronized (loopSignal) {
+				if (!bLoopSignaled)
+					loopSignal.wait(waitTime);
+				bLoopSignaled = false;
+			}
+		} catch (InterruptedException iex) {
+			LSLogger.debug(TAG, "Controller thread wait interrupted.");
 		} catch (Exception ex) {
-			LSLogger.exception(TAG, "InterruptWaiting error:", ex);
+			LSLogger.exception(TAG, "Run-wait exception: ", ex);
+		}
+	}
+
+	// sets the scheduler's ready level from the initialization state, so the commands that are
+	//  waiting on it can run.
+	private void updateReadyLevel() {
+		TaskScheduler sched = scheduler;
+		if (sched != null) {
+			int level = TaskScheduler.READY_none;
+			if (isMdmReady())
+				level = TaskScheduler.READY_mdm;
+			else if (isSystemReady() && getDeviceAdmin().isActiveAdmin())
+				level = TaskScheduler.READY_system;
+			sched.setReadyLevel(level);
 		}
 	}
 
 	// Main controll/operation thread. Initiates and/or handles background tasks.
 
-	@SuppressWarnings("unchecked")
 	public void run() {
 		long sleepTimeUninitialized = 20000;
 		long sleepTimeInitialized = 180000;
@@ -436,13 +529,7 @@ public class Controller extends Thread { //implements ServiceConnection {
 		if (!getDeviceAdmin().isActiveAdmin()) {
 			LSLogger.debug(TAG, "Controller waiting for admin to be activated.");
 			do {
-				try {
-					sleep(10000);
-				} catch (InterruptedException iex) {
-					LSLogger.debug(TAG, "Controller thread wait interrupted.");
-				} catch (Exception ex) {
-					LSLogger.exception(TAG, "Run-wait exception: ", ex);
-				}
+				waitForSignal(10000);
 			} while (!ending && !getDeviceAdmin().isActiveAdmin());
 		}
 
@@ -463,6 +550,9 @@ public class Controller extends Thread { //implements ServiceConnection {
 						}
 					}
 
+					// let the queued commands run that are able to in the current state:
+					updateReadyLevel();
+
 					if (isInitialized()) {  // yes, recheck, since state may have changed above.
 
 						if (!initialState) { // we started in a non-initialized state, but are now ok;
@@ -476,31 +566,10 @@ public class Controller extends Thread { //implements ServiceConnection {
 							checkinProcessor = new CheckinProcessor(this);
 							checkinProcessor.start();
 						}
-
-						// Handle any deferred commands from prior passes:
-						//  (make a copy of the commands, clear the main list, then process them; this
-						//   allow us to rebuild the list of deferred commands as needed while processing.)
-						if (deferredCommands.size() > 0) {
-							Vector<ControllerCommand> v;
-							// we need to clone the list and then erase it; but, other threads could
-							// potentially add to the list diring this time. To be safe, we block on
-							// the list itself to get a clone copy and then to empty it. By doing this
-							// blocking, any insertions that could be added at the same time are ensured
-							// to be added to the original list, or will be added to the cleared/empty list
-							// after the clone is made. Otherwise, there's the small potential for a command
-							// that is being added to the deferred list gets added between the cloning and
-							// clear and therefore gets cleared and lost. (note that although the clone()
-							// method is already synchronized, clear is not, nor is the clone/clear together
-							// as a complete transaction.)
-							synchronized (deferredCommands) {
-								v = (Vector<ControllerCommand>) deferredCommands.clone();
-								deferredCommands.clear();
-							}
-							processQueuedCommands(v);
+						if (commandChannel == null) {
+							commandChannel = new CommandChannel(this);
+							commandChannel.start();
 						}
-						// next, handle any current commands:
-						if (queuedCommands.size() > 0)
-							processQueuedCommands(queuedCommands);
 
 						// check for conditions and things that may need to be done:
 						// - check for app updates:
@@ -514,14 +583,10 @@ public class Controller extends Thread { //implements ServiceConnection {
 					// test the 'Get' functionality
 					//testGet();
 
+					// wait until signaled, or until it is time to check things again;
+					//  (queued commands do not wait on this; they are run by the scheduler.)
 					if (!bControllerAbort && !ending)
-						try {
-							sleep(sleepTime);
-						} catch (InterruptedException iex) {
-							LSLogger.debug(TAG, "Controller thread wait interrupted.");
-						} catch (Exception ex) {
-							LSLogger.exception(TAG, "Run-wait exception: ", ex);
-						}
+						waitForSignal(sleepTime);
 
 				} while (!ending && !bControllerAbort);
 			} catch (Exception ex) {
@@ -623,10 +688,9 @@ public class Controller extends Thread { //implements ServiceConnection {
 				statusMsg(""); // clear any prior status msg
 				if (!settings.isEnrolled()) {
 					LSLogger.debug(TAG, "-Organization information not present; enrollment is needed.");
-					// Let's see if we have any queued commands, which we could if an enrollment command
-					//  has been queued. And, we only want to process the enroll commands, if we have any.
-					if (queuedCommands.size() > 0)
-						processSelectiveQueuedCommands(queuedCommands, "EnrollToServerCommand");
+					// any queued enrollment command can run now; (only enrollment commands can run
+					//  at the system ready level.)
+					updateReadyLevel();
 
 				} else if (!initializedServerRegistration) {
 					LSLogger.debug(TAG, "-Server registration not complete.");
@@ -840,12 +904,13 @@ public class Controller extends Thread { //implements ServiceConnection {
 		try {
 			LSLogger.debug(TAG, "Unenrolling.");
 			getSettingsInstance().deleteOrganizationInfo();
+			// a later enrollment starts with a full check-in:
+			if (checkinState != null)
+				checkinState.reset();
 			// clear any other commands that may be queued or in the background;
 			//  this wont affect commands that are currently executing, but will stop any queued ones. 
-			deferredCommands.clear();
-			queuedCommands.clear();
-			if (backgroundQueueHandler != null)
-				backgroundQueueHandler.clearQueuedCommands();
+			if (scheduler != null)
+				scheduler.clear();
 			// notify main activity so the ui can handle it (set the active activity to main window)
 			Utils.NavigateToMain(context, Intent.FLAG_ACTIVITY_TASK_ON_HOME);
 			LSLogger.debug(TAG, "Unenroll completed.");
@@ -939,7 +1004,7 @@ public class Controller extends Thread { //implements ServiceConnection {
 			settings.setInitializationStateFlag(FLAG_GCMREG_ok);
 			initializedGCM = true;
 			registerGCMinprogress = false;
-			this.interrupt();
+			interruptMainLoop();
 		}
 	}
 
@@ -1202,7 +1267,8 @@ public class Controller extends Thread { //implements ServiceConnection {
 	/*
      * Sends check-in/registration request to mdm server.
      * Updates settings as needed.
-     * @param sendAll when true, sends all data to the server; when false, sends minimal data.
+     * @param sendAll when true, sends all data to the server; when false, sends minimal data:
+     *  only the values that changed since the last check-in, unless a full resync is due.
      * @return HttpCommResponse from the request, or null if the request failed.
      */
 	public HttpCommResponse registerWithMdmServer(boolean sendAll) {
@@ -1213,6 +1279,9 @@ public class Controller extends Thread { //implements ServiceConnection {
 		String postUrl = ServerUrlProvider.getCheckinUrl(settings);
 		LSLogger.info(TAG, "Registering with mdm server...");
 
+		if (!sendAll && checkinState.isFullResyncDue())
+			sendAll = true;
+
 		// put together the data needed for the registration, in a json object:
 		JSONObject jparams = device.getStaticJSONparams(null, settings, sendAll);
 		jparams = device.getVolitileJSONparams(jparams);
@@ -1225,13 +1294,22 @@ public class Controller extends Thread { //implements ServiceConnection {
 				LSLogger.exception(TAG, "registerWithMdmServer error: ", ex);
 			}
 
+			// send only what changed since the last check-in the server accepted:
+			JSONObject jsend = checkinState.getChangedParams(jparams, sendAll);
+			try {  // (added after the change check, since the metrics differ on every check-in)
+				jsend.put(Constants.PARAM_METRICS, Metrics.getInstance().getSnapshot());
+			} catch (Exception ex) {
+				LSLogger.exception(TAG, "registerWithMdmServer metrics error: ", ex);
+			}
+
 			// get Server Communications instance, then send 
 			ServerComm server = new ServerComm();
-			resp = server.postToServer(postUrl, jparams);
+			resp = server.postToServer(postUrl, jsend);
 
 			LSLogger.debug(TAG, "RegisterToServer Http Post result code=" + Integer.toString(resp.getResultCode()));
 
 			if (resp.isOK()) {
+				checkinState.acknowledge();
 				settings.setInitializationStateFlag(FLAG_SVRREG_ok);
 				settings.setLastSyncTime(System.currentTimeMillis()); //new Date().getTime()); //
 				// update the sent-group-id if we changed it, so the id is not sent on subsequent checkins.
@@ -1435,87 +1513,23 @@ public class Controller extends Thread { //implements ServiceConnection {
 
 	// --------------------------------------------
 	// -- Commands Queued Control -----------------
-	// ControllerCommands are queud up in a vector, adding to the end, pulling from element(0),
-	// thereby providing a synchronized queue structure. 
-	// As elements are pulled off, they are executed and handled as needed.
+	// ControllerCommands are added to the TaskScheduler, which runs them on its worker threads
+	// as soon as they are added, in priority order; see ControllerCommand for the defaults.
 	// --------------------------------------------
 
-	/*
-	 * Processes all queued commands in the given list, starting at the top and working down.
-	 */
-	private void processQueuedCommands(Vector<ControllerCommand> list) {
-		try {
-			while (list.size() > 0) {
-				ControllerCommand cmd = list.remove(0);
-				// process the command, and if needed requeue it in the deferred list.
-				LSLogger.debug(TAG, "ProcessingQueuedCommand cmd=" + cmd.toString());
-				if (cmd.execute() == ControllerCommand.RESULTACTION_reprocess) {
-					LSLogger.debug(TAG, "requeuing QueuedCmd " + cmd.toString());
-					requeueCommand(cmd);
-				} else {
-					LSLogger.debug(TAG, "handling post-processing results for QueuedCmd " + cmd.toString());
-					cmd.updateProcessingResults(null);
-				}
-			}
-		} catch (Exception ex) {
-			LSLogger.exception(TAG, "ProcessQueuedCommands error:", ex);
-		}
-
-	}
-
-	/*
-	 * Processes selective queued commands in the given list, only ControllerCommands matching the onlyClass. 
-	 * Instances of that class name are removed and process, and leaves other commands in the list. 
-	 */
-	private void processSelectiveQueuedCommands(Vector<ControllerCommand> list, String onlyClass) {
-		try {
-			int readindx = 0;
-			while (list.size() > 0 && readindx < list.size()) {
-				ControllerCommand cmd = list.get(readindx);
-				if (cmd != null && cmd.getClass().getName().contains(onlyClass)) {
-					// process the command; remove it from the list first.
-					list.remove(readindx);
-					LSLogger.debug(TAG, "ProcessingSelectivedQueuedCommand cmd=" + cmd.toString());
-					// process the command, and if needed requeue it in the deferred list.
-					if (cmd.execute() == ControllerCommand.RESULTACTION_reprocess) {
-						LSLogger.debug(TAG, "requeuing SelectiveQueuedCmd " + cmd.toString());
-						requeueCommand(cmd);
-					} else {
-						LSLogger.debug(TAG, "handling post-processing results for SelectiveQueuedCmd " + cmd.toString());
-						cmd.updateProcessingResults(null);
-					}
-				} else { // ignore the command for now
-					readindx++;
-				}
-			}
-		} catch (Exception ex) {
-			LSLogger.exception(TAG, "ProcessQueuedCommands error:", ex);
-		}
-
-	}
-
 	private void enqueueCommand(ControllerCommand cmd) {
-		queuedCommands.add(cmd);
-	}
-
-	//private void enqueueDeferredCommand(ControllerCommand cmd) {
-	//	deferredCommands.add(cmd);
-	//}
-
-	private void requeueCommand(ControllerCommand cmd) {
-		deferredCommands.add(cmd);
-	}
-
-	private void enqueueBackgroundCommand(ControllerCommand cmd) {
-		addToBackgroundHandler(cmd);
+		TaskScheduler sched = scheduler;
+		if (sched == null)
+			LSLogger.warn(TAG, "Command not queued; controller is not initialized: " + cmd.toString());
+		else if (!sched.add(cmd))
+			LSLogger.debug(TAG, "Command already queued; ignoring: " + cmd.toString());
 	}
 
 	// returns true if there are any queued or in-process commands of anykind anywhere, 
-	// including any in background processing.
-	protected boolean isAnyCommandsInProcess() {
-		BackgroundQueueHandler hndlr = backgroundQueueHandler;
-		return (deferredCommands.size() > 0 || queuedCommands.size() > 0 ||
-				(hndlr != null && !hndlr.isFinished()));
+	// other than the given command (such as the one asking).
+	protected boolean isAnyCommandsInProcess(ControllerCommand except) {
+		TaskScheduler sched = scheduler;
+		return (sched != null && sched.isBusyExcept(except));
 	}
 
 	// public convenience methods for enqueing commands:
@@ -1527,11 +1541,6 @@ public class Controller extends Thread { //implements ServiceConnection {
 	public void requestEnrollment(ThreadCompletionCallback callback) {
 		LSLogger.debug(TAG, "Queuing enrollment request.");
 		enqueueCommand(new EnrollToServerCommand(this, callback));
-		try {
-			this.interrupt();
-		} catch (Exception ex) {
-			LSLogger.exception(TAG, "interruptEnrollment error: ", ex);
-		}
 	}
 
 
@@ -1539,12 +1548,12 @@ public class Controller extends Thread { //implements ServiceConnection {
 	 * Called to notify the controller to check for server commands.
 	 */
 	public void startProcessServerCommands() {
-		enqueueCommand(new Controller.RetrieveCommandsFromServer(this));
-		try {
-			this.interrupt();
-		} catch (Exception ex) {
-			LSLogger.exception(TAG, "interruptProcessServerCommands error: ", ex);
+		// if the command channel has a request open, the server sends the commands on it:
+		if (commandChannel != null && commandChannel.isListening()) {
+			LSLogger.debug(TAG, "Command channel is listening; not querying for commands.");
+			return;
 		}
+		enqueueCommand(new Controller.RetrieveCommandsFromServer(this));
 	}
 
 
@@ -1557,11 +1566,6 @@ public class Controller extends Thread { //implements ServiceConnection {
 		enqueueCommand(new ServerSyncCommand(this, sendAllData, callback));
 		// also, let's re-sync app info, just send a delta of the data.
 		// requestAppsListSync(false, null);
-		try {
-			this.interrupt();
-		} catch (Exception ex) {
-			LSLogger.exception(TAG, "interruptServerSync error: ", ex);
-		}
 	}
 
 	/**
@@ -1571,11 +1575,6 @@ public class Controller extends Thread { //implements ServiceConnection {
 	 */
 	public void requestAppsListSync(boolean sendAllApps, ThreadCompletionCallback callback) {
 		enqueueCommand(new SyncAppsToServerCommand(this, sendAllApps, callback));
-		try {
-			this.interrupt();
-		} catch (Exception ex) {
-			LSLogger.exception(TAG, "interruptAppsSync error: ", ex);
-		}
 	}
 
 
@@ -1585,11 +1584,6 @@ public class Controller extends Thread { //implements ServiceConnection {
 	public void requestUpdateCheck(ThreadCompletionCallback callback) {
 		LSLogger.debug(TAG, "Queuing update check request.");
 		enqueueCommand(new UpdateCheckCommand(this, callback));
-		try {
-			this.interrupt();
-		} catch (Exception ex) {
-			LSLogger.exception(TAG, "interruptUpdateCheck error: ", ex);
-		}
 	}
 
 	/**
@@ -1663,14 +1657,14 @@ public class Controller extends Thread { //implements ServiceConnection {
 				// create the command and enqueue it to the low-priority processing:
 				ManagedAppCommandHandler handler =
 						new ManagedAppCommandHandler(this, bInstalling, app, appDifferences, jdata, bSendResultsToServer);
-				enqueueBackgroundCommand(handler);
+				// installer files from a server are downloaded first, alongside other downloads and installs;
+				//  the install is queued once its file is downloaded. Otherwise, queue the command now.
+				if (bInstalling && handler.isDownloadNeeded())
+					enqueueCommand(new AppDownloadCommand(this, handler));
+				else
+					enqueueCommand(handler);
 				bRc = true;
 				LSLogger.debug(TAG, "Enqueued cmd=" + cmd + " for app instance=" + app.toString());
-				try {
-					this.interrupt();
-				} catch (Exception ex) {
-					LSLogger.exception(TAG, "interruptMgdAppAction error: ", ex);
-				}
 			}
 		}
 		return bRc;
@@ -1690,13 +1684,8 @@ public class Controller extends Thread { //implements ServiceConnection {
 
 		// create the command and enqueue it to the low-priority processing:
 		MdmAppUpdateHandler handler = new MdmAppUpdateHandler(this, app);
-		requeueCommand(handler); // add to deferred queue:
+		enqueueCommand(handler);
 		LSLogger.debug(TAG, "Enqueued Mdm Update for app instance=" + app.toString());
-		try {
-			this.interrupt();
-		} catch (Exception ex) {
-			LSLogger.exception(TAG, "interruptMdmUpdateAppAction error: ", ex);
-		}
 
 		return bRc;
 	}
@@ -1708,187 +1697,34 @@ public class Controller extends Thread { //implements ServiceConnection {
 	 * @param status
 	 */
 	protected void notifyManagedAppActionComplete(App app, int status) {
-		BackgroundQueueHandler handler = backgroundQueueHandler;
-		if (handler != null)
-			handler.wakeupFromCommand(app);
+		wakeupWaitingCommands(app);
 		if (app != null && app.isMdmApp() && app.getMdmAppType() == App.MDMAPPTYPE_self)
 			appUpdater.updateComplete(app, null, status);
 	}
 
-	// logic for initiating and creating the background processing thread. Starts up a new
-	// thread if not already running, otherwise lets the existing thread run and adds to its queue.
-	private synchronized void addToBackgroundHandler(ControllerCommand command) {
-		BackgroundQueueHandler handler = backgroundQueueHandler;
-		if (handler != null && handler.addCommand(command)) {
-			// command was successfully added to background queue
-			LSLogger.debug(TAG, "Added command to background queue: " + handler.toString() + " command=" + command.toString());
-		} else {
-			// the thread ended or is ending; we need to create a new instance and start it up.
-			// create a new list and pass that in.
-			Vector<ControllerCommand> list = new Vector<ControllerCommand>();
-			list.addElement(command);
-			backgroundQueueHandler = new BackgroundQueueHandler(context, this, list);
-			try {
-				backgroundQueueHandler.start();
-				LSLogger.debug(TAG, "Created new background queue; added command: " + backgroundQueueHandler.toString() + " command=" + command.toString());
-
-			} catch (Exception ex) {
-				LSLogger.exception(TAG, "addToBackgroundHandler error:", ex);
+	// wakes up the running command that is waiting for the action on the given object to complete.
+	//  If no command is waiting for that object, all waiting commands are woken up, so that none are left
+	//  waiting for a notification that will not come.
+	private void wakeupWaitingCommands(Object obj) {
+		TaskScheduler sched = scheduler;
+		if (sched == null)
+			return;
+		ArrayList<TaskScheduler.Task> running = sched.getRunningTasks();
+		boolean bFound = false;
+		for (int i=0; i<running.size(); i++) {
+			ControllerCommand cmd = (ControllerCommand)running.get(i);
+			if (cmd.getReferenceObject() == obj) {
+				cmd.wakeup();
+				bFound = true;
 			}
 		}
-	}
-
-	//notification that the given background handler has finished
-	private synchronized void backgroundHandlerFinished(BackgroundQueueHandler handler) {
-		if (backgroundQueueHandler == handler)
-			backgroundQueueHandler = null;
-	}
-
-
-	// Thread for handling the background commands. These run synchronously, until
-	//  notification of completion was received, if indicated.
-	// Normally, queued commands are processed one by one by calling the execute method; 
-	//  once the execute completes, the next command would be processed. 
-	// For these background commands, this is changed so that if a command is marked completed,
-	//  the next command is handled; but if not complete and if the execute finishes, processing
-	//  waits until a notification is received that the action is complete.
-	private class BackgroundQueueHandler extends Thread {
-		private final static String TAG = "BackgroundQueueHandler";
-		@SuppressWarnings("unused")
-		private Context context;
-		private Controller controller;  // controller owning this thread; calls back into it as needed.
-		private Vector<ControllerCommand> cmdsQueue;
-		private int opState;
-		private Object referenceObject;
-
-		public BackgroundQueueHandler(Context context, Controller controller,
-									  Vector<ControllerCommand> cmdsQueue) {
-			super();
-			this.context = context;
-			this.controller = controller;
-			this.cmdsQueue = cmdsQueue;
-			opState = Constants.OPSTATUS_INITIALIZING;
-		}
-
-		// return true if any pending actions have completed, false if in-process
-		public boolean isFinished() {
-			return (Constants.OPSTATUS_COMPLETE == opState);
-		}
-
-		public void clearQueuedCommands() {
-			if (cmdsQueue != null)
-				cmdsQueue.clear();
-		}
-
-		/**
-		 * Adds the command to the queue.
-		 * @param cmd
-		 * @return true if the command was added, false if the thread has ended or is ending.
-		 */
-		public synchronized boolean addCommand(ControllerCommand cmd) {
-			if (opState == Constants.OPSTATUS_COMPLETE) {
-				return false;
-			}
-			cmdsQueue.addElement(cmd);
-			return true;
-		}
-
-		/**
-		 * Internal method used to determine if processing is complete and set the
-		 * state to complete if no other commands are left to process.
-		 * @return
-		 */
-		private synchronized boolean setStateComplete() {
-			if (cmdsQueue.size() != 0)
-				return false;
-			opState = Constants.OPSTATUS_COMPLETE;
-			return true;
-		}
-
-		/**
-		 * Callback for a waiting command, telling it to continue.
-		 * @param obj Object applicable to the command; may be null if not needed.
-		 */
-		public void wakeupFromCommand(Object obj) {
-			if (opState == Constants.OPSTATUS_WAITING || opState == Constants.OPSTATUS_RUNNING) {
-				if (referenceObject != obj) {
-					LSLogger.warn(TAG, "Unknown or different reference object in wakep for command. ref="
-							+ (referenceObject == null ? "null" : referenceObject) + " obj=" + (obj == null ? "null" : obj));
-				}
-
-				//if (referenceObject != null && referenceObject == obj) {
-				synchronized (this) {
-					try {
-						notifyAll();
-						//this.interrupt();
-					} catch (Exception ex) {
-						LSLogger.exception(TAG, "interrupt error (" + toString() + "):", ex);
-					}
-				}
-				//} else {
-				//	LSLogger.warn(TAG, "Unknown or different reference object in wakep for command. ref="
-				//			+(referenceObject==null?"null":referenceObject)+" obj="+(obj==null?"null":obj));
-				//}
-			}
-		}
-
-		/**
-		 * Background thread for running and processing low-priority commands and actions.
-		 * App installs and updates and uninstalls are included.
-		 */
-		public void run() {
-			opState = Constants.OPSTATUS_RUNNING;
-			try {
-				do {
-					while (cmdsQueue.size() > 0) {
-						ControllerCommand cmd = cmdsQueue.remove(0);
-						referenceObject = cmd.getReferenceObject();
-						// process the command:
-						if (cmd.execute() == ControllerCommand.RESULTACTION_ok) {
-							// Command completed or was started. If the command is
-							// synchronous, see if we need to wait for it to complete.
-							// (this typically applies to tasks that are started with
-							//  activities or other background or interaction actions).
-							if (cmd.isSynchronous() && !cmd.isCompleted()) {
-								opState = Constants.OPSTATUS_WAITING;
-								LSLogger.debug(TAG, "Thread (" + toString() + ") waiting for cmd " + cmd.toString());
-								synchronized (this) {
-									try {
-										wait(); //sleep();
-									} catch (InterruptedException iex) {
-										LSLogger.debug(TAG, "thread wait interrupted. " + toString());
-									} catch (Exception ex) {
-										LSLogger.exception(TAG, "Run-wait exception (" + toString() + "):", ex);
-									}
-								}
-								opState = Constants.OPSTATUS_RUNNING;
-
-							}
-						}
-						// results from the action need to be updated into the results in cmd:
-						LSLogger.debug(TAG, "handling post-processing results for cmd " + cmd.toString());
-						cmd.updateProcessingResults(null);
-
-						// send result to server:
-						if (cmd.isSendResultToServer()) {
-							// prepare the data to send to the server with the results.
-							JSONArray jsonResults = new JSONArray();
-							CommandProcessor.addCommandResult(jsonResults, cmd.getJsonCmd(), cmd.getCommandResult());
-							CommandProcessor.sendServerCommandResults(settings, jsonResults);
-						}
-					}
-				} while (!setStateComplete());
-			} catch (Exception ex) {
-				LSLogger.exception(TAG, ex);
+		if (!bFound) {
+			LSLogger.warn(TAG, "Unknown or different reference object in wakeup for command. obj=" + (obj == null ? "null" : obj));
+			for (int i=0; i<running.size(); i++) {
+				ControllerCommand cmd = (ControllerCommand)running.get(i);
+				if (cmd.isSynchronous())
+					cmd.wakeup();
 			}
-			opState = Constants.OPSTATUS_COMPLETE;
-			LSLogger.debug(TAG, "Thread ending: " + toString());
-			controller.backgroundHandlerFinished(this);
-		}
-
-		public String toString() {
-			String s = super.toString() + ";state=" + opState;
-			return s;
 		}
 	}
 
@@ -1898,7 +1734,13 @@ public class Controller extends Thread { //implements ServiceConnection {
 	//  - these provide specific queable commands that can be performed.
 	// -------------------------------------------------
 
-	private abstract class ControllerCommand {
+	// Commands run on the scheduler's worker threads. By default, a command is of normal priority,
+	//  runs once the device is enrolled (READY_mdm), and runs in the server group, so that commands
+	//  calling to the server are done one at a time; subclasses change these as needed.
+	// If the command is synchronous, execute returns RESULTACTION_ok, and the command is not complete
+	//  (such as an app install waiting on the user), the worker waits until the command is woken up by
+	//  the completion callback, or until COMMAND_WAIT_TIMEOUT_MS.
+	private abstract class ControllerCommand extends TaskScheduler.Task {
 		public final static int RESULTACTION_ok = 0;
 		public final static int RESULTACTION_reprocess = 1;
 		public final static int RESULTACTION_error = 2;
@@ -1915,6 +1757,7 @@ public class Controller extends Thread { //implements ServiceConnection {
 
 		public ControllerCommand(Controller controller) {
 			this.controller = controller;
+			serialGroup = GROUP_server;
 		}
 
 		// returns true if the command is synchronous; wait until completed before processing the next one.
@@ -1959,6 +1802,76 @@ public class Controller extends Thread { //implements ServiceConnection {
 		}
 
 		public abstract int execute();
+
+		/**
+		 * Runs the command from the scheduler: executes it, waits for it to complete if it is synchronous,
+		 * then handles the results.
+		 * @return true if the command is to be run again later.
+		 */
+		public boolean runTask() {
+			LSLogger.debug(TAG, "Processing command " + toString());
+			int action = execute();
+			if (action == RESULTACTION_reprocess) {
+				LSLogger.debug(TAG, "requeuing command " + toString());
+				return true;
+			}
+			// Command completed or was started. If the command is synchronous, see if we need to
+			// wait for it to complete. (this typically applies to tasks that are started with
+			//  activities or other background or interaction actions).
+			// A command that failed has nothing to wait for.
+			if (action == RESULTACTION_ok && isSynchronous() && !isCompleted())
+				waitForCompletion();
+			else if (action == RESULTACTION_error)
+				setCompleted();
+
+			// results from the action need to be updated into the results in cmd:
+			LSLogger.debug(TAG, "handling post-processing results for cmd " + toString());
+			updateProcessingResults(null);
+
+			// send result to server:
+			if (isSendResultToServer()) {
+				// prepare the data to send to the server with the results.
+				JSONArray jsonResults = new JSONArray();
+				CommandProcessor.addCommandResult(jsonResults, getJsonCmd(), getCommandResult());
+				CommandResultOutbox outbox = CommandResultOutbox.getInstance(context);
+				outbox.add(jsonResults);
+				outbox.scheduleFlush();
+			}
+			// the command may have changed the initialization state (such as enrolling):
+			controller.updateReadyLevel();
+			return false;
+		}
+
+		// waits until the command is woken up from the completion callback, or the wait times out.
+		private synchronized void waitForCompletion() {
+			LSLogger.debug(TAG, "Waiting for cmd " + toString());
+			try {
+				long endTime = System.currentTimeMillis() + COMMAND_WAIT_TIMEOUT_MS;
+				long remaining = COMMAND_WAIT_TIMEOUT_MS;
+				while (!isComplete && remaining > 0) {
+					wait(remaining);
+					remaining = endTime - System.currentTimeMillis();
+				}
+				if (!isComplete) {
+					LSLogger.warn(TAG, "Command did not complete in time; continuing. " + toString());
+					isComplete = true;
+				}
+			} catch (InterruptedException iex) {
+				LSLogger.debug(TAG, "Command wait interrupted. " + toString());
+				Thread.currentThread().interrupt();
+				return;
+			} catch (Exception ex) {
+				LSLogger.exception(TAG, "Command wait exception (" + toString() + "):", ex);
+			}
+		}
+
+		/**
+		 * Callback for a waiting command, telling it to continue.
+		 */
+		public synchronized void wakeup() {
+			isComplete = true;
+			notifyAll();
+		}
 	}
 
 	// --- sepcific implementations ---
@@ -1975,6 +1888,8 @@ public class Controller extends Thread { //implements ServiceConnection {
 		public EnrollToServerCommand(Controller controller, ThreadCompletionCallback callback) {
 			super(controller);
 			callbackObj = callback;
+			priority = TaskScheduler.PRIORITY_urgent;
+			readyLevel = TaskScheduler.READY_system;
 		}
 
 		public int execute() {
@@ -1992,6 +1907,8 @@ public class Controller extends Thread { //implements ServiceConnection {
 			if (resp != null && resp.isSuccess()) {
 				if (initializedGCM) // && !initializedServerRegistration)
 					controller.requestServerSync(true, null);
+				// and have the main loop finish initializing with the new configuration:
+				controller.interruptMainLoop();
 			}
 			isComplete = true;
 			return action;
@@ -2011,6 +1928,15 @@ public class Controller extends Thread { //implements ServiceConnection {
 			super(controller);
 			bSendAll = sendAllData;
 			callbackObj = callback;
+			// a partial sync that could not be sent for a long time is out of date; a later one will be sent instead.
+			if (!bSendAll)
+				setDeadlineFromNow(SERVERSYNC_DEADLINE_MS);
+		}
+
+		protected void onDropped() {
+			LSLogger.debug(TAG, "ServerSyncCommand dropped.");
+			if (callbackObj != null)
+				callbackObj.onThreadComplete(null);
 		}
 
 		public int execute() {
@@ -2037,6 +1963,7 @@ public class Controller extends Thread { //implements ServiceConnection {
 			super(controller);
 			bSendAll = sendAll;
 			callbackObj = callback;
+			priority = TaskScheduler.PRIORITY_bulk;
 		}
 
 		public int execute() {
@@ -2058,6 +1985,12 @@ public class Controller extends Thread { //implements ServiceConnection {
 	private class RetrieveCommandsFromServer extends ControllerCommand {
 		public RetrieveCommandsFromServer(Controller controller) {
 			super(controller);
+			// commands from the server (lock, wipe, etc.) are handled ahead of other work; only one
+			//  request needs to be waiting, since it gets all the commands pending on the server.
+			priority = TaskScheduler.PRIORITY_urgent;
+			coalesceKey = "retrievecommands";
+			maxAttempts = 3;
+			retryDelayMs = 5000;
 		}
 
 		public int execute() {
@@ -2083,12 +2016,18 @@ public class Controller extends Thread { //implements ServiceConnection {
 		boolean bDeleteWhenDone; // true to delete the installer file upon completion.
 		App app;
 		App newApp; // optional instance with different or new source values (url, source, etc.)
+		CommandResult downloadResults; // results of downloading the installer file, if downloaded by an AppDownloadCommand
+		boolean bDownloaded; // true if the AppDownloadCommand downloaded the installer file
 
 		public ManagedAppCommandHandler(Controller controller, boolean bInstall,
 										App app, App appWithDifferences, JSONObject jsonCommand,
 										boolean sendResultToServer) {
 			super(controller);
 			taskType = TASKTYPE_synchronous;
+			// app installs and uninstalls run one at a time, separately from the server commands:
+			priority = TaskScheduler.PRIORITY_bulk;
+			serialGroup = GROUP_apps;
+			readyLevel = TaskScheduler.READY_none;
 			install = bInstall;
 			this.app = app;
 			newApp = appWithDifferences;
@@ -2099,13 +2038,26 @@ public class Controller extends Thread { //implements ServiceConnection {
 			bDeleteWhenDone = (app != null && !app.isMdmApp());
 		}
 
+		// returns true if the app's installer file is to be downloaded from a server before it is installed.
+		public boolean isDownloadNeeded() {
+			App source = (newApp != null ? newApp : app);
+			return (install && downloadResults == null && source != null &&
+					source.getInstallType() != App.INSTALLTYPE_ONLINESTORE);
+		}
+
+		// sets the results of downloading the installer file; the install then uses the downloaded file.
+		public void setDownloadResults(CommandResult results, boolean bDownloaded) {
+			downloadResults = results;
+			this.bDownloaded = bDownloaded;
+		}
+
 		public int execute() {
 			int action = RESULTACTION_ok;
 			int installAction = 0;
 			LSLogger.debug(TAG, " - executing app " + (install ? "Install" : "Uninstall") + " of app=" + app.toString());
-			CommandResult results = new CommandResult();
+			CommandResult results = (downloadResults != null ? downloadResults : new CommandResult());
 			Apps appsInstance = getAppsInstance();
-			if (newApp != null) {
+			if (newApp != null && downloadResults == null) {
 				app.setSourceValues(newApp);
 				//LSLogger.debug(TAG, "-updated app's source values: "+app.toString()+" -from instance: "+newApp.toString());
 			}
@@ -2128,7 +2080,10 @@ public class Controller extends Thread { //implements ServiceConnection {
 						LSLogger.debug(TAG, "Installing package from file: " + app.getPackageName());
 						// we can check to see if the user has allowed non-store apps to be installed:
 						Apps.checkSettingsAllowAppInstalls(context);
-						appsInstance.downloadAndInstallApp(app, results);
+						if (downloadResults == null)
+							appsInstance.downloadAndInstallApp(app, results);
+						else if (bDownloaded)  // already downloaded
+							appsInstance.installDownloadedApp(app, results);
 					}
 
 				} else { // uninstall
@@ -2161,6 +2116,7 @@ public class Controller extends Thread { //implements ServiceConnection {
 				appsInstance.setInstallCompletionResults(app, installAction, Constants.ACTIONID_ERROR);
 				if (app.isMdmApp())
 					handlePostMdmCommandProcessing(this, results);
+				setCompleted();  // nothing was started, so no completion callback will come
 			}
 
 			if (app.hasInstallError())
@@ -2227,13 +2183,15 @@ public class Controller extends Thread { //implements ServiceConnection {
 				if (app.isMdmApp())
 					handlePostMdmCommandProcessing(this, newresult);
 			}
+			releaseInstallerFile();
 			if (bDeleteWhenDone && (app != null)) {
 				// ... to do...delete the app installer file from the system.
 				// -- only applies to downloaded-file type; for local files, we leave them, store-urls, ignore
 				if (app.getInstallType() == App.INSTALLTYPE_REMOTEFILE) {
 					try {
 						String fn = app.getPackageFilePath();
-						if (fn != null) {
+						// (files in the installer cache are kept; the cache removes them as needed.)
+						if (fn != null && !ApkCache.getInstance(context).isCachedFile(fn)) {
 							File file = new File(fn);
 							boolean bdeleted = file.delete();
 							LSLogger.debug(TAG, "post-app install, delete download file result=" + bdeleted);
@@ -2246,6 +2204,12 @@ public class Controller extends Thread { //implements ServiceConnection {
 
 		}
 
+		// lets the installer cache remove the app's installer file as needed, now that the install is done.
+		protected void releaseInstallerFile() {
+			if (install && app != null)
+				ApkCache.getInstance(context).release(app.getPackageFilePath());
+		}
+
 		public App getApp() {
 			return app;
 		}
@@ -2256,6 +2220,55 @@ public class Controller extends Thread { //implements ServiceConnection {
 	}
 
 
+	/*
+	 * Downloads the installer file for a ManagedAppCommandHandler's app install, then queues the install.
+	 * Downloads run several at a time, while installs run one at a time; this way the next apps' files
+	 * are downloaded while an app is being installed, instead of each download waiting for the previous
+	 * install to complete.
+	 */
+	private class AppDownloadCommand extends ControllerCommand {
+		ManagedAppCommandHandler installHandler;
+
+		public AppDownloadCommand(Controller controller, ManagedAppCommandHandler handler) {
+			super(controller);
+			installHandler = handler;
+			refObject = handler.getApp();
+			priority = TaskScheduler.PRIORITY_bulk;
+			serialGroup = GROUP_downloads;
+			readyLevel = TaskScheduler.READY_none;
+		}
+
+		public int execute() {
+			App app = installHandler.getApp();
+			if (installHandler.newApp != null)
+				app.setSourceValues(installHandler.newApp);
+			CommandResult results = new CommandResult();
+			LSLogger.debug(TAG, "AppDownloadCommand - downloading installer for app=" + app.toString());
+			boolean bDownloaded = getAppsInstance().downloadApp(app, results);
+			if (bDownloaded && app.isStateUninstalling()) {
+				// an uninstall was requested while the file was downloading; the uninstall takes its place.
+				LSLogger.info(TAG, "Install of " + app.getPackageName() + " cancelled; app is being uninstalled.");
+				results.setErrorMessage("Install cancelled by uninstall request.");
+				bDownloaded = false;
+			}
+			if (!bDownloaded) {
+				if (!results.hasErrorMessage())
+					results.setErrorMessage("Installer file was not downloaded.");
+				// nothing to install; the handler only reports the failure, so it has nothing to wait for.
+				installHandler.setCompleted();
+			}
+			installHandler.setDownloadResults(results, bDownloaded);
+			controller.enqueueCommand(installHandler);
+			isComplete = true;
+			return RESULTACTION_ok;
+		}
+
+		public String toString() {
+			return super.toString() + ";downloading:" + installHandler.getApp().toString();
+		}
+	}
+
+
 	/*
 	 * Provides processing for doing an update check; this is not the updating itself, but the checking if
 	 * an update is needed. This puts the Updater.updateCheck in a thread, so it can be done in the background.
@@ -2290,16 +2303,28 @@ public class Controller extends Thread { //implements ServiceConnection {
 		public MdmAppUpdateHandler(Controller controller, App app) {
 			super(controller, true, app, null, null, false);
 			//bSendResultToServer = false;
+			readyLevel = TaskScheduler.READY_mdm;
+			retryDelayMs = 10000;
+			maxRetryDelayMs = 5 * 60 * 1000;
+			// waits up to about 8 hours for other commands to finish; a later update check tries again.
+			maxAttempts = 100;
+		}
+
+		protected void onDropped() {
+			LSLogger.warn(TAG, "Mdm Update not done; other commands were still in process.");
+			// lets the updater start the update again on its next check.
+			CommandResult results = new CommandResult();
+			results.setErrorMessage("Update was not started.");
+			controller.getUpdaterInstance().updateComplete(app, results, results.getErrorCode());
 		}
 
 		@Override
 		public int execute() {
 			// first, we make sure no other commands are queued or being processed; we cannot
 			//  update our app if some other thing is waiting or underway, need to wait until those are complete:
-			if (controller.isAnyCommandsInProcess()) {
+			if (controller.isAnyCommandsInProcess(this)) {
 				// re-queue this instance as another pending command until other things are complete:
 				bDidUpdate = false;
-				requeueCommand(this);
 				return RESULTACTION_reprocess;
 			}
 
@@ -2364,6 +2389,7 @@ public class Controller extends Thread { //implements ServiceConnection {
 			}
 			// we need to check if we processed the update, because if bDidUpdate is false, we re-queued this.
 			if (bDidUpdate) {
+				releaseInstallerFile();
 				controller.getUpdaterInstance().updateComplete(app, commandResult, (commandResult == null ? 0 : commandResult.getErrorCode()));
 			} else {
 				LSLogger.warn(TAG, "Update did not occur, but update may have been re-queued.");
@@ -7,6 +7,8 @@ import com.lightspeedsystems.mdm.util.LSLogger;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
@@ -29,9 +31,14 @@ public abstract class DBStorage extends SQLiteOpenHelper {
 	/** Name of the private database file. The file is located at /data/data/com.lightspeedsystems.mdm/databases. */
 	private final static String DATABASE_NAME = "mdmdb";
 	
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 7;
     // version 1: initial release
     // version 2: added managedapps table
+    // version 3: added profiles table
+    // version 4: added command results outbox table
+    // version 5: added app sizes table
+    // version 6: added time and type indexes on the logs and events tables
+    // version 7: added cached apks table
     
     //private static final String DICTIONARY_TABLE_NAME = "dictionary";
     
@@ -55,6 +62,11 @@ public abstract class DBStorage extends SQLiteOpenHelper {
         db.execSQL( Events.getEventsSqlCreateTable() );
         db.execSQL( LSLogger.getLogsSqlCreateTable() );
         db.execSQL( Profiles.getProfilesSqlCreateTable() );	
+        db.execSQL( CommandResultOutbox.getOutboxSqlCreateTable() );
+        db.execSQL( AppSizeCache.getAppSizesSqlCreateTable() );
+        db.execSQL( ApkCache.getCachedApksSqlCreateTable() );
+        execSqlList(db, LSLogger.getLogsSqlCreateIndexes());
+        execSqlList(db, Events.getEventsSqlCreateIndexes());
 	}
     
     // handle the database migrations and updates.
@@ -65,11 +77,27 @@ public abstract class DBStorage extends SQLiteOpenHelper {
     			db.execSQL( DeviceApps.getDeviceAppsSqlCreateTable() );	
     		if (oldVersion < 3)
     			db.execSQL( Profiles.getProfilesSqlCreateTable() );	
+    		if (oldVersion < 4)
+    			db.execSQL( CommandResultOutbox.getOutboxSqlCreateTable() );
+    		if (oldVersion < 5)
+    			db.execSQL( AppSizeCache.getAppSizesSqlCreateTable() );
+    		if (oldVersion < 6) {
+    			execSqlList(db, LSLogger.getLogsSqlCreateIndexes());
+    			execSqlList(db, Events.getEventsSqlCreateIndexes());
+    		}
+    		if (oldVersion < 7)
+    			db.execSQL( ApkCache.getCachedApksSqlCreateTable() );
     	} catch (Exception ex) {
     		LSLogger.exception(TAG, "DBUpgrade Error.", ex);
     	}
     }
     
+    // executes each of the sql statements given.
+    private static void execSqlList(SQLiteDatabase db, String[] sqlList) {
+    	for (int i=0; i<sqlList.length; i++)
+    		db.execSQL(sqlList[i]);
+    }
+    
     /**
      * Enables or disables the logging of errors that may occur within this class or subclasses.
      * By default, logging is enabled, allowing errors to be logged. But a class may turn off
@@ -139,6 +167,7 @@ public abstract class DBStorage extends SQLiteOpenHelper {
      */
     public long insertRow(String tableName, ContentValues values) {
     	long result = -1;
+    	long startTime = Metrics.now();
     	openForWriting();
     	try {
     		if (opendb != null && opendb.isOpen()) {
@@ -149,6 +178,7 @@ public abstract class DBStorage extends SQLiteOpenHelper {
     	} catch (Exception ex) {
     		LSLogger.exception(TAG, tableName, ex, bLoggingPersistenceEnabled);
     	}
+    	Metrics.getInstance().recordSince(Metrics.DB_WRITE, startTime);
     	return result;
     }
     
@@ -160,6 +190,7 @@ public abstract class DBStorage extends SQLiteOpenHelper {
      */
     public long updateRow(String tableName, ContentValues values, String whereClause, String[] whereArgs) {
     	long result = -1;
+    	long startTime = Metrics.now();
     	openForWriting();
     	try {
     		if (opendb != null && opendb.isOpen()) {
@@ -170,11 +201,200 @@ public abstract class DBStorage extends SQLiteOpenHelper {
     	} catch (Exception ex) {
     		LSLogger.exception(TAG, tableName, ex, bLoggingPersistenceEnabled);
     	}
+    	Metrics.getInstance().recordSince(Metrics.DB_WRITE, startTime);
     	return result;
     }
     
     
     
+    // -- retention and compaction support --
+    
+    /**
+     * Deletes the oldest rows of a table so that the table is within the given limits. Each limit
+     * is optional; use 0 for no limit. Rows are removed oldest-first, by the time column.
+     * @param tableName name of the table.
+     * @param timeColumn name of the column holding the row's time, in milliseconds.
+     * @param bytesExpr sql expression for the approximate size of a row in bytes, such as the
+     * sum of the lengths of its text columns.
+     * @param maxRows maximum number of rows to keep.
+     * @param maxAgeMs maximum age of the rows to keep, in milliseconds.
+     * @param maxBytes maximum total size of the rows to keep, as calculated by bytesExpr.
+     * @return the number of rows deleted, or -1 if error.
+     */
+    protected int deleteOldRows(String tableName, String timeColumn, String bytesExpr,
+    							int maxRows, long maxAgeMs, long maxBytes) {
+    	int deleted = 0;
+    	Cursor cursor = null;
+    	openForWriting();
+    	try {
+    		if (opendb == null || !opendb.isOpen()) {
+    			LSLogger.error(TAG, "Database " + tableName + " not open for writing.", bLoggingPersistenceEnabled);
+    			return -1;
+    		}
+    		// remove rows older than the max age:
+    		if (maxAgeMs > 0) {
+    			deleted += opendb.delete(tableName, timeColumn + "<?", 
+    					new String[] { Long.toString(System.currentTimeMillis() - maxAgeMs) });
+    		}
+    		// remove the oldest rows beyond the max count:
+    		if (maxRows > 0) {
+    			long excess = DatabaseUtils.queryNumEntries(opendb, tableName) - maxRows;
+    			if (excess > 0) {
+    				deleted += opendb.delete(tableName, "rowid in (select rowid from " + tableName +
+    						" order by " + timeColumn + " asc limit " + excess + ")", null);
+    			}
+    		}
+    		// remove the oldest rows beyond the max size; go through the rows from newest to oldest,
+    		//  adding up their sizes, to find the time of the newest row that does not fit.
+    		if (maxBytes > 0) {
+    			cursor = opendb.rawQuery("select " + timeColumn + ", " + bytesExpr + " from " + tableName +
+    					" order by " + timeColumn + " desc;", null);
+    			long total = 0;
+    			long cutoffTime = -1;
+    			if (cursor != null && cursor.moveToFirst()) {
+    				do {
+    					total += cursor.getLong(1);
+    					if (total > maxBytes) {
+    						cutoffTime = cursor.getLong(0);
+    						break;
+    					}
+    				} while (cursor.moveToNext());
+    			}
+    			if (cursor != null) {
+    				cursor.close();
+    				cursor = null;
+    			}
+    			if (cutoffTime >= 0) {
+    				deleted += opendb.delete(tableName, timeColumn + "<=?", 
+    						new String[] { Long.toString(cutoffTime) });
+    			}
+    		}
+    	} catch (Exception ex) {
+    		LSLogger.exception(TAG, tableName, ex, bLoggingPersistenceEnabled);
+    		deleted = -1;
+    	} finally {
+    		if (cursor != null && !cursor.isClosed())
+    			cursor.close();
+    	}
+    	return deleted;
+    }
+    
+    // -- paged reading support --
+
+    /** Column index of the rowid in a cursor returned by queryPage; the table's columns follow it. */
+    protected final static int PAGE_ROWID_INDEX   = 0;
+    /** Offset to add to a table column's index to get its index in a cursor returned by queryPage. */
+    protected final static int PAGE_COLUMN_OFFSET = 1;
+
+    /**
+     * Position of the last row read in a page of rows, for reading the page that follows it.
+     * Pages are read by key (the row's time and rowid) instead of by offset, so reading a page
+     * takes the same time no matter how far into the table it is, and rows added while paging
+     * do not shift the rows in the pages that follow.
+     */
+    public static class PageKey {
+    	private long time;
+    	private long rowid;
+    	private boolean bSet;
+
+    	public PageKey() {
+    	}
+
+    	public PageKey(PageKey key) {
+    		time  = key.time;
+    		rowid = key.rowid;
+    		bSet  = key.bSet;
+    	}
+
+    	/** Returns true if the key is set to a row; false if reading starts at the first page. */
+    	public boolean isSet() {
+    		return bSet;
+    	}
+
+    	/** Sets the key to a row's time and rowid. */
+    	public void set(long time, long rowid) {
+    		this.time  = time;
+    		this.rowid = rowid;
+    		bSet = true;
+    	}
+
+    	/** Clears the key, so reading starts over at the first page. */
+    	public void reset() {
+    		bSet = false;
+    	}
+    }
+
+    /**
+     * Queries a page of rows from a table, in time order, starting after the given key. The rowid
+     * is the first column in the results, followed by all the table's columns (see PAGE_COLUMN_OFFSET);
+     * the caller needs to set the key from the last row read and close the cursor.
+     * @param tableName name of the table.
+     * @param timeColumn name of the column holding the row's time; this should be indexed.
+     * @param filterColumn optional name of a column to filter the rows on, or null for all rows.
+     * @param filterValue value the filter column must have, when filterColumn is given.
+     * @param sortOrder one of the DBORDER_ values.
+     * @param after key of the last row of the previous page, or null or not set for the first page.
+     * @param limit maximum number of rows to read.
+     * @return cursor of the rows, or null if error.
+     */
+    protected Cursor queryPage(String tableName, String timeColumn, String filterColumn, String filterValue,
+    						   int sortOrder, PageKey after, int limit) {
+    	Cursor cursor = null;
+    	try {
+    		SQLiteDatabase db = openForReading();
+    		boolean bDesc = (sortOrder == DBORDER_Descending);
+    		boolean bKey  = (after != null && after.isSet());
+    		boolean bFilter = (filterColumn != null);
+    		String cmp = (bDesc ? "<" : ">");
+    		StringBuilder sql = new StringBuilder(160);
+    		String[] args = new String[(bFilter ? 1 : 0) + (bKey ? 3 : 0)];
+    		int argc = 0;
+    		sql.append("select rowid,* from ").append(tableName);
+    		if (bFilter || bKey)
+    			sql.append(" where ");
+    		if (bFilter) {
+    			sql.append(filterColumn).append("=?");
+    			args[argc++] = filterValue;
+    		}
+    		if (bKey) {
+    			if (bFilter)
+    				sql.append(" and ");
+    			sql.append("(").append(timeColumn).append(cmp).append("? or (")
+    			   .append(timeColumn).append("=? and rowid").append(cmp).append("?))");
+    			args[argc++] = Long.toString(after.time);
+    			args[argc++] = Long.toString(after.time);
+    			args[argc++] = Long.toString(after.rowid);
+    		}
+    		sql.append(" order by ").append(timeColumn).append(bDesc ? " desc" : " asc")
+    		   .append(", rowid").append(bDesc ? " desc" : " asc")
+    		   .append(" limit ").append(limit).append(";");
+    		cursor = db.rawQuery(sql.toString(), (argc == 0 ? null : args));
+    	} catch (Exception ex) {
+    		LSLogger.exception(TAG, tableName, ex, bLoggingPersistenceEnabled);
+    		cursor = null;
+    	}
+    	return cursor;
+    }
+
+    /**
+     * Rebuilds the database file, releasing the space left by deleted rows.
+     * @return true if done, false if error.
+     */
+    public boolean vacuum() {
+    	boolean bResult = false;
+    	openForWriting();
+    	try {
+    		if (opendb != null && opendb.isOpen()) {
+    			opendb.execSQL("VACUUM;");
+    			bResult = true;
+    		}
+    	} catch (Exception ex) {
+    		LSLogger.exception(TAG, "Vacuum error.", ex, bLoggingPersistenceEnabled);
+    	}
+    	return bResult;
+    }
+    
+    
     // -------------------------------------------------
     // abstract methods to be implemented by subclasses:
     // -------------------------------------------------
@@ -0,0 +1,133 @@
+package com.lightspeedsystems.mdm;
+
+import android.content.Context;
+
+import com.lightspeedsystems.mdm.util.LSLogger;
+
+/**
+ * Enforces the retention limits on the stored logs and events, in a background thread.
+ *
+ * The logs (lslogger) and events (lsevents) tables are each kept within a maximum number of rows,
+ * a maximum age, and a maximum approximate size; the oldest rows are removed first. The limits
+ * come from Settings, so they can be changed with a configuration push from the server; a value
+ * of 0 means no limit. Compaction is done at startup, then periodically, or when requested.
+ * After rows have been removed, the database file is vacuumed, at most once per vacuum interval.
+ */
+public class DataCompactor extends Thread {
+	private final static String TAG = "DataCompactor";
+
+	// default retention limits:
+	public final static int DEFAULT_LOG_MAXROWS   = 5000;
+	public final static int DEFAULT_LOG_MAXDAYS   = 30;
+	public final static int DEFAULT_LOG_MAXKB     = 2048;
+	public final static int DEFAULT_EVENT_MAXROWS = 2000;
+	public final static int DEFAULT_EVENT_MAXDAYS = 180;
+	public final static int DEFAULT_EVENT_MAXKB   = 1024;
+	public final static int DEFAULT_VACUUM_DAYS   = 7;
+
+	private final static long COMPACT_INTERVAL_MS = 6 * 60 * 60 * 1000; // 6 hours
+	private final static long DAY_MS = 24 * 60 * 60 * 1000L;
+
+	private Context  context;
+	private Settings settings;
+	private boolean  ending;
+
+	/** Constructor. */
+	public DataCompactor(Context context, Settings settings) {
+		this.context = context;
+		this.settings = settings;
+		setDaemon(true);
+		setPriority(Thread.MIN_PRIORITY);
+	}
+
+	/**
+	 * Ends the compactor thread.
+	 */
+	public void terminate() {
+		ending = true;
+		try {
+			this.interrupt();
+		} catch (Exception ex) {
+			LSLogger.exception(TAG, "interrupt error: ", ex);
+		}
+	}
+
+	/**
+	 * Requests a compaction now, such as after the retention settings have changed.
+	 */
+	public void compactNow() {
+		try {
+			this.interrupt();
+		} catch (Exception ex) {
+			LSLogger.exception(TAG, "interrupt error: ", ex);
+		}
+	}
+
+	/**
+	 * Thread runner.
+	 */
+	public void run() {
+		LSLogger.info(TAG, "Starting Data Compactor...");
+		while (!ending) {
+			try {
+				compact();
+			} catch (Exception ex) {
+				LSLogger.exception(TAG, "Compaction error: ", ex);
+			}
+			try {
+				sleep(COMPACT_INTERVAL_MS);
+			} catch (InterruptedException iex) {
+				// woken up to compact now, or to end.
+			}
+		}
+		LSLogger.info(TAG, "Data Compactor is ending.");
+	}
+
+	/**
+	 * Removes logs and events beyond the retention limits in the settings, and vacuums the
+	 * database if anything was removed and the vacuum interval has passed.
+	 * @return number of rows removed.
+	 */
+	public int compact() {
+		int deleted = 0;
+		int count = LSLogger.compactLogs(
+				settings.getSettingInt(Settings.LOGRETAIN_MAXROWS, DEFAULT_LOG_MAXROWS),
+				settings.getSettingInt(Settings.LOGRETAIN_MAXDAYS, DEFAULT_LOG_MAXDAYS) * DAY_MS,
+				settings.getSettingInt(Settings.LOGRETAIN_MAXKB, DEFAULT_LOG_MAXKB) * 1024L);
+		if (count > 0)
+			deleted += count;
+		count = Events.compactEvents(context,
+				settings.getSettingInt(Settings.EVENTRETAIN_MAXROWS, DEFAULT_EVENT_MAXROWS),
+				settings.getSettingInt(Settings.EVENTRETAIN_MAXDAYS, DEFAULT_EVENT_MAXDAYS) * DAY_MS,
+				settings.getSettingInt(Settings.EVENTRETAIN_MAXKB, DEFAULT_EVENT_MAXKB) * 1024L);
+		if (count > 0)
+			deleted += count;
+		LSLogger.debug(TAG, "Compaction removed " + deleted + " rows.");
+
+		if (deleted > 0) {
+			long vacuumInterval = settings.getSettingInt(Settings.DBVACUUM_DAYS, DEFAULT_VACUUM_DAYS) * DAY_MS;
+			long lastVacuum = settings.getSettingLong(Settings.DBLASTVACUUMTIME, 0);
+			long now = System.currentTimeMillis();
+			if (vacuumInterval > 0 && now - lastVacuum >= vacuumInterval) {
+				VacuumDB db = new VacuumDB(context);
+				if (db.vacuum()) {
+					settings.setSetting(Settings.DBLASTVACUUMTIME, now);
+					LSLogger.debug(TAG, "Database vacuumed.");
+				}
+				db.close();
+			}
+		}
+		return deleted;
+	}
+
+	// database access for vacuuming the whole database.
+	private static class VacuumDB extends DBStorage {
+		public VacuumDB(Context context) {
+			super(context);
+		}
+
+		public String getSqlTableName() {
+			return null;
+		}
+	}
+}
@@ -77,6 +77,7 @@ public class Device {
 	private TelephonySettings telephonySettings; // device's telephony-related settings and properties
 	private String deviceID;
 	private String deviceUDID; // local-cached UDID value for the device.
+	private String wifiMAC;    // local-cached wifi mac address, once found.
 	
 	/**
 	 * Constructs a Device instance.
@@ -457,6 +458,18 @@ public class Device {
 		return json;
 	}
 	
+	/**
+	 * Gets the size and free space of the filesystem containing the given path.
+	 * @param path a path on the filesystem, such as the data directory.
+	 * @return array of the total bytes and the available bytes.
+	 * @throws IllegalArgumentException if the path is not valid.
+	 */
+	public static long[] getFilesystemSpace(String path) {
+		StatFs fstats = new StatFs(path);
+		long blockSize = fstats.getBlockSize();
+		return new long[] { (long)fstats.getBlockCount() * blockSize, (long)fstats.getAvailableBlocks() * blockSize };
+	}
+
 	private void getFilesystemValues(JSONObject json) {
 		try {
 			// Get filesystem stats:
@@ -465,13 +478,10 @@ public class Device {
 			float divisorFactor = 1024 * 1024 * 1024;  // gigabytes   
 
 			// - data path:
-			StatFs fstats = new StatFs(Environment.getDataDirectory().getPath());			
-			float availableBlocks = fstats.getAvailableBlocks();
-			float totalBlocks = fstats.getBlockCount();
-			float blockSize = fstats.getBlockSize();
-			float total = (totalBlocks * blockSize);
-			float avail = (availableBlocks * blockSize);
-			LSLogger.debug(TAG, "Data Filespace: avail="+availableBlocks+" total="+totalBlocks+" blocksize="+blockSize+ " total="+total+" avail="+avail);
+			long[] space = getFilesystemSpace(Environment.getDataDirectory().getPath());
+			float total = space[0];
+			float avail = space[1];
+			LSLogger.debug(TAG, "Data Filespace: total="+total+" avail="+avail);
 			/**
 			// - system root path:
 			 fstats = new StatFs(Environment.getRootDirectory().getPath());			
@@ -508,7 +518,9 @@ public class Device {
 	
 	/** Gets the device's Wifi Mac address. */
 	public String getWifiMAC() {
-		String addr = null;
+		String addr = wifiMAC;
+		if (addr != null)
+			return addr;
 		try {
 			WifiManager wmgr = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
 			if (wmgr != null) {
@@ -517,6 +529,8 @@ public class Device {
 					addr = wi.getMacAddress();
 					if (addr == null || addr.isEmpty())
 						addr = wi.getBSSID();
+					else
+						wifiMAC = addr;  // the device's own address does not change; the bssid can
 				}
 			}
 		} catch (Exception ex) {
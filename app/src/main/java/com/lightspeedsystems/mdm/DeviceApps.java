@@ -9,6 +9,7 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import com.lightspeedsystems.mdm.util.LSLogger;
+import com.lightspeedsystems.mdm.util.PackageDiff;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
@@ -32,12 +33,12 @@ public class DeviceApps extends Apps {
 	private static String TAG = "DeviceApps";
 
 	// note: the apps collection is in the base class, and holds the list of all the current apps found on the device
-	private Vector<App> devicedbapps; // list holding contents of the deviceapps database entries.
+	private AppCatalog devicedbapps; // list holding contents of the deviceapps database entries.
  
 	
 	public DeviceApps(Context context) {
 		super(context);
-		devicedbapps = new Vector<App>(10);
+		devicedbapps = new AppCatalog(10);
 	}
 	
 	
@@ -73,6 +74,8 @@ public class DeviceApps extends Apps {
 		if (bAll) {
 			apps.clear();
 			list = getAllInstalledApps();
+			if (isScanCancelled())
+				list = null; // incomplete; don't send a partial list as the full list of apps.
 		} else {
 			list = getDeltaApps();
 		}
@@ -106,6 +109,8 @@ public class DeviceApps extends Apps {
 					japp.put(Constants.PARAM_DEVICEAPP_SHORTVER,app.getVersionCodeStr());
 					japp.put(Constants.PARAM_DEVICEAPP_PKGSIZE, app.getSizeOfPkg());
 					japp.put(Constants.PARAM_DEVICEAPP_DATASIZE,app.getDataSize());
+					if (app.getSizeTime() != 0) // when the sizes were computed (seconds since 1970 utc)
+						japp.put(Constants.PARAM_DEVICEAPP_SIZETIME, app.getSizeTime() / 1000);
 					
 					// see if the app is managed or not: (look in the managed apps instance for the package name)
 					bManaged = (managedApps!=null && managedApps.findAppByPackageName(app.getPackageName(),0)!=null);
@@ -141,13 +146,13 @@ public class DeviceApps extends Apps {
 	 */
 	// Note that when complete, the devicedbapps list can be dirty or out of sync. 
 	protected List<App> getDeltaApps() {
-		App app;
-		App searchApp;
-		Vector<App> deltaapps = new Vector<App>(10); // list of apps that are different from the database vs. what currently exists on the device. 
+		final Vector<App> deltaapps = new Vector<App>(10); // list of apps that are different from the database vs. what currently exists on the device. 
 		DeviceAppsDB db = null;  // Database support instance 
 		// get apps list with all current apps, keep it in this instance.
 		apps.clear();
 		getAllInstalledApps(); 
+		if (isScanCancelled()) // incomplete list of apps; don't treat missing apps as uninstalled.
+			return deltaapps;
 		// now we need to find differences:
 		// - entries in apps that are not in devicedbapps are newly-installed apps
 		// - entries in apps with different versions than those in devicedbapps are updated apps
@@ -156,39 +161,40 @@ public class DeviceApps extends Apps {
 			db = new DeviceAppsDB(context);
 			loadDeviceDbApps(db);    // fills devicedbapps with records from our database
 
-			// first, make sure apps in the db still exist in the list of apps installed, and for
-			//  any found, compare versions to detect version changes:
-			Iterator<App> iter = devicedbapps.iterator();
-			while (iter.hasNext()) {
-				app = iter.next();  // "app" instance is an instance in the db list, not the list of current apps.
-				searchApp = findAppByPackageName(apps, app.getPackageName(), 0); // searchApp is from current apps.
-				if (searchApp == null) { // app was uninstalled, so remove it from the db and add to delta list.
-					app.setInstallState(App.INSTALLSTATE_uninstalled);
-					deltaapps.add(app);					
-					db.deleteApp(app);
-				} else { // compare the app versions; if different, update the info and add to delta list.
-					// compare versions; if we detect a difference, handle it. use the searchApp as the new version.
-					if ( !app.compareVersions(searchApp)) {
-						searchApp.setDBID(app.getDbID());
-						searchApp.setInstallState(App.INSTALLSTATE_updated);
-						deltaapps.add(searchApp);
-						db.updateAppValues(searchApp);
-					}
+			final DeviceAppsDB appsdb = db;
+			PackageDiff.compare(devicedbapps, apps, new PackageDiff.Handler<App>() {
+				public String getKey(App app) {
+					return AppCatalog.getPackageKey(app.getPackageName());
 				}
-			}
-			
-			// now, search through the current list of all apps, and compare to the dbapps; items not found
-			//  represent apps installed since the last time this was done.
-			iter = apps.iterator();
-			while (iter.hasNext()) {
-				app = iter.next();
-				searchApp = findAppByPackageName(devicedbapps, app.getPackageName(), 0);
-				if (searchApp == null) { // app was installed, so add it to the db and add to delta list.
+				public boolean isSameVersion(App dbApp, App app) {
+					return dbApp.compareVersions(app);
+				}
+				// app was installed, so add it to the db and add to delta list.
+				public void added(App app) {
 					app.setInstallState(App.INSTALLSTATE_installed);
 					deltaapps.add(app);	
-					db.insert(app);
+					appsdb.insert(app);
 				}
-			}
+				// versions are different, so update the info and add to delta list; use the current app as the new version.
+				public void updated(App dbApp, App app) {
+					app.setDBID(dbApp.getDbID());
+					app.setInstallState(App.INSTALLSTATE_updated);
+					deltaapps.add(app);
+					appsdb.updateAppValues(app);
+				}
+				// app from the db was uninstalled, so remove it from the db and add to delta list.
+				public void removed(App app) {
+					app.setInstallState(App.INSTALLSTATE_uninstalled);
+					deltaapps.add(app);					
+					appsdb.deleteApp(app);
+					if (app.getPackageName() != null)
+						AppSizeCache.getInstance(context).remove(app.getPackageName());
+				}
+				// duplicate db entry for the same package; the first one is used, so drop this one.
+				public void duplicate(App dbApp) {
+					appsdb.deleteApp(dbApp);
+				}
+			});
 			
 		} catch (Exception ex) {
 			LSLogger.exception(TAG, "GetDeltaApps error: ", ex);
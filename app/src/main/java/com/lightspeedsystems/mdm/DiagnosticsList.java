@@ -3,6 +3,7 @@ package com.lightspeedsystems.mdm;
 //import com.lightspeedsystems.mdm.util.LSLogger;
 import android.os.Bundle;
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
@@ -18,7 +19,8 @@ public class DiagnosticsList extends Activity {
 	    */
 	   private int[] selectionItems = {
 			   R.string.diaglist_servertest, 
-			   R.string.diaglist_logging
+			   R.string.diaglist_logging,
+			   R.string.diaglist_metrics
 			//   R.string.diaglist_resetgcm,
 			   };
 	   
@@ -61,6 +63,13 @@ public class DiagnosticsList extends Activity {
 				   case R.string.diaglist_logging:
 					   Utils.NavigateToActivity(getApplicationContext(), LoggingInfoView.class);
 					   break;
+				   case R.string.diaglist_metrics:
+					   new AlertDialog.Builder(this)
+					   		.setTitle(R.string.diaglist_metrics)
+					   		.setMessage(Metrics.getInstance().getSummary())
+					   		.setPositiveButton(android.R.string.ok, null)
+					   		.show();
+					   break;
 				   case R.string.diaglist_resetgcm:
 //					   Utils.NavigateToActivity(getApplicationContext(), MainNavList.class);
 					   break;
@@ -7,6 +7,7 @@ import java.util.Vector;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 
 import com.lightspeedsystems.mdm.util.LSLogger;
@@ -14,19 +15,15 @@ import com.lightspeedsystems.mdm.util.LSLogger;
 public class Events {
 	private static String TAG = "Events";
 	
-	private Vector<Event> events;
 	private Context context;
 	private EventsDataChangeListener dataObserver; // observer for watching for data changes; note that we should use a list of these.
-	private boolean bEventsLoaded;
 	
 	/**
-	 * Constructor. Events will be loaded or added in the current thread. 
+	 * Constructor. Events are read from and added to storage in the current thread. 
 	 * @param context application context, needed for getting event data.
 	 */
 	public Events(Context context) {
 		this.context = context;
-		events = new Vector<Event>(10);
-		bEventsLoaded = false;
 	}
 	
 	/**
@@ -45,57 +42,6 @@ public class Events {
 		dataObserver = null;
 	}
 
-	/**
-	 * Returns true if the events have been loaded from storage (database), false if not.
-	 */
-	public boolean isEventsLoaded() {
-		return bEventsLoaded;
-	}
-	
-	/**
-	 * Gets the count of the number of apps in the list.
-	 * @return number of app instances, 0 if none.
-	 */
-	public int getEventsCount() {
-		return events.size();
-	}
-	
-	/**
-	 * Gets the list of events. Note that the list may be empty if nothing was done to read them or no events exist.
-	 * @return
-	 */
-	public List<Event> getEvents() {
-		return events;
-	}
-	
-	/**
-	 * Gets the Event at the specified index position.
-	 * @param index 0-based index into the collection
-	 * @return the Event instance at the location, 
-	 * or null of index is out of bounds or no event exists at that index.
-	 */
-	public Event getEventAt(int index) {
-		Event e = null;
-		if (events==null || events.isEmpty() || index >= events.size() || index < 0)
-			e = null;
-		else {
-			try {
-				e = events.elementAt(index);
-			} catch (Exception ex) {
-				LSLogger.exception(TAG, "getElementAt error:", ex);
-			}
-		}
-		return e;
-	}
-	
-	/**
-	 * Adds the Event instance to the list of applications.
-	 * @param event Event instance
-	 */
-	public void addEvent(Event event) {
-		events.insertElementAt(event, 0);  // add to the front of the list
-	}
-	
 	/**
 	 * Creates and adds a new event.
 	 * @param eventType an EVENT.EVENTTYPE_ value
@@ -105,9 +51,7 @@ public class Events {
 	 * @param details description about the event
 	 */
 	public void logEvent(int eventType, int eventAction, int displayResourceID, String artifactName, String details) {
-		// add to current events list:
 		Event event = new Event(0, eventType, eventAction, displayResourceID, artifactName, details, 0);
-		addEvent(event); 
 		// persist it:
 		try {
 			EventsDB db = new EventsDB(context);
@@ -124,8 +68,6 @@ public class Events {
 	 * @param event Event instance to add.
 	 */
 	public void logEvent(Event event) {
-		// add to current events list:
-		addEvent(event); 
 		// persist it:
 		try {
 			EventsDB db = new EventsDB(context);
@@ -154,26 +96,41 @@ public class Events {
 	}
 	
 	/**
-	 * Loads or reloads all MDM events, storing them in the internal list instance.
-	 * @param forceRelaod if true, forces the contents to be reloaded. Otherwise, this
-	 * will only load if not already loaded.
-	 * @return list of Event instances, each instance representing an event.
+	 * Reads a page of stored MDM events, for showing the events a page at a time.
+	 * @param list list to add the events to.
+	 * @param sortOrder one of the DBStorage.DBORDER_ values, for the time-ordering of the events.
+	 * @param typeFilter event type value (as a string) to read only events of that type, or null for all events.
+	 * @param after key of the last event of the previous page, or not set for the first page;
+	 * this is updated to the last event read.
+	 * @param limit maximum number of events to read.
+	 * @return number of events read, or -1 if error.
+	 */
+	public int getEventsPage(List<Event> list, int sortOrder, String typeFilter, DBStorage.PageKey after, int limit) {
+		int count = -1;
+		try {
+			EventsDB db = new EventsDB(context);
+			count = db.readEventRecordsPage(list, sortOrder, typeFilter, after, limit);
+			db.close();
+		} catch (Exception ex) {
+			LSLogger.exception(TAG, "GetEventsPage error: ", ex);
+		}
+		return count;
+	}
+	
+	/**
+	 * Gets the number of stored events, without reading them.
+	 * @return number of events, or 0 if none or error.
 	 */
-	public synchronized void loadEvents(boolean forceReload) {
-		if (!bEventsLoaded || forceReload) {
-			try {
-				EventsDB db = new EventsDB(context);
-				events.clear();
-				db.readEventRecords(events, DBStorage.DBORDER_Descending, null);
-				bEventsLoaded = true;
-				db.close();
-			} catch (Exception ex) {
-				LSLogger.exception(TAG, "LoadEvents error: ", ex);
-			}
-			LSLogger.debug(TAG, "Loaded " + events.size() + " Events.");
-		} else {
-			LSLogger.debug(TAG, "Events already loaded. Using cached Events list.");
+	public long getStoredEventsCount() {
+		long count = 0;
+		try {
+			EventsDB db = new EventsDB(context);
+			count = db.getCount();
+			db.close();
+		} catch (Exception ex) {
+			LSLogger.exception(TAG, "GetStoredEventsCount error: ", ex);
 		}
+		return count;
 	}
 	
 	public void deleteAllEvents() {
@@ -181,7 +138,6 @@ public class Events {
 			EventsDB db = new EventsDB(context);
 			db.deleteAll();
 			db.close();
-			events.clear();
 		} catch (Exception ex) {
 			LSLogger.exception(TAG, "DeleteEvents error: ", ex);
 		}
@@ -216,6 +172,35 @@ public class Events {
     	return EventsDB.getSqlCreateTable();
     }
 
+	/**
+	 * Static method to get the SQL used to create the Events database table's indexes.
+	 * @return array of SQL strings, one per index.
+	 */
+    public static String[] getEventsSqlCreateIndexes() {
+    	return EventsDB.getSqlCreateIndexes();
+    }
+    
+    /**
+     * Removes the oldest events so that the stored events are within the given limits. Use 0 for no limit.
+     * @param context application context.
+     * @param maxRows maximum number of events to keep.
+     * @param maxAgeMs maximum age of the events to keep, in milliseconds.
+     * @param maxBytes maximum approximate size of the events to keep, in bytes.
+     * @return number of events removed, or -1 if error.
+     */
+    public static int compactEvents(Context context, int maxRows, long maxAgeMs, long maxBytes) {
+    	int deleted = -1;
+		try {
+			EventsDB db = new EventsDB(context);
+			deleted = db.deleteOldRows(EventsDB.EVENT_DB_TABLENAME, EventsDB.COLUMN_TIME, 
+					EventsDB.EVENT_DB_ROWSIZE_EXPR, maxRows, maxAgeMs, maxBytes);
+			db.close();
+		} catch (Exception ex) {
+			LSLogger.exception(TAG, "CompactEvents error: ", ex);
+		}
+		return deleted;
+    }
+
 	
 	// -----------------------------------------------------------------------
 	// --- Inner-class for handling Event persistence in a sqlite database  --
@@ -251,6 +236,13 @@ public class Events {
                 		COLUMN_RESID  + " TEXT, " +
                 		COLUMN_OBJECT + " TEXT, " +
                 		COLUMN_DESC   + " TEXT);";
+		// SQL commands used to create the indexes for reading by time and by type, and for removing old events:
+		private final static String[] EVENT_DB_CREATE_INDEXES_SQL = {
+				"CREATE INDEX IF NOT EXISTS " + EVENT_DB_TABLENAME + "_time_idx ON " + EVENT_DB_TABLENAME + " (" + COLUMN_TIME + ");",
+				"CREATE INDEX IF NOT EXISTS " + EVENT_DB_TABLENAME + "_type_idx ON " + EVENT_DB_TABLENAME + " (" + COLUMN_TYPE + "," + COLUMN_TIME + ");" };
+		// SQL expression for the approximate size of an event, in bytes:
+		private final static String EVENT_DB_ROWSIZE_EXPR =
+				"ifnull(length(" + COLUMN_DESC + "),0)+ifnull(length(" + COLUMN_OBJECT + "),0)+ifnull(length(" + COLUMN_RESID + "),0)+24";
 		// index locations of the data in the query, for improved processing speeds:
 		private final static int COLUMN_ID_INDEX     = 0;
 		private final static int COLUMN_TIME_INDEX   = 1;
@@ -297,6 +289,10 @@ public class Events {
 	    	return EVENT_DB_CREATE_SQL;
 	    }
 
+	    public static String[] getSqlCreateIndexes() {
+	    	return EVENT_DB_CREATE_INDEXES_SQL;
+	    }
+
 	    /**
 	     * Builds a map for all columns that may be requested, which will be given to the 
 	     * SQLiteQueryBuilder. This is a good way to define aliases for column names, but must include 
@@ -368,6 +364,49 @@ public class Events {
 	    	return result;
 	    }
 	    
+	    protected int readEventRecordsPage(List<Event> list, int sortOrder, String typeFilter, PageKey after, int limit) {
+	    	int result = -1;
+	        Cursor cursor = null;
+	    	try {
+	    		cursor = queryPage(EVENT_DB_TABLENAME, COLUMN_TIME, 
+	    				(typeFilter == null ? null : COLUMN_TYPE), typeFilter, sortOrder, after, limit);
+	    		if (cursor != null) {
+	    			result = 0;
+	    			while (cursor.moveToNext()) {
+	                    Event item = new Event(cursor.getInt(COLUMN_ID_INDEX + PAGE_COLUMN_OFFSET),
+	                    		cursor.getInt(COLUMN_TYPE_INDEX + PAGE_COLUMN_OFFSET),
+	                    		cursor.getInt(COLUMN_ACTION_INDEX + PAGE_COLUMN_OFFSET),
+	                    		0,
+	                    		cursor.getString(COLUMN_OBJECT_INDEX + PAGE_COLUMN_OFFSET),
+	                    		cursor.getString(COLUMN_DESC_INDEX + PAGE_COLUMN_OFFSET),
+	                    		cursor.getLong(COLUMN_TIME_INDEX + PAGE_COLUMN_OFFSET));
+	                    item.setResourceIDname( cursor.getString(COLUMN_RESID_INDEX + PAGE_COLUMN_OFFSET) );
+	                    list.add(item);
+	                    after.set(cursor.getLong(COLUMN_TIME_INDEX + PAGE_COLUMN_OFFSET), cursor.getLong(PAGE_ROWID_INDEX));
+	                    result++;
+	    			}
+	    		}
+	    	} catch (Exception ex) {
+	    		LSLogger.exception(TAG, "Error Reading DB page", ex, false);
+	    		result = -1;
+	    	} finally {
+	    		if (cursor != null && !cursor.isClosed())
+	    			cursor.close();
+	    	}
+	    	return result;
+	    }
+	    
+	    protected long getCount() {
+	    	long count = 0;
+	    	try {
+	    		SQLiteDatabase db = openForReading();
+	    		count = DatabaseUtils.queryNumEntries(db, EVENT_DB_TABLENAME);
+	    	} catch (Exception ex) {
+	    		LSLogger.exception(TAG, "Error counting Events in DB: ", ex, false);
+	    	}
+	    	return count;
+	    }
+	    
 	    /**
 	     * Adds the Event instance's data to the database.
 	     * @param item
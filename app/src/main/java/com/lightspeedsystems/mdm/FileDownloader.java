@@ -0,0 +1,346 @@
+package com.lightspeedsystems.mdm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.SystemClock;
+import android.util.Pair;
+
+import com.lightspeedsystems.mdm.util.LSLogger;
+
+/**
+ * Downloads a file from a server, such as an app's .apk installer file, in a way that can be resumed.
+ *
+ * The data is first written to a partial file next to the target file (target + ".part"). If the
+ * connection drops, the download is continued from the end of the partial file with an HTTP Range
+ * request, a few times, and a later download of the same file continues where this one stopped
+ * rather than starting over; the server's ETag or Last-Modified value is kept with the partial file
+ * (target + ".part.tag") and sent as If-Range, so the server sends the whole file again if it has
+ * changed. Without a validator, a partial file is only continued when the digest is known, since
+ * the verification catches data from a different file. If the server does not support ranges,
+ * the download starts over from the beginning.
+ *
+ * When the expected SHA-256 digest of the file is known, the downloaded data is verified against it
+ * before the partial file is renamed to the target file; a file that does not match is deleted.
+ * Progress, including the transfer rate, is reported to the progress listener, if one is set.
+ */
+public class FileDownloader {
+	private final static String TAG = "FileDownloader";
+
+	private final static String PARTIAL_SUFFIX = ".part";
+	private final static String VALIDATOR_SUFFIX = ".part.tag";
+	private final static int BUFFER_SIZE = 64 * 1024;
+	private final static int MAX_RESUME_ATTEMPTS = 3;       // times to continue after a dropped connection
+	private final static long PROGRESS_INTERVAL_MS = 1000;  // minimum time between progress reports
+
+	private String serverUrl;
+	private File targetFile;
+	private File partialFile;
+	private File validatorFile;
+	private String expectedSha256;
+	private ProgressCallbackInterface progressListener;
+	private List<Pair<String,String>> requestHeaders;
+
+	private long totalBytes;       // total size of the file, or -1 if not known
+	private long bytesDownloaded;  // bytes received from the server during this download
+	private long startTime;        // elapsed realtime (ms) when this download started
+	private long lastProgressTime;
+
+	/**
+	 * Constructor.
+	 * @param serverUrl URL of the file to download.
+	 * @param targetPath local file to save to.
+	 */
+	public FileDownloader(String serverUrl, String targetPath) {
+		this.serverUrl = serverUrl;
+		targetFile = new File(targetPath);
+		partialFile = new File(targetPath + PARTIAL_SUFFIX);
+		validatorFile = new File(targetPath + VALIDATOR_SUFFIX);
+	}
+
+	/**
+	 * Sets the expected SHA-256 digest of the file, as a hex string; the download fails if the
+	 * downloaded data does not match it. If null or empty, the download is not verified.
+	 */
+	public void setExpectedSha256(String sha256) {
+		expectedSha256 = (sha256 == null || sha256.length() == 0 ? null : sha256.trim().toLowerCase());
+	}
+
+	/** Sets the listener to report the download progress to; can be null. */
+	public void setProgressListener(ProgressCallbackInterface listener) {
+		progressListener = listener;
+	}
+
+	/** Sets additional headers to send with the request, such as authorization; can be null. */
+	public void setRequestHeaders(List<Pair<String,String>> headers) {
+		requestHeaders = headers;
+	}
+
+	/** Gets the number of bytes received from the server by the last download. */
+	public long getBytesDownloaded() {
+		return bytesDownloaded;
+	}
+
+	/**
+	 * Downloads the file, continuing from a partial download if there is one.
+	 * @return HttpCommResponse with details of success or failure. Upon success, isOK is true and
+	 * the file is at the target path.
+	 */
+	public HttpCommResponse download() {
+		HttpCommResponse responseData = new HttpCommResponse(false);
+		bytesDownloaded = 0;
+		totalBytes = -1;
+		startTime = SystemClock.elapsedRealtime();
+		lastProgressTime = 0;
+
+		MessageDigest digest = null;
+		int attempt = 0;
+		boolean bDone = false;
+		try {
+			if (expectedSha256 != null)
+				digest = MessageDigest.getInstance("SHA-256");
+
+			while (!bDone && attempt <= MAX_RESUME_ATTEMPTS) {
+				if (attempt > 0)
+					LSLogger.info(TAG, "Resuming download of " + targetFile.getName() + " at byte " + partialFile.length()
+							+ " (attempt " + attempt + ").");
+				attempt++;
+				responseData.setException(null);
+				try {
+					bDone = downloadToPartial(responseData, digest);
+				} catch (IOException ioe) {
+					// connection dropped or timed out; try to continue from what was received.
+					LSLogger.warn(TAG, "Download of " + targetFile.getName() + " interrupted: " + ioe.toString());
+					responseData.setException(ioe);
+					responseData.setExceptionType(HttpCommResponse.EXCEPTIONTYPE_ioerror);
+				}
+				if (!bDone && !responseData.hasException())
+					break;  // the server refused the request; retrying will not help.
+			}
+
+			if (bDone && digest != null) {
+				String actual = Utils.toHexString(digest.digest());
+				if (!actual.equals(expectedSha256)) {
+					LSLogger.error(TAG, "Downloaded file " + targetFile.getName() + " failed verification; expected SHA-256 "
+							+ expectedSha256 + ", got " + actual);
+					deletePartial();
+					responseData.setResultCode(0);
+					responseData.setResultReason("Downloaded file failed integrity verification.");
+					bDone = false;
+				}
+			}
+
+			if (bDone) {
+				if (targetFile.exists())
+					targetFile.delete();
+				if (!partialFile.renameTo(targetFile))
+					throw new IOException("Unable to rename " + partialFile.getPath() + " to " + targetFile.getPath());
+				validatorFile.delete();
+				responseData.setResultCode(HttpURLConnection.HTTP_OK);
+				long elapsed = Math.max(SystemClock.elapsedRealtime() - startTime, 1);
+				LSLogger.debug(TAG, "Downloaded " + targetFile.getName() + ": " + targetFile.length() + " bytes ("
+						+ bytesDownloaded + " transferred) in " + elapsed + " ms, " + (bytesDownloaded * 1000 / 1024 / elapsed) + " KB/s.");
+			}
+		} catch (Exception ex) {
+			LSLogger.exception(TAG, "Download error: ", ex);
+			responseData.setException(ex);
+			responseData.setResultCode(0);
+		}
+		return responseData;
+	}
+
+	// makes one request for the rest of the file, appending to the partial file.
+	//  Returns true if the whole file has been received, false if the server refused the request.
+	//  Throws an IOException if the transfer was interrupted.
+	private boolean downloadToPartial(HttpCommResponse responseData, MessageDigest digest) throws IOException {
+		long offset = (partialFile.exists() ? partialFile.length() : 0);
+		String validator = (offset > 0 ? readValidator() : null);
+		if (offset > 0 && validator == null && expectedSha256 == null) {
+			// without a validator or a digest, we cannot tell whether the partial data is from the same file.
+			deletePartial();
+			offset = 0;
+		}
+
+		List<Pair<String,String>> headers = new ArrayList<Pair<String,String>>();
+		if (requestHeaders != null)
+			headers.addAll(requestHeaders);
+		if (offset > 0) {
+			headers.add(new Pair<String,String>("Range", "bytes=" + offset + "-"));
+			if (validator != null)
+				headers.add(new Pair<String,String>("If-Range", validator));
+		}
+
+		InputStream inStream = responseData.openUrlConnection(serverUrl, headers);
+		try {
+			int resultCode = responseData.getResultCode();
+			if (inStream == null) {
+				if (resultCode == 416 && offset > 0) {  // Range Not Satisfiable; the file changed or is complete.
+					LSLogger.debug(TAG, "Range not satisfiable for " + targetFile.getName() + "; restarting download.");
+					deletePartial();
+					throw new IOException("Range not satisfiable");
+				}
+				responseData.setResultReason("Download failed; server response " + resultCode);
+				return false;
+			}
+
+			boolean bAppend = (offset > 0 && resultCode == HttpURLConnection.HTTP_PARTIAL);
+			if (!bAppend) {
+				// a full response; start the partial file over.
+				if (offset > 0)
+					LSLogger.debug(TAG, "Server sent the whole file for " + targetFile.getName() + "; restarting download.");
+				offset = 0;
+			}
+			totalBytes = getTotalSize(responseData, offset);
+			saveValidator(responseData);
+
+			if (digest != null) {
+				digest.reset();
+				if (bAppend)
+					updateDigestFromFile(digest, offset);
+			}
+
+			FileOutputStream outStream = new FileOutputStream(partialFile, bAppend);
+			FileChannel channel = outStream.getChannel();
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+				long received = offset;
+				int bytesRead;
+				while ((bytesRead = inStream.read(buffer)) != -1) {
+					byteBuffer.clear();
+					byteBuffer.limit(bytesRead);
+					while (byteBuffer.hasRemaining())
+						channel.write(byteBuffer);
+					if (digest != null)
+						digest.update(buffer, 0, bytesRead);
+					received += bytesRead;
+					bytesDownloaded += bytesRead;
+					reportProgress(received);
+				}
+				if (totalBytes > 0 && received < totalBytes)
+					throw new IOException("Connection closed at " + received + " of " + totalBytes + " bytes");
+			} finally {
+				try {
+					channel.force(false);
+				} catch (IOException ioe) {
+					LSLogger.warn(TAG, "Unable to flush " + partialFile.getName() + ": " + ioe.toString());
+				}
+				outStream.close();
+			}
+			return true;
+		} finally {
+			responseData.disconnectUrlConnection();
+		}
+	}
+
+	// gets the total size of the file from the response, or -1 if not known.
+	private long getTotalSize(HttpCommResponse responseData, long offset) {
+		String range = responseData.getResponseHeader("Content-Range");  // bytes start-end/total
+		if (range != null) {
+			int indx = range.lastIndexOf('/');
+			if (indx >= 0) {
+				try {
+					return Long.parseLong(range.substring(indx + 1).trim());
+				} catch (NumberFormatException nfe) {
+					// total is "*", not known.
+				}
+			}
+		}
+		String length = responseData.getResponseHeader("Content-Length");
+		if (length != null) {
+			try {
+				return offset + Long.parseLong(length.trim());
+			} catch (NumberFormatException nfe) {
+				LSLogger.warn(TAG, "Invalid Content-Length: " + length);
+			}
+		}
+		return -1;
+	}
+
+	// adds the data already in the partial file to the digest.
+	private void updateDigestFromFile(MessageDigest digest, long length) throws IOException {
+		FileInputStream in = new FileInputStream(partialFile);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long remaining = length;
+			int bytesRead;
+			while (remaining > 0 && (bytesRead = in.read(buffer, 0, (int)Math.min(buffer.length, remaining))) != -1) {
+				digest.update(buffer, 0, bytesRead);
+				remaining -= bytesRead;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	// reports the progress and transfer rate, at most once per progress interval.
+	private void reportProgress(long received) {
+		if (progressListener == null)
+			return;
+		long now = SystemClock.elapsedRealtime();
+		if (now - lastProgressTime < PROGRESS_INTERVAL_MS && received != totalBytes)
+			return;
+		lastProgressTime = now;
+		long elapsed = Math.max(now - startTime, 1);
+		long rateKBs = bytesDownloaded * 1000 / 1024 / elapsed;
+		int percent = (totalBytes > 0 ? (int)(received * 100 / totalBytes) : 0);
+		progressListener.progressMsg("Downloading " + targetFile.getName() + ": " + (received / 1024) + " KB"
+				+ (totalBytes > 0 ? " of " + (totalBytes / 1024) + " KB" : "") + " (" + rateKBs + " KB/s)", percent);
+	}
+
+	// gets the validator (ETag or Last-Modified) saved for the partial file, or null if none.
+	private String readValidator() {
+		String validator = null;
+		if (validatorFile.exists()) {
+			try {
+				FileInputStream in = new FileInputStream(validatorFile);
+				try {
+					byte[] data = new byte[(int)Math.min(validatorFile.length(), 1024)];
+					int len = in.read(data);
+					if (len > 0)
+						validator = new String(data, 0, len, "UTF-8");
+				} finally {
+					in.close();
+				}
+			} catch (IOException ioe) {
+				LSLogger.warn(TAG, "Unable to read " + validatorFile.getName() + ": " + ioe.toString());
+			}
+		}
+		return validator;
+	}
+
+	// saves the response's validator, so that a later download can be continued with If-Range.
+	private void saveValidator(HttpCommResponse responseData) {
+		String validator = responseData.getResponseHeader("ETag");
+		if (validator == null || validator.startsWith("W/"))  // weak etags cannot be used with If-Range
+			validator = responseData.getResponseHeader("Last-Modified");
+		if (validator == null) {
+			validatorFile.delete();
+			return;
+		}
+		try {
+			FileOutputStream out = new FileOutputStream(validatorFile);
+			try {
+				out.write(validator.getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+		} catch (IOException ioe) {
+			LSLogger.warn(TAG, "Unable to save " + validatorFile.getName() + ": " + ioe.toString());
+		}
+	}
+
+	private void deletePartial() {
+		partialFile.delete();
+		validatorFile.delete();
+	}
+}
@@ -1,8 +1,9 @@
 package com.lightspeedsystems.mdm;
 
+import java.util.List;
+
 import android.app.ListFragment;
 import android.content.Context;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.view.LayoutInflater;
@@ -26,6 +27,7 @@ public class HistoryFragment extends ListFragment implements Events.EventsDataCh
 	private static String TAG = "HistoryFragment";
 	private Context context;
 	private Events events;
+	private PagedList<Event> eventItems; // events read so far, newest first; more are read as the list is scrolled.
 	private int bLoadStatus;  // One of the Constants.OPSTATUS values, for keeping track of the apps list building state.
 	private BaseAdapter listAdapter;
 	private TextView textStatus;  // status text field, shoen only when the list is getting created at the start.
@@ -41,6 +43,12 @@ public class HistoryFragment extends ListFragment implements Events.EventsDataCh
 		textStatus = (TextView)view.findViewById(R.id.textStatus);
 		LSLogger.debug(TAG, "onCreateView - setting adapter later...");
 		listAdapter = new EventsListAdapter(context);
+		eventItems = new PagedList<Event>(new PagedList.PageReader<Event>() {
+			public int readPage(List<Event> list, DBStorage.PageKey after, int limit) {
+				return events.getEventsPage(list, DBStorage.DBORDER_Descending, null, after, limit);
+			}
+		}, PagedList.DEFAULT_PAGE_SIZE);
+		eventItems.setPageListener(new EventsPageListener());
 
 		// note: defer setting the adapter until after the data is loaded: prevents race conditions
 		//       that on nexus devices can crash the app.
@@ -53,7 +61,8 @@ public class HistoryFragment extends ListFragment implements Events.EventsDataCh
 			if (textStatus != null) {
 				textStatus.setText(R.string.status_loading);
 			}
-			new LoadEventsTask().execute();
+			bLoadStatus = Constants.OPSTATUS_RUNNING;
+			eventItems.requestPage();
 		}
 
 		return view;
@@ -101,36 +110,26 @@ public class HistoryFragment extends ListFragment implements Events.EventsDataCh
 	}
 
  	
-	// for now, our background task will collect any 'session history' from the controller.
-	// this lets me do things, then show them in the list.
-	
 	/**
-	 * Background task for loading the Managed events list.
-	 * I use a background task because it could take awhile to load the events and build the list.
-	 * In the interim, a "Loading" message is displayed until the list loads, then when done loading,
-	 * the text message is removed.
+	 * Listener for when a page of events has been read. The events are read a page at a time, so only the 
+	 * first page needs to be read before the list is shown, no matter how many events are stored; 
+	 * further pages are read in the background as the list is scrolled (see the adapter's getView).
+	 * In the interim, a "Loading" message is displayed until the first page loads, then the text message is removed.
 	 */
-	private class LoadEventsTask extends AsyncTask<Void, Void, Void> {
-		protected void onPreExecute() {
-			bLoadStatus = Constants.OPSTATUS_RUNNING;
-		}
-		protected Void doInBackground(Void... params) {
-			LSLogger.debug(TAG, "Executing History load task on events instance=" + events.toString());
-			events.loadEvents(false);
-			LSLogger.debug(TAG, "History load task complete; events instance=" + events.toString());
-			return null;
-		}
-		protected void onPostExecute(Void result) {
-			bLoadStatus = Constants.OPSTATUS_COMPLETE;
-			//LSLogger.debug(TAG, "after events load task, notifying listAdapter instance " + listAdapter.toString());
-			if (textStatus != null) {
-				textStatus.setVisibility(View.GONE);
-				textStatus.setText("");
+	private class EventsPageListener implements PagedList.PageListener {
+		public void onPageLoaded(int count) {
+			if (bLoadStatus != Constants.OPSTATUS_COMPLETE) {
+				bLoadStatus = Constants.OPSTATUS_COMPLETE;
+				if (textStatus != null) {
+					textStatus.setVisibility(View.GONE);
+					textStatus.setText("");
+				}
+				LSLogger.debug(TAG, "first page of events read .. setting list adapter.");
+				setListAdapter(listAdapter);
+			} else {
+				listAdapter.notifyDataSetChanged();
 			}
-			LSLogger.debug(TAG, "onPostexecute .. setting list adapter.");
-			setListAdapter(listAdapter);	
 		}
-		
 	}
 	
     // Create runnable for posting from the onThreadComplete callback,
@@ -139,7 +138,10 @@ public class HistoryFragment extends ListFragment implements Events.EventsDataCh
 	    public void run() {
 	        //LSLogger.debug(TAG,"updateHandler running");
 	        try {
+	        	// re-read the events from the first page, so the new events are shown at the top:
+	        	eventItems.clear();
 	        	listAdapter.notifyDataSetChanged();
+	        	eventItems.requestPage();
 	        } catch (Exception ex) {
 	        	LSLogger.exception(TAG, "UpdateDataChange error.",ex);
 	        }
@@ -170,12 +172,12 @@ public class HistoryFragment extends ListFragment implements Events.EventsDataCh
      }
 
     /**
-     * The number of items in the list is determined by the number of items in the collection.
+     * The number of items in the list is the number of events read so far.
      *
      * @see android.widget.ListAdapter#getCount()
      */
     public int getCount() {
-        return  events.getEventsCount();
+        return  eventItems.getCount();
     }
 
     /**
@@ -184,7 +186,7 @@ public class HistoryFragment extends ListFragment implements Events.EventsDataCh
      * @see android.widget.ListAdapter#getItem(int)
      */
     public Object getItem(int position) {
-        return events.getEventAt(position);
+        return eventItems.getItem(position);
     }
 
     /**
@@ -238,8 +240,9 @@ public class HistoryFragment extends ListFragment implements Events.EventsDataCh
             holder = (EventViewHolder) convertView.getTag();
         }
 
-        // Bind the data efficiently with the holder.
-        Event event = events.getEventAt(position);
+        // Bind the data efficiently with the holder, reading the next page when getting near the end of the list.
+        eventItems.prefetch(position);
+        Event event = eventItems.getItem(position);
         if (event != null) {
         	//LSLogger.debug(TAG, "Event data at postion " + position + " event="+event.toString());
         	holder.text1.setText(event.toString());
@@ -58,7 +58,7 @@ public class HistoryView extends Activity {
      */
     public void onClearHistory(MenuItem item) {
     	Events events = Controller.getInstance().getEventsInstance();
-    	if (events.getEventsCount() > 0) {
+    	if (events.getStoredEventsCount() > 0) {
 	    	// prompt user before clearing.
 	    	AlertDialog.Builder builder = new AlertDialog.Builder(this);
 	    	builder.setTitle(R.string.clearhistory_confirm_title) 
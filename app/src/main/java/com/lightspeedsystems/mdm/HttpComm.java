@@ -4,14 +4,14 @@ package com.lightspeedsystems.mdm;
 
 import android.util.Pair;
 
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
+import com.lightspeedsystems.mdm.util.JsonUtil;
 import com.lightspeedsystems.mdm.util.LSLogger;
 
 import org.json.JSONObject;
@@ -20,6 +20,9 @@ import org.json.JSONObject;
  * Base HTTP/HTTPS communications support with HTTP servers. 
  * Handles GET and POST methods.
  * Uses HttpCommResponse for handling results data and errors.
+ * Request data is sent as UTF-8, gzip-compressed when it is at least gzipMinBytes long (only when the
+ *  server has turned this on with the SVR_GZIP_MINBYTES setting, since not all servers accept
+ *  compressed requests), and responses are requested gzip-compressed (HttpCommResponse decompresses them).
  * 
  * Note. In some places, an explicit check is made to see if logging is enabled. This is so that
  *  any data formatting of protected data is only needed and done for logging of results, and as
@@ -34,6 +37,10 @@ public class HttpComm {
 
 	private static int connectionTimeoutSecs = 15; // default server connection timeout, in seconds
 	private static int socketTimeoutSecs = 30; // default server data transfer timeout, in seconds
+	private static int poolMaxIdleConnections = HttpConnectionPool.DEFAULT_MAX_IDLE_CONNECTIONS; // 0 disables keep-alive
+	private static int poolKeepAliveSecs = (int)(HttpConnectionPool.DEFAULT_KEEPALIVE_MS / 1000); // idle connection lifetime, in seconds
+	public final static int DEFAULT_GZIP_MINBYTES = 0;  // requests are not compressed unless the server asks for it
+	private static int gzipMinBytes = DEFAULT_GZIP_MINBYTES; // smallest request data to compress; 0 to not compress requests
 	
 	private boolean bIncludeHeaderAuth = false;
 	private String authTokenKey = null;
@@ -60,14 +67,24 @@ public class HttpComm {
 	
 	/**
 	 * Initializes static configurable communications parameters from settings. 
-	 * Currently consists of: connection timeout value; data reading timeout value.
+	 * Currently consists of: connection timeout value; data reading timeout value; 
+	 * connection pool size and keep-alive time; request compression threshold.
 	 * @param settings instance of Settings to obtain values from.
 	 */
 	public static void initFromSettings(Settings settings) {
 		if (settings != null) {
-			connectionTimeoutSecs = settings.getSettingInt(Settings.SVRCONNECTTIMEOUT, connectionTimeoutSecs);
-			socketTimeoutSecs = settings.getSettingInt(Settings.SVRCONNECTREADTIMEOUT, socketTimeoutSecs);
+			Settings.Snapshot snap = settings.getSnapshot();
+			if (snap.connectTimeoutSecs >= 0)
+				connectionTimeoutSecs = snap.connectTimeoutSecs;
+			if (snap.readTimeoutSecs >= 0)
+				socketTimeoutSecs = snap.readTimeoutSecs;
+			if (snap.poolMaxIdleConnections >= 0)
+				poolMaxIdleConnections = snap.poolMaxIdleConnections;
+			if (snap.poolKeepAliveSecs >= 0)
+				poolKeepAliveSecs = snap.poolKeepAliveSecs;
+			gzipMinBytes = (snap.gzipMinBytes >= 0 ? snap.gzipMinBytes : DEFAULT_GZIP_MINBYTES);
 		}
+		HttpConnectionPool.getInstance().configure(poolMaxIdleConnections, poolKeepAliveSecs * 1000L);
 	}
 	
 	
@@ -288,36 +305,50 @@ public class HttpComm {
 
             if (jparams != null) {
                 postData = jparams.toString();
-                headers.add(new Pair<String, String>("Content-Type", "application/json"));
-                headers.add(new Pair<String, String>("Content-Length", Integer.toString(postData.length())));
-                headers.add(new Pair<String, String>("Content-Language", "en-US"));
+                headers.add(new Pair<String, String>("Content-Type", "application/json; charset=utf-8"));
 
                 if (LSLogger.isLoggingEnabled())
-                    LSLogger.debug(TAG, "-Post param json-data: " + Utils.filterProtectedContent(jparams.toString()));
+                    LSLogger.debug(TAG, "-Post param json-data: " + Utils.filterProtectedContent(postData));
             } else if (sparams != null) {
                 postData = sparams;
-                headers.add(new Pair<String, String>("Content-Type", "application/text"));
-                headers.add(new Pair<String, String>("Content-Length", Integer.toString(postData.length())));
-                headers.add(new Pair<String, String>("Content-Language", "en-US"));
+                headers.add(new Pair<String, String>("Content-Type", "application/text; charset=utf-8"));
 
                 if (LSLogger.isLoggingEnabled())
                     LSLogger.debug(TAG, "-Post param string-data: " + Utils.filterProtectedContent(sparams));
             }
 
+            byte[] postBytes = null;
+            int rawLength = 0;
+            if (postData != null) {
+                postBytes = postData.getBytes("UTF-8");
+                rawLength = postBytes.length;
+                if (gzipMinBytes > 0 && rawLength >= gzipMinBytes) {
+                    postBytes = gzip(postBytes);
+                    headers.add(new Pair<String, String>("Content-Encoding", "gzip"));
+                }
+                headers.add(new Pair<String, String>("Content-Length", Integer.toString(postBytes.length)));
+                headers.add(new Pair<String, String>("Content-Language", "en-US"));
+            }
+            headers.add(new Pair<String, String>("Accept-Encoding", "gzip"));
+
             LSLogger.debug(TAG, "-Executing Post request: " + serverUrl);
 
             if (doInstrument) responseData.instrumentSendStartTime();
-            InputStream inputStream = responseData.postUrlConnection(serverUrl, headers, postData);
+            InputStream inputStream = responseData.postUrlConnection(serverUrl, headers, postBytes, rawLength);
             if (doInstrument) responseData.instrumentSendEndTime();
             if (doInstrument) responseData.instrumentReadStartTime();
+            long readStartTime = Metrics.now();
             responseData.setResults(inputStream);
+            Metrics.getInstance().recordSince(Metrics.HTTP_READ, readStartTime);
             if (doInstrument) responseData.instrumentReadEndTime();
 
             if (LSLogger.isLoggingEnabled()) {
                 LSLogger.debug(TAG, "-Post Response =" + responseData.toString());
                 LSLogger.debug(TAG, "-Post data: " +
                         Utils.filterProtectedContent(responseData.getResultStr()));
-                LSLogger.debug(TAG, "-Post Response code =" + responseData.getResultCode());
+                LSLogger.debug(TAG, "-Post Response code =" + responseData.getResultCode()
+                        + " (bytes sent=" + responseData.getBytesSent() + "/" + responseData.getBytesSentUncompressed()
+                        + " received=" + responseData.getBytesReceived() + "/" + responseData.getBytesReceivedUncompressed() + ")");
             }
 
         }
@@ -327,6 +358,8 @@ public class HttpComm {
         finally {
             responseData.disconnectUrlConnection();
             if (doInstrument) responseData.instrumentEndTime();
+            if (LSLogger.isLoggingEnabled())
+                LSLogger.debug(TAG, "-Connection pool: " + HttpConnectionPool.getInstance().getStatisticsSummary());
         }
 
         return responseData.getResultCode();
@@ -369,12 +402,17 @@ public class HttpComm {
                     serverUrl += sparams;
             }
 
-            List<Pair<String,String>> headers = null;
+            List<Pair<String,String>> headers = new ArrayList<Pair<String,String>>();
             if (bIncludeHeaderAuth && authTokenKey != null) {
                 LSLogger.debug(TAG, "Set the GET auth header.");
-                headers = new ArrayList<Pair<String,String>>();
                 getAuthHeader(headers);
             }
+            headers.add(new Pair<String, String>("Accept-Encoding", "gzip"));
+            // conditional request: the server can answer 304 if the data has not changed.
+            if (responseData.getRequestETag() != null)
+                headers.add(new Pair<String, String>("If-None-Match", responseData.getRequestETag()));
+            if (responseData.getRequestLastModified() != null)
+                headers.add(new Pair<String, String>("If-Modified-Since", responseData.getRequestLastModified()));
 
             if (LSLogger.isLoggingEnabled())
                 LSLogger.debug(TAG, "-Executing New Get request: " +
@@ -385,10 +423,13 @@ public class HttpComm {
             InputStream inputStream = responseData.openUrlConnection(serverUrl,headers);
             if (doInstrument) responseData.instrumentSendEndTime();
             if (doInstrument) responseData.instrumentReadStartTime();
+            long readStartTime = Metrics.now();
             responseData.setResults(inputStream);
+            Metrics.getInstance().recordSince(Metrics.HTTP_READ, readStartTime);
             if (doInstrument) responseData.instrumentReadEndTime();
             if (LSLogger.isLoggingEnabled()) {
-                LSLogger.debug(TAG, "-Get Response =" + responseData.toString());
+                LSLogger.debug(TAG, "-Get Response =" + responseData.toString()
+                        + " (bytes received=" + responseData.getBytesReceived() + "/" + responseData.getBytesReceivedUncompressed() + ")");
                 //LSLogger.info(TAG, "-Get data: " + Utils.filterProtectedContent(responseData.getResultStr()));
             }
         }
@@ -398,6 +439,8 @@ public class HttpComm {
         finally {
             responseData.disconnectUrlConnection();
             if (doInstrument) responseData.instrumentEndTime();
+            if (LSLogger.isLoggingEnabled())
+                LSLogger.debug(TAG, "-Connection pool: " + HttpConnectionPool.getInstance().getStatisticsSummary());
         }
         return responseData.getResultCode();
     }
@@ -481,47 +524,36 @@ public class HttpComm {
 	 * written to the targetPath file.
 	 */
 	public HttpCommResponse downloadFile(String serverUrl, String targetPath) {
-		HttpCommResponse responseData = new HttpCommResponse(false);
-        boolean doInstrument = (responseData.isInstrumented());
-
-        if (doInstrument)
-            responseData.setTimeouts(connectionTimeoutSecs, socketTimeoutSecs);
+		return downloadFile(serverUrl, targetPath, null, null);
+	}
 
-        if (doInstrument) responseData.instrumentStartTime();
+	/**
+	 * Downloads a file from a server, continuing a partial download of the file if there is one,
+	 * and verifying the file's contents if the digest is given. See FileDownloader.
+	 * @param serverUrl URL to remote file
+	 * @param targetPath local file to save to
+	 * @param expectedSha256 SHA-256 digest (hex) the file must match, or null to not verify it.
+	 * @param progress listener for download progress and transfer rate; can be null.
+	 * @return HttpCommResponse with details of success or failure. Upon success, downloaded contents are
+	 * written to the targetPath file.
+	 */
+	public HttpCommResponse downloadFile(String serverUrl, String targetPath, String expectedSha256,
+										 ProgressCallbackInterface progress) {
         if (LSLogger.isLoggingEnabled())
-            LSLogger.debug(TAG, "Initiating new FileDownload-Get to server " + serverUrl
-                    + " (connect timeout="+Integer.toString(connectionTimeoutSecs)
-                    + " seconds; socket timeout="+Integer.toString(socketTimeoutSecs)+" seconds)");
-
-		InputStream inStream = responseData.openUrlConnection(serverUrl, null);
-		if (inStream != null) {
-			try {
-				FileOutputStream outStream = new FileOutputStream(targetPath);
-				try {
-					int bytesRead = -1;
-					byte[] buffer = new byte[4096];
-					while ((bytesRead = inStream.read(buffer)) != -1) {
-						outStream.write(buffer, 0, bytesRead);
-					}
-				} catch (IOException ioe) {
-				}
-
-				try {
-					outStream.close();
-				} catch (IOException ioe) {
-				}
-			} catch (FileNotFoundException fe) {
-
-			} finally {
-				try {
-					inStream.close();
-				} catch (IOException ioe) {
-				}
-				responseData.disconnectUrlConnection();
-			}
-
-            if (doInstrument) responseData.instrumentEndTime();
-        }
+            LSLogger.debug(TAG, "Initiating new FileDownload-Get to server " + Utils.filterProtectedContent(serverUrl)
+                    + (expectedSha256 != null ? " (verifying SHA-256)" : ""));
+
+		FileDownloader downloader = new FileDownloader(serverUrl, targetPath);
+		downloader.setExpectedSha256(expectedSha256);
+		downloader.setProgressListener(progress);
+		if (bIncludeHeaderAuth) {
+			List<Pair<String,String>> headers = new ArrayList<Pair<String,String>>();
+			getAuthHeader(headers);
+			downloader.setRequestHeaders(headers);
+		}
+		HttpCommResponse responseData = downloader.download();
+		if (responseData.hasException())
+			handleExceptions("GET", responseData.getException(), responseData);
 		return responseData;
 	}
 
@@ -593,37 +625,14 @@ public class HttpComm {
 	
 	/* Converts the given json to a set of string parameters, in the form of name=value&name2=value2 ...*/
 	private String jsonParamsToStringParams(JSONObject json) {
-		StringBuilder sb = new StringBuilder();
-		if (json != null) {
-			boolean first = true;
-			Iterator<?> iter = json.keys();
-			if (iter != null) {
-				while (iter.hasNext()) {
-					try {
-						String key = (String)iter.next();
-						String value = (String)json.getString(key);
-						if (value != null)  {
-							if (first) 
-								first = false;								
-							else
-								sb.append("&");
-							sb.append(key);
-							sb.append("=");
-							sb.append(value);
-						}
-					} catch (Exception jex) {
-						LSLogger.exception(TAG, jex);
-					}
-				}
-			}
-		}
-		return sb.toString();
+		return JsonUtil.toStringParams(json);
 	}
 	
 	/* Internal common exception/error handler. Helps identify specific possible exceptions so
 	 * they can be individually handled as desired. */
 	private void handleExceptions(String methodAction, Exception ex, HttpCommResponse resp) {
         LSLogger.exception(TAG, "HTTP " + methodAction + " Exception", ex);
+        Metrics.getInstance().increment(Metrics.HTTP_ERRORS);
         if (resp != null)
         	resp.setException(ex);
 
@@ -701,4 +710,13 @@ public class HttpComm {
     */
     
  
-}
\ No newline at end of file
+
+    // compresses data with gzip.
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+        GZIPOutputStream gzout = new GZIPOutputStream(bytes);
+        gzout.write(data);
+        gzout.close();
+        return bytes.toByteArray();
+    }
+}
@@ -4,18 +4,18 @@
 package com.lightspeedsystems.mdm;
 
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.FilterInputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import android.content.Context;
 import android.util.Pair;
@@ -28,6 +28,20 @@ import javax.net.ssl.HttpsURLConnection;
  */
 public class HttpCommResponse {
 
+	/**
+	 * Handler for reading a response's data directly from the response stream, instead of having
+	 * it read into the result string.
+	 */
+	public interface ResponseStreamHandler {
+		/**
+		 * Reads the response data. Called only for successful (200) responses.
+		 * @param stream response stream to read from.
+		 * @param response the response the stream belongs to.
+		 * @throws IOException if reading the stream fails.
+		 */
+		public void handleResponseStream(InputStream stream, HttpCommResponse response) throws IOException;
+	}
+
 	public final static int RESULTTYPE_TEXT = 1;
 	public final static int RESULTTYPE_JSON = 2;
 	public final static int RESULTTYPE_XML  = 3;
@@ -40,6 +54,8 @@ public class HttpCommResponse {
 	public final static int EXCEPTIONTYPE_ioerror 		 = 5;
 	public final static int EXCEPTIONTYPE_unknownHost    = 6;
 	public final static int EXCEPTIONTYPE_unknown = 0;
+
+	public final static int DEFAULT_GET_READTIMEOUT_MS = 5 * 1000;
 	
 	private Context context;
 	
@@ -50,8 +66,25 @@ public class HttpCommResponse {
 	private int exceptionType = EXCEPTIONTYPE_unknown;
 	private int httpConnectTimeout;
 	private int httpSocketTimeout;
+	private int readTimeoutMs = DEFAULT_GET_READTIMEOUT_MS; // GET data read timeout; longer for a long-poll
 	private boolean bIncludeResultStr;
+	private ResponseStreamHandler streamHandler; // when set, reads the response instead of extractResponseData.
     private URLConnection urlConnection;
+    private InputStream responseStream;    // response stream of the current connection; closed on release.
+    private boolean bConnectionFailed;     // true if the current connection had an error and cannot be reused.
+    // body byte counts of the last request: the request as sent and before compression, and the
+    // response as received and after decompression.
+    private long bytesSent;
+    private long bytesSentRaw;
+    private CountingInputStream receivedCounter;
+    private CountingInputStream receivedRawCounter;
+    // conditional request support: validators to send with a GET request (from an earlier response),
+    // and the validators received with the last OK response.
+    private String requestETag;
+    private String requestLastModified;
+    private String responseETag;
+    private String responseLastModified;
+    private int retryAfterSecs;            // Retry-After header of the last response, in seconds; 0 if none.
 	
 	// values used for instrumentation and diagnosis:
 	private boolean bEnableInstrumentation; // when true, want to keep track of these discrete steps.
@@ -74,6 +107,8 @@ public class HttpCommResponse {
 		resultStr = null;
 		exception = null;
 		exceptionType = EXCEPTIONTYPE_unknown;
+		responseETag = null;
+		responseLastModified = null;
 		if (instrumentation != null)
 			instrumentation = new HttpInstrumentation();
 	}
@@ -115,6 +150,19 @@ public class HttpCommResponse {
 		    resultStr.append(str);
 	}
 	
+	/**
+	 * Sets a handler to read the response data as it is received. When set, the response is
+	 * not stored in the result string.
+	 * @param handler handler to read the response stream, or null to read into the result string.
+	 */
+	public void setStreamHandler(ResponseStreamHandler handler) {
+		streamHandler = handler;
+	}
+
+	public ResponseStreamHandler getStreamHandler() {
+		return streamHandler;
+	}
+
 	public boolean hasException() {
 		return (exception != null);
 	}
@@ -139,6 +187,15 @@ public class HttpCommResponse {
 		httpConnectTimeout = connectionTimeoutSecs;
 		httpSocketTimeout  = connectionTimeoutSecs;
 	}
+
+	/**
+	 * Sets how long a GET waits for response data, such as for a long-poll request the server
+	 * holds open until it has data.
+	 * @param secs read timeout in seconds; 0 or less for the default.
+	 */
+	public void setReadTimeoutSecs(int secs) {
+		readTimeoutMs = (secs > 0 ? secs * 1000 : DEFAULT_GET_READTIMEOUT_MS);
+	}
 	
 	/**
 	 * Conveniece method for indicating a successful request response.
@@ -148,6 +205,48 @@ public class HttpCommResponse {
 		return (resultCode==200);
 	}
 
+	/**
+	 * Returns true if the server answered a conditional request with 304 Not Modified: the data
+	 * is the same as in the response the validators came from, and no data was returned.
+	 */
+	public boolean isNotModified() {
+		return (resultCode==HttpURLConnection.HTTP_NOT_MODIFIED);
+	}
+
+	/**
+	 * Makes the GET request conditional, so the server can answer 304 Not Modified instead of
+	 * returning the same data again. Pass in the validators from an earlier OK response.
+	 * @param etag ETag value of the earlier response, sent as If-None-Match; can be null.
+	 * @param lastModified Last-Modified value of the earlier response, sent as If-Modified-Since; can be null.
+	 */
+	public void setConditional(String etag, String lastModified) {
+		requestETag = etag;
+		requestLastModified = lastModified;
+	}
+
+	public String getRequestETag() {
+		return requestETag;
+	}
+
+	public String getRequestLastModified() {
+		return requestLastModified;
+	}
+
+	/** Gets the Retry-After time of the last response, in seconds; 0 if it had none. */
+	public int getRetryAfterSeconds() {
+		return retryAfterSecs;
+	}
+
+	/** Gets the ETag header of the last OK response, or null if it had none. */
+	public String getETag() {
+		return responseETag;
+	}
+
+	/** Gets the Last-Modified header of the last OK response, or null if it had none. */
+	public String getLastModified() {
+		return responseLastModified;
+	}
+
     /**
      * Extracts result data from the given Http Response. Reads the data from the response as needed.
      * @param httpResp
@@ -186,95 +285,236 @@ public class HttpCommResponse {
         } catch (IOException ioe ) {
 
         }
-        if (bIncludeResultStr)
+        retryAfterSecs = 0;
+        String retryAfter = urlConnection.getHeaderField("Retry-After");
+        if (retryAfter != null) {
+            try {
+                retryAfterSecs = Integer.parseInt(retryAfter.trim());
+            } catch (NumberFormatException nfex) {
+                // (http-date form is not used by our servers)
+            }
+        }
+        if (resultCode == HttpURLConnection.HTTP_OK) {
+            responseETag = urlConnection.getHeaderField("ETag");
+            responseLastModified = urlConnection.getHeaderField("Last-Modified");
+        } else {
+            responseETag = responseLastModified = null;
+        }
+        if (streamHandler != null) {
+            if (inputStream != null) {
+                try {
+                    streamHandler.handleResponseStream(inputStream, this);
+                } catch (Exception ex) {
+                    exception = ex;
+                    exceptionType = EXCEPTIONTYPE_ioerror;
+                    bConnectionFailed = true;
+                }
+            }
+        } else if (bIncludeResultStr)
             extractResponseData(inputStream, default_resulttype);
         return resultCode;
     }
 
+    /**
+     * Releases the connection used by the last request. When keep-alive is enabled in the
+     * HttpConnectionPool, the response stream is closed and the connection is left open so that
+     * it can be reused by the next request to the same server; otherwise (or if the connection had
+     * an error) the connection is disconnected.
+     */
     public void disconnectUrlConnection() {
         if (urlConnection == null) {
             return;
         }
-        if(urlConnection instanceof HttpsURLConnection) {
-            HttpsURLConnection httpsConnection = (HttpsURLConnection) urlConnection;
-            httpsConnection.disconnect();
-        } else {
-            HttpURLConnection httpConnection = (HttpURLConnection) urlConnection;
-            httpConnection.disconnect();
+        HttpConnectionPool pool = HttpConnectionPool.getInstance();
+        boolean bReusable = (pool.isKeepAliveEnabled() && !bConnectionFailed);
+        if (responseStream != null) {
+            try {
+                responseStream.close();
+            } catch (IOException ioe) {
+                bReusable = false;
+            }
+            responseStream = null;
+        }
+        if (!bReusable) {
+            if(urlConnection instanceof HttpsURLConnection) {
+                HttpsURLConnection httpsConnection = (HttpsURLConnection) urlConnection;
+                httpsConnection.disconnect();
+            } else {
+                HttpURLConnection httpConnection = (HttpURLConnection) urlConnection;
+                httpConnection.disconnect();
+            }
         }
+        pool.requestCompleted(urlConnection.getURL(), bReusable);
+        pool.addTransferBytes(bytesSent, bytesSentRaw, getBytesReceived(), getBytesReceivedUncompressed());
+        urlConnection = null;
+    }
+
+    /** Gets the number of request body bytes sent, after compression. */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /** Gets the number of request body bytes before compression. */
+    public long getBytesSentUncompressed() {
+        return bytesSentRaw;
+    }
+
+    /** Gets the number of response body bytes read, as received. */
+    public long getBytesReceived() {
+        return (receivedCounter == null ? 0 : receivedCounter.count);
+    }
+
+    /** Gets the number of response body bytes read, after decompression. */
+    public long getBytesReceivedUncompressed() {
+        return (receivedRawCounter == null ? 0 : receivedRawCounter.count);
+    }
+
+    // opens the connection, timing it; for a new https connection, this includes the tls handshake.
+    private void connect(URLConnection connection) throws IOException {
+        long startTime = Metrics.now();
+        connection.connect();
+        Metrics.getInstance().recordSince(Metrics.HTTP_CONNECT, startTime);
+    }
+
+    // resets the byte counts for a new request.
+    private void resetByteCounts() {
+        bytesSent = bytesSentRaw = 0;
+        receivedCounter = receivedRawCounter = null;
+    }
+
+    // wraps the response stream to count the bytes read, and to decompress it if the server
+    //  compressed it (when the request had an Accept-Encoding header; otherwise the connection
+    //  decompresses it itself).
+    private InputStream wrapResponseStream(InputStream inStream) throws IOException {
+        receivedCounter = new CountingInputStream(inStream);
+        InputStream stream = receivedCounter;
+        if ("gzip".equalsIgnoreCase(urlConnection.getContentEncoding()))
+            stream = new GZIPInputStream(stream);
+        receivedRawCounter = new CountingInputStream(stream);
+        return receivedRawCounter;
     }
 
     public InputStream openUrlConnection(String urlStr, List<Pair<String,String>> headers) {
 //		Log.d(Globals.appName,"openUrlConnection url is "+urlStr);
         InputStream inStream = null;
+        bConnectionFailed = false;
+        resetByteCounts();
 
         try {
             URL url = new URL(urlStr);
+            HttpConnectionPool.getInstance().requestStarted();
+            Metrics.getInstance().increment(Metrics.HTTP_REQUESTS);
             urlConnection = url.openConnection();
 
             if(urlConnection instanceof HttpsURLConnection) {
                 HttpsURLConnection httpsConnection = (HttpsURLConnection) urlConnection;
-				httpsConnection.setSSLSocketFactory(new TLSSocketFactory());
+                TLSSocketFactory socketFactory = HttpConnectionPool.getInstance().getSocketFactory();
+                if (socketFactory != null)
+                    httpsConnection.setSSLSocketFactory(socketFactory);
 //                httpsConnection.setInstanceFollowRedirects(true);
                 httpsConnection.setRequestMethod("GET");
-                httpsConnection.setReadTimeout(5 * 1000);
+                httpsConnection.setReadTimeout(readTimeoutMs);
                 if(headers != null) {
                     for (int i=0; i<headers.size();i++) {
                         httpsConnection.setRequestProperty(headers.get(i).first,headers.get(i).second);
                     }
                 }
 
+                connect(httpsConnection);
+                long ttfbStartTime = Metrics.now();
                 inStream = httpsConnection.getInputStream();
                 resultCode = httpsConnection.getResponseCode();
+                Metrics.getInstance().recordSince(Metrics.HTTP_TTFB, ttfbStartTime);
 
-                if (resultCode != HttpsURLConnection.HTTP_OK) {
+                if (resultCode != HttpsURLConnection.HTTP_OK && resultCode != HttpsURLConnection.HTTP_PARTIAL) {
                     inStream.close();
                     inStream = null;
+                } else {
+                    inStream = wrapResponseStream(inStream);
                 }
             } else {
                 HttpURLConnection httpConnection = (HttpURLConnection) urlConnection;
 //                httpConnection.setInstanceFollowRedirects(true);
                 httpConnection.setRequestMethod("GET");
-                httpConnection.setReadTimeout(5 * 1000);
+                httpConnection.setReadTimeout(readTimeoutMs);
                 if(headers != null) {
                     for (int i=0; i<headers.size();i++) {
                         httpConnection.setRequestProperty(headers.get(i).first,headers.get(i).second);
                     }
                 }
 
+                connect(httpConnection);
+                long ttfbStartTime = Metrics.now();
                 inStream = httpConnection.getInputStream();
 
                 resultCode = httpConnection.getResponseCode();
+                Metrics.getInstance().recordSince(Metrics.HTTP_TTFB, ttfbStartTime);
 
-                if (resultCode != HttpURLConnection.HTTP_OK) {
+                if (resultCode != HttpURLConnection.HTTP_OK && resultCode != HttpURLConnection.HTTP_PARTIAL) {
                     inStream.close();
                     inStream = null;
+                } else {
+                    inStream = wrapResponseStream(inStream);
                 }
             }
 
         } catch (MalformedURLException e) {
+            bConnectionFailed = true;
             e.printStackTrace();
         } catch (IOException e) {
+            bConnectionFailed = true;
             e.printStackTrace();
-        } catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		} catch (KeyManagementException e) {
-			e.printStackTrace();
-		}
+            // error responses (4xx, 5xx) throw from getInputStream; keep their code for the caller:
+            if (urlConnection instanceof HttpURLConnection) {
+                try {
+                    resultCode = ((HttpURLConnection) urlConnection).getResponseCode();
+                } catch (IOException ioe) {
+                    resultCode = 0;
+                }
+            }
+        }
 
+        responseStream = inStream;
 		return inStream;
     }
 
-    public InputStream postUrlConnection(String urlStr, List<Pair<String,String>> headers, String postData) {
+    /**
+     * Gets a header value from the response of the current connection.
+     * @param name name of the header, such as Content-Range.
+     * @return the header value, or null if not present or there is no connection.
+     */
+    public String getResponseHeader(String name) {
+        URLConnection conn = urlConnection;
+        return (conn == null ? null : conn.getHeaderField(name));
+    }
+
+    /**
+     * Posts data to the url, returning the response stream if the response is OK.
+     * @param urlStr url to post to.
+     * @param headers request headers; the Content-Type and any Content-Encoding are set by the caller.
+     * @param postData request body, already encoded (and compressed, if so); can be null for none.
+     * @param rawLength length of the body before compression, for the byte counts.
+     * @return the response stream, or null if the response was not OK or on error.
+     */
+    public InputStream postUrlConnection(String urlStr, List<Pair<String,String>> headers, byte[] postData, int rawLength) {
 //		Log.d(Globals.appName,"postUrlConnection url is "+urlStr);
         InputStream inStream = null;
+        bConnectionFailed = false;
+        resetByteCounts();
+        if (postData == null)
+            postData = new byte[0];
 
         try {
             URL url = new URL(urlStr);
+            HttpConnectionPool.getInstance().requestStarted();
+            Metrics.getInstance().increment(Metrics.HTTP_REQUESTS);
             urlConnection = url.openConnection();
 
             if(urlConnection instanceof HttpsURLConnection) {
                 HttpsURLConnection httpsConnection = (HttpsURLConnection) urlConnection;
+                TLSSocketFactory socketFactory = HttpConnectionPool.getInstance().getSocketFactory();
+                if (socketFactory != null)
+                    httpsConnection.setSSLSocketFactory(socketFactory);
 //                httpsConnection.setInstanceFollowRedirects(true);
                 httpsConnection.setRequestMethod("POST");
                 httpsConnection.setReadTimeout(5 * 1000);
@@ -287,18 +527,26 @@ public class HttpCommResponse {
                 httpsConnection.setUseCaches(false);
                 httpsConnection.setDoInput(true);
                 httpsConnection.setDoOutput(true);
+                httpsConnection.setFixedLengthStreamingMode(postData.length);
 
-                DataOutputStream wr = new DataOutputStream(httpsConnection.getOutputStream());
-                wr.writeBytes(postData);
+                connect(httpsConnection);
+                OutputStream wr = httpsConnection.getOutputStream();
+                wr.write(postData);
                 wr.flush();
                 wr.close();
+                bytesSent = postData.length;
+                bytesSentRaw = rawLength;
 
+                long ttfbStartTime = Metrics.now();
                 inStream = httpsConnection.getInputStream();
                 resultCode = httpsConnection.getResponseCode();
+                Metrics.getInstance().recordSince(Metrics.HTTP_TTFB, ttfbStartTime);
 
                 if (resultCode != HttpsURLConnection.HTTP_OK) {
                     inStream.close();
                     inStream = null;
+                } else {
+                    inStream = wrapResponseStream(inStream);
                 }
             } else {
                 HttpURLConnection httpConnection = (HttpURLConnection) urlConnection;
@@ -314,28 +562,39 @@ public class HttpCommResponse {
                 httpConnection.setUseCaches(false);
                 httpConnection.setDoInput(true);
                 httpConnection.setDoOutput(true);
+                httpConnection.setFixedLengthStreamingMode(postData.length);
 
-                DataOutputStream wr = new DataOutputStream(httpConnection.getOutputStream());
-                wr.writeBytes(postData);
+                connect(httpConnection);
+                OutputStream wr = httpConnection.getOutputStream();
+                wr.write(postData);
                 wr.flush();
                 wr.close();
+                bytesSent = postData.length;
+                bytesSentRaw = rawLength;
 
+                long ttfbStartTime = Metrics.now();
                 inStream = httpConnection.getInputStream();
 
                 resultCode = httpConnection.getResponseCode();
+                Metrics.getInstance().recordSince(Metrics.HTTP_TTFB, ttfbStartTime);
 
                 if (resultCode != HttpURLConnection.HTTP_OK) {
                     inStream.close();
                     inStream = null;
+                } else {
+                    inStream = wrapResponseStream(inStream);
                 }
             }
 
         } catch (MalformedURLException e) {
+            bConnectionFailed = true;
             e.printStackTrace();
         } catch (IOException e) {
+            bConnectionFailed = true;
             e.printStackTrace();
         }
 
+        responseStream = inStream;
         return inStream;
     }
 
@@ -406,7 +665,7 @@ public class HttpCommResponse {
     public void extractResponseData(InputStream inputStream, int resultTypeFormat) {
         if (inputStream != null) {
                 try {
-                    BufferedReader rdr = new BufferedReader(new InputStreamReader(inputStream));
+                    BufferedReader rdr = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
                     String inputLine;
                     int len = (int)urlConnection.getContentLength();
                     if (len <= 0)
@@ -532,6 +791,34 @@ public class HttpCommResponse {
 		return instrumentation.durationTotal;
 	}
 	
+	/**
+	 * Counts the bytes read through a stream.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		long count;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0)
+				count++;
+			return b;
+		}
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int n = super.read(buffer, offset, length);
+			if (n > 0)
+				count += n;
+			return n;
+		}
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+
 	private class HttpInstrumentation {
 		 long startTime;			// time when process started
 		 long timeSendStarted;   // time when request was sent
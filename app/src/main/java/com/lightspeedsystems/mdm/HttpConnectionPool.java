@@ -0,0 +1,299 @@
+package com.lightspeedsystems.mdm;
+
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+import com.lightspeedsystems.mdm.util.LSLogger;
+
+/**
+ * Process-wide HTTP/HTTPS connection pool support for HttpComm.
+ *
+ * The platform HttpURLConnection implementation already keeps idle keep-alive connections in a
+ * pool, but only if the connection is not disconnected and the response stream is fully read and
+ * closed. This class enables and bounds that pool (via the http.keepAlive, http.maxConnections and
+ * http.keepAliveDuration system properties), owns the single TLSSocketFactory used for all HTTPS
+ * requests (so the SSLContext's client session cache allows TLS session resumption), and keeps
+ * statistics about how connections are being reused.
+ *
+ * Statistics kept:
+ * hits - requests that were served on an already-open connection.
+ * misses - requests that had to open a new connection.
+ * evictions - idle routes that were dropped, either because they were idle longer than the
+ *  keep-alive duration or because the pool was at its maximum size.
+ * handshakes - number of TLS handshakes, how many of those resumed a prior session, and the
+ *  total and last handshake times.
+ */
+public class HttpConnectionPool {
+	private final static String TAG = "HttpConnectionPool";
+
+	public final static int  DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+	public final static long DEFAULT_KEEPALIVE_MS = 5 * 60 * 1000; // 5 minutes
+
+	private static volatile HttpConnectionPool poolInstance;
+
+	private int  maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+	private long keepAliveMs = DEFAULT_KEEPALIVE_MS;
+	private boolean bKeepAliveEnabled = true;
+
+	private volatile TLSSocketFactory tlsSocketFactory;  // one cached factory (and SSLContext) per process.
+
+	// idle routes (scheme://host:port), in least-recently-used order, and the time each was last released.
+	private LinkedHashMap<String,Long> idleRoutes;
+
+	// set by the socket factory when a new socket is created on the current request's thread.
+	private ThreadLocal<boolean[]> newSocketFlag = new ThreadLocal<boolean[]>() {
+		@Override
+		protected boolean[] initialValue() {
+			return new boolean[1];
+		}
+	};
+
+	// statistics:
+	private long statRequests;
+	private long statHits;
+	private long statMisses;
+	private long statEvictions;
+	private long statHandshakes;
+	private long statHandshakesResumed;
+	private long statHandshakeTotalMs;
+	private long statHandshakeLastMs;
+	// request and response body bytes, as sent/received and before compression/after decompression:
+	private long statBytesSent;
+	private long statBytesSentRaw;
+	private long statBytesReceived;
+	private long statBytesReceivedRaw;
+
+	/**
+	 * Gets the connection pool instance (as a singleton, creating it as needed).
+	 * @return the process's HttpConnectionPool.
+	 */
+	public static HttpConnectionPool getInstance() {
+		if (poolInstance == null) {
+			synchronized (HttpConnectionPool.class) {
+				if (poolInstance == null)
+					poolInstance = new HttpConnectionPool();
+			}
+		}
+		return poolInstance;
+	}
+
+	private HttpConnectionPool() {
+		idleRoutes = new LinkedHashMap<String,Long>(16, 0.75f, true);
+		applySystemProperties();
+	}
+
+	/**
+	 * Sets the pool limits. A maxIdle value of 0 disables keep-alive reuse, so every request
+	 * opens and closes its own connection.
+	 * @param maxIdle maximum number of idle connections kept open for reuse.
+	 * @param keepAliveMillis how long an idle connection is kept before being closed, in milliseconds.
+	 */
+	public synchronized void configure(int maxIdle, long keepAliveMillis) {
+		if (maxIdle >= 0)
+			maxIdleConnections = maxIdle;
+		if (keepAliveMillis > 0)
+			keepAliveMs = keepAliveMillis;
+		bKeepAliveEnabled = (maxIdleConnections > 0);
+		applySystemProperties();
+		trimIdleRoutes(System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns true if connections are to be kept open and reused after a request completes,
+	 * false if connections are to be disconnected after each request.
+	 */
+	public boolean isKeepAliveEnabled() {
+		return bKeepAliveEnabled;
+	}
+
+	/**
+	 * Gets the cached TLS socket factory, creating it the first time it is needed.
+	 * @return the process's TLSSocketFactory, or null if it could not be created.
+	 */
+	public TLSSocketFactory getSocketFactory() {
+		if (tlsSocketFactory == null) {
+			synchronized (this) {
+				if (tlsSocketFactory == null) {
+					try {
+						tlsSocketFactory = new TLSSocketFactory(this);
+					} catch (Exception ex) {
+						LSLogger.exception(TAG, "Error creating TLSSocketFactory:", ex);
+					}
+				}
+			}
+		}
+		return tlsSocketFactory;
+	}
+
+	/**
+	 * Called at the start of a request on the calling thread, before the connection is opened.
+	 */
+	protected void requestStarted() {
+		newSocketFlag.get()[0] = false;
+	}
+
+	/**
+	 * Called once a request's connection has been released. Updates the hit and miss counts.
+	 * @param url the url the request was sent to.
+	 * @param bReusable true if the connection was returned to the pool for reuse, false if it was closed.
+	 */
+	protected synchronized void requestCompleted(URL url, boolean bReusable) {
+		long now = System.currentTimeMillis();
+		String route = getRouteKey(url);
+		boolean[] flag = newSocketFlag.get();
+		trimIdleRoutes(now);
+
+		Long lastUsed = idleRoutes.remove(route);
+		boolean bHit;
+		if ("https".equalsIgnoreCase(url.getProtocol()))
+			bHit = !flag[0];  // we know for sure if a new TLS socket was created.
+		else
+			bHit = (lastUsed != null);
+		flag[0] = false;
+
+		statRequests++;
+		if (bHit)
+			statHits++;
+		else
+			statMisses++;
+
+		if (bReusable && bKeepAliveEnabled) {
+			idleRoutes.put(route, Long.valueOf(now));
+			trimIdleRoutes(now);
+		}
+	}
+
+	/**
+	 * Callback from the socket factory that a new socket is being opened on the current thread.
+	 * For SSL sockets, a listener is added to measure the handshake.
+	 * @param socket the new socket.
+	 */
+	protected void socketCreated(SSLSocket socket) {
+		newSocketFlag.get()[0] = true;
+		if (socket != null) {
+			final long createdTime = System.currentTimeMillis();
+			socket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+				@Override
+				public void handshakeCompleted(HandshakeCompletedEvent event) {
+					SSLSession session = event.getSession();
+					boolean bResumed = (session != null && session.getCreationTime() < createdTime);
+					handshakeCompleted(System.currentTimeMillis() - createdTime, bResumed);
+				}
+			});
+		}
+	}
+
+	private synchronized void handshakeCompleted(long durationMs, boolean bResumed) {
+		statHandshakes++;
+		if (bResumed)
+			statHandshakesResumed++;
+		statHandshakeLastMs = durationMs;
+		statHandshakeTotalMs += durationMs;
+		Metrics.getInstance().recordMillis(Metrics.HTTP_TLS, durationMs);
+	}
+
+	// removes idle routes that have expired or are over the maximum allowed; counts them as evictions.
+	private void trimIdleRoutes(long now) {
+		Iterator<Map.Entry<String,Long>> iter = idleRoutes.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String,Long> entry = iter.next();
+			if (idleRoutes.size() > maxIdleConnections || now - entry.getValue().longValue() > keepAliveMs) {
+				iter.remove();
+				statEvictions++;
+			}
+		}
+	}
+
+	// sets the platform's http connection pool values.
+	private void applySystemProperties() {
+		try {
+			System.setProperty("http.keepAlive", (bKeepAliveEnabled ? "true" : "false"));
+			System.setProperty("http.maxConnections", Integer.toString(Math.max(maxIdleConnections, 1)));
+			System.setProperty("http.keepAliveDuration", Long.toString(keepAliveMs));
+		} catch (Exception ex) {
+			LSLogger.exception(TAG, "Error setting http pool properties:", ex);
+		}
+	}
+
+	private static String getRouteKey(URL url) {
+		int port = url.getPort();
+		if (port < 0)
+			port = url.getDefaultPort();
+		return url.getProtocol() + "://" + url.getHost() + ":" + port;
+	}
+
+	// -- statistics --
+
+	public synchronized long getHitCount() {
+		return statHits;
+	}
+	public synchronized long getMissCount() {
+		return statMisses;
+	}
+	public synchronized long getEvictionCount() {
+		return statEvictions;
+	}
+	public synchronized long getHandshakeCount() {
+		return statHandshakes;
+	}
+	public synchronized long getResumedHandshakeCount() {
+		return statHandshakesResumed;
+	}
+	/** Gets the average TLS handshake time in milliseconds, or 0 if there have been no handshakes. */
+	public synchronized long getAverageHandshakeTime() {
+		return (statHandshakes == 0 ? 0 : statHandshakeTotalMs / statHandshakes);
+	}
+	public synchronized long getLastHandshakeTime() {
+		return statHandshakeLastMs;
+	}
+
+	/** Clears all the statistics values. */
+	public synchronized void resetStatistics() {
+		statRequests = statHits = statMisses = statEvictions = 0;
+		statHandshakes = statHandshakesResumed = statHandshakeTotalMs = statHandshakeLastMs = 0;
+		statBytesSent = statBytesSentRaw = statBytesReceived = statBytesReceivedRaw = 0;
+	}
+
+	/**
+	 * Gets a summary of the pool statistics, for logging and diagnostics.
+	 */
+	public synchronized String getStatisticsSummary() {
+		return "requests=" + statRequests + " hits=" + statHits + " misses=" + statMisses
+				+ " evictions=" + statEvictions + " idle=" + idleRoutes.size()
+				+ " handshakes=" + statHandshakes + " (resumed=" + statHandshakesResumed
+				+ " avg=" + getAverageHandshakeTime() + "ms last=" + statHandshakeLastMs + "ms)"
+				+ " sent=" + statBytesSent + "/" + statBytesSentRaw
+				+ " received=" + statBytesReceived + "/" + statBytesReceivedRaw;
+	}
+
+	/**
+	 * Adds the body bytes of a completed request to the statistics.
+	 * @param sent request bytes sent; sentRaw is the size before compression.
+	 * @param received response bytes received; receivedRaw is the size after decompression.
+	 */
+	protected synchronized void addTransferBytes(long sent, long sentRaw, long received, long receivedRaw) {
+		statBytesSent += sent;
+		statBytesSentRaw += sentRaw;
+		statBytesReceived += received;
+		statBytesReceivedRaw += receivedRaw;
+	}
+	public synchronized long getBytesSent() {
+		return statBytesSent;
+	}
+	public synchronized long getBytesSentUncompressed() {
+		return statBytesSentRaw;
+	}
+	public synchronized long getBytesReceived() {
+		return statBytesReceived;
+	}
+	public synchronized long getBytesReceivedUncompressed() {
+		return statBytesReceivedRaw;
+	}
+}
@@ -4,13 +4,11 @@ package com.lightspeedsystems.mdm;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.PrintWriter;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
 import com.lightspeedsystems.mdm.util.FileSaveDialog;
 import com.lightspeedsystems.mdm.util.LSLogger;
 import com.lightspeedsystems.mdm.util.LSLogger.LSLogItem;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
@@ -42,12 +40,13 @@ public class LoggingInfoView extends Activity implements LSLogger.LoggerDataChan
 	private BaseAdapter listAdapter;
 	private TextView textStatus;  // status text field, shown only when the list is getting created at the start.
 	private ListView listView;
-	private List<LSLogger.LSLogItem> logItems;
+	private PagedList<LSLogger.LSLogItem> logItems; // log items read so far; more are read as the list is scrolled.
 	private int bLoadStatus; 
 	private Handler updateHandler;
 	private LoggingInfoView viewInstance;
 
 	private static int filterLevel = LSLogger.LOGLEVEL_all; // filtering selection; we'll use a loglevel value for this.
+	private final static int EXPORT_PAGE_SIZE = 200; // number of log items read at a time when exporting the log.
 	
 	//   TextView mSearchText;
 	//   int mSortMode = -1;
@@ -58,7 +57,12 @@ public class LoggingInfoView extends Activity implements LSLogger.LoggerDataChan
     	super.onCreate(savedInstanceState);    
     	viewInstance = this;
     	setContentView(R.layout.logging_info);    	
-		logItems = new Vector<LSLogger.LSLogItem>(); // create an empty list, we need this for the data handler
+		logItems = new PagedList<LSLogger.LSLogItem>(new PagedList.PageReader<LSLogger.LSLogItem>() {
+			public int readPage(List<LSLogItem> list, DBStorage.PageKey after, int limit) {
+				return LSLogger.getLogItemsPage(list, LSLogger.LOGORDER_Descending, filterLevel, after, limit);
+			}
+		}, PagedList.DEFAULT_PAGE_SIZE);
+		logItems.setPageListener(new LoggerPageListener());
 		textStatus = (TextView)findViewById(R.id.textStatus);
 		listView = (ListView)findViewById(R.id.listView);
 		listAdapter = new LoggerListAdapter(this);
@@ -96,13 +100,15 @@ public class LoggingInfoView extends Activity implements LSLogger.LoggerDataChan
 	// Used to load the initial list and to refresh (reload) the list as needed.
 	private void loadLoggingList() {
 		logItems.clear();
+		bLoadStatus = Constants.OPSTATUS_RUNNING;
+		listAdapter.notifyDataSetChanged();
 		if (textStatus != null) {
 			textStatus.setVisibility(View.VISIBLE);
 			textStatus.setText(R.string.status_loading);
 			textStatus.invalidate();
 		}
 		listView.invalidate();
-		new LoadLoggerDataTask().execute();
+		logItems.requestPage();
 	}
 
     @Override
@@ -324,12 +330,16 @@ public class LoggingInfoView extends Activity implements LSLogger.LoggerDataChan
 			     pw.println(LSLogger.LSLogItem.getExportedLogHeader());
 			     pw.println(logseparator);
 			     
-			     // print out each items:
-			     Iterator<LSLogger.LSLogItem> iter = logItems.iterator();
-			     while (iter.hasNext()) {
-			    	 LSLogger.LSLogItem item = iter.next();
-			    	 pw.println(item.toLogExportString());
-			     }
+			     // print out each item, reading the items a page at a time:
+			     Vector<LSLogger.LSLogItem> page = new Vector<LSLogger.LSLogItem>(EXPORT_PAGE_SIZE);
+			     DBStorage.PageKey key = new DBStorage.PageKey();
+			     int count;
+			     do {
+			    	 page.clear();
+			    	 count = LSLogger.getLogItemsPage(page, LSLogger.LOGORDER_Descending, filterLevel, key, EXPORT_PAGE_SIZE);
+			    	 for (int i=0; i<page.size(); i++)
+			    		 pw.println(page.get(i).toLogExportString());
+			     } while (count == EXPORT_PAGE_SIZE);
 			     
 			     // print footer:
 			     pw.println(logseparator);
@@ -356,7 +366,7 @@ public class LoggingInfoView extends Activity implements LSLogger.LoggerDataChan
      * @param item
      */
     public void onClearLog(MenuItem item) {
-    	 if (logItems != null && logItems.size() > 0) {
+    	 if (logItems != null && logItems.getCount() > 0) {
 	    	// prompt user before clearing.
 	    	AlertDialog.Builder builder = new AlertDialog.Builder(this);
 	    	builder.setTitle(R.string.clearlog_confirm_title) 
@@ -369,9 +379,8 @@ public class LoggingInfoView extends Activity implements LSLogger.LoggerDataChan
 	    	builder.setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
 	    	           public void onClick(DialogInterface dialog, int id) {
 	    	        	   // User clicked YES button; clear the current list and delete all stored log entries:
-	    	        	   logItems.clear();
 	    	        	   LSLogger.clearLogs();
-	    	        	   listAdapter.notifyDataSetChanged();
+	    	        	   loadLoggingList();
 	    	        	   //listView.invalidateViews();
 	    	           }
 	    	       });
@@ -409,35 +418,24 @@ public class LoggingInfoView extends Activity implements LSLogger.LoggerDataChan
 
     
 	/**
-	 * Background task for loading the persisted Logs list data.
-	 * I use a background task because it could take awhile to load and build the list.
-	 * In the interim, a "Loading" message is displayed until the list loads, then when done loading,
-	 * the text message is removed.
+	 * Listener for when a page of the persisted Logs list data has been read.
+	 * The log items are read a page at a time, so only the first page needs to be read before the list
+	 * is shown, no matter how many items are stored; further pages are read in the background as the list 
+	 * is scrolled (see the adapter's getView). In the interim, a "Loading" message is displayed until the 
+	 * first page loads, then the text message is removed.
 	 */
-	private class LoadLoggerDataTask extends AsyncTask<Void, Void, Void> {
-		protected void onPreExecute() {
-			bLoadStatus = Constants.OPSTATUS_RUNNING;
-		}
-		protected Void doInBackground(Void... params) {
-			//LSLogger.info(TAG, "executing logger load task... ", false);
-			if (filterLevel > LSLogger.LOGLEVEL_none  &&  filterLevel < LSLogger.LOGLEVEL_all)
-				logItems = LSLogger.getLogItemsForMsgLevel(LSLogger.LOGORDER_Descending, filterLevel);
-			else // default to getting all the items
-				logItems = LSLogger.getLogItems(LSLogger.LOGORDER_Descending);
-			return null;
-		}
-		protected void onPostExecute(Void result) {
-			bLoadStatus = Constants.OPSTATUS_COMPLETE;
-			//LSLogger.info(TAG, "after logger load task, notifying listAdapter instance " + listAdapter.toString());
-			if (textStatus != null) {
-				textStatus.setVisibility(View.GONE);
-				textStatus.setText("");
-				textStatus.invalidate();
+	private class LoggerPageListener implements PagedList.PageListener {
+		public void onPageLoaded(int count) {
+			if (bLoadStatus != Constants.OPSTATUS_COMPLETE) {
+				bLoadStatus = Constants.OPSTATUS_COMPLETE;
+				if (textStatus != null) {
+					textStatus.setVisibility(View.GONE);
+					textStatus.setText("");
+					textStatus.invalidate();
+				}
+				LSLogger.getInstance().registerDataChangeListener(viewInstance);
 			}
-			
-			//listAdapter.notifyDataSetChanged();
-			listView.invalidate();//Views();
-			LSLogger.getInstance().registerDataChangeListener(viewInstance);
+			listAdapter.notifyDataSetChanged();
 		}
 	}
 	
@@ -468,9 +466,12 @@ public class LoggingInfoView extends Activity implements LSLogger.LoggerDataChan
     	}
         public void run() {
             try {
-            	// default to LSLogger.LOGORDER_Descending  order by inserting at the top of the list:
-            	logItems.add(0, logItem);
-            	listAdapter.notifyDataSetChanged();
+            	// default to LSLogger.LOGORDER_Descending  order by inserting at the top of the list;
+            	//  while the first page is being read, the item is included in that page instead.
+            	if (bLoadStatus == Constants.OPSTATUS_COMPLETE) {
+            		logItems.addFirst(logItem);
+            		listAdapter.notifyDataSetChanged();
+            	}
             } catch (Exception ex) {
             	LSLogger.exception(TAG, "UpdateDataChange error.",ex, false);
             }
@@ -511,14 +512,14 @@ public class LoggingInfoView extends Activity implements LSLogger.LoggerDataChan
        }
 
       /**
-       * The number of items in the list is determined by the number of log items loaded.
+       * The number of items in the list is determined by the number of log items read so far.
        * Note that if the list is loading, we return a count of 0; this prevents some strange
        * timing issues on some devices (such as nexus7).
        */
       public int getCount() {
     	  if (bLoadStatus != Constants.OPSTATUS_COMPLETE)
     		  return 0;
-          return logItems.size();
+          return logItems.getCount();
       }
 
       /**
@@ -530,7 +531,7 @@ public class LoggingInfoView extends Activity implements LSLogger.LoggerDataChan
        * @see android.widget.ListAdapter#getItem(int)
        */
       public Object getItem(int position) {
-          return logItems.get(position);
+          return logItems.getItem(position);
       }
 
       /**
@@ -577,8 +578,9 @@ public class LoggingInfoView extends Activity implements LSLogger.LoggerDataChan
               holder = (AppViewHolder) convertView.getTag();
           }
 
-          // Bind the data efficiently with the holder.
-          LSLogger.LSLogItem item = logItems.get(position);
+          // Bind the data efficiently with the holder, reading the next page when getting near the end of the list.
+          logItems.prefetch(position);
+          LSLogger.LSLogItem item = logItems.getItem(position);
           if (item != null) {
           	holder.textMsg.setText(item.getMessage());
           	holder.textID.setText(item.getIdentifier());          	
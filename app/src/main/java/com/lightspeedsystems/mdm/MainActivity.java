@@ -224,6 +224,7 @@ public class MainActivity extends Activity implements ProgressCallbackInterface,
         super.onResume();
         LSLogger.debug(TAG, "resuming activity");
         bIsActive = true;
+        controller.setForeground(true);
         try {
         	//clearToast();
 	        setLoginState();
@@ -241,6 +242,7 @@ public class MainActivity extends Activity implements ProgressCallbackInterface,
     protected void onPause() {
         super.onPause();
         bIsActive = false;
+        controller.setForeground(false);
     }
     
     // if any Toast messages were popped, this makes sure they don't get reshown.
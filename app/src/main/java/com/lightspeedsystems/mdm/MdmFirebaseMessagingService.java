@@ -37,6 +37,9 @@ public class MdmFirebaseMessagingService  extends FirebaseMessagingService{
     public void onMessageReceived(RemoteMessage remoteMessage) {
 
         if(remoteMessage != null) {
+            Metrics.getInstance().increment(Metrics.FCM_RECEIVED);
+            if (remoteMessage.getSentTime() > 0)  // (wall-clock times, since the time is from the server)
+                Metrics.getInstance().recordMillis(Metrics.FCM_DELIVERY, System.currentTimeMillis() - remoteMessage.getSentTime());
             String msg = remoteMessage.getData().toString();
             LSLogger.debug(TAG, "onMessageReceived  getData "+remoteMessage.getData().toString());
             if(remoteMessage.getNotification() != null) {
@@ -88,6 +91,7 @@ public class MdmFirebaseMessagingService  extends FirebaseMessagingService{
 
          if (controller != null && !controller.isMdmReady() && controller.isSystemReady()) {
              LSLogger.debug(TAG, "Waiting for controller to initialize.");
+             long startTime = Metrics.now();
              // controller was just created, so we need to give it a little time to get ready.
              for (int i=10; i>0 && !controller.isMdmReady(); i--) {
                  try {
@@ -96,6 +100,7 @@ public class MdmFirebaseMessagingService  extends FirebaseMessagingService{
                      LSLogger.exception(TAG, "notifyController wait exception:", ex);
                  }
              }
+             Metrics.getInstance().recordSince(Metrics.FCM_CONTROLLERWAIT, startTime);
              if (!controller.isMdmReady())
                  LSLogger.warn(TAG, "Controller is not ready. GCM message may be ignored.");
          }
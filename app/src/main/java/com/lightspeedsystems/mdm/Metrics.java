@@ -0,0 +1,263 @@
+package com.lightspeedsystems.mdm;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.JSONObject;
+
+import android.os.SystemClock;
+
+import com.lightspeedsystems.mdm.util.LSLogger;
+
+/**
+ * Always-on registry of counters, gauges, and latency histograms, for finding where time goes
+ * in the command pipeline (GCM receipt, task queue waits, http requests, command processing, and
+ * database writes) on a device.
+ *
+ * Times are taken with SystemClock.elapsedRealtimeNanos (use now() to start a measurement), so they
+ * are not affected by clock changes. Histograms keep counts in log-linear buckets (4 per power of
+ * 2 microseconds, so percentiles are within about 20%), in a fixed array, so recording a value
+ * does not allocate. Values are kept from app start; a snapshot is sent with each check-in and can
+ * be viewed from the diagnostics list.
+ */
+public class Metrics {
+	private final static String TAG = "Metrics";
+
+	// metric names:
+	public final static String FCM_RECEIVED      = "fcm.received";       // counter
+	public final static String FCM_DELIVERY      = "fcm.delivery";       // time from the server sending a message to receiving it
+	public final static String FCM_CONTROLLERWAIT= "fcm.controllerwait"; // time waiting for the controller to be ready
+	public final static String TASK_QUEUEWAIT    = "task.queuewait";     // time a task waited to be run
+	public final static String TASK_RUN          = "task.run";
+	public final static String TASKS_WAITING     = "task.waiting";       // gauge
+	public final static String HTTP_REQUESTS     = "http.requests";      // counter
+	public final static String HTTP_ERRORS       = "http.errors";        // counter
+	public final static String HTTP_CONNECT      = "http.connect";       // time to connect, including tls; near 0 for a reused connection
+	public final static String HTTP_TLS          = "http.tls";           // tls handshake time, from socket creation
+	public final static String HTTP_TTFB         = "http.ttfb";          // time from connected to the response headers
+	public final static String HTTP_READ         = "http.read";          // time reading the response data
+	public final static String JSON_PARSE        = "json.parse";         // time parsing each command from a response
+	public final static String CMD_PREFIX        = "cmd.";               // command processing time, by command name
+	public final static String DB_WRITE          = "db.write";
+
+	private final static int MAX_METRICS = 100;  // limit on the number of names, in case of unexpected names
+	private final static int SUB_BUCKETS = 4;    // buckets per power of 2
+	private final static int BUCKET_COUNT = SUB_BUCKETS + 40 * SUB_BUCKETS; // up to 2^42 microseconds (about 50 days)
+
+	private static Metrics instance;
+
+	private final long startTime = SystemClock.elapsedRealtimeNanos();
+	private final TreeMap<String,long[]> counters = new TreeMap<String,long[]>();
+	private final TreeMap<String,long[]> gauges = new TreeMap<String,long[]>();
+	private final TreeMap<String,Histogram> histograms = new TreeMap<String,Histogram>();
+	private boolean bFullLogged;
+
+	/**
+	 * Counts of latency values, in microseconds, in log-linear buckets.
+	 */
+	private static class Histogram {
+		final long[] buckets = new long[BUCKET_COUNT];
+		long count;
+		long sumMicros;
+		long maxMicros;
+
+		void record(long micros) {
+			if (micros < 0)
+				micros = 0;
+			buckets[getBucket(micros)]++;
+			count++;
+			sumMicros += micros;
+			if (micros > maxMicros)
+				maxMicros = micros;
+		}
+
+		// gets the value (microseconds) at the given percentile: the upper end of its bucket.
+		long getPercentile(int pct) {
+			long target = (count * pct + 99) / 100;
+			long seen = 0;
+			for (int i=0; i<buckets.length; i++) {
+				seen += buckets[i];
+				if (seen >= target && seen > 0)
+					return Math.min(getBucketLimit(i), maxMicros);
+			}
+			return maxMicros;
+		}
+
+		static int getBucket(long micros) {
+			if (micros < SUB_BUCKETS)
+				return (int) micros;
+			int exp = 63 - Long.numberOfLeadingZeros(micros);  // >= 2
+			int sub = (int) (micros >> (exp - 2)) & (SUB_BUCKETS - 1);
+			return Math.min(SUB_BUCKETS + (exp - 2) * SUB_BUCKETS + sub, BUCKET_COUNT - 1);
+		}
+
+		static long getBucketLimit(int bucket) {
+			if (bucket < SUB_BUCKETS)
+				return bucket;
+			int exp = (bucket - SUB_BUCKETS) / SUB_BUCKETS + 2;
+			int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+			return ((long)(SUB_BUCKETS + sub + 1) << (exp - 2)) - 1;
+		}
+	}
+
+	/**
+	 * Gets the singleton instance.
+	 */
+	public static Metrics getInstance() {
+		if (instance == null) {
+			synchronized (Metrics.class) {
+				if (instance == null)
+					instance = new Metrics();
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Gets the current time in nanoseconds, for starting a measurement; see recordSince.
+	 */
+	public static long now() {
+		return SystemClock.elapsedRealtimeNanos();
+	}
+
+	/** Adds 1 to a counter. */
+	public void increment(String name) {
+		add(name, 1);
+	}
+
+	/** Adds to a counter. */
+	public synchronized void add(String name, long amount) {
+		long[] value = counters.get(name);
+		if (value == null) {
+			if (isFull())
+				return;
+			value = new long[1];
+			counters.put(name, value);
+		}
+		value[0] += amount;
+	}
+
+	/** Sets a gauge to its current value. */
+	public synchronized void setGauge(String name, long amount) {
+		long[] value = gauges.get(name);
+		if (value == null) {
+			if (isFull())
+				return;
+			value = new long[1];
+			gauges.put(name, value);
+		}
+		value[0] = amount;
+	}
+
+	/**
+	 * Records the time since a measurement started.
+	 * @param name histogram name.
+	 * @param startNanos start time, from now().
+	 */
+	public void recordSince(String name, long startNanos) {
+		recordNanos(name, now() - startNanos);
+	}
+
+	/** Records a time, in milliseconds. */
+	public void recordMillis(String name, long millis) {
+		recordNanos(name, millis * 1000000L);
+	}
+
+	/** Records a time, in nanoseconds. */
+	public synchronized void recordNanos(String name, long nanos) {
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			if (isFull())
+				return;
+			histogram = new Histogram();
+			histograms.put(name, histogram);
+		}
+		histogram.record(nanos / 1000);
+	}
+
+	private boolean isFull() {
+		if (counters.size() + gauges.size() + histograms.size() < MAX_METRICS)
+			return false;
+		if (!bFullLogged) {  // (only once; logging writes to the database, which records a metric)
+			bFullLogged = true;
+			LSLogger.warn(TAG, "Too many metrics; ignoring new names.");
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the current values, for sending to the server: counters and gauges by name, and for each
+	 * histogram its count, and mean, median, 90th and 99th percentile, and maximum times in ms.
+	 */
+	public synchronized JSONObject getSnapshot() {
+		JSONObject jmetrics = new JSONObject();
+		try {
+			jmetrics.put("uptime_secs", (now() - startTime) / 1000000000L);
+			jmetrics.put("counters", toJson(counters));
+			jmetrics.put("gauges", toJson(gauges));
+			JSONObject jlatency = new JSONObject();
+			Iterator<Map.Entry<String,Histogram>> iter = histograms.entrySet().iterator();
+			while (iter.hasNext()) {
+				Map.Entry<String,Histogram> entry = iter.next();
+				Histogram histogram = entry.getValue();
+				JSONObject jhist = new JSONObject();
+				jhist.put("n", histogram.count);
+				jhist.put("mean", toMillis(histogram.count > 0 ? histogram.sumMicros / histogram.count : 0));
+				jhist.put("p50", toMillis(histogram.getPercentile(50)));
+				jhist.put("p90", toMillis(histogram.getPercentile(90)));
+				jhist.put("p99", toMillis(histogram.getPercentile(99)));
+				jhist.put("max", toMillis(histogram.maxMicros));
+				jlatency.put(entry.getKey(), jhist);
+			}
+			jmetrics.put("latency_ms", jlatency);
+		} catch (Exception ex) {
+			LSLogger.exception(TAG, "getSnapshot error:", ex);
+		}
+		return jmetrics;
+	}
+
+	/**
+	 * Gets the current values as text, one per line, for display.
+	 */
+	public synchronized String getSummary() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Uptime: ").append((now() - startTime) / 1000000000L).append(" s\n");
+		Iterator<Map.Entry<String,long[]>> values = counters.entrySet().iterator();
+		while (values.hasNext()) {
+			Map.Entry<String,long[]> entry = values.next();
+			sb.append(entry.getKey()).append(": ").append(entry.getValue()[0]).append('\n');
+		}
+		values = gauges.entrySet().iterator();
+		while (values.hasNext()) {
+			Map.Entry<String,long[]> entry = values.next();
+			sb.append(entry.getKey()).append(" = ").append(entry.getValue()[0]).append('\n');
+		}
+		Iterator<Map.Entry<String,Histogram>> iter = histograms.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String,Histogram> entry = iter.next();
+			Histogram histogram = entry.getValue();
+			sb.append(entry.getKey()).append(": n=").append(histogram.count)
+			  .append(" p50=").append(toMillis(histogram.getPercentile(50)))
+			  .append(" p90=").append(toMillis(histogram.getPercentile(90)))
+			  .append(" p99=").append(toMillis(histogram.getPercentile(99)))
+			  .append(" max=").append(toMillis(histogram.maxMicros)).append(" ms\n");
+		}
+		return sb.toString();
+	}
+
+	private static JSONObject toJson(TreeMap<String,long[]> values) throws Exception {
+		JSONObject jvalues = new JSONObject();
+		Iterator<Map.Entry<String,long[]>> iter = values.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String,long[]> entry = iter.next();
+			jvalues.put(entry.getKey(), entry.getValue()[0]);
+		}
+		return jvalues;
+	}
+
+	// converts microseconds to milliseconds, to 0.1 ms.
+	private static double toMillis(long micros) {
+		return Math.round(micros / 100.0) / 10.0;
+	}
+}
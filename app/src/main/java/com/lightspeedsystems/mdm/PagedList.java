@@ -0,0 +1,183 @@
+package com.lightspeedsystems.mdm;
+
+import java.util.List;
+import java.util.Vector;
+
+import android.os.AsyncTask;
+
+import com.lightspeedsystems.mdm.util.LSLogger;
+
+/**
+ * List of items read from the database a page at a time, for list views of tables that can be large.
+ *
+ * Only the first page is read when the list is shown; further pages are read in the background as
+ * the user scrolls toward the end of the items read so far (see prefetch). Pages are read by key,
+ * using a PageReader, so each page takes the same time to read regardless of the size of the table.
+ * This is meant to be used from the UI thread: the items are only changed on the UI thread, and the
+ * listener is called on the UI thread after each page is added.
+ */
+public class PagedList<T> {
+	private final static String TAG = "PagedList";
+
+	public final static int DEFAULT_PAGE_SIZE = 50;
+
+	/**
+	 * Reads a page of items.
+	 */
+	public interface PageReader<T> {
+		/**
+		 * Reads the page of items that follows the key, setting the key to the last item read.
+		 * This is called from a background thread.
+		 * @param list list to add the items to.
+		 * @param after key of the last item of the previous page; not set for the first page.
+		 * @param limit maximum number of items to read.
+		 * @return number of items read, or -1 if error.
+		 */
+		public int readPage(List<T> list, DBStorage.PageKey after, int limit);
+	}
+
+	/**
+	 * Callback for when a page has been added to the list.
+	 */
+	public interface PageListener {
+		/**
+		 * Called on the UI thread after a page has been read and added to the list.
+		 * @param count number of items in the page.
+		 */
+		public void onPageLoaded(int count);
+	}
+
+	private PageReader<T> reader;
+	private PageListener listener;
+	private Vector<T> items;
+	private DBStorage.PageKey key;
+	private int pageSize;
+	private boolean bMore;      // true if there could be more items after the ones read
+	private boolean bLoading;   // true while a page is being read
+	private int generation;     // incremented when the list is cleared, so pages being read for the old list are ignored
+
+	public PagedList(PageReader<T> reader, int pageSize) {
+		this.reader = reader;
+		this.pageSize = (pageSize > 0 ? pageSize : DEFAULT_PAGE_SIZE);
+		items = new Vector<T>(this.pageSize);
+		key = new DBStorage.PageKey();
+		bMore = true;
+	}
+
+	/** Sets the listener to call when a page has been added. */
+	public void setPageListener(PageListener listener) {
+		this.listener = listener;
+	}
+
+	/** Gets the number of items read so far. */
+	public int getCount() {
+		return items.size();
+	}
+
+	/**
+	 * Gets an item that has been read.
+	 * @param position 0-based position in the list.
+	 * @return the item, or null if the position is beyond the items read.
+	 */
+	public T getItem(int position) {
+		if (position < 0 || position >= items.size())
+			return null;
+		return items.get(position);
+	}
+
+	/** Returns true if there could be more items to read. */
+	public boolean hasMore() {
+		return bMore;
+	}
+
+	/** Returns true if a page is being read. */
+	public boolean isLoading() {
+		return bLoading;
+	}
+
+	/**
+	 * Adds an item to the start of the list, such as an item created after the list was read.
+	 * @param item item to add.
+	 */
+	public void addFirst(T item) {
+		items.insertElementAt(item, 0);
+	}
+
+	/**
+	 * Removes all the items, so that reading starts over at the first page. Any page being read
+	 * for the previous items is discarded.
+	 */
+	public void clear() {
+		generation++;
+		items.clear();
+		key.reset();
+		bMore = true;
+		bLoading = false;
+	}
+
+	/**
+	 * Starts reading the next page in the background, if there could be more items and no page is
+	 * already being read.
+	 * @return true if a page is being read.
+	 */
+	public boolean requestPage() {
+		if (!bLoading && bMore) {
+			bLoading = true;
+			new LoadPageTask(generation, new DBStorage.PageKey(key)).execute();
+		}
+		return bLoading;
+	}
+
+	/**
+	 * Starts reading the next page if the given position is within half a page of the end of the
+	 * items read so far. Call this as items are shown, such as from an adapter's getView.
+	 * @param position position of the item being shown.
+	 */
+	public void prefetch(int position) {
+		if (position >= items.size() - pageSize / 2)
+			requestPage();
+	}
+
+	// adds a page read in the background to the list, unless the list was cleared while it was read.
+	private void addPage(int pageGeneration, Vector<T> page, DBStorage.PageKey pageKey, int count) {
+		if (pageGeneration != generation)
+			return;
+		bLoading = false;
+		if (count < 0) {
+			bMore = false;  // stop reading on errors, rather than retrying on every scroll
+		} else {
+			items.addAll(page);
+			key = pageKey;
+			bMore = (count >= pageSize);
+		}
+		if (listener != null)
+			listener.onPageLoaded(count);
+	}
+
+	/**
+	 * Background task for reading a page.
+	 */
+	private class LoadPageTask extends AsyncTask<Void, Void, Integer> {
+		private int taskGeneration;
+		private DBStorage.PageKey taskKey;
+		private Vector<T> page;
+
+		public LoadPageTask(int generation, DBStorage.PageKey key) {
+			taskGeneration = generation;
+			taskKey = key;
+			page = new Vector<T>(pageSize);
+		}
+		protected Integer doInBackground(Void... params) {
+			int count = -1;
+			try {
+				count = reader.readPage(page, taskKey, pageSize);
+			} catch (Exception ex) {
+				LSLogger.exception(TAG, "ReadPage error: ", ex);
+			}
+			return Integer.valueOf(count);
+		}
+		protected void onPostExecute(Integer count) {
+			addPage(taskGeneration, page, taskKey, count.intValue());
+		}
+	}
+}
@@ -68,7 +68,7 @@ public class ServerComm extends HttpComm {
 	private boolean resolveErrors(HttpCommResponse resp) {
 		boolean bresolved = false;
 		
-		if (resp != null && !resp.isOK()) {
+		if (resp != null && !resp.isOK() && !resp.isNotModified()) {
 			// handle connection errors due to wifi turned off...
 			LSLogger.debug(TAG, "Resolving http error: exceptiontype=" +resp.getExceptionType()+" resultcode="+ resp.getResultCode());			
 
@@ -3,6 +3,8 @@ package com.lightspeedsystems.mdm;
 
 /**
  * Provides specific URLs to the MDM server, keeping all the url definitions in one place: here.
+ * URLs that only depend on settings are built once, when the settings snapshot is made (see
+ * Settings.Snapshot), so getting them is just reading a field.
  */
 public class ServerUrlProvider {
 
@@ -13,11 +15,7 @@ public class ServerUrlProvider {
 	 * @return <server>/<enrollment_code>.json
 	 */
 	public static String getEnrollToServerUrl(Settings settings) {
-		String serverUrl = settings.getEnrollmentServer();
-		String code = settings.getEnrollmentCode();
-		String url = Utils.endStringWith(serverUrl, "/")
-				+ code + ".json"; 
-	    return url;
+		return settings.getSnapshot().enrollToServerUrl;
 	}
 
 	/**
@@ -26,12 +24,7 @@ public class ServerUrlProvider {
 	 * @return <server>/organizations/<orgID>/devices/checkin_android
 	 */
 	public static String getCheckinUrl(Settings settings) {
-		String serverUrl = settings.getServerUrl();
-		String orgID = settings.getOrganizationID();
-		String url = Utils.endStringWith(serverUrl, "/")
-				+ "organizations/" + orgID
-				+ "/devices/checkin_android"; 
-	    return url;
+		return settings.getSnapshot().checkinUrl;
 	}
 	
 	/**
@@ -40,10 +33,7 @@ public class ServerUrlProvider {
 	 * @return <server>command_dispatch/android
 	 */
 	public static String getCommandsQueryUrl(Settings settings) {
-		String serverUrl = settings.getServerUrl();
-		String url = Utils.endStringWith(serverUrl, "/")
-				+ "command_dispatch/android"; 
-	    return url;
+		return settings.getSnapshot().commandsQueryUrl;
 	}
 	
 	/**
@@ -52,10 +42,7 @@ public class ServerUrlProvider {
 	 * @return <server>command_dispatch/android
 	 */
 	public static String getAppsDataCheckinUrl(Settings settings) {
-		String serverUrl = settings.getServerUrl();
-		String url = Utils.endStringWith(serverUrl, "/")
-				+ "command_dispatch/android"; 
-	    return url;
+		return settings.getSnapshot().commandsQueryUrl;
 	}
 	
 	
@@ -65,11 +52,7 @@ public class ServerUrlProvider {
 	 * @return <server>/3/ls_apps/android_mdm/app_version
 	 */
 	public static String getCheckUpdateUrl(Settings settings) {
-		String serverUrl = settings.getUtilsServerUrl(); //  getServerUrl();
-		//String orgID = settings.getOrganizationID();
-		String url = Utils.endStringWith(serverUrl, "/")
-				+ "3/ls_apps/android_mdm/app_version";		 
-		return url;
+		return settings.getSnapshot().checkUpdateUrl;
 	}
 
 	/**
@@ -78,10 +61,8 @@ public class ServerUrlProvider {
 	 * @return <server>/ls_app/<appname>/version
 	 */
 	public static String getLSAppQueryUrl(Settings settings, String appName) {
-		String serverUrl = settings.getServerUrl();
-		String url = Utils.endStringWith(serverUrl, "/")
+		return settings.getSnapshot().serverBaseUrl
 				+ "ls_app/" + appName + "/version"; 
-	    return url;
 	}
 	
 	
@@ -92,13 +73,7 @@ public class ServerUrlProvider {
 	 * @return  <auth_server>/3/sessions/admin_only
 	 */
 	public static String getMBCAuthenticationUrl(Settings settings) {
-		String serverUrl = settings.getOAuthServerUrl();
-		if (serverUrl == null)
-			serverUrl =	settings.getServerUrl();
-		//String orgID = settings.getOrganizationID();
-		String url = Utils.endStringWith(serverUrl, "/")
-				+ "3/sessions/admin_only"; 
-	    return url;
+		return settings.getSnapshot().mbcAuthenticationUrl;
 	}	
 	
 	/**
@@ -107,12 +82,33 @@ public class ServerUrlProvider {
 	 * @return <auth_server>/oauth/token
 	 */
 	public static String getOAuthenticationUrl(Settings settings) {
-		String serverUrl = settings.getOAuthServerUrl();
-		if (serverUrl == null)
-			serverUrl =	settings.getServerUrl();
-		//String orgID = settings.getOrganizationID();
-		String url = Utils.endStringWith(serverUrl, "/")
-		 		+ "oauth/token"; 
-	    return url;
+		return settings.getSnapshot().oauthenticationUrl;
+	}
+
+
+	// builders for the urls kept in the settings snapshot; server urls passed in here end with "/".
+
+	static String makeEnrollToServerUrl(String enrollServerUrl, String code) {
+		return enrollServerUrl + code + ".json";
+	}
+
+	static String makeCheckinUrl(String serverUrl, String orgID) {
+		return serverUrl + "organizations/" + orgID + "/devices/checkin_android";
+	}
+
+	static String makeCommandsQueryUrl(String serverUrl) {
+		return serverUrl + "command_dispatch/android";
+	}
+
+	static String makeCheckUpdateUrl(String utilsServerUrl) {
+		return utilsServerUrl + "3/ls_apps/android_mdm/app_version";
+	}
+
+	static String makeMBCAuthenticationUrl(String authServerUrl) {
+		return authServerUrl + "3/sessions/admin_only";
+	}
+
+	static String makeOAuthenticationUrl(String authServerUrl) {
+		return authServerUrl + "oauth/token";
 	}
 }
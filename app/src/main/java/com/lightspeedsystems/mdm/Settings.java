@@ -14,11 +14,12 @@ import android.net.Uri;
 import android.preference.PreferenceManager;
 import java.io.InputStream;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Hashtable;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.json.JSONObject;
 //import java.util.zip.ZipEntry;
@@ -32,6 +33,11 @@ import org.json.JSONObject;
  * application's private data directory. 
  * Internally a hashtable is used for quick reference instead of needing to go the the data
  *  storage for each value used. Reads in the values once upon creation.
+ * Settings used on the communications paths are also kept parsed in an immutable Snapshot, which
+ *  is replaced whenever a setting changes.
+ * The in-memory values are the current settings; changes are written to the data store in the
+ *  background, with changes made close together written in one commit. Critical settings, such
+ *  as the device udid, are written right away; call flush() to write all pending changes.
  */
 public class Settings {
 	private final static String TAG = "Settings";
@@ -96,10 +102,60 @@ public class Settings {
 		
 	public final static String SVRCONNECTTIMEOUT     = "SVR_CONNECT_TIMEOUT";
 	public final static String SVRCONNECTREADTIMEOUT = "SVR_CONNECTREAD_TIMEOUT";
+	public final static String SVRPOOLMAXIDLE        = "SVR_POOL_MAXIDLE";   // max idle keep-alive connections; 0=no reuse
+	public final static String SVRPOOLKEEPALIVE      = "SVR_POOL_KEEPALIVE"; // idle connection keep-alive time, in seconds
+	public final static String SVRGZIPMINBYTES       = "SVR_GZIP_MINBYTES";  // smallest request data to gzip; 0=no compression (default; set by a server that accepts it)
 	
 	public final static String SVRSENDCMDRESULTSOSERVER = "SVR_SENDCMDRESULTS";
+	public final static String APPSCANWORKERS        = "APP_SCAN_WORKERS";   // threads used to read installed app details
 	
 	public final static String LOGLEVEL			  = "LOGLEVEL";
+	public final static String LOGOVERFLOWPOLICY  = "LOG_OVERFLOW_POLICY"; // LSLogger.OVERFLOW_ value for when the log buffer is full
+	public final static String LOGPROTECTEDKEYS   = "LOG_PROTECTED_KEYS";  // names of values hidden in logs, separated by commas
+	
+	// retention limits for stored logs and events (0=no limit), and database vacuum interval:
+	public final static String LOGRETAIN_MAXROWS   = "LOG_RETAIN_MAXROWS";
+	public final static String LOGRETAIN_MAXDAYS   = "LOG_RETAIN_MAXDAYS";
+	public final static String LOGRETAIN_MAXKB     = "LOG_RETAIN_MAXKB";
+	public final static String EVENTRETAIN_MAXROWS = "EVENT_RETAIN_MAXROWS";
+	public final static String EVENTRETAIN_MAXDAYS = "EVENT_RETAIN_MAXDAYS";
+	public final static String EVENTRETAIN_MAXKB   = "EVENT_RETAIN_MAXKB";
+	public final static String DBVACUUM_DAYS       = "DB_VACUUM_DAYS";
+	public final static String DBLASTVACUUMTIME    = "DB_LASTVACUUMTIME";
+
+	// installer (.apk) cache limits: maximum size in MB (0 disables the cache), and free space to leave, as a % of the filesystem:
+	public final static String APKCACHE_MAXMB      = "APKCACHE_MAXMB";
+	public final static String APKCACHE_RESERVEPCT = "APKCACHE_RESERVEPCT";
+
+	// check-in state: fingerprints of the values the server last accepted, what they belong to, the
+	//  time of the last full check-in, and the hours between full check-ins (0=only when needed):
+	public final static String CHECKIN_STATE         = "CHECKIN_STATE";
+	public final static String CHECKIN_STATEKEY      = "CHECKIN_STATEKEY";
+	public final static String CHECKIN_LASTFULLTIME  = "CHECKIN_LASTFULLTIME";
+	public final static String CHECKIN_FULLSYNC_HOURS= "CHECKIN_FULLSYNC_HOURS";
+	// check-in scheduling: interval (also set by the server), random spread as a % of the interval,
+	//  retry backoff range, and the battery % below which the interval is doubled:
+	public final static String CHECKIN_INTERVALMINS  = "CHECKIN_INTERVAL_MINS";
+	public final static String CHECKIN_JITTERPCT     = "CHECKIN_JITTER_PCT";
+	public final static String CHECKIN_RETRYMINMINS  = "CHECKIN_RETRY_MINMINS";
+	public final static String CHECKIN_RETRYMAXMINS  = "CHECKIN_RETRY_MAXMINS";
+	public final static String CHECKIN_LOWBATTERYPCT = "CHECKIN_LOWBATTERY_PCT";
+
+	// command channel: true to keep a long-poll request open for commands while the app is in the
+	//  foreground or the device is charging, and how long the server is asked to hold each request:
+	public final static String CMDCHANNEL_ENABLED    = "CMDCHANNEL_ENABLED";
+	public final static String CMDCHANNEL_WAITSECS   = "CMDCHANNEL_WAITSECS";
+
+	// signed command envelopes in GCM messages: the server's public key (base64, X.509), the longest
+	//  time a command is accepted after it was issued, and the command ids already received:
+	public final static String CMDENVELOPE_PUBKEY     = "CMDENVELOPE_PUBKEY";
+	public final static String CMDENVELOPE_MAXAGESECS = "CMDENVELOPE_MAXAGE_SECS";
+	public final static String CMDENVELOPE_SEENIDS    = "CMDENVELOPE_SEENIDS";
+
+	// prefix for the validators (etag, last-modified) saved for conditional requests, by endpoint name:
+	public final static String HTTPVALIDATORS_PREFIX = "HTTPVALIDATORS_";
+	public final static String HTTPVALIDATORS_updatecheck = "UPDATECHECK";
+	public final static String HTTPVALIDATORS_commands    = "COMMANDS";
 
 	public final static String LOCATION_ENABLE = "LOCATION_ENABLE";
 	public final static String LOCATION_TIME = "LOCATION_TIME";
@@ -111,10 +167,24 @@ public class Settings {
 	// singleton:
 	private static Settings settingsInstance;
 	
+	// delay for collecting changes into one write to the data store.
+	private final static long WRITE_DELAY_MS = 500;
+	// settings that are written to the data store as soon as they are changed.
+	private final static String[] CRITICAL_SETTINGS = {
+		DEVICE_UDID, ORGANIZATION_ID, GCM_REG_ID, INITSTATE, MDMSERVER_ADDRESS };
+
 	private SharedPreferences prefs;   // data stored as local 'private' preferences.
 	private Map<String,String> values; // key-value pairs of settings, kept in memory for optimized performance. 
 	private Context context;
 	private App thisApp;			  // app instance containing info about this app.
+	// changes not yet written to the data store, by name; a null value removes the setting.
+	private final HashMap<String,String> pendingWrites = new HashMap<String,String>();
+	private boolean bClearPending;     // true to clear the data store before writing the pending changes
+	private Thread writerThread;       // writes the pending changes after the write delay
+	private final Object writeLock = new Object(); // keeps commits in the order the changes were taken
+	private volatile Snapshot snapshot;  // parsed values and urls from the current settings; null until first used
+	// typed values parsed from the settings strings, by name; reused while the string is unchanged.
+	private final ConcurrentHashMap<String,ParsedValue> parsedValues = new ConcurrentHashMap<String,ParsedValue>();
 	
 	/**
 	 * Gets the Settings instance (as a singleton, creating it as needed).
@@ -131,19 +201,24 @@ public class Settings {
 	}
 	 
 	/** Creates instance. */ 
-	@SuppressWarnings("unchecked")
 	private Settings(Context context) {
 		this.context = context;
-	//	values = new HashMap<String,String>();
+		values = new ConcurrentHashMap<String,String>();
 		try {
 			prefs = getDatastorePreferences(context);
 			// get existing settings
-			values =  (Map<String, String>) prefs.getAll();
+			Map<String,?> stored = prefs.getAll();
+			if (stored != null) {
+				Iterator<? extends Map.Entry<String,?>> iter = stored.entrySet().iterator();
+				while (iter.hasNext()) {
+					Map.Entry<String,?> entry = iter.next();
+					if (entry.getKey() != null && entry.getValue() != null)
+						values.put(entry.getKey(), entry.getValue().toString());
+				}
+			}
 		} catch (Exception ex) {
 			LSLogger.exception(TAG, ex);
 		}
-	    if (values == null)
-	    	values = new Hashtable<String,String>();
 	    if (values.size()==0) { 
 	    	// create defaults if none are present:
 	    	setDefaults();
@@ -167,27 +242,15 @@ public class Settings {
 	
 	// convenience methods for specific values:
 	public String getServerUrl() {
-		String port = getSetting(MDMSERVER_PORT);
-		if (port == null || port.length()==0)
-			return getSetting(MDMSERVER_ADDRESS);
-		return getSetting(MDMSERVER_ADDRESS) + ":" + port;
+		return getSnapshot().serverUrl;
 	}
 	
 	public String getUtilsServerUrl() {
-		String url = getSetting(MDMUTILS_SERVER_URL);
-		if (url == null)
-			url = Constants.DEFAULT_MDMUTILS_SERVER_URL;
-		return url;
+		return getSnapshot().utilsServerUrl;
 	}
 	
 	public String getEnrollmentServer() {
-		// note: always use the same configured mdm server; if store the enroll server, there is 
-		//  not a way to change it if the server url gets changed ahead of time.
-		String s = getSetting(ENROLLMENTSERVER_URL);
-		if (s==null)
-			s = getServerUrl();
-		return s;
-		//return getServerUrl();
+		return getSnapshot().enrollmentServer;
 	}
 	
 	public String getEnrollmentCode() {
@@ -197,18 +260,10 @@ public class Settings {
 	// get server results callback url destination, for sending command processing results to, if defined; 
 	// defaults to Server Url if not found.
 	public String getServerResultsUrl() {
-		String url  = getSetting(MDMSVRRESULTS_ADDRESS);
-		String port = getSetting(MDMSVRRESULTS_PORT); 
-		if (url != null) {
-			if (port != null)
-				url = url + ":" + port;
-		} else {
-			url = getServerUrl();
-		}
-		return url;
+		return getSnapshot().serverResultsUrl;
 	}
 	public String getOrganizationID() {
-		return getSetting(ORGANIZATION_ID);
+		return getSnapshot().organizationID;
 	}
 	public boolean isEnrolled() {
 		return (getOrganizationID() != null);
@@ -244,11 +299,7 @@ public class Settings {
 		return getSetting(GCM_REG_ID);
 	}
 	public int getInitializationState() {
-		int initState = 0;
-		String sInit = getSetting(INITSTATE);
-		if (sInit != null)
-			initState = Integer.valueOf(sInit);
-	    return initState;
+		return getSnapshot().initState;
 	}
 	
 	public String getDeviceUdid() {
@@ -335,7 +386,7 @@ public class Settings {
 	 * false if not. Uses the SVRSENDCMDRESULTSOSERVER setting value.
 	 */
 	public boolean isSendCmdResultsToServer() {
-		return getSettingBoolean(SVRSENDCMDRESULTSOSERVER, false);
+		return getSnapshot().sendCmdResultsToServer;
 	}
 	
 	public String getUpdateCheck() {
@@ -349,10 +400,7 @@ public class Settings {
 		setSetting(MDMAUTH_SERVER_URL, url);
 	}
 	public String getOAuthServerUrl() {
-		String url = getSetting(MDMAUTH_SERVER_URL);
-		if (url == null)
-			url = Constants.DEFAULT_MDMAUTH_SERVER_URL;
-		return url;
+		return getSnapshot().oauthServerUrl;
 	}
 	public String getOAuthRedirectUrl() {
 		String url = getSetting(MDMAUTH_REDIRECT_URL);
@@ -497,6 +545,62 @@ public class Settings {
     	removeSetting(GROUP_ID);
     	removeSetting(GROUP_NAME);
     }
+
+    /**
+     * Makes a GET request conditional on the validators saved for the endpoint, if any were saved
+     * for the same url.
+     * @param endpoint name of the endpoint, one of the HTTPVALIDATORS_ names.
+     * @param url url being requested.
+     * @param response response instance for the request.
+     * @return true if validators were set in the response, false if none are saved.
+     */
+    public boolean setConditional(String endpoint, String url, HttpCommResponse response) {
+    	String saved = getSetting(HTTPVALIDATORS_PREFIX + endpoint);
+    	if (saved != null) {
+    		try {
+    			JSONObject jvalidators = new JSONObject(saved);
+    			if (url.equals(jvalidators.optString("url"))) {
+    				response.setConditional(jvalidators.optString("etag", null), jvalidators.optString("lastmodified", null));
+    				return true;
+    			}
+    		} catch (Exception ex) {
+    			LSLogger.exception(TAG, "setConditional error:", ex);
+    		}
+    	}
+    	return false;
+    }
+
+    /**
+     * Saves the validators from an OK response, for making later requests to the endpoint
+     * conditional. Removes any saved validators if the response has none.
+     * @param endpoint name of the endpoint, one of the HTTPVALIDATORS_ names.
+     * @param url url that was requested.
+     * @param response the OK response.
+     */
+    public void saveValidators(String endpoint, String url, HttpCommResponse response) {
+    	if (response.getETag() == null && response.getLastModified() == null) {
+    		removeValidators(endpoint);
+    		return;
+    	}
+    	try {
+    		JSONObject jvalidators = new JSONObject();
+    		jvalidators.put("url", url);
+    		jvalidators.putOpt("etag", response.getETag());
+    		jvalidators.putOpt("lastmodified", response.getLastModified());
+    		setSetting(HTTPVALIDATORS_PREFIX + endpoint, jvalidators.toString());
+    	} catch (Exception ex) {
+    		LSLogger.exception(TAG, "saveValidators error:", ex);
+    	}
+    }
+
+    /**
+     * Removes the validators saved for the endpoint, so the next request gets the full data.
+     * @param endpoint name of the endpoint, one of the HTTPVALIDATORS_ names.
+     */
+    public void removeValidators(String endpoint) {
+    	if (getSetting(HTTPVALIDATORS_PREFIX + endpoint) != null)
+    		removeSetting(HTTPVALIDATORS_PREFIX + endpoint);
+    }
     
         
     
@@ -526,8 +630,12 @@ public class Settings {
 		int i = defaultValue;
 		String value = values.get(name);
 		if (value != null && value.length()>0) {
+			Object parsed = getParsedValue(name, value);
+			if (parsed instanceof Integer)
+				return ((Integer)parsed).intValue();
 			try {
 				i = Integer.valueOf(value);
+				parsedValues.put(name, new ParsedValue(value, Integer.valueOf(i)));
 			} catch (NumberFormatException nfex) { 
 				LSLogger.exception(TAG, "Exception getting int value for " +name, nfex);
 			}
@@ -545,8 +653,12 @@ public class Settings {
 		long i = defaultValue;
 		String value = values.get(name);
 		if (value != null && value.length()>0) {
+			Object parsed = getParsedValue(name, value);
+			if (parsed instanceof Long)
+				return ((Long)parsed).longValue();
 			try {
 				i = Long.valueOf(value);
+				parsedValues.put(name, new ParsedValue(value, Long.valueOf(i)));
 			} catch (NumberFormatException nfex) { 
 				LSLogger.exception(TAG, "Exception getting long value for " +name, nfex);
 			}
@@ -566,14 +678,44 @@ public class Settings {
 		boolean i = defaultValue;
 		String value = values.get(name);
 		if (value != null && value.length()>0) {
+			Object parsed = getParsedValue(name, value);
+			if (parsed instanceof Boolean)
+				return ((Boolean)parsed).booleanValue();
 			try {
 				i = Boolean.valueOf(value);
+				parsedValues.put(name, new ParsedValue(value, Boolean.valueOf(i)));
 			} catch (NumberFormatException nfex) { 
 				LSLogger.exception(TAG, "Exception getting boolean value for " +name, nfex);
 			}
 		}
 		return i;
 	}
+
+	// gets the value parsed from the given setting string, if it has been parsed; null if not.
+	private Object getParsedValue(String name, String value) {
+		ParsedValue parsed = parsedValues.get(name);
+		if (parsed != null && parsed.text.equals(value))
+			return parsed.value;
+		return null;
+	}
+
+	/**
+	 * Gets the current snapshot of parsed settings values and server urls. The snapshot does not
+	 * change; get it again to see later changes.
+	 */
+	public Snapshot getSnapshot() {
+		Snapshot snap = snapshot;
+		if (snap == null)
+			snap = updateSnapshot();
+		return snap;
+	}
+
+	// replaces the snapshot with one made from the current values.
+	private synchronized Snapshot updateSnapshot() {
+		Snapshot snap = new Snapshot(this);
+		snapshot = snap;
+		return snap;
+	}
 	
 
 	/**
@@ -582,7 +724,8 @@ public class Settings {
 	 * @param value value of the setting.
 	 */
 	public void setSetting(String name, String value) {
-		setSetting(name, value, null);
+		putSetting(name, value);
+		updateSnapshot();
 	}
 
 	/**
@@ -591,7 +734,7 @@ public class Settings {
 	 * @param intvalue integer value of the setting.
 	 */
 	public void setSetting(String name, int intvalue) {
-		setSetting(name, Integer.toString(intvalue), null);
+		setSetting(name, Integer.toString(intvalue));
 	}
 	
 	/**
@@ -600,7 +743,7 @@ public class Settings {
 	 * @param longvalue long value of the setting.
 	 */
 	public void setSetting(String name, long longvalue) {
-		setSetting(name, Long.toString(longvalue), null);
+		setSetting(name, Long.toString(longvalue));
 	}
 	
 	/**
@@ -612,41 +755,29 @@ public class Settings {
 	public void setSettingInternal(String name, Object value) {
 		String newstr = value.toString();
 		values.put(name, newstr);
+		updateSnapshot();
 		//LSLogger.debug(TAG, "Set "+name+" to "+(value!=null?value:"null"));
 	}
 	
-	/*
-	 * Replaces or adds the value with the given name-value pair. 
-	 * @param editor the properties editor instance to add the value to, used when 
-	 * adding or setting multiple values. The caller must call apply() or commit() on the
-	 * editor when the additions are complete. Or just pass in null here to do one save at a time.
-	 */
-	private void setSetting(String name, String value, Editor editor) {
-		values.put(name, value);
-		LSLogger.info(TAG, "Set '" + name +"' to '" + value + "'");
-		// save the value or add it to the existing editor instance:
-		if (editor != null) {
-			editor.putString(name, value);  // just add the value, do not commit it.
-		} else { // commit after the change:
-			editor = prefs.edit();
-			editor.putString(name, value);
-			editor.commit();		
-		}
-
-		//if (persist)
-		//	save();
-	}
-	
 	/**
 	 * Removes the indicated setting.
 	 * @param name name of the value to remove.
 	 */
 	public void removeSetting(String name) {
 		values.remove(name);
-		// remove from persistence:
-        Editor editor = prefs.edit();
-        editor.remove(name);
-        editor.commit();		
+		queueWrite(name, null);
+		updateSnapshot();
+	}
+
+	// sets the value and queues it to be written, without updating the snapshot.
+	private void putSetting(String name, String value) {
+		if (value == null) {
+			values.remove(name);
+		} else {
+			values.put(name, value);
+			LSLogger.debug(TAG, "Set '" + name +"' to '" + value + "'");
+		}
+		queueWrite(name, value);
 	}
 
 	/**
@@ -654,9 +785,89 @@ public class Settings {
 	 */
 	public void removeAll() {
 		values.clear();
-		Editor editor = prefs.edit();
-        editor.clear();
-        editor.commit();
+		synchronized (pendingWrites) {
+			pendingWrites.clear();
+			bClearPending = true;
+		}
+		flush();
+		updateSnapshot();
+	}
+
+	/**
+	 * Writes all pending changes to the data store now, in one commit. Call this where the
+	 * changes need to be stored before going on, such as when the app is ending.
+	 */
+	public void flush() {
+		synchronized (writeLock) {
+			HashMap<String,String> writes;
+			boolean bClear;
+			synchronized (pendingWrites) {
+				if (pendingWrites.isEmpty() && !bClearPending)
+					return;
+				writes = new HashMap<String,String>(pendingWrites);
+				pendingWrites.clear();
+				bClear = bClearPending;
+				bClearPending = false;
+			}
+			try {
+				Editor editor = prefs.edit();
+				if (bClear)
+					editor.clear();
+				Iterator<Map.Entry<String,String>> iter = writes.entrySet().iterator();
+				while (iter.hasNext()) {
+					Map.Entry<String,String> entry = iter.next();
+					if (entry.getValue() == null)
+						editor.remove(entry.getKey());
+					else
+						editor.putString(entry.getKey(), entry.getValue());
+				}
+				if (!editor.commit())
+					LSLogger.error(TAG, "Failed to write " + writes.size() + " settings.");
+			} catch (Exception ex) {
+				LSLogger.exception(TAG, "Flush error:", ex);
+			}
+		}
+	}
+
+	// queues a change to be written to the data store; critical settings are written right away.
+	private void queueWrite(String name, String value) {
+		synchronized (pendingWrites) {
+			pendingWrites.put(name, value);
+		}
+		if (isCriticalSetting(name))
+			flush();
+		else
+			scheduleWrite();
+	}
+
+	// starts the writer thread to write the pending changes after the write delay, if not already started.
+	private void scheduleWrite() {
+		synchronized (pendingWrites) {
+			if (writerThread != null && writerThread.isAlive())
+				return;
+			writerThread = new Thread() {
+				public void run() {
+					try {
+						sleep(WRITE_DELAY_MS);
+					} catch (InterruptedException iex) {
+					}
+					synchronized (pendingWrites) {
+						writerThread = null;
+					}
+					flush();
+				}
+			};
+			writerThread.setDaemon(true);
+			writerThread.start();
+		}
+	}
+
+	private static boolean isCriticalSetting(String name) {
+		for (int i=0; i<CRITICAL_SETTINGS.length; i++) {
+			if (CRITICAL_SETTINGS[i].equals(name))
+				return true;
+		}
+		return false;
 	}
 	
 	/**
@@ -695,21 +906,21 @@ public class Settings {
 	 */
 	protected void setValues(JSONObject jdata, CommandResult result) {
 		if (jdata != null && jdata.length() > 0) {
-			Editor editor = prefs.edit();
 			try {
 				// get each item and set its value:
 				Iterator<?> names = jdata.keys();
 				while (names.hasNext()) {
 					String name = (String) names.next();
 					String value = jdata.getString(name);
-					setSetting(name.toUpperCase(Locale.US), value);
+					putSetting(name.toUpperCase(Locale.US), value);
 				}	
 			} catch (Exception ex) {
 				LSLogger.exception(TAG, "setValues error:", ex);
 				if (result != null)
 					result.setException(ex);
 			}
-			editor.commit();
+			updateSnapshot();
+			flush();
 		}
 	}
 	
@@ -816,16 +1027,14 @@ public class Settings {
 		
 		if (!props.isEmpty()) {
 			// add items to settings
-			Editor editor = prefs.edit();
-
 			Enumeration<?> keys = props.keys();
 			while (keys.hasMoreElements()) {
 				String key = (String)keys.nextElement();
 				String value = props.getProperty(key);
-				setSetting(key.toUpperCase(Locale.US), value, editor);
+				setSetting(key.toUpperCase(Locale.US), value);
 				//LSLogger.info(TAG, "-Property: " + key + "="+value);
 			}
-			editor.commit();
+			flush();
 		} else {
 			LSLogger.info(TAG, "NO properties found.");
 		}
@@ -873,29 +1082,28 @@ public class Settings {
 	protected void setDefaults() {
 		String mdmsvr = this.getServerUrl();
 		
-		Editor editor = prefs.edit();
-		setSetting(SETTINGS_VERSION, SETTINGS_CURRENT_VERSION_STR, editor);
-		setSetting(APPLICATION_VERSION, Constants.APPLICATION_VERSION_STR, editor);
-		setSetting(DISPLAYNOTIFS, "true", editor); 
-		setSetting(UPDATECHECK, Constants.UPDATECHECK_DEFAULT, editor); 
+		setSetting(SETTINGS_VERSION, SETTINGS_CURRENT_VERSION_STR);
+		setSetting(APPLICATION_VERSION, Constants.APPLICATION_VERSION_STR);
+		setSetting(DISPLAYNOTIFS, "true"); 
+		setSetting(UPDATECHECK, Constants.UPDATECHECK_DEFAULT); 
 		
 		if (mdmsvr == null) {
-			setSetting(MDMSERVER_ADDRESS, Constants.DEFAULT_MDMSERVER_URL, editor);
+			setSetting(MDMSERVER_ADDRESS, Constants.DEFAULT_MDMSERVER_URL);
 			if (Constants.DEFAULT_MDMSERVER_PORT != null && !Constants.DEFAULT_MDMSERVER_PORT.isEmpty())
-				setSetting(MDMSERVER_PORT, Constants.DEFAULT_MDMSERVER_PORT, editor);
+				setSetting(MDMSERVER_PORT, Constants.DEFAULT_MDMSERVER_PORT);
 		}
-		//setSetting(MDMSERVER_PORT,    "3000", editor);				
-		//setSetting(MDMSERVER_ADDRESS, "http://192.168.1.109", editor);
-		setSetting(MDMAUTH_SERVER_URL, 	 Constants.DEFAULT_MDMAUTH_SERVER_URL, editor);
-		setSetting(MDMAUTH_REDIRECT_URL, Constants.DEFAULT_MDMAUTH_REDIRECT_URL, editor);
-		//setSetting(MDMAUTH_APPID, 		 Constants.DEFAULT_MDMAUTH_APPID, editor);
-		//setSetting(MDMAUTH_APPSECRETKEY, Constants.DEFAULT_MDMAUTH_APPKEY, editor);
+		//setSetting(MDMSERVER_PORT,    "3000");				
+		//setSetting(MDMSERVER_ADDRESS, "http://192.168.1.109");
+		setSetting(MDMAUTH_SERVER_URL, 	 Constants.DEFAULT_MDMAUTH_SERVER_URL);
+		setSetting(MDMAUTH_REDIRECT_URL, Constants.DEFAULT_MDMAUTH_REDIRECT_URL);
+		//setSetting(MDMAUTH_APPID, 		 Constants.DEFAULT_MDMAUTH_APPID);
+		//setSetting(MDMAUTH_APPSECRETKEY, Constants.DEFAULT_MDMAUTH_APPKEY);
 		
-		//setSetting(ORGANIZATION_ID, "1", editor);		
-		//setSetting(ASSETTAG, "Default", editor);
+		//setSetting(ORGANIZATION_ID, "1");		
+		//setSetting(ASSETTAG, "Default");
 
 		// save the values:
-		editor.commit();
+		flush();
 		//save();
 	}
 
@@ -910,8 +1118,7 @@ public class Settings {
 		public int intervalType;
 		
 		private SyncSettings() {
-			interval = 720;  // 720 minutes = 60 minutes x 12 hours
-			
+			interval = getSettingInt(CHECKIN_INTERVALMINS, CheckinProcessor.DEFAULT_INTERVAL_MINS);
 		}
 		// gets the amount of time as the next interface setting.
 		public long getNextSyncIntervalMinutes() {
@@ -919,5 +1126,86 @@ public class Settings {
 		}
 	}
 	
-}
 
+	/**
+	 * Immutable copy of the settings used on the communications paths, with the values parsed and
+	 * the server urls built. A new snapshot replaces the current one whenever a setting changes, so
+	 * readers get a consistent set of values by reading fields, without locking or parsing.
+	 */
+	public static final class Snapshot {
+		public final String  serverUrl;          // mdm server address, with the port if there is one
+		public final String  serverBaseUrl;      // serverUrl, ending with "/"
+		public final String  serverResultsUrl;   // where command results are sent; defaults to serverUrl
+		public final String  utilsServerUrl;
+		public final String  enrollmentServer;
+		public final String  organizationID;
+		public final String  oauthServerUrl;
+		public final int     initState;
+		public final boolean sendCmdResultsToServer;
+		// server communications values, -1 if not set:
+		public final int     connectTimeoutSecs;
+		public final int     readTimeoutSecs;
+		public final int     poolMaxIdleConnections;
+		public final int     poolKeepAliveSecs;
+		public final int     gzipMinBytes;
+		// server urls (see ServerUrlProvider):
+		public final String  enrollToServerUrl;
+		public final String  checkinUrl;
+		public final String  commandsQueryUrl;
+		public final String  checkUpdateUrl;
+		public final String  mbcAuthenticationUrl;
+		public final String  oauthenticationUrl;
+
+		private Snapshot(Settings settings) {
+			String address = settings.getSetting(MDMSERVER_ADDRESS);
+			String port = settings.getSetting(MDMSERVER_PORT);
+			serverUrl = (port == null || port.length() == 0 ? address : address + ":" + port);
+			serverBaseUrl = Utils.endStringWith(serverUrl, "/");
+
+			String resultsUrl = settings.getSetting(MDMSVRRESULTS_ADDRESS);
+			if (resultsUrl != null) {
+				String resultsPort = settings.getSetting(MDMSVRRESULTS_PORT);
+				serverResultsUrl = (resultsPort == null ? resultsUrl : resultsUrl + ":" + resultsPort);
+			} else {
+				serverResultsUrl = serverUrl;
+			}
+
+			String s = settings.getSetting(MDMUTILS_SERVER_URL);
+			utilsServerUrl = (s == null ? Constants.DEFAULT_MDMUTILS_SERVER_URL : s);
+			// note: always use the same configured mdm server; if store the enroll server, there is 
+			//  not a way to change it if the server url gets changed ahead of time.
+			s = settings.getSetting(ENROLLMENTSERVER_URL);
+			enrollmentServer = (s == null ? serverUrl : s);
+			organizationID = settings.getSetting(ORGANIZATION_ID);
+			s = settings.getSetting(MDMAUTH_SERVER_URL);
+			oauthServerUrl = (s == null ? Constants.DEFAULT_MDMAUTH_SERVER_URL : s);
+
+			initState = settings.getSettingInt(INITSTATE, 0);
+			sendCmdResultsToServer = settings.getSettingBoolean(SVRSENDCMDRESULTSOSERVER, false);
+			connectTimeoutSecs = settings.getSettingInt(SVRCONNECTTIMEOUT, -1);
+			readTimeoutSecs = settings.getSettingInt(SVRCONNECTREADTIMEOUT, -1);
+			poolMaxIdleConnections = settings.getSettingInt(SVRPOOLMAXIDLE, -1);
+			poolKeepAliveSecs = settings.getSettingInt(SVRPOOLKEEPALIVE, -1);
+			gzipMinBytes = settings.getSettingInt(SVRGZIPMINBYTES, -1);
+
+			enrollToServerUrl = ServerUrlProvider.makeEnrollToServerUrl(
+					Utils.endStringWith(enrollmentServer, "/"), settings.getSetting(ENROLLMENT_CODE));
+			checkinUrl = ServerUrlProvider.makeCheckinUrl(serverBaseUrl, organizationID);
+			commandsQueryUrl = ServerUrlProvider.makeCommandsQueryUrl(serverBaseUrl);
+			checkUpdateUrl = ServerUrlProvider.makeCheckUpdateUrl(Utils.endStringWith(utilsServerUrl, "/"));
+			String authBaseUrl = Utils.endStringWith(oauthServerUrl, "/");
+			mbcAuthenticationUrl = ServerUrlProvider.makeMBCAuthenticationUrl(authBaseUrl);
+			oauthenticationUrl = ServerUrlProvider.makeOAuthenticationUrl(authBaseUrl);
+		}
+	}
+
+	// a typed value parsed from a setting string.
+	private static class ParsedValue {
+		final String text;
+		final Object value;
+		ParsedValue(String text, Object value) {
+			this.text = text;
+			this.value = value;
+		}
+	}
+}
@@ -17,11 +17,22 @@ import javax.net.ssl.SSLSocketFactory;
 public class TLSSocketFactory extends SSLSocketFactory {
 
     private SSLSocketFactory internalSSLSocketFactory;
+    private HttpConnectionPool pool; // optional pool to notify of new sockets; may be null.
 
     public TLSSocketFactory() throws KeyManagementException, NoSuchAlgorithmException {
+        this(null);
+    }
+
+    /**
+     * Creates the factory and its SSLContext. The context keeps the client-side TLS session cache,
+     * so a single shared instance allows sessions to be resumed on new connections.
+     * @param pool optional connection pool to notify when new sockets are created.
+     */
+    public TLSSocketFactory(HttpConnectionPool pool) throws KeyManagementException, NoSuchAlgorithmException {
         SSLContext context = SSLContext.getInstance("TLS");
         context.init(null, null, null);
         internalSSLSocketFactory = context.getSocketFactory();
+        this.pool = pool;
     }
 
     @Override
@@ -67,6 +78,8 @@ public class TLSSocketFactory extends SSLSocketFactory {
     private Socket enableTLSOnSocket(Socket socket) {
         if(socket != null && (socket instanceof SSLSocket)) {
             ((SSLSocket)socket).setEnabledProtocols(new String[] {"TLSv1.1", "TLSv1.2"});
+            if (pool != null)
+                pool.socketCreated((SSLSocket)socket);
         }
         return socket;
     }
@@ -0,0 +1,347 @@
+package com.lightspeedsystems.mdm;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+import com.lightspeedsystems.mdm.util.LSLogger;
+
+/**
+ * Runs queued tasks on a fixed pool of worker threads, in priority order.
+ *
+ * Tasks are started as soon as they are added (a waiting worker is signalled), instead of waiting
+ * for a polling loop. Each task has:
+ * - a priority; urgent tasks, such as getting commands from the server, run before normal
+ *   and bulk tasks (app syncs and installs) that are waiting.
+ * - an optional serial group; tasks in the same group run one at a time (or up to the group's
+ *   limit, if one is set), so a long task in one group (such as an app install waiting on the
+ *   user) does not hold up tasks in other groups.
+ * - the ready level it needs; tasks wait in the queue until the scheduler's ready level (set by
+ *   the Controller as the app gets initialized and enrolled) is high enough.
+ * - retry and deadline metadata; a task that asks to be run again is re-queued with a backoff
+ *   delay, up to its maximum attempts, and a task that has not started by its deadline is dropped.
+ */
+public class TaskScheduler {
+	private final static String TAG = "TaskScheduler";
+
+	// task priorities, from highest to lowest:
+	public final static int PRIORITY_urgent = 0;
+	public final static int PRIORITY_normal = 1;
+	public final static int PRIORITY_bulk   = 2;
+
+	// ready levels, for when a task can run:
+	/** The task can run at any time. */
+	public final static int READY_none   = 0;
+	/** The task needs the system (GCM) to be initialized. */
+	public final static int READY_system = 1;
+	/** The task needs the device to be fully initialized and enrolled. */
+	public final static int READY_mdm    = 2;
+
+	public final static long DEFAULT_RETRY_DELAY_MS = 10 * 1000;
+	public final static long MAX_RETRY_DELAY_MS = 60 * 60 * 1000; // 1 hour
+
+	/**
+	 * A unit of work run by the scheduler.
+	 */
+	public static abstract class Task {
+		protected int    priority = PRIORITY_normal;
+		protected int    readyLevel = READY_mdm;
+		protected String serialGroup;      // tasks with the same group run one at a time (or up to the group limit); null for none
+		protected String coalesceKey;      // if set, the task is not added if one with the same key is already waiting
+		protected long   deadline;         // time (ms) after which the task is dropped if it has not started; 0 for none
+		protected int    maxAttempts;      // maximum number of times to run the task; 0 for no limit
+		protected long   retryDelayMs = DEFAULT_RETRY_DELAY_MS; // delay before the first retry; doubles with each retry
+		protected long   maxRetryDelayMs = MAX_RETRY_DELAY_MS;
+		private int  attempts;
+		private long notBefore;            // time (ms) the task can be started
+		private long sequence;             // order added, for first-in first-out within a priority
+		private long queuedTime;           // time added (Metrics.now()), for the queue wait metric
+
+		/**
+		 * Runs the task, on a worker thread.
+		 * @return true if the task needs to be run again later, false if done.
+		 */
+		public abstract boolean runTask();
+
+		/**
+		 * Called when the task is dropped without being done: it passed its deadline, used its
+		 * maximum attempts, or the queue was cleared. Does nothing by default.
+		 */
+		protected void onDropped() {
+		}
+
+		/** Gets the number of times the task has been run. */
+		public int getAttempts() {
+			return attempts;
+		}
+
+		/** Sets the time after which the task is dropped if it has not started, as a delay from now. */
+		public void setDeadlineFromNow(long delayMs) {
+			deadline = (delayMs > 0 ? System.currentTimeMillis() + delayMs : 0);
+		}
+
+		// gets the delay before the next retry, doubling with each attempt.
+		private long getRetryDelay() {
+			long delay = retryDelayMs;
+			for (int i=1; i<attempts && delay < maxRetryDelayMs; i++)
+				delay *= 2;
+			return Math.min(delay, maxRetryDelayMs);
+		}
+	}
+
+	private final PriorityQueue<Task> queue;
+	private final HashMap<String,Integer> busyGroups;  // number of running tasks, by serial group
+	private final HashMap<String,Integer> groupLimits; // maximum running tasks, by serial group; 1 if not set
+	private final ArrayList<Task> runningTasks;
+	private final Thread[] workers;
+	private volatile int readyLevel;
+	private long sequence;
+	private volatile boolean ending;
+
+	/**
+	 * Constructor.
+	 * @param workerCount number of worker threads.
+	 */
+	public TaskScheduler(int workerCount) {
+		queue = new PriorityQueue<Task>(16, new Comparator<Task>() {
+			public int compare(Task t1, Task t2) {
+				if (t1.priority != t2.priority)
+					return (t1.priority < t2.priority ? -1 : 1);
+				return (t1.sequence < t2.sequence ? -1 : (t1.sequence == t2.sequence ? 0 : 1));
+			}
+		});
+		busyGroups = new HashMap<String,Integer>();
+		groupLimits = new HashMap<String,Integer>();
+		runningTasks = new ArrayList<Task>();
+		workers = new Thread[Math.max(workerCount, 1)];
+		for (int i=0; i<workers.length; i++) {
+			workers[i] = new Thread(new Worker(), "TaskWorker-" + i);
+			workers[i].setDaemon(true);
+		}
+	}
+
+	/** Starts the worker threads. */
+	public void start() {
+		for (int i=0; i<workers.length; i++)
+			workers[i].start();
+	}
+
+	/** Stops the worker threads; tasks that are running are left to finish. */
+	public synchronized void terminate() {
+		ending = true;
+		notifyAll();
+	}
+
+	/**
+	 * Sets the number of tasks in a serial group that can run at the same time. The worker count
+	 * needs to allow for it.
+	 * @param group serial group name.
+	 * @param limit maximum number of the group's tasks to run at once; at least 1.
+	 */
+	public synchronized void setGroupLimit(String group, int limit) {
+		groupLimits.put(group, Integer.valueOf(Math.max(limit, 1)));
+		notifyAll();
+	}
+
+	/**
+	 * Sets the current ready level, starting any waiting tasks that can now run.
+	 * @param level one of the READY_ values.
+	 */
+	public synchronized void setReadyLevel(int level) {
+		if (level != readyLevel) {
+			readyLevel = level;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Adds a task to be run as soon as a worker, its serial group, and the ready level allow.
+	 * @param task task to add.
+	 * @return true if added, false if a task with the same coalesce key is already waiting.
+	 */
+	public synchronized boolean add(Task task) {
+		if (task.coalesceKey != null) {
+			Iterator<Task> iter = queue.iterator();
+			while (iter.hasNext()) {
+				if (task.coalesceKey.equals(iter.next().coalesceKey))
+					return false;
+			}
+		}
+		task.sequence = sequence++;
+		task.notBefore = 0;
+		task.queuedTime = Metrics.now();
+		queue.add(task);
+		Metrics.getInstance().setGauge(Metrics.TASKS_WAITING, queue.size());
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Removes all the waiting tasks. Tasks that are running are not affected.
+	 */
+	public void clear() {
+		ArrayList<Task> dropped;
+		synchronized (this) {
+			dropped = new ArrayList<Task>(queue);
+			queue.clear();
+		}
+		for (int i=0; i<dropped.size(); i++)
+			dropTask(dropped.get(i));
+	}
+
+	/** Gets the number of tasks waiting to run. */
+	public synchronized int getWaitingCount() {
+		return queue.size();
+	}
+
+	/**
+	 * Returns true if any task other than the given one is waiting or running.
+	 * @param except task to ignore, such as the task asking; can be null.
+	 */
+	public synchronized boolean isBusyExcept(Task except) {
+		for (int i=0; i<runningTasks.size(); i++) {
+			if (runningTasks.get(i) != except)
+				return true;
+		}
+		Iterator<Task> iter = queue.iterator();
+		while (iter.hasNext()) {
+			if (iter.next() != except)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets a copy of the list of running tasks.
+	 */
+	public synchronized ArrayList<Task> getRunningTasks() {
+		return new ArrayList<Task>(runningTasks);
+	}
+
+	// gets the next task that can run, waiting as needed; returns null when ending.
+	//  Expired tasks are removed and added to the given list, to be dropped outside the lock.
+	private synchronized Task takeTask(ArrayList<Task> expired) throws InterruptedException {
+		while (!ending) {
+			long now = System.currentTimeMillis();
+			long wakeTime = 0;
+			Task next = null;
+			Iterator<Task> iter = queue.iterator();
+			while (iter.hasNext()) {
+				Task task = iter.next();
+				if (task.deadline > 0 && task.deadline < now) {
+					iter.remove();
+					expired.add(task);
+				} else if (task.readyLevel <= readyLevel && isGroupAvailable(task.serialGroup)) {
+					if (task.notBefore > now) {
+						if (wakeTime == 0 || task.notBefore < wakeTime)
+							wakeTime = task.notBefore;
+					} else if (next == null || queue.comparator().compare(task, next) < 0) {
+						next = task;
+					}
+				}
+			}
+			if (!expired.isEmpty())
+				return null;   // let the caller drop the expired tasks, then call again
+			if (next != null) {
+				queue.remove(next);
+				Metrics.getInstance().setGauge(Metrics.TASKS_WAITING, queue.size());
+				if (next.attempts == 0)  // (retries wait for their backoff, so are not counted)
+					Metrics.getInstance().recordSince(Metrics.TASK_QUEUEWAIT, next.queuedTime);
+				if (next.serialGroup != null)
+					busyGroups.put(next.serialGroup, Integer.valueOf(getGroupCount(next.serialGroup) + 1));
+				runningTasks.add(next);
+				return next;
+			}
+			if (wakeTime > 0)
+				wait(Math.max(wakeTime - now, 1));
+			else
+				wait();
+		}
+		return null;
+	}
+
+	// gets the number of running tasks in a serial group.
+	private int getGroupCount(String group) {
+		Integer count = busyGroups.get(group);
+		return (count == null ? 0 : count.intValue());
+	}
+
+	// returns true if another task of the serial group can run now.
+	private boolean isGroupAvailable(String group) {
+		if (group == null)
+			return true;
+		Integer limit = groupLimits.get(group);
+		return getGroupCount(group) < (limit == null ? 1 : limit.intValue());
+	}
+
+	// marks a task as no longer running, and re-queues it if it is to be retried.
+	private synchronized boolean finishTask(Task task, boolean bRetry) {
+		runningTasks.remove(task);
+		if (task.serialGroup != null) {
+			int count = getGroupCount(task.serialGroup) - 1;
+			if (count > 0)
+				busyGroups.put(task.serialGroup, Integer.valueOf(count));
+			else
+				busyGroups.remove(task.serialGroup);
+		}
+		boolean bRequeued = false;
+		if (bRetry && !ending) {
+			if (task.maxAttempts > 0 && task.attempts >= task.maxAttempts) {
+				LSLogger.warn(TAG, "Task " + task.toString() + " not retried; used " + task.attempts + " attempts.");
+			} else {
+				task.notBefore = System.currentTimeMillis() + task.getRetryDelay();
+				queue.add(task);
+				bRequeued = true;
+			}
+		}
+		notifyAll();
+		return (bRetry && !bRequeued);
+	}
+
+	private void dropTask(Task task) {
+		try {
+			task.onDropped();
+		} catch (Exception ex) {
+			LSLogger.exception(TAG, "Task drop error:", ex);
+		}
+	}
+
+	/**
+	 * Worker thread runner: runs tasks until the scheduler ends.
+	 */
+	private class Worker implements Runnable {
+		public void run() {
+			ArrayList<Task> expired = new ArrayList<Task>();
+			while (!ending) {
+				Task task = null;
+				try {
+					task = takeTask(expired);
+				} catch (InterruptedException iex) {
+					LSLogger.debug(TAG, "Worker wait interrupted.");
+				}
+				if (!expired.isEmpty()) {
+					for (int i=0; i<expired.size(); i++) {
+						LSLogger.debug(TAG, "Dropping expired task " + expired.get(i).toString());
+						dropTask(expired.get(i));
+					}
+					expired.clear();
+				}
+				if (task != null) {
+					boolean bRetry = false;
+					task.attempts++;
+					long startTime = Metrics.now();
+					try {
+						bRetry = task.runTask();
+					} catch (Exception ex) {
+						LSLogger.exception(TAG, "Task error (" + task.toString() + "):", ex);
+					}
+					Metrics.getInstance().recordSince(Metrics.TASK_RUN, startTime);
+					if (finishTask(task, bRetry))
+						dropTask(task);
+				}
+			}
+		}
+	}
+}
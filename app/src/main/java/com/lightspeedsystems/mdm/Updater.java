@@ -200,10 +200,18 @@ public class Updater {
 			ServerComm serverComm = new ServerComm();
 			serverComm.setIncludeHeaderAuth(true);
 			serverComm.setAuthTokenKey(settings.getAuthMBCToken());
-			HttpCommResponse response = 
-					serverComm.getFromServer(ServerUrlProvider.getCheckUpdateUrl(settings), jparams);
+			// validators are only saved when no update was needed, so a Not Modified answer means
+			//  there is still no update, without reading and parsing the server's data again.
+			String checkUrl = ServerUrlProvider.getCheckUpdateUrl(settings);
+			HttpCommResponse response = new HttpCommResponse();
+			settings.setConditional(Settings.HTTPVALIDATORS_updatecheck, checkUrl, response);
+			serverComm.getFromServer(checkUrl, jparams, response);
 			if (response != null) {
-				if (response.isOK()) {
+				if (response.isNotModified()) {
+					lastUpdateCheckTime = System.currentTimeMillis();
+					settings.setSetting(Settings.LASTUPDATECHECKTIME, lastUpdateCheckTime);
+					LSLogger.debug(TAG, "Update-Check: not modified; no update needed.");
+				} else if (response.isOK()) {
 					// got a successful response from server
 					// - update settings and local time value, noting when we did the check:
 					lastUpdateCheckTime = System.currentTimeMillis();
@@ -234,6 +242,7 @@ public class Updater {
 							LSLogger.error(TAG, "Invalid package name for update. Update not performed");
 						} else if (!app.isUpdateNeeded(Constants.APPLICATION_VERSION_STR)) {
 							LSLogger.debug(TAG, "no update needed; current version="+Constants.APPLICATION_VERSION_STR);
+							settings.saveValidators(Settings.HTTPVALIDATORS_updatecheck, checkUrl, response);
 						} else { // process the update
 							// try to get existing MDM app instance from the Apps db:
 				 			App appMdm = controller.getAppsInstance().findAppByPackageName(Constants.PACKAGE_NAME, 0);
@@ -249,7 +258,12 @@ public class Updater {
 						}
 						if (appUpdate != null) {  // we have an update to install!
 							updateIsNeeded = true;
+							settings.removeValidators(Settings.HTTPVALIDATORS_updatecheck);
 							appUpdate.setMdmAppType(App.MDMAPPTYPE_self);// setIsMdmApp();							
+							// cached installers of other versions of this app are no longer needed;
+							//  the update's own file, if already cached (such as from a failed attempt), is
+							//  used by the install instead of downloading it again.
+							ApkCache.getInstance(null).removeOtherVersions(Constants.PACKAGE_NAME, appUpdate.getPackageSha256());
 						}
 					} 
 				} else {
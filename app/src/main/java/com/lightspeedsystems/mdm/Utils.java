@@ -18,6 +18,7 @@ import android.widget.LinearLayout;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 import android.widget.Toast;
+import com.lightspeedsystems.mdm.util.ContentFilter;
 import com.lightspeedsystems.mdm.util.LSLogger;
 
 /**
@@ -134,6 +135,23 @@ public class Utils {
 		return s;
 	}
 	
+	/**
+	 * Converts bytes to a lowercase hexadecimal string, such as for showing a digest.
+	 * @param bytes bytes to convert.
+	 * @return the hex string; empty if bytes is null.
+	 */
+	public static String toHexString(byte[] bytes) {
+		if (bytes == null)
+			return "";
+		final char[] hexDigits = "0123456789abcdef".toCharArray();
+		char[] chars = new char[bytes.length * 2];
+		for (int i=0; i<bytes.length; i++) {
+			chars[i*2]   = hexDigits[(bytes[i] >> 4) & 0x0f];
+			chars[i*2+1] = hexDigits[bytes[i] & 0x0f];
+		}
+		return new String(chars);
+	}
+	
 	/**
 	 * Encloses the given string with the end string. For example, if ends is a ", wraps str in a beginning and ending ".
 	 * Only adds the ends string at the beginning and end if not already there. So a call with ("test", "x") will result in "xtestx",
@@ -182,34 +200,7 @@ public class Utils {
 	 * @return filtered string, or the samve string instance if no changes were needed.
 	 */
 	public static String filterProtectedContent(String s) {
-		if (s != null && s.length()>0) {
-			s = hideJSONValue(s, "\"password\":");
-			s = hideJSONValue(s, "\"pc\":");
-		}
-		return s;
-	}
-	private static String hideJSONValue(String s, String label) {
-		int index = s.indexOf(label);
-		while (index >= 0) {
-			int startindex = index+label.length(); // where to start looking for the value from
-			if (label.endsWith("\""))
-				startindex++;
-			int indexreplacestart = s.indexOf('"', startindex);
-			if (indexreplacestart > 0) {
-				indexreplacestart++; // move past the opening quote
-				int indexreplaceend = s.indexOf('"', indexreplacestart+1);
-				if (indexreplaceend > indexreplacestart) {
-					String fill = "";
-					for (int x=indexreplaceend-indexreplacestart; x>0; x--)
-						fill = fill + "*";
-					// we have the length and positions to replace the string with
-					s = s.substring(0, indexreplacestart) + fill + s.substring(indexreplaceend);
-				}
-			}
-			// search for next occurrance:
-			index = s.indexOf(label, index+2);
-		}
-		return s;
+		return ContentFilter.filterProtectedContent(s);
 	}
 	
 	/**
@@ -1,6 +1,8 @@
 package com.lightspeedsystems.mdm;
 
 import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 
@@ -73,6 +75,24 @@ public class WifiUtils {
 		return bConnected;
 	}
 
+	/**
+	 * Checks to see if there is a connected network of any kind (wifi, mobile, ethernet).
+	 * @param context Application context
+	 * @return true if a network is connected, false if not.
+	 */
+	public static boolean networkIsConnected(Context context) {
+		boolean bConnected = false;
+		try {
+			ConnectivityManager cmgr = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+			NetworkInfo info = cmgr.getActiveNetworkInfo();
+			bConnected = (info != null && info.isConnected());
+		} catch (Exception ex) {
+			LSLogger.exception(TAG, "NetworkIsConnected error:",ex);
+			bConnected = true;  // can't tell; let the request find out.
+		}
+		return bConnected;
+	}
+
 	/**
 	 * Checks to see if WiFi is trying to connect (WIFI_STATE_ENABLING).
 	 * @param context Application context
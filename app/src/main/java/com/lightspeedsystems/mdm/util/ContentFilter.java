@@ -0,0 +1,181 @@
+package com.lightspeedsystems.mdm.util;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Hides the values of protected items, such as passwords, in json text that is logged or shown.
+ *
+ * The text is read once from start to end: at each quote, the text is checked for being a name (a
+ * short quoted string that a colon follows) that is protected, and if so, the characters of its
+ * string value, or of the strings in its array value, are replaced with asterisks. Every quote is
+ * checked, not only those that pair up from the start of the text, so that a stray quote in text
+ * before the json does not hide a name from the check. Other text is copied in blocks, and nothing
+ * is copied at all when there is nothing to hide, so large payloads can be filtered for logging at
+ * little cost.
+ *
+ * A protected name matches a json name ignoring case, either the whole name or the end of a name
+ * after an underscore (so "password" also hides "proxy_password", and "token" "access_token").
+ * The names are set from the LOG_PROTECTED_KEYS setting, with DEFAULT_PROTECTED_KEYS if it is not set.
+ *
+ * This uses only plain java, so that it can also be run and measured off the device (see the
+ * benchmarks module, which also has its tests).
+ */
+public class ContentFilter {
+
+	/** Names of the values hidden when no names are set; includes the wifi profile keys. */
+	public final static String[] DEFAULT_PROTECTED_KEYS = {
+		"password", "pc", "token", "secret", "psk", "presharedkey", "wepkeys" };
+
+	// longest name checked for being protected; limits the text read at each quote.
+	private final static int MAX_NAME_LENGTH = 128;
+
+	private static volatile String[] protectedKeys = DEFAULT_PROTECTED_KEYS;
+	private static String protectedKeysStr;  // the value the current names were set from
+
+	/**
+	 * Sets the names of the values to hide.
+	 * @param keys names, separated by commas; null or empty for the default names.
+	 */
+	public static synchronized void setProtectedKeys(String keys) {
+		if (keys == null ? protectedKeysStr == null : keys.equals(protectedKeysStr))
+			return;
+		protectedKeysStr = keys;
+		ArrayList<String> names = new ArrayList<String>();
+		if (keys != null) {
+			String[] list = keys.split(",");
+			for (int i=0; i<list.length; i++) {
+				String name = list[i].trim().toLowerCase(Locale.US);
+				if (name.length() > 0)
+					names.add(name);
+			}
+		}
+		protectedKeys = (names.isEmpty() ? DEFAULT_PROTECTED_KEYS : names.toArray(new String[names.size()]));
+	}
+
+	/**
+	 * Filters out certain values in the string, hiding their actual value.
+	 * @param s input string to check
+	 * @return filtered string, or the same string instance if no changes were needed.
+	 */
+	public static String filterProtectedContent(String s) {
+		if (s == null || s.indexOf('"') < 0)
+			return s;
+		return filterProtectedContent(s, protectedKeys);
+	}
+
+	/**
+	 * Filters out the values of the given names in the text, hiding their actual value.
+	 * @param s input text.
+	 * @param keys names of the values to hide, in lower case.
+	 * @return filtered string, or the text as a string if no changes were needed.
+	 */
+	public static String filterProtectedContent(CharSequence s, String[] keys) {
+		int length = s.length();
+		StringBuilder sb = null;  // created when the first value is hidden
+		int copied = 0;           // the text before this index is in sb
+		int i = 0;
+		while (i < length) {
+			if (s.charAt(i) != '"') {
+				i++;
+				continue;
+			}
+			int nameEnd = findStringEnd(s, i + 1, Math.min(length, i + 2 + MAX_NAME_LENGTH));
+			int next = (nameEnd < 0 ? length : skipSpaces(s, nameEnd + 1));
+			if (next >= length || s.charAt(next) != ':' || !isProtected(s, i + 1, nameEnd, keys)) {
+				i++;  // not a protected name; go on with the next quote.
+				continue;
+			}
+			next = skipSpaces(s, next + 1);
+			if (next < length && s.charAt(next) == '"') {
+				int valueEnd = findStringEnd(s, next + 1, length);
+				if (valueEnd < 0)
+					valueEnd = length;  // cut-off text: hide the rest of it
+				if (valueEnd > next + 1) {
+					if (sb == null)
+						sb = new StringBuilder(length);
+					sb.append(s, copied, next + 1);
+					appendMask(sb, valueEnd - next - 1);
+					copied = valueEnd;
+				}
+				i = valueEnd + 1;
+			} else if (next < length && s.charAt(next) == '[') {
+				// hide each string in the array; stops at the end of the array or at an item that is not a string.
+				int pos = skipSpaces(s, next + 1);
+				while (pos < length && s.charAt(pos) == '"') {
+					int itemEnd = findStringEnd(s, pos + 1, length);
+					if (itemEnd < 0)
+						itemEnd = length;
+					if (itemEnd > pos + 1) {
+						if (sb == null)
+							sb = new StringBuilder(length);
+						sb.append(s, copied, pos + 1);
+						appendMask(sb, itemEnd - pos - 1);
+						copied = itemEnd;
+					}
+					pos = skipSpaces(s, itemEnd + 1);
+					if (pos < length && s.charAt(pos) == ',')
+						pos = skipSpaces(s, pos + 1);
+					else
+						break;
+				}
+				i = pos;
+			} else {
+				i = next;
+			}
+		}
+		if (sb == null)
+			return s.toString();
+		sb.append(s, copied, length);
+		return sb.toString();
+	}
+
+	private static void appendMask(StringBuilder sb, int count) {
+		for (int x=0; x<count; x++)
+			sb.append('*');
+	}
+
+	// gets the index of the quote ending the string that starts at the given index; -1 if none before the limit.
+	private static int findStringEnd(CharSequence s, int start, int limit) {
+		for (int i=start; i<limit; i++) {
+			char c = s.charAt(i);
+			if (c == '\\')
+				i++;  // skip the escaped character
+			else if (c == '"')
+				return i;
+		}
+		return -1;
+	}
+
+	private static int skipSpaces(CharSequence s, int index) {
+		int length = s.length();
+		while (index < length && Character.isWhitespace(s.charAt(index)))
+			index++;
+		return index;
+	}
+
+	// returns true if the name between the given indexes is one of the keys, or ends with "_" and a key.
+	private static boolean isProtected(CharSequence s, int start, int end, String[] keys) {
+		int nameLength = end - start;
+		for (int k=0; k<keys.length; k++) {
+			String key = keys[k];
+			int keyLength = key.length();
+			if (nameLength == keyLength ||
+				(nameLength > keyLength && s.charAt(end - keyLength - 1) == '_')) {
+				if (endsWith(s, end, key))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	// returns true if the text before the end index is the key, ignoring case.
+	private static boolean endsWith(CharSequence s, int end, String key) {
+		int offset = end - key.length();
+		for (int i=0; i<key.length(); i++) {
+			if (Character.toLowerCase(s.charAt(offset + i)) != key.charAt(i))
+				return false;
+		}
+		return true;
+	}
+}
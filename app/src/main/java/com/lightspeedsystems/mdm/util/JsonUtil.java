@@ -0,0 +1,118 @@
+package com.lightspeedsystems.mdm.util;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.JsonReader;
+
+/**
+ * Json conversions used on the server request and response paths.
+ *
+ * These use only plain java, org.json, and android.util.JsonReader (which is plain java as well),
+ * so that they can also be run and measured off the device (see the benchmarks module).
+ */
+public class JsonUtil {
+
+	/**
+	 * Converts the given json to a set of string parameters, in the form of name=value&name2=value2 ...
+	 * @param json values to convert; can be null.
+	 * @return the parameters, or an empty string if there are none.
+	 */
+	public static String toStringParams(JSONObject json) {
+		StringBuilder sb = new StringBuilder();
+		if (json != null) {
+			boolean first = true;
+			Iterator<?> iter = json.keys();
+			while (iter.hasNext()) {
+				String key = (String)iter.next();
+				String value = json.optString(key, null);
+				if (value != null)  {
+					if (first)
+						first = false;
+					else
+						sb.append("&");
+					sb.append(key);
+					sb.append("=");
+					sb.append(value);
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	// -- conversion of a json stream's current value into org.json values --
+
+	/**
+	 * Reads the object at the reader's current position.
+	 */
+	public static JSONObject readObject(JsonReader reader) throws IOException, JSONException {
+		JSONObject json = new JSONObject();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			json.put(name, readValue(reader));
+		}
+		reader.endObject();
+		return json;
+	}
+
+	/**
+	 * Reads the array at the reader's current position.
+	 */
+	public static JSONArray readArray(JsonReader reader) throws IOException, JSONException {
+		JSONArray jarray = new JSONArray();
+		reader.beginArray();
+		while (reader.hasNext())
+			jarray.put(readValue(reader));
+		reader.endArray();
+		return jarray;
+	}
+
+	/**
+	 * Reads the value at the reader's current position, as the org.json value for it.
+	 */
+	public static Object readValue(JsonReader reader) throws IOException, JSONException {
+		Object value;
+		switch (reader.peek()) {
+			case BEGIN_OBJECT:
+				value = readObject(reader);
+				break;
+			case BEGIN_ARRAY:
+				value = readArray(reader);
+				break;
+			case BOOLEAN:
+				value = Boolean.valueOf(reader.nextBoolean());
+				break;
+			case NUMBER:
+				value = parseNumber(reader.nextString());
+				break;
+			case NULL:
+				reader.nextNull();
+				value = JSONObject.NULL;
+				break;
+			default:
+				value = reader.nextString();
+				break;
+		}
+		return value;
+	}
+
+	// converts a number literal the same way org.json does: integer values as Integer or Long, others as Double.
+	private static Object parseNumber(String s) {
+		try {
+			if (s.indexOf('.') < 0 && s.indexOf('e') < 0 && s.indexOf('E') < 0) {
+				long l = Long.parseLong(s);
+				if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE)
+					return Integer.valueOf((int) l);
+				return Long.valueOf(l);
+			}
+			return Double.valueOf(s);
+		} catch (NumberFormatException nfex) {
+			return s;
+		}
+	}
+}
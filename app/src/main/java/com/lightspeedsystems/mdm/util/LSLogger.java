@@ -5,15 +5,18 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Vector;
-import org.json.JSONObject;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 import com.lightspeedsystems.mdm.DBStorage;
 import com.lightspeedsystems.mdm.Settings;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 /**
@@ -51,6 +54,13 @@ public class LSLogger {
 	
 	private final static int LOGLEVEL_default = LOGLEVEL_none;  // the default logging level 
 	
+	/** Log buffer overflow policy: debug messages are dropped once the buffer is 3/4 full, leaving room for other messages. */
+	public final static int OVERFLOW_DROP_DEBUG_FIRST = 0;
+	/** Log buffer overflow policy: any message is dropped when the buffer is full. */
+	public final static int OVERFLOW_DROP_NEWEST = 1;
+	
+	private static int overflowPolicy = OVERFLOW_DROP_DEBUG_FIRST; // current OVERFLOW_ policy for the persistence buffer
+	
 	private static int logLevel = LOGLEVEL_default; // current logging level, one of the LOGLEVEL_ values
 	private static boolean doLogcat = true;			// when true, logs to the system logger so that logcat can display the messages
 	
@@ -58,18 +68,20 @@ public class LSLogger {
 	private static SimpleDateFormat logItemDateFormatter; // single instance for quick-formatting of log item dates.
 	
 	private static Context context;
-	private Vector<LSLogItem> logItems;	// list of current logging information items in the current logItemsSortOrder
-	private Vector<LSLogItem> reverseLogItems; // list of logging items in opposite sorting order
-	private int logItemsSortOrder;		// default/current date-sort order of the items in the logItems list.
+	private int logItemsSortOrder;		// default/current date-sort order of the log items lists.
 	private LoggerDB loggerDB;
+	private LogWriter logWriter;   // writes persisted log items to the loggerDB in the background
 	private LoggerDataChangeListener dataObserver; // observer for watching for data changes; note that we should use a list of these.
 	
 	/** Initializes the logging system. To be called even if logging is currently off. */
 	public static void initialize(Context appcontext) {
 		context = appcontext;
 		Settings settings = Settings.getInstance(context);
-		if (settings != null)
+		if (settings != null) {
 			logLevel = settings.getSettingInt(Settings.LOGLEVEL, LOGLEVEL_default);
+			overflowPolicy = settings.getSettingInt(Settings.LOGOVERFLOWPOLICY, overflowPolicy);
+			ContentFilter.setProtectedKeys(settings.getSetting(Settings.LOGPROTECTEDKEYS));
+		}
 	}
 	
 	/** Shuts down the logging system. */
@@ -77,6 +89,10 @@ public class LSLogger {
 		logLevel = LOGLEVEL_none;
 		if (logger != null) {
 			try {
+				if (logger.logWriter != null) {
+					logger.logWriter.terminate();
+					logger.logWriter = null;
+				}
 				if (logger.loggerDB != null) {
 					logger.loggerDB.closeDB();
 					logger.loggerDB = null;
@@ -192,6 +208,27 @@ public class LSLogger {
 		return logger.getLogsForMsgType(sortOrder, msgTypeFromLogLevel(msgLevel));
 	}
 	
+	/**
+	 * Reads a page of persisted log items, for showing the logs a page at a time.
+	 * @param list list to add the items to.
+	 * @param sortOrder One of the LOGORDER_ flag values for indicating the date-ordering of the items.
+	 * @param msgLevel a LOGLEVEL_ value for reading only the items of that message type; all items are
+	 * read if the level is not for a specific message type.
+	 * @param after key of the last item of the previous page, or not set for the first page;
+	 * this is updated to the last item read.
+	 * @param limit maximum number of items to read.
+	 * @return number of items read, or -1 if error.
+	 */
+	public static int getLogItemsPage(List<LSLogItem> list, int sortOrder, int msgLevel, 
+									  DBStorage.PageKey after, int limit) {
+		LSLogger logger = getInstance();
+		if (!after.isSet())
+			logger.flushPendingLogs();
+		if (logger.loggerDB == null)
+			return -1;
+		return logger.loggerDB.readLogRecordsPage(list, sortOrder, msgTypeFromLogLevel(msgLevel), after, limit);
+	}
+	
 	/**
 	 * Clears all log data from memory and from file storage.
 	 */
@@ -229,10 +266,7 @@ public class LSLogger {
 	// constructs a local instance of the logger
 	private LSLogger() {
 		logItemsSortOrder = LOGORDER_Descending;
-		logItems = new Vector<LSLogItem>();
-		reverseLogItems = new Vector<LSLogItem>();
 		loggerDB = new LoggerDB(context);
-		logItemDateFormatter = new SimpleDateFormat("MM/dd/yyyy-HH:mm:ss:SSS");
 	}
 	
 	
@@ -244,6 +278,7 @@ public class LSLogger {
 	public List<LSLogItem> getAllLogs(int sortOrder) {
 		// create a new list and read the items from the database.
 		Vector<LSLogItem> list = new Vector<LSLogItem>();
+		flushPendingLogs();
 		if (loggerDB != null)
 			loggerDB.readLogRecords(list, sortOrder, null);
 		return list;
@@ -258,6 +293,7 @@ public class LSLogger {
 	public List<LSLogItem> getLogsForMsgType(int sortOrder, String msgType) {
 		// create a new list and read the items from the database.
 		Vector<LSLogItem> list = new Vector<LSLogItem>();
+		flushPendingLogs();
 		if (loggerDB != null)
 			loggerDB.readLogRecords(list, sortOrder, msgType);
 		return list;
@@ -277,39 +313,91 @@ public class LSLogger {
 	 * clears all log data and deletes persisted log data from storage.
 	 */
 	private void clearAllLogs() {
+		flushPendingLogs();
 		if (loggerDB != null)
 			loggerDB.deleteAll();
-		logItems.clear();
-		reverseLogItems.clear();
 	}
 	
-	// adds the logitem instance to the list of items and performs any needed persistence.
-	private void addItem(LSLogItem item, boolean doPersist) {
+	// creates a log item, persists it as needed, and notifies the observer. Items that are not persisted
+	//  are only given to the observer, so no item is created for them if there is no observer.
+	private void addItem(String tag, char msgType, String msg, boolean doPersist) {
+		boolean bPersist = (doPersist && loggerDB != null);
+		if (!bPersist && dataObserver == null)
+			return;
+		LSLogItem item = new LSLogItem(tag, msgType, msg);
 		// persist the item as a row in the logger database:
-		if (doPersist && loggerDB != null) {
-			loggerDB.insert(item);
-		} else {  // store the items in the local cache lists only
-			if (logItemsSortOrder == LOGORDER_Ascending) {
-				// add to bottom of the main list, then top of the reverse list
-				logItems.add(item);
-				reverseLogItems.insertElementAt(item, 0);
-			} else {
-				// add to the top of the main list, then to the bottom of the reverse list
-				logItems.insertElementAt(item, 0);
-				reverseLogItems.add(item);
-			}			
-		}
+		if (bPersist)
+			getLogWriter().offer(item);
 		notifyObservers(item);
 	}
 
 	
+	// gets the log writer, creating and starting it as needed.
+	private LogWriter getLogWriter() {
+		if (logWriter == null) {
+			synchronized (this) {
+				if (logWriter == null)
+					logWriter = new LogWriter(loggerDB);
+			}
+		}
+		return logWriter;
+	}
+	
+	// writes any log items waiting in the log writer to the database, on the calling thread.
+	private void flushPendingLogs() {
+		if (logWriter != null)
+			logWriter.flush();
+	}
+	
+	/**
+	 * Sets how the log persistence buffer handles messages when it is full.
+	 * @param policy one of the OVERFLOW_ values.
+	 */
+	public static void setOverflowPolicy(int policy) {
+		if (policy == OVERFLOW_DROP_DEBUG_FIRST || policy == OVERFLOW_DROP_NEWEST)
+			overflowPolicy = policy;
+	}
+	
+	/** Gets the number of log items dropped because the persistence buffer was full. */
+	public static long getDroppedLogCount() {
+		LogWriter writer = getInstance().logWriter;
+		return (writer == null ? 0 : writer.statDropped.get());
+	}
+	
+	/** Gets the number of log items written to the database. */
+	public static long getFlushedLogCount() {
+		LogWriter writer = getInstance().logWriter;
+		return (writer == null ? 0 : writer.statFlushed.get());
+	}
+	
+	/**
+	 * Gets a summary of the log writer statistics, for logging and diagnostics.
+	 */
+	public static String getLogWriterStatistics() {
+		LogWriter writer = getInstance().logWriter;
+		if (writer == null)
+			return "not started";
+		return "flushed=" + writer.statFlushed.get() + " batches=" + writer.statBatches.get() +
+				" dropped=" + writer.statDropped.get() + " (debug=" + writer.statDroppedDebug.get() + ")" +
+				" pending=" + writer.getPendingCount();
+	}
+	
 	// --------------------------------------------------------------------------------
 	// -- static methods for calling into the logging system for adding log messages --
 	// --------------------------------------------------------------------------------
 	
 	// internal method to add a log item to the logger instance so that it can be persisted
-	private static void addLogItem(String tag, String msgType, String msg, boolean doPersist) {
-		getInstance().addItem(  new LSLogItem(tag, msgType, msg), doPersist );		
+	private static void addLogItem(String tag, char msgType, String msg, boolean doPersist) {
+		getInstance().addItem(tag, msgType, msg, doPersist);		
+	}
+
+	/**
+	 * Returns true if messages of the given level are being logged. Use this to avoid building
+	 * message strings that would not be logged, such as for detailed debug messages.
+	 * @param level a LOGLEVEL_ value.
+	 */
+	public static boolean isLoggable(int level) {
+		return (logLevel >= level && level > LOGLEVEL_none);
 	}
 
 	/**
@@ -327,7 +415,7 @@ public class LSLogger {
 		if (doLogcat)
 			Log.i(tag, msg);
 		if (logLevel >= LOGLEVEL_info) 
-			addLogItem(tag, MSGTYPE_info, msg, doPersist);
+			addLogItem(tag, MSGTYPEC_info, msg, doPersist);
 	}
 
 	
@@ -346,7 +434,7 @@ public class LSLogger {
 		if (doLogcat)
 			Log.d(tag, msg);
 		if (logLevel >= LOGLEVEL_debug) 
-			addLogItem(tag, MSGTYPE_debug, msg, doPersist);
+			addLogItem(tag, MSGTYPEC_debug, msg, doPersist);
 	}
  
 	/**
@@ -364,7 +452,7 @@ public class LSLogger {
 		if (doLogcat)
 			Log.w(tag, msg);
 		if (logLevel >= LOGLEVEL_warn) 
-			addLogItem(tag, MSGTYPE_warn, msg, doPersist);
+			addLogItem(tag, MSGTYPEC_warn, msg, doPersist);
 	}
 	
 	/**
@@ -382,7 +470,7 @@ public class LSLogger {
 		if (doLogcat)
 			Log.e(tag, msg);
 		if (logLevel >= LOGLEVEL_error) 
-			addLogItem(tag, MSGTYPE_error, msg, doPersist);
+			addLogItem(tag, MSGTYPEC_error, msg, doPersist);
 	}
 	
 	/**
@@ -431,59 +519,70 @@ public class LSLogger {
 	// --- Inner-class for defining the contents of a single log entry --
 	// ------------------------------------------------------------------
 	
-	public static class LSLogItem extends JSONObject {
+	/**
+	 * A log entry. This is kept small, since one is created for every message logged: the fields are
+	 * primitives, the source (tag) is kept as an index into the tag table (or as is, once the table is
+	 * full), and the message type as a char. The date and identifier strings are only formatted when the item is displayed or exported.
+	 */
+	public static class LSLogItem {
 		
 		long   msgtime;	// time the message was logged, current time in milliseconds
-		String msgsrc;	// source of the message, usually a class name
-		String msgtype;	// one of the LSLogger.MSGTYPE_ values
-		String msg;		// actual message logged
 		long   threadID;
-		char   msgtypec;
-		String formattedDate;
-		String identifier;
+		int    tagId;	// source of the message, usually a class name, as an index in the tag table
+		String tag;		// source of the message, only when it is not in the (full) tag table
+		char   msgtypec;// one of the LSLogger.MSGTYPEC_ values
+		String msg;		// actual message logged
+		private String identifier; // formatted when first needed
 		
 		public LSLogItem() {
-			super();			
 		}
 		
 		/**
 		 * Creates a new log line instance for the given information. Automatically creates the date/time stamp as the current time.
 		 * @param msgSource
-		 * @param msgType
+		 * @param msgType one of the MSGTYPEC_ values.
 		 * @param message
 		 */
-		public LSLogItem(String msgSource, String msgType, String message) {
-			super();
-			msgtime = new Date().getTime();
-			msgsrc  = msgSource;
-			msgtype = msgType;
-			msg     = message;		
+		public LSLogItem(String msgSource, char msgType, String message) {
+			msgtime  = System.currentTimeMillis();
+			setSource(msgSource);
+			msgtypec = msgType;
+			msg      = message;		
 			threadID = Thread.currentThread().getId();
-			createInternalValues();
-		}
-		
-		protected void createInternalValues() {
-			msgtypec = msgtypeCfromS(msgtype);
-			formattedDate = logItemDateFormatter.format(new Date(msgtime));
-			identifier = "TID:" + Long.toString(threadID) + " " + formattedDate + " " + msgsrc;			
 		}
 		
 		public String getMessage() {
 			return msg;
 		}
 		
-		public String getIdentifier() {			
+		public String getIdentifier() {
+			if (identifier == null)
+				identifier = "TID:" + Long.toString(threadID) + " " + getFormattedDate() + " " + getSource();
 			return identifier;
-		}		
+		}
+		public String getSource() {
+			return (tag != null ? tag : TagTable.getTag(tagId));
+		}
+		// sets the source; it is kept as its index in the tag table, or as is if the table is full.
+		void setSource(String msgSource) {
+			tagId = TagTable.intern(msgSource);
+			tag = (tagId == 0 ? msgSource : null);
+		}
+		public long getTime() {
+			return msgtime;
+		}
+		public String getFormattedDate() {
+			return formatLogDate(msgtime);
+		}
 		public String getMsgType() {
-			return msgtype;
+			return msgtypeSfromC(msgtypec);
 		}
 		public char getMsgTypeChar() {
 			return msgtypec;
 		}
 
 		// converts msgtype string to a literal value (a char).
-		private char msgtypeCfromS(String msgtype) {
+		static char msgtypeCfromS(String msgtype) {
 			char c = MSGTYPEC_unknown;
 			if (msgtype != null) {
 				if (msgtype.equals(MSGTYPE_info))
@@ -498,13 +597,27 @@ public class LSLogger {
 			return c;
 		}
 		
+		// converts a msgtype char to its string value (one of the MSGTYPE_ constants).
+		static String msgtypeSfromC(char msgtypec) {
+			String s = null;
+			switch (msgtypec) {
+				case MSGTYPEC_info:  s = MSGTYPE_info; break;
+				case MSGTYPEC_warn:  s = MSGTYPE_warn; break;
+				case MSGTYPEC_error: s = MSGTYPE_error; break;
+				case MSGTYPEC_debug: s = MSGTYPE_debug; break;
+			}
+			return s;
+		}
+		
 		/**
 		 * Create a log export text string for writing to an exported log file.
 		 * @return String for the item's information. format is: date type threadID source: msg
 		 */
 		public String toLogExportString() {
-			String s=formattedDate + " " + msgtype + " " + Long.toString(threadID) + " " + msgsrc + ": " + msg;
-			return s;
+			StringBuilder sb = new StringBuilder(64 + (msg == null ? 4 : msg.length()));
+			sb.append(getFormattedDate()).append(' ').append(getMsgType()).append(' ')
+			  .append(threadID).append(' ').append(getSource()).append(": ").append(msg);
+			return sb.toString();
 		}
 		
 		/**
@@ -521,6 +634,186 @@ public class LSLogger {
 		}
 	}
 	
+	// formats a log item time for display; the formatter is shared, so this is synchronized on it.
+	private static String formatLogDate(long time) {
+		synchronized (LSLogger.class) {
+			if (logItemDateFormatter == null)
+				logItemDateFormatter = new SimpleDateFormat("MM/dd/yyyy-HH:mm:ss:SSS");
+			return logItemDateFormatter.format(new Date(time));
+		}
+	}
+	
+	// ---------------------------------------------------------------------
+	// --- Inner-class for keeping one copy of each log source (tag) name --
+	// ---------------------------------------------------------------------
+	/**
+	 * Table of the log source (tag) names. Each log item keeps the index of its tag in this table,
+	 * rather than its own reference to a string, so items read from the database share the same tag
+	 * strings. Looking up a tag that is already in the table does not lock or allocate.
+	 */
+	static class TagTable {
+		private final static int MAX_TAGS = 1024;
+		private final static ConcurrentHashMap<String,Integer> tagIds = new ConcurrentHashMap<String,Integer>(64);
+		private static volatile String[] tags = new String[64];
+		private static int tagCount = 1; // index 0 is used for a null or unknown tag
+
+		/**
+		 * Gets the index of a tag, adding it to the table if needed.
+		 * @return the tag's index, or 0 if the tag is null or the table is full (the caller then keeps the tag itself).
+		 */
+		static int intern(String tag) {
+			if (tag == null)
+				return 0;
+			Integer id = tagIds.get(tag);
+			if (id != null)
+				return id.intValue();
+			synchronized (TagTable.class) {
+				id = tagIds.get(tag);
+				if (id != null)
+					return id.intValue();
+				if (tagCount >= MAX_TAGS)
+					return 0;
+				String[] table = tags;
+				if (tagCount >= table.length) {
+					String[] newTable = new String[Math.min(table.length * 2, MAX_TAGS)];
+					System.arraycopy(table, 0, newTable, 0, table.length);
+					table = newTable;
+				}
+				int index = tagCount++;
+				table[index] = tag;
+				tags = table;
+				tagIds.put(tag, Integer.valueOf(index));
+				return index;
+			}
+		}
+
+		/** Gets the tag at an index, or null if not a valid index. */
+		static String getTag(int index) {
+			String[] table = tags;
+			return ((index > 0 && index < table.length) ? table[index] : null);
+		}
+	}
+	
+	// ------------------------------------------------------------------------
+	// --- Inner-class for writing log items to the database in the background --
+	// ------------------------------------------------------------------------
+	/**
+	 * Writes persisted log items to the LoggerDB from a single background thread, so that logging
+	 * does not wait for a database insert (and its transaction) on the thread doing the logging.
+	 * 
+	 * Log items are put in a fixed-size ring buffer; any number of threads can add items without
+	 * locking (a slot is claimed by advancing the tail sequence with a compare-and-set). The writer
+	 * thread takes the items from the head of the buffer and inserts them in batches, each batch in
+	 * one transaction using a compiled insert statement. When the buffer is full, items are
+	 * dropped according to the overflow policy, and counted.
+	 */
+	private static class LogWriter implements Runnable {
+		private final static int  BUFFER_SIZE = 1024;          // must be a power of 2
+		private final static int  BUFFER_MASK = BUFFER_SIZE - 1;
+		private final static int  DEBUG_LIMIT = BUFFER_SIZE * 3 / 4; // debug items are dropped beyond this, with OVERFLOW_DROP_DEBUG_FIRST
+		private final static int  MAX_BATCH   = 256;           // max items written in one transaction
+		private final static long WRITE_DELAY_NS = 250 * 1000000L; // time to wait for more items before writing
+
+		private final AtomicReferenceArray<LSLogItem> slots = new AtomicReferenceArray<LSLogItem>(BUFFER_SIZE);
+		private final AtomicLong tail = new AtomicLong(); // sequence of the next slot to be claimed by a producer
+		private volatile long head;                       // sequence of the next slot to be written; changed only when holding writeLock
+		private final Object writeLock = new Object();    // held while writing a batch to the database
+		private LSLogItem[] batch = new LSLogItem[MAX_BATCH];
+		private LoggerDB db;
+		private Thread thread;
+		private volatile boolean bTerminated;
+
+		final AtomicLong statFlushed = new AtomicLong();
+		final AtomicLong statBatches = new AtomicLong();
+		final AtomicLong statDropped = new AtomicLong();
+		final AtomicLong statDroppedDebug = new AtomicLong();
+
+		LogWriter(LoggerDB db) {
+			this.db = db;
+			thread = new Thread(this, "LSLogWriter");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/**
+		 * Adds an item to be written. Does not block.
+		 * @return true if added, false if dropped because the buffer was full.
+		 */
+		boolean offer(LSLogItem item) {
+			boolean bDebug = (item.msgtypec == MSGTYPEC_debug);
+			int limit = ((bDebug && overflowPolicy == OVERFLOW_DROP_DEBUG_FIRST) ? DEBUG_LIMIT : BUFFER_SIZE);
+			long seq;
+			do {
+				seq = tail.get();
+				if (seq - head >= limit) {
+					statDropped.incrementAndGet();
+					if (bDebug)
+						statDroppedDebug.incrementAndGet();
+					return false;
+				}
+			} while (!tail.compareAndSet(seq, seq + 1));
+			slots.set((int)(seq & BUFFER_MASK), item);
+			if (seq - head >= MAX_BATCH / 2)
+				LockSupport.unpark(thread); // a good-sized batch is waiting; write it now.
+			return true;
+		}
+
+		int getPendingCount() {
+			return (int)(tail.get() - head);
+		}
+
+		/** Writes all waiting items, on the calling thread. */
+		void flush() {
+			while (writeBatch() > 0)
+				;
+		}
+
+		void terminate() {
+			bTerminated = true;
+			LockSupport.unpark(thread);
+			flush();
+		}
+
+		public void run() {
+			while (!bTerminated) {
+				if (writeBatch() < MAX_BATCH)
+					LockSupport.parkNanos(this, WRITE_DELAY_NS);
+			}
+		}
+
+		// takes up to MAX_BATCH items from the buffer and inserts them in one transaction; returns the number written.
+		private int writeBatch() {
+			synchronized (writeLock) {
+				int count = 0;
+				long seq = head;
+				while (count < MAX_BATCH && seq < tail.get()) {
+					int index = (int)(seq & BUFFER_MASK);
+					LSLogItem item = slots.get(index);
+					if (item == null) // slot claimed, but the item is not yet stored; get it next time.
+						break;
+					slots.set(index, null);
+					batch[count++] = item;
+					seq++;
+				}
+				head = seq;
+				if (count > 0) {
+					int added = db.insertBatch(batch, count);
+					// items not added (the transaction failed) are lost; count them as dropped.
+					for (int i=added; i<count; i++) {
+						statDropped.incrementAndGet();
+						if (batch[i].msgtypec == MSGTYPEC_debug)
+							statDroppedDebug.incrementAndGet();
+					}
+					for (int i=0; i<count; i++)
+						batch[i] = null;
+					statFlushed.addAndGet(added);
+					statBatches.incrementAndGet();
+				}
+				return count;
+			}
+		}
+	}
+	
 	/**
 	 * Abstract method to get the SQL used to create the Logs database table.
 	 * @return the SQL string used to create the table.
@@ -529,6 +822,31 @@ public class LSLogger {
     	return LoggerDB.getSqlCreateTable();
     }
 
+	/**
+	 * Gets the SQL used to create the Logs database table's indexes.
+	 * @return array of SQL strings, one per index.
+	 */
+    public static String[] getLogsSqlCreateIndexes() {
+    	return LoggerDB.getSqlCreateIndexes();
+    }
+    
+    /**
+     * Removes the oldest persisted log entries so that the logs are within the given limits.
+     * Any log items waiting to be written are written first. Use 0 for no limit.
+     * @param maxRows maximum number of log entries to keep.
+     * @param maxAgeMs maximum age of the log entries to keep, in milliseconds.
+     * @param maxBytes maximum approximate size of the log entries to keep, in bytes.
+     * @return number of log entries removed, or -1 if error.
+     */
+    public static int compactLogs(int maxRows, long maxAgeMs, long maxBytes) {
+    	LSLogger logger = getInstance();
+    	int deleted = -1;
+    	logger.flushPendingLogs();
+    	if (logger.loggerDB != null)
+    		deleted = logger.loggerDB.compact(maxRows, maxAgeMs, maxBytes);
+    	return deleted;
+    }
+
 	
 	// -----------------------------------------------------------------------
 	// --- Inner-class for handling logging persistence in sqlite database  --
@@ -564,6 +882,17 @@ public class LSLogger {
                 		COLUMN_TYPE + " TEXT, " +
                 		COLUMN_SRC  + " TEXT, " +
                 		COLUMN_MSG  + " TEXT);";
+		// SQL commands used to create the indexes for reading by time and by type, and for removing old entries:
+		private final static String[] LOGGER_DB_CREATE_INDEXES_SQL = {
+				"CREATE INDEX IF NOT EXISTS " + LOGGER_DB_TABLENAME + "_time_idx ON " + LOGGER_DB_TABLENAME + " (" + COLUMN_TIME + ");",
+				"CREATE INDEX IF NOT EXISTS " + LOGGER_DB_TABLENAME + "_type_idx ON " + LOGGER_DB_TABLENAME + " (" + COLUMN_TYPE + "," + COLUMN_TIME + ");" };
+		// SQL expression for the approximate size of an entry, in bytes:
+		private final static String LOGGER_DB_ROWSIZE_EXPR =
+				"ifnull(length(" + COLUMN_MSG + "),0)+ifnull(length(" + COLUMN_SRC + "),0)+17";
+		// SQL command used to add a log entry (compiled once per batch of entries):
+		private final static String LOGGER_DB_INSERT =
+				"insert into " + LOGGER_DB_TABLENAME + " (" + COLUMN_TIME + "," + COLUMN_TID + "," +
+				COLUMN_TYPE + "," + COLUMN_SRC + "," + COLUMN_MSG + ") values (?,?,?,?,?);";
 		// index locations of the data in the query, for improved processing speeds:
 		private final static int COLUMN_TIME_INDEX = 0;
 		private final static int COLUMN_TID_INDEX  = 1;
@@ -608,6 +937,10 @@ public class LSLogger {
 	    	return LOGGER_DB_CREATE_SQL;
 	    }
 
+	    public static String[] getSqlCreateIndexes() {
+	    	return LOGGER_DB_CREATE_INDEXES_SQL;
+	    }
+
 	    /**
 	     * Builds a map for all columns that may be requested, which will be given to the 
 	     * SQLiteQueryBuilder. This is a good way to define aliases for column names, but must include 
@@ -658,10 +991,9 @@ public class LSLogger {
 	                    LSLogItem item = new LSLogItem(); 
 	                    item.msgtime  = cursor.getLong(COLUMN_TIME_INDEX);
 	                    item.threadID = cursor.getLong(COLUMN_TID_INDEX);
-	                    item.msgtype = cursor.getString(COLUMN_TYPE_INDEX);
-	                    item.msgsrc  = cursor.getString(COLUMN_SRC_INDEX);
-	                    item.msg     = cursor.getString(COLUMN_MSG_INDEX);
-	                    item.createInternalValues();
+	                    item.msgtypec = LSLogItem.msgtypeCfromS(cursor.getString(COLUMN_TYPE_INDEX));
+	                    item.setSource(cursor.getString(COLUMN_SRC_INDEX));
+	                    item.msg      = cursor.getString(COLUMN_MSG_INDEX);
 	                    list.add(item);
 	                    result++;
 	                } while (cursor.moveToNext());
@@ -676,19 +1008,88 @@ public class LSLogger {
 	    	return result;
 	    }
 	    
+	    protected int readLogRecordsPage(List<LSLogItem> list, int sortOrder, String msgTypeFilter, 
+	    								 PageKey after, int limit) {
+	    	int result = -1;
+	        Cursor cursor = null;
+	    	try {
+	    		cursor = queryPage(LOGGER_DB_TABLENAME, COLUMN_TIME, 
+	    				(msgTypeFilter == null ? null : COLUMN_TYPE), msgTypeFilter, 
+	    				(sortOrder==LOGORDER_Descending ? DBORDER_Descending : DBORDER_Ascending), after, limit);
+	    		if (cursor != null) {
+	    			result = 0;
+	    			while (cursor.moveToNext()) {
+	                    LSLogItem item = new LSLogItem(); 
+	                    item.msgtime  = cursor.getLong(COLUMN_TIME_INDEX + PAGE_COLUMN_OFFSET);
+	                    item.threadID = cursor.getLong(COLUMN_TID_INDEX + PAGE_COLUMN_OFFSET);
+	                    item.msgtypec = LSLogItem.msgtypeCfromS(cursor.getString(COLUMN_TYPE_INDEX + PAGE_COLUMN_OFFSET));
+	                    item.setSource(cursor.getString(COLUMN_SRC_INDEX + PAGE_COLUMN_OFFSET));
+	                    item.msg      = cursor.getString(COLUMN_MSG_INDEX + PAGE_COLUMN_OFFSET);
+	                    list.add(item);
+	                    after.set(item.msgtime, cursor.getLong(PAGE_ROWID_INDEX));
+	                    result++;
+	    			}
+	    		}
+	    	} catch (Exception ex) {
+	    		LSLogger.exception(TAG, "Error Reading DB page", ex, false);
+	    		result = -1;
+	    	} finally {
+	    		if (cursor != null && !cursor.isClosed())
+	    			cursor.close();
+	    	}
+	    	return result;
+	    }
+	    
+	    /**
+	     * Adds log items to the database, all in one transaction.
+	     * @param items array of items to add.
+	     * @param count number of items in the array to add.
+	     * @return the number of items added.
+	     */
+	    protected int insertBatch(LSLogItem[] items, int count) {
+	    	int added = 0;
+	    	SQLiteDatabase db = openForWriting();
+	    	if (db == null)
+	    		return 0;
+	    	try {
+	    		db.beginTransaction();
+	    		SQLiteStatement stmt = db.compileStatement(LOGGER_DB_INSERT);
+	    		try {
+	    			for (int i=0; i<count; i++) {
+	    				LSLogItem item = items[i];
+	    				stmt.bindLong(1, item.msgtime);
+	    				stmt.bindLong(2, item.threadID);
+	    				bindStringOrNull(stmt, 3, item.getMsgType());
+	    				bindStringOrNull(stmt, 4, item.getSource());
+	    				bindStringOrNull(stmt, 5, item.msg);
+	    				stmt.executeInsert();
+	    				added++;
+	    			}
+	    			db.setTransactionSuccessful();
+	    		} finally {
+	    			stmt.close();
+	    			db.endTransaction();
+	    		}
+	    	} catch (Exception ex) {
+	    		LSLogger.exception(TAG, "Error writing log items to DB", ex, false);
+	    		added = 0;
+	    	}
+	    	return added;
+	    }
+	    
+	    private static void bindStringOrNull(SQLiteStatement stmt, int index, String value) {
+	    	if (value == null)
+	    		stmt.bindNull(index);
+	    	else
+	    		stmt.bindString(index, value);
+	    }
+	    
 	    /**
-	     * Adds the LSLogItem instance's data to the database.
-	     * @param item
-	     * @return the row ID of the inserted row, or -1 if error.
+	     * Removes the oldest log entries so that the table is within the given limits.
+	     * @return number of entries removed, or -1 if error.
 	     */
-	    protected long insert(LSLogItem item) {
-	    	ContentValues mapping  = new ContentValues(5);
-	    	mapping.put(COLUMN_TIME, Long.valueOf(item.msgtime));
-	    	mapping.put(COLUMN_TID,  Long.valueOf(item.threadID));
-	    	mapping.put(COLUMN_TYPE, item.msgtype);
-	    	mapping.put(COLUMN_SRC,  item.msgsrc);
-	    	mapping.put(COLUMN_MSG,  item.msg);
-	    	return super.insertRow(LOGGER_DB_TABLENAME, mapping);
+	    protected int compact(int maxRows, long maxAgeMs, long maxBytes) {
+	    	return deleteOldRows(LOGGER_DB_TABLENAME, COLUMN_TIME, LOGGER_DB_ROWSIZE_EXPR, maxRows, maxAgeMs, maxBytes);
 	    }
 	    
 	    /**
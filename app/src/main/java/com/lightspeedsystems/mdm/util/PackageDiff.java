@@ -0,0 +1,76 @@
+package com.lightspeedsystems.mdm.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Finds the differences between a previous and a current list of packages: the packages added,
+ * the ones whose version changed, and the ones removed.
+ *
+ * The previous items are indexed by package key, then each current item is looked up and removed
+ * from the index; the items left in the index afterwards were removed. This takes time in
+ * proportion to the number of items, rather than comparing every pair of them.
+ *
+ * This uses only plain java, so that it can also be run and measured off the device (see the
+ * benchmarks module).
+ */
+public class PackageDiff {
+
+	/**
+	 * Gets the values compared, and receives the differences found.
+	 */
+	public interface Handler<T> {
+		/** Gets the key of an item, such as its normalized package name; null if it has none. */
+		String getKey(T item);
+		/** Returns true if the previous and current items are the same version. */
+		boolean isSameVersion(T previous, T current);
+		/** Called for a current item that was not in the previous list. */
+		void added(T current);
+		/** Called for a current item whose version is different from the previous item with its key. */
+		void updated(T previous, T current);
+		/** Called for a previous item that is not in the current list, or has no key. */
+		void removed(T previous);
+		/** Called for a previous item with the same key as an earlier previous item; the earlier one is used. */
+		void duplicate(T previous);
+	}
+
+	/**
+	 * Compares the lists, calling the handler for each difference: first for the added and updated
+	 * items, in the order of the current list, then for the removed items.
+	 * @param previous the previous items.
+	 * @param current the current items.
+	 * @param handler gets the items' values and the differences.
+	 */
+	public static <T> void compare(List<T> previous, List<T> current, Handler<T> handler) {
+		LinkedHashMap<String,T> index = new LinkedHashMap<String,T>(previous.size() * 2);
+		ArrayList<T> removed = new ArrayList<T>();
+		Iterator<T> iter = previous.iterator();
+		while (iter.hasNext()) {
+			T item = iter.next();
+			String key = handler.getKey(item);
+			if (key == null)
+				removed.add(item);
+			else if (!index.containsKey(key))
+				index.put(key, item);
+			else
+				handler.duplicate(item);
+		}
+
+		iter = current.iterator();
+		while (iter.hasNext()) {
+			T item = iter.next();
+			String key = handler.getKey(item);
+			T previousItem = (key == null ? null : index.remove(key));
+			if (previousItem == null)
+				handler.added(item);
+			else if (!handler.isSameVersion(previousItem, item))
+				handler.updated(previousItem, item);
+		}
+
+		removed.addAll(index.values());
+		for (int i=0; i<removed.size(); i++)
+			handler.removed(removed.get(i));
+	}
+}
@@ -0,0 +1,74 @@
+package com.lightspeedsystems.mdm.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import android.util.JsonReader;
+
+import com.lightspeedsystems.mdm.util.JsonUtil;
+
+/**
+ * Measures parsing a batch of server commands, as read by CommandStreamReader for
+ * CommandProcessor.processServerCommands: one command at a time from the response stream, and,
+ * for comparison, the whole response as one JSONArray.
+ */
+@State(Scope.Benchmark)
+public class CommandBatchBenchmark {
+
+	@Param({"1", "50"})
+	public int commandCount;
+
+	private byte[] response;
+
+	@Setup
+	public void setup() throws Exception {
+		JSONArray jcommands = new JSONArray();
+		for (int i=0; i<commandCount; i++) {
+			JSONObject jcmd = new JSONObject();
+			jcmd.put("cmd", (i % 3 == 0 ? "appinstall" : (i % 3 == 1 ? "setconfig" : "lock")));
+			jcmd.put("command_id", Integer.toString(1000 + i));
+			if (i % 3 == 0) {
+				jcmd.put("name", "App " + i);
+				jcmd.put("fileurl", "https://example.com/files/app" + i + ".apk");
+				jcmd.put("sha256", "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef");
+			} else if (i % 3 == 1) {
+				JSONObject jcfg = new JSONObject();
+				jcfg.put("checkin_interval_mins", 360);
+				jcfg.put("log_retain_maxdays", 14);
+				jcmd.put("config", jcfg);
+			}
+			jcommands.put(jcmd);
+		}
+		response = jcommands.toString().getBytes("UTF-8");
+	}
+
+	@Benchmark
+	public void streamed(Blackhole bh) throws Exception {
+		JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(response), "UTF-8"));
+		reader.setLenient(true);
+		try {
+			reader.beginArray();
+			while (reader.hasNext())
+				bh.consume(JsonUtil.readObject(reader));
+			reader.endArray();
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Benchmark
+	public void wholeResponse(Blackhole bh) throws Exception {
+		JSONArray jcommands = new JSONArray(new String(response, "UTF-8"));
+		for (int i=0; i<jcommands.length(); i++)
+			bh.consume(jcommands.getJSONObject(i));
+	}
+}
@@ -0,0 +1,58 @@
+package com.lightspeedsystems.mdm.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.lightspeedsystems.mdm.util.ContentFilter;
+
+/**
+ * Measures the hiding of protected values in text that is logged: a small command with a
+ * passcode, and a large response (an app list of 500 apps) with a few passwords in it.
+ */
+@State(Scope.Benchmark)
+public class ContentFilterBenchmark {
+
+	private String smallCommand;
+	private String largeResponse;
+	private String largeNoMatch;
+
+	@Setup
+	public void setup() {
+		smallCommand = "{\"cmd\":\"passcodereset\",\"command_id\":\"1234\",\"pc\":\"secret-passcode\"}";
+		StringBuilder sb = new StringBuilder("{\"apps\":[");
+		for (int i=0; i<500; i++) {
+			if (i > 0)
+				sb.append(',');
+			sb.append("{\"name\":\"App ").append(i).append("\",\"package\":\"com.example.app").append(i)
+			  .append("\",\"version\":\"1.").append(i).append("\",\"storeurl\":\"https://example.com/apps/").append(i).append('"');
+			if (i % 100 == 0)
+				sb.append(",\"password\":\"p").append(i).append('"');
+			sb.append('}');
+		}
+		sb.append("]}");
+		largeResponse = sb.toString();
+		largeNoMatch = largeResponse.replace("\"password\":", "\"username\":");
+	}
+
+	@Benchmark
+	public String filterSmallCommand() {
+		return ContentFilter.filterProtectedContent(smallCommand);
+	}
+
+	@Benchmark
+	public String filterLargeResponse() {
+		return ContentFilter.filterProtectedContent(largeResponse);
+	}
+
+	@Benchmark
+	public String filterLargeNoMatch() {
+		return ContentFilter.filterProtectedContent(largeNoMatch);
+	}
+
+	@Benchmark
+	public String filterLargeResponseOneKey() {
+		return ContentFilter.filterProtectedContent(largeResponse, new String[] { "password" });
+	}
+}
@@ -0,0 +1,46 @@
+package com.lightspeedsystems.mdm.benchmarks;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.lightspeedsystems.mdm.util.JsonUtil;
+
+/**
+ * Measures building the query string of a GET request from json parameters (as for
+ * HttpComm.sendGet), for a commands query and for a check-in sized set of values.
+ */
+@State(Scope.Benchmark)
+public class JsonParamsBenchmark {
+
+	private JSONObject queryParams;
+	private JSONObject checkinParams;
+
+	@Setup
+	public void setup() throws Exception {
+		queryParams = new JSONObject();
+		queryParams.put("udid", "a1b2c3d4e5f60718293a4b5c6d7e8f90");
+		queryParams.put("wait", 60);
+
+		checkinParams = new JSONObject();
+		checkinParams.put("udid", "a1b2c3d4e5f60718293a4b5c6d7e8f90");
+		checkinParams.put("device_type", "android");
+		for (int i=0; i<40; i++)
+			checkinParams.put("value_" + i, "text value number " + i);
+		checkinParams.put("battery_level", 0.85);
+		checkinParams.put("device_capacity", 29.7);
+		checkinParams.put("is_roaming", false);
+	}
+
+	@Benchmark
+	public String commandsQuery() {
+		return JsonUtil.toStringParams(queryParams);
+	}
+
+	@Benchmark
+	public String checkinValues() {
+		return JsonUtil.toStringParams(checkinParams);
+	}
+}
@@ -0,0 +1,93 @@
+package com.lightspeedsystems.mdm.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.lightspeedsystems.mdm.util.PackageDiff;
+
+/**
+ * Measures the installed apps diff done for each device apps check-in (DeviceApps.getDeltaApps),
+ * over 500 synthetic apps: with no changes, and with 10 apps installed, 10 uninstalled, and 20
+ * updated since the previous list.
+ */
+@State(Scope.Benchmark)
+public class PackageDiffBenchmark {
+
+	private final static int APP_COUNT = 500;
+
+	/** A package name and version, standing in for an App. */
+	static class Pkg {
+		final String packageName;
+		final int versionCode;
+
+		Pkg(String packageName, int versionCode) {
+			this.packageName = packageName;
+			this.versionCode = versionCode;
+		}
+	}
+
+	/** Counts the differences, as DeviceApps collects them. */
+	static class CountingHandler implements PackageDiff.Handler<Pkg> {
+		final Blackhole bh;
+
+		CountingHandler(Blackhole bh) {
+			this.bh = bh;
+		}
+
+		public String getKey(Pkg item) {
+			return (item.packageName == null ? null : item.packageName.toLowerCase(Locale.US));
+		}
+		public boolean isSameVersion(Pkg previous, Pkg current) {
+			return previous.versionCode == current.versionCode;
+		}
+		public void added(Pkg current) {
+			bh.consume(current);
+		}
+		public void updated(Pkg previous, Pkg current) {
+			bh.consume(current);
+		}
+		public void removed(Pkg previous) {
+			bh.consume(previous);
+		}
+		public void duplicate(Pkg previous) {
+			bh.consume(previous);
+		}
+	}
+
+	private ArrayList<Pkg> previous;
+	private ArrayList<Pkg> unchanged;
+	private ArrayList<Pkg> changed;
+
+	@Setup
+	public void setup() {
+		previous = new ArrayList<Pkg>(APP_COUNT);
+		unchanged = new ArrayList<Pkg>(APP_COUNT);
+		changed = new ArrayList<Pkg>(APP_COUNT);
+		for (int i=0; i<APP_COUNT; i++) {
+			String name = "com.example.App" + i;
+			previous.add(new Pkg(name, 1));
+			unchanged.add(new Pkg(name, 1));
+			if (i % 50 == 0)
+				continue;                          // uninstalled
+			changed.add(new Pkg(name, (i % 25 == 1 ? 2 : 1)));  // updated every 25th
+		}
+		for (int i=0; i<10; i++)
+			changed.add(new Pkg("com.example.NewApp" + i, 1));  // installed
+	}
+
+	@Benchmark
+	public void diffUnchanged(Blackhole bh) {
+		PackageDiff.compare(previous, unchanged, new CountingHandler(bh));
+	}
+
+	@Benchmark
+	public void diffChanged(Blackhole bh) {
+		PackageDiff.compare(previous, changed, new CountingHandler(bh));
+	}
+}
@@ -0,0 +1,101 @@
+package com.lightspeedsystems.mdm.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Tests the hiding of protected values by ContentFilter, with the default names.
+ */
+public class ContentFilterTest {
+
+	private static String filter(String s) {
+		return ContentFilter.filterProtectedContent(s, ContentFilter.DEFAULT_PROTECTED_KEYS);
+	}
+
+	@Test
+	public void leavesTextWithoutProtectedValues() {
+		String s = "{\"cmd\":\"lock\",\"command_id\":\"12\"}";
+		assertSame(s, ContentFilter.filterProtectedContent(s));
+		assertEquals(s, filter(s));
+		assertEquals("no json here", filter("no json here"));
+	}
+
+	@Test
+	public void hidesStringValue() {
+		assertEquals("{\"cmd\":\"passcodereset\",\"pc\":\"****\"}", filter("{\"cmd\":\"passcodereset\",\"pc\":\"1234\"}"));
+		assertEquals("{\"password\":\"\"}", filter("{\"password\":\"\"}"));
+	}
+
+	@Test
+	public void matchesNameIgnoringCase() {
+		assertEquals("{\"Password\":\"***\"}", filter("{\"Password\":\"abc\"}"));
+	}
+
+	@Test
+	public void matchesSuffixAfterUnderscore() {
+		assertEquals("{\"proxy_password\":\"***\",\"access_token\":\"**\"}",
+				filter("{\"proxy_password\":\"abc\",\"access_token\":\"xy\"}"));
+		// only after an underscore:
+		assertEquals("{\"mypc\":\"abc\",\"tokens\":\"abc\"}", filter("{\"mypc\":\"abc\",\"tokens\":\"abc\"}"));
+	}
+
+	@Test
+	public void allowsWhitespace() {
+		assertEquals("{\n  \"password\" :  \"***\"\n}", filter("{\n  \"password\" :  \"abc\"\n}"));
+	}
+
+	@Test
+	public void hidesValueWithEscapes() {
+		assertEquals("{\"password\":\"********\",\"name\":\"x\"}", filter("{\"password\":\"a\\\"b\\\\cd\",\"name\":\"x\"}"));
+	}
+
+	@Test
+	public void ignoresNameInsideValue() {
+		String s = "{\"note\":\"the password is set\",\"name\":\"password\"}";
+		assertEquals(s, filter(s));
+	}
+
+	@Test
+	public void hidesCutOffValue() {
+		assertEquals("{\"name\":\"x\",\"password\":\"*****", filter("{\"name\":\"x\",\"password\":\"secre"));
+		assertEquals("{\"passw", filter("{\"passw"));
+	}
+
+	@Test
+	public void hidesAfterStrayQuote() {
+		assertEquals("log: it's \"a {\"password\":\"*******\"}", filter("log: it's \"a {\"password\":\"secret1\"}"));
+		assertEquals("\" {\"pc\":\"****\"}", filter("\" {\"pc\":\"1234\"}"));
+	}
+
+	@Test
+	public void hidesWifiKeys() {
+		assertEquals("{\"SSID\":\"home\",\"preSharedKey\":\"********\"}", filter("{\"SSID\":\"home\",\"preSharedKey\":\"abcdefgh\"}"));
+		assertEquals("{\"wepKeys\":[\"****\", \"***\",\"\"],\"wepTxKeyIndex\":0}",
+				filter("{\"wepKeys\":[\"k1k1\", \"k22\",\"\"],\"wepTxKeyIndex\":0}"));
+	}
+
+	@Test
+	public void hidesCutOffArray() {
+		assertEquals("{\"wepKeys\":[\"****\",\"**", filter("{\"wepKeys\":[\"k1k1\",\"k2"));
+	}
+
+	@Test
+	public void leavesNonStringValues() {
+		String s = "{\"pc\":1234,\"token\":null,\"wepKeys\":[1,2]}";
+		assertEquals(s, filter(s));
+	}
+
+	@Test
+	public void usesSetNames() {
+		try {
+			ContentFilter.setProtectedKeys("apikey, Pin");
+			assertEquals("{\"apikey\":\"**\",\"pin\":\"**\",\"password\":\"ab\"}",
+					ContentFilter.filterProtectedContent("{\"apikey\":\"ab\",\"pin\":\"12\",\"password\":\"ab\"}"));
+		} finally {
+			ContentFilter.setProtectedKeys(null);
+		}
+		assertEquals("{\"password\":\"**\"}", ContentFilter.filterProtectedContent("{\"password\":\"ab\"}"));
+	}
+}